@@ -12,6 +12,8 @@ package org.zenoss.zep;
 
 import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
 
+import java.util.List;
+
 /**
  * Service for processing incoming events from the raw event queue, processing
  * them (identifying the event class, transforming them, persisting them), and
@@ -28,4 +30,16 @@ public interface EventProcessor {
      *             If an error occurs processing the event.
      */
     public void processEvent(ZepRawEvent event) throws ZepException;
+
+    /**
+     * Processes a batch of events. The pre-create plug-ins are run on each
+     * event, the events are persisted in a single transaction, and then the
+     * post-create plug-ins are run on each event.
+     *
+     * @param events
+     *            The raw events.
+     * @throws ZepException
+     *             If an error occurs processing the events.
+     */
+    public void processEvents(List<ZepRawEvent> events) throws ZepException;
 }
@@ -0,0 +1,29 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao;
+
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.ZepException;
+
+/**
+ * Receives the events streamed by {@link EventSummaryBaseDao#scanRange}.
+ */
+public interface EventScanCallback {
+    /**
+     * Called for each event in the range, in UUID order. This is called while the database cursor is open, so
+     * slow callbacks hold the cursor (and its connection) open.
+     *
+     * @param event The event.
+     * @return True to continue the scan, false to stop it.
+     * @throws ZepException If the event can't be processed. This stops the scan.
+     */
+    public boolean event(EventSummary event) throws ZepException;
+}
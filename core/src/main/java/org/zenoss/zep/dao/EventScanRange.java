@@ -0,0 +1,88 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao;
+
+/**
+ * A range of the events in the event summary or event archive table which can be scanned independently of the
+ * other ranges of the table (see {@link EventSummaryBaseDao#scanRange}). A range is either a partition of a
+ * partitioned table (a range of last_seen times) or a range of UUIDs.
+ */
+public final class EventScanRange {
+    private final String id;
+    private final Long lastSeenMinimum;
+    private final Long lastSeenLessThan;
+    private final String uuidMinimum;
+    private final String uuidLessThan;
+
+    private EventScanRange(String id, Long lastSeenMinimum, Long lastSeenLessThan, String uuidMinimum,
+                           String uuidLessThan) {
+        this.id = id;
+        this.lastSeenMinimum = lastSeenMinimum;
+        this.lastSeenLessThan = lastSeenLessThan;
+        this.uuidMinimum = uuidMinimum;
+        this.uuidLessThan = uuidLessThan;
+    }
+
+    /**
+     * Creates a range covering the events in a partition.
+     *
+     * @param id Identifier of the range, stable as long as the partition exists.
+     * @param lastSeenMinimum The minimum last seen time (inclusive), or null for no minimum.
+     * @param lastSeenLessThan The maximum last seen time (exclusive), or null for no maximum.
+     * @return The range.
+     */
+    public static EventScanRange forLastSeen(String id, Long lastSeenMinimum, Long lastSeenLessThan) {
+        return new EventScanRange(id, lastSeenMinimum, lastSeenLessThan, null, null);
+    }
+
+    /**
+     * Creates a range covering the events with UUIDs in a range.
+     *
+     * @param id Identifier of the range.
+     * @param uuidMinimum The minimum UUID (inclusive), or null for no minimum.
+     * @param uuidLessThan The maximum UUID (exclusive), or null for no maximum.
+     * @return The range.
+     */
+    public static EventScanRange forUuids(String id, String uuidMinimum, String uuidLessThan) {
+        return new EventScanRange(id, null, null, uuidMinimum, uuidLessThan);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getLastSeenMinimum() {
+        return lastSeenMinimum;
+    }
+
+    public Long getLastSeenLessThan() {
+        return lastSeenLessThan;
+    }
+
+    public String getUuidMinimum() {
+        return uuidMinimum;
+    }
+
+    public String getUuidLessThan() {
+        return uuidLessThan;
+    }
+
+    @Override
+    public String toString() {
+        return "EventScanRange{" +
+                "id='" + id + '\'' +
+                ", lastSeenMinimum=" + lastSeenMinimum +
+                ", lastSeenLessThan=" + lastSeenLessThan +
+                ", uuidMinimum='" + uuidMinimum + '\'' +
+                ", uuidLessThan='" + uuidLessThan + '\'' +
+                '}';
+    }
+}
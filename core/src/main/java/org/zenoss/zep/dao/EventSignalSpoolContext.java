@@ -0,0 +1,70 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao;
+
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.EventTriggerSubscription;
+
+/**
+ * A spooled event signal together with the event summary, subscription and trigger it refers to, as read
+ * by {@link EventSignalSpoolDao#findAllDueWithContext()}. Any of the referenced objects may be null if it
+ * no longer exists.
+ */
+public class EventSignalSpoolContext {
+    private final EventSignalSpool spool;
+    private final EventSummary eventSummary;
+    private final EventTriggerSubscription subscription;
+    private final EventTrigger trigger;
+
+    public EventSignalSpoolContext(EventSignalSpool spool, EventSummary eventSummary,
+                                   EventTriggerSubscription subscription, EventTrigger trigger) {
+        this.spool = spool;
+        this.eventSummary = eventSummary;
+        this.subscription = subscription;
+        this.trigger = trigger;
+    }
+
+    public EventSignalSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return The event summary, or null if it is no longer in the summary table.
+     */
+    public EventSummary getEventSummary() {
+        return eventSummary;
+    }
+
+    /**
+     * @return The trigger subscription, or null if it was deleted.
+     */
+    public EventTriggerSubscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * @return The trigger (without its subscriptions), or null if it was deleted.
+     */
+    public EventTrigger getTrigger() {
+        return trigger;
+    }
+
+    @Override
+    public String toString() {
+        return "EventSignalSpoolContext{" +
+                "spool=" + spool.getUuid() +
+                ", eventSummary=" + ((eventSummary != null) ? eventSummary.getUuid() : null) +
+                ", subscription=" + ((subscription != null) ? subscription.getUuid() : null) +
+                ", trigger=" + ((trigger != null) ? trigger.getUuid() : null) +
+                '}';
+    }
+}
@@ -30,6 +30,17 @@ public interface EventSignalSpoolDao {
      */
     public String create(EventSignalSpool spool) throws ZepException;
 
+    /**
+     * Creates the signal spool items in a single batch. As with {@link #create(EventSignalSpool)}, the
+     * UUID of each spool item is set if it was not already specified.
+     *
+     * @param spools
+     *            The signal spool items to create.
+     * @throws ZepException
+     *             If an error occurs creating the signal spool items.
+     */
+    public void createAll(Collection<EventSignalSpool> spools) throws ZepException;
+
     /**
      * Deletes the signal with the specified UUID.
      * 
@@ -114,6 +125,15 @@ public interface EventSignalSpoolDao {
      */
     public int update(EventSignalSpool spool) throws ZepException;
 
+    /**
+     * Updates the flush time, event count and sent signal flag of the signal spool items in a single batch.
+     *
+     * @param spools The signal spool items to update.
+     * @return The number of updated rows.
+     * @throws ZepException If an error occurs updating the signal spool items.
+     */
+    public int updateAll(Collection<EventSignalSpool> spools) throws ZepException;
+
     /**
      * Finds the signal spool created for a specific subscription/event summary pair.
      * 
@@ -137,6 +157,38 @@ public interface EventSignalSpoolDao {
      */
     public List<EventSignalSpool> findAllDue() throws ZepException;
 
+    /**
+     * Finds all signal spools due to be signaled, along with the event summary, trigger subscription and
+     * trigger of each, in a single query.
+     *
+     * @return A list of spools due to be signaled with their event summary, subscription and trigger.
+     * @throws ZepException
+     *             If an error occurs looking up the signal spool items.
+     */
+    public List<EventSignalSpoolContext> findAllDueWithContext() throws ZepException;
+
+    /**
+     * Finds the specified signal spools which are due to be signaled, along with the event summary, trigger
+     * subscription and trigger of each, in a single query. Spools which no longer exist or have been
+     * rescheduled for a later time are not returned.
+     *
+     * @param uuids The UUIDs of the signal spools.
+     * @return A list of the spools due to be signaled with their event summary, subscription and trigger.
+     * @throws ZepException
+     *             If an error occurs looking up the signal spool items.
+     */
+    public List<EventSignalSpoolContext> findAllDueWithContext(Collection<String> uuids) throws ZepException;
+
+    /**
+     * Finds all signal spools which are scheduled to be flushed (all spools except those which will not be
+     * signaled again).
+     *
+     * @return A list of the scheduled spools.
+     * @throws ZepException
+     *             If an error occurs looking up the signal spool items.
+     */
+    public List<EventSignalSpool> findAllScheduled() throws ZepException;
+
     /**
      * Returns all spools for the given event summary UUID.
      *
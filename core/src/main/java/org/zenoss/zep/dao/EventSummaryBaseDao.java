@@ -99,6 +99,34 @@ public interface EventSummaryBaseDao {
      * @throws ZepException If an exception occurs.
      */
     public EventBatch listBatch(EventBatchParams batchParams, long maxUpdateTime, int limit) throws ZepException;
+
+    /**
+     * Splits the table into ranges which can be scanned in parallel with {@link #scanRange} (for rebuilding the
+     * database index). Partitioned tables are split into one range per partition, other tables into UUID ranges
+     * holding roughly the same number of events.
+     *
+     * @param uuidRanges The number of UUID ranges to split a table without partitions into.
+     * @return Ranges which together cover every event in the table.
+     * @throws ZepException If an exception occurs.
+     */
+    public List<EventScanRange> listScanRanges(int uuidRanges) throws ZepException;
+
+    /**
+     * Streams the events in a range to the callback, in UUID order, using a forward-only cursor instead of paging
+     * over the range.
+     *
+     * @param range The range to scan.
+     * @param startingUuid Only events with a UUID greater than this UUID are returned, or null to scan the whole
+     *                     range (used to resume an interrupted scan).
+     * @param maxUpdateTime The maximum update time to include.
+     * @param fetchSize The number of rows fetched from the database at a time (where the database supports it).
+     * @param callback Callback which receives the events.
+     * @return The UUID of the last event passed to the callback, or null if no events were.
+     * @throws ZepException If an exception occurs reading the events or is thrown by the callback.
+     */
+    public String scanRange(EventScanRange range, String startingUuid, long maxUpdateTime, int fetchSize,
+                            EventScanCallback callback) throws ZepException;
+
     /**
      * Method used to import a migrated event summary object from Zenoss 3.1.x to the new event
      * schema.
@@ -11,9 +11,11 @@
 package org.zenoss.zep.dao;
 
 import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventSeverity;
 import org.zenoss.protobufs.zep.Zep.EventStatus;
 import org.zenoss.zep.ZepException;
+import org.zenoss.zep.plugins.EventPreCreateContext;
 
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -22,6 +24,25 @@ import java.util.concurrent.TimeUnit;
  * DAO which provides an interface to the event summary table.
  */
 public interface EventSummaryDao extends EventSummaryBaseDao {
+    /**
+     * Creates or updates summary entries for a batch of event occurrences in a
+     * single transaction. Open events are grouped by fingerprint hash, all of
+     * the affected summary rows are locked with one query, and the merged
+     * summaries are written using JDBC batch inserts and updates. Clear events
+     * and closed events are processed in order with the same rules used by
+     * {@link #create(Event, EventPreCreateContext)}.
+     *
+     * @param events The event occurrences.
+     * @param contexts The context used to create each event (must be the same
+     *                 size as <code>events</code>).
+     * @return The UUIDs of the created (or updated) events, in the same order as
+     *         the events. An entry is null if the event was dropped (a clear
+     *         event which didn't clear any events).
+     * @throws ZepException
+     *             If an exception occurred.
+     */
+    public List<String> createAll(List<Event> events, List<EventPreCreateContext> contexts) throws ZepException;
+
     /**
      * Updates event summaries recorded with null device UUIDs, after
      * receiving a ModelChange event for the device's addition - sets the
@@ -0,0 +1,38 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao;
+
+import org.zenoss.zep.ZepException;
+
+/**
+ * In-memory cache of the event triggers and their subscriptions, for readers which evaluate triggers for every
+ * event. Changes made through {@link EventTriggerDao} and {@link EventTriggerSubscriptionDao} replace the cached
+ * snapshot when they commit; changes made by other ZEP instances are picked up by polling the trigger change
+ * version.
+ */
+public interface EventTriggerCache {
+    /**
+     * Returns the current snapshot of the triggers. This only reads from the database if no snapshot has been
+     * loaded yet.
+     *
+     * @return The current trigger snapshot.
+     * @throws ZepException If the first snapshot can't be loaded.
+     */
+    public EventTriggerSnapshot getSnapshot() throws ZepException;
+
+    /**
+     * Records that triggers or subscriptions were changed in the current transaction. This increments the trigger
+     * change version, and a new snapshot is loaded once the transaction commits.
+     *
+     * @throws ZepException If the change version can't be updated.
+     */
+    public void triggersChanged() throws ZepException;
+}
@@ -0,0 +1,109 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao;
+
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.EventTriggerSubscription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of all event triggers and their subscriptions at a trigger change version.
+ */
+public final class EventTriggerSnapshot {
+    private final long version;
+    private final long loadedTime;
+    private final List<EventTrigger> enabledTriggers;
+    private final Map<String, EventTrigger> triggersByUuid;
+    private final Map<String, EventTriggerSubscription> subscriptionsByUuid;
+
+    /**
+     * Creates the snapshot.
+     *
+     * @param version The trigger change version the triggers were read at.
+     * @param loadedTime The time the triggers were read.
+     * @param triggers All of the triggers, with their subscriptions.
+     */
+    public EventTriggerSnapshot(long version, long loadedTime, Collection<EventTrigger> triggers) {
+        this.version = version;
+        this.loadedTime = loadedTime;
+        final List<EventTrigger> enabled = new ArrayList<EventTrigger>(triggers.size());
+        final Map<String, EventTrigger> byUuid = new HashMap<String, EventTrigger>(triggers.size());
+        final Map<String, EventTriggerSubscription> subscriptions = new HashMap<String, EventTriggerSubscription>();
+        for (EventTrigger trigger : triggers) {
+            if (trigger.getEnabled()) {
+                enabled.add(trigger);
+            }
+            byUuid.put(trigger.getUuid(), trigger);
+            for (EventTriggerSubscription subscription : trigger.getSubscriptionsList()) {
+                subscriptions.put(subscription.getUuid(), subscription);
+            }
+        }
+        this.enabledTriggers = Collections.unmodifiableList(enabled);
+        this.triggersByUuid = Collections.unmodifiableMap(byUuid);
+        this.subscriptionsByUuid = Collections.unmodifiableMap(subscriptions);
+    }
+
+    /**
+     * @return The trigger change version the snapshot was read at.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The time (in milliseconds since the epoch) the snapshot was read.
+     */
+    public long getLoadedTime() {
+        return loadedTime;
+    }
+
+    /**
+     * @return The enabled triggers, with their subscriptions.
+     */
+    public List<EventTrigger> getEnabledTriggers() {
+        return enabledTriggers;
+    }
+
+    /**
+     * Returns the trigger (enabled or not) with the specified UUID.
+     *
+     * @param uuid The trigger UUID.
+     * @return The trigger, or null if it doesn't exist.
+     */
+    public EventTrigger getTrigger(String uuid) {
+        return triggersByUuid.get(uuid);
+    }
+
+    /**
+     * Returns the trigger subscription with the specified UUID.
+     *
+     * @param uuid The subscription UUID.
+     * @return The subscription, or null if it doesn't exist.
+     */
+    public EventTriggerSubscription getSubscription(String uuid) {
+        return subscriptionsByUuid.get(uuid);
+    }
+
+    @Override
+    public String toString() {
+        return "EventTriggerSnapshot{" +
+                "version=" + version +
+                ", triggers=" + triggersByUuid.size() +
+                ", subscriptions=" + subscriptionsByUuid.size() +
+                '}';
+    }
+}
@@ -0,0 +1,123 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of recently de-duplicated open event summaries, keyed by fingerprint hash.
+ * <p/>
+ * Entries only hold the subset of fields used to de-duplicate an event (the same fields
+ * selected when locking the summary row) plus the update time that was written. Callers
+ * must treat entries as hints: the row is only updated if its event count and update time
+ * still match the cached values, so a stale or missing invalidation costs a wasted UPDATE
+ * but never loses data.
+ */
+public class DedupSummaryCache {
+
+    private final Cache<ByteBuffer, EventSummary> cache;
+
+    /* Used to invalidate entries from code paths which only know the event UUID. */
+    private final ConcurrentMap<String, ByteBuffer> hashesByUuid = new ConcurrentHashMap<String, ByteBuffer>();
+
+    public DedupSummaryCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .removalListener(new RemovalListener<ByteBuffer, EventSummary>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<ByteBuffer, EventSummary> notification) {
+                        final EventSummary summary = notification.getValue();
+                        if (summary != null) {
+                            hashesByUuid.remove(summary.getUuid(), notification.getKey());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns the cached de-duplication fields for the fingerprint hash.
+     *
+     * @param fingerprintHash The fingerprint hash.
+     * @return The cached summary, or null if not cached.
+     */
+    public EventSummary get(byte[] fingerprintHash) {
+        return this.cache.getIfPresent(ByteBuffer.wrap(fingerprintHash));
+    }
+
+    /**
+     * Caches the de-duplication fields of the summary for the fingerprint hash.
+     *
+     * @param fingerprintHash The fingerprint hash.
+     * @param summary The summary (only the de-duplication fields are cached).
+     */
+    public void put(byte[] fingerprintHash, EventSummary summary) {
+        final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+        this.cache.put(key, summary);
+        this.hashesByUuid.put(summary.getUuid(), key);
+    }
+
+    public void invalidate(byte[] fingerprintHash) {
+        this.cache.invalidate(ByteBuffer.wrap(fingerprintHash));
+    }
+
+    public void invalidateUuids(Collection<String> uuids) {
+        for (String uuid : uuids) {
+            final ByteBuffer key = this.hashesByUuid.remove(uuid);
+            if (key != null) {
+                this.cache.invalidate(key);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+        this.hashesByUuid.clear();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    /**
+     * Returns a copy of the summary containing only the fields used when de-duplicating an event.
+     *
+     * @param summary The merged summary.
+     * @return A summary suitable for caching.
+     */
+    public static EventSummary toDedupSummary(EventSummary.Builder summary) {
+        final EventSummary.Builder dedupSummary = EventSummary.newBuilder();
+        dedupSummary.setUuid(summary.getUuid());
+        dedupSummary.setCount(summary.getCount());
+        dedupSummary.setFirstSeenTime(summary.getFirstSeenTime());
+        dedupSummary.setLastSeenTime(summary.getLastSeenTime());
+        dedupSummary.setStatus(summary.getStatus());
+        dedupSummary.setStatusChangeTime(summary.getStatusChangeTime());
+        dedupSummary.setUpdateTime(summary.getUpdateTime());
+        dedupSummary.addOccurrenceBuilder().addAllDetails(summary.getOccurrenceBuilder(0).getDetailsList());
+        return dedupSummary.build();
+    }
+}
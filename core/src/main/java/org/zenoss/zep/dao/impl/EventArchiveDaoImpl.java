@@ -27,6 +27,8 @@ import org.zenoss.zep.annotations.TransactionalRollbackAllExceptions;
 import org.zenoss.zep.dao.EventArchiveDao;
 import org.zenoss.zep.dao.EventBatch;
 import org.zenoss.zep.dao.EventBatchParams;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
 import org.zenoss.zep.dao.impl.compat.TypeConverter;
 import org.zenoss.zep.dao.impl.compat.TypeConverterUtils;
@@ -44,6 +46,8 @@ public class EventArchiveDaoImpl implements EventArchiveDao {
     @SuppressWarnings("unused")
     private static Logger logger = LoggerFactory.getLogger(EventArchiveDaoImpl.class);
 
+    private final DataSource dataSource;
+
     private final SimpleJdbcOperations template;
 
     private EventDaoHelper eventDaoHelper;
@@ -60,6 +64,7 @@ public class EventArchiveDaoImpl implements EventArchiveDao {
 
     public EventArchiveDaoImpl(DataSource dataSource, PartitionConfig partitionConfig,
                                DatabaseCompatibility databaseCompatibility) {
+        this.dataSource = dataSource;
     	this.template = (SimpleJdbcOperations) Proxy.newProxyInstance(SimpleJdbcOperations.class.getClassLoader(), 
     			new Class<?>[] {SimpleJdbcOperations.class}, new SimpleJdbcTemplateProxy(dataSource));
         this.partitionTableConfig = partitionConfig
@@ -159,6 +164,21 @@ public class EventArchiveDaoImpl implements EventArchiveDao {
                 new EventArchiveRowMapper(eventDaoHelper, databaseCompatibility));
     }
 
+    @Override
+    @TransactionalReadOnly
+    public List<EventScanRange> listScanRanges(int uuidRanges) throws ZepException {
+        return this.eventDaoHelper.listScanRanges(this.template, TABLE_EVENT_ARCHIVE, this.partitioner, uuidRanges);
+    }
+
+    @Override
+    @TransactionalReadOnly
+    @Timed(absolute=true, name="EventArchive.scanRange")
+    public String scanRange(EventScanRange range, String startingUuid, long maxUpdateTime, int fetchSize,
+                            EventScanCallback callback) throws ZepException {
+        return this.eventDaoHelper.scanRange(this.dataSource, TABLE_EVENT_ARCHIVE, range, startingUuid, maxUpdateTime,
+                fetchSize, new EventArchiveRowMapper(eventDaoHelper, databaseCompatibility, true), callback);
+    }
+
     @Override
     @TransactionalRollbackAllExceptions
     @Timed(absolute=true, name="EventArchive.initializePartitions")
@@ -20,8 +20,14 @@ public class EventArchiveRowMapper extends EventSummaryRowMapper {
         this.helper = eventDaoHelper;
     }
 
+    public EventArchiveRowMapper(EventDaoHelper eventDaoHelper, DatabaseCompatibility databaseCompatibility,
+                                 boolean joinedNames) {
+        super(eventDaoHelper, databaseCompatibility, joinedNames);
+        this.helper = eventDaoHelper;
+    }
+
     @Override
     protected Event mapEvent(ResultSet rs) throws SQLException {
-        return helper.eventMapper(rs, true);
+        return helper.eventMapper(rs, true, joinedNames);
     }
 }
@@ -18,6 +18,12 @@ import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
 import org.springframework.jdbc.core.simple.SimpleJdbcOperations;
 import org.zenoss.protobufs.JsonFormat;
 import org.zenoss.protobufs.model.Model.ModelElementType;
@@ -42,10 +48,16 @@ import org.zenoss.zep.annotations.TransactionalReadOnly;
 import org.zenoss.zep.dao.DaoCache;
 import org.zenoss.zep.dao.EventBatch;
 import org.zenoss.zep.dao.EventBatchParams;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
+import org.zenoss.zep.dao.impl.compat.DatabaseType;
 import org.zenoss.zep.dao.impl.compat.TypeConverter;
 
+import javax.sql.DataSource;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -60,6 +72,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
 
 import static org.zenoss.zep.dao.impl.EventConstants.*;
 
@@ -402,6 +415,20 @@ public class EventDaoHelper {
     }
 
     public Event eventMapper(ResultSet rs, final boolean isArchive) throws SQLException {
+        return eventMapper(rs, isArchive, false);
+    }
+
+    /**
+     * Maps the event of a row.
+     *
+     * @param rs The result set.
+     * @param isArchive True if the row is from the event archive.
+     * @param joinedNames True if the names of the ids in the row were joined from their tables (see
+     *                    {@link #scanRange}), false to look them up in the {@link DaoCache}.
+     * @return The event.
+     * @throws SQLException If the row can't be read.
+     */
+    public Event eventMapper(ResultSet rs, final boolean isArchive, final boolean joinedNames) throws SQLException {
         TypeConverter<Long> timestampConverter = databaseCompatibility.getTimestampConverter();
         Event.Builder eventBuilder = Event.newBuilder();
 
@@ -410,22 +437,22 @@ public class EventDaoHelper {
 
         int eventGroupId = rs.getInt(COLUMN_EVENT_GROUP_ID);
         if (!rs.wasNull()) {
-            eventBuilder.setEventGroup(daoCache.getEventGroupFromId(eventGroupId));
+            eventBuilder.setEventGroup(joinedNames ? rs.getString(JOINED_EVENT_GROUP) : daoCache.getEventGroupFromId(eventGroupId));
         }
 
         int eventClassId = rs.getInt(COLUMN_EVENT_CLASS_ID);
         if (!rs.wasNull()) {
-            eventBuilder.setEventClass(daoCache.getEventClassFromId(eventClassId));
+            eventBuilder.setEventClass(joinedNames ? rs.getString(JOINED_EVENT_CLASS) : daoCache.getEventClassFromId(eventClassId));
         }
 
         int eventClassKeyId = rs.getInt(COLUMN_EVENT_CLASS_KEY_ID);
         if (!rs.wasNull()) {
-            eventBuilder.setEventClassKey(daoCache.getEventClassKeyFromId(eventClassKeyId));
+            eventBuilder.setEventClassKey(joinedNames ? rs.getString(JOINED_EVENT_CLASS_KEY) : daoCache.getEventClassKeyFromId(eventClassKeyId));
         }
 
         int eventKeyId = rs.getInt(COLUMN_EVENT_KEY_ID);
         if (!rs.wasNull()) {
-            eventBuilder.setEventKey(daoCache.getEventKeyFromId(eventKeyId));
+            eventBuilder.setEventKey(joinedNames ? rs.getString(JOINED_EVENT_KEY) : daoCache.getEventKeyFromId(eventKeyId));
         }
 
         String eventClassMappingUuid = uuidConverter.fromDatabaseType(rs, COLUMN_EVENT_CLASS_MAPPING_UUID);
@@ -439,12 +466,12 @@ public class EventDaoHelper {
 
         int monitorId = rs.getInt(COLUMN_MONITOR_ID);
         if (!rs.wasNull()) {
-            eventBuilder.setMonitor(daoCache.getMonitorFromId(monitorId));
+            eventBuilder.setMonitor(joinedNames ? rs.getString(JOINED_MONITOR) : daoCache.getMonitorFromId(monitorId));
         }
 
         int agentId = rs.getInt(COLUMN_AGENT_ID);
         if (!rs.wasNull()) {
-            eventBuilder.setAgent(daoCache.getAgentFromId(agentId));
+            eventBuilder.setAgent(joinedNames ? rs.getString(JOINED_AGENT) : daoCache.getAgentFromId(agentId));
         }
 
         int syslogFacility = rs.getInt(COLUMN_SYSLOG_FACILITY);
@@ -549,6 +576,177 @@ public class EventDaoHelper {
         return actorBuilder.build();
     }
 
+    /**
+     * Maps the occurrence columns written for an event by {@link #createOccurrenceFields(Event)} (or by a
+     * de-duplication update of them) to the event {@link #eventMapper} reads back from the row, without reading
+     * the row. Columns missing from the fields are null, except the fingerprint, which is taken from the base
+     * event when it isn't written.
+     *
+     * @param event The event the fields were created from.
+     * @param base The event previously read from the row, or null if the row was inserted.
+     * @param fields The columns written.
+     * @param lastSeen The last seen time of the row.
+     * @return The event as it is read from the row, or null if it can't be derived from the fields.
+     */
+    public Event mapOccurrenceFields(Event event, Event base, Map<String, Object> fields, long lastSeen) {
+        final Event.Builder eventBuilder = Event.newBuilder();
+        eventBuilder.setCreatedTime(lastSeen);
+
+        final Object fingerprint = fields.containsKey(COLUMN_FINGERPRINT) ? fields.get(COLUMN_FINGERPRINT) :
+                (base == null) ? null : base.getFingerprint();
+        final Object summary = fields.get(COLUMN_SUMMARY);
+        final Object message = fields.get(COLUMN_MESSAGE);
+        final Integer severity = intField(fields, COLUMN_SEVERITY_ID);
+        if (fingerprint == null || summary == null || message == null || severity == null) {
+            return null;
+        }
+        eventBuilder.setFingerprint((String) fingerprint);
+
+        final Integer eventGroupId = intField(fields, COLUMN_EVENT_GROUP_ID);
+        if (eventGroupId != null) {
+            eventBuilder.setEventGroup(daoCache.getEventGroupFromId(eventGroupId));
+        }
+        final Integer eventClassId = intField(fields, COLUMN_EVENT_CLASS_ID);
+        if (eventClassId != null) {
+            eventBuilder.setEventClass(daoCache.getEventClassFromId(eventClassId));
+        }
+        final Integer eventClassKeyId = intField(fields, COLUMN_EVENT_CLASS_KEY_ID);
+        if (eventClassKeyId != null) {
+            eventBuilder.setEventClassKey(daoCache.getEventClassKeyFromId(eventClassKeyId));
+        }
+        final Integer eventKeyId = intField(fields, COLUMN_EVENT_KEY_ID);
+        if (eventKeyId != null) {
+            eventBuilder.setEventKey(daoCache.getEventKeyFromId(eventKeyId));
+        }
+        if (fields.get(COLUMN_EVENT_CLASS_MAPPING_UUID) != null) {
+            final String eventClassMappingUuid = canonicalUuid(event.getEventClassMappingUuid());
+            if (eventClassMappingUuid == null) {
+                return null;
+            }
+            eventBuilder.setEventClassMappingUuid(eventClassMappingUuid);
+        }
+        eventBuilder.setSeverity(EventSeverity.valueOf(severity));
+
+        final EventActor actor = event.getActor();
+        final EventActor.Builder actorBuilder = EventActor.newBuilder();
+        if (fields.get(COLUMN_ELEMENT_UUID) != null) {
+            final String elementUuid = canonicalUuid(actor.getElementUuid());
+            if (elementUuid == null) {
+                return null;
+            }
+            actorBuilder.setElementUuid(elementUuid);
+        }
+        final Integer elementTypeId = intField(fields, COLUMN_ELEMENT_TYPE_ID);
+        if (elementTypeId != null) {
+            actorBuilder.setElementTypeId(ModelElementType.valueOf(elementTypeId));
+        }
+        final String elementIdentifier = (String) fields.get(COLUMN_ELEMENT_IDENTIFIER);
+        if (elementIdentifier != null) {
+            actorBuilder.setElementIdentifier(elementIdentifier);
+        }
+        final String elementTitle = (String) fields.get(COLUMN_ELEMENT_TITLE);
+        if (elementTitle != null) {
+            actorBuilder.setElementTitle(elementTitle);
+        } else if (elementIdentifier != null) {
+            actorBuilder.setElementTitle(elementIdentifier);
+        }
+        if (fields.get(COLUMN_ELEMENT_SUB_UUID) != null) {
+            final String subUuid = canonicalUuid(actor.getElementSubUuid());
+            if (subUuid == null) {
+                return null;
+            }
+            actorBuilder.setElementSubUuid(subUuid);
+        }
+        final Integer subTypeId = intField(fields, COLUMN_ELEMENT_SUB_TYPE_ID);
+        if (subTypeId != null) {
+            actorBuilder.setElementSubTypeId(ModelElementType.valueOf(subTypeId));
+        }
+        final String subIdentifier = (String) fields.get(COLUMN_ELEMENT_SUB_IDENTIFIER);
+        if (subIdentifier != null) {
+            actorBuilder.setElementSubIdentifier(subIdentifier);
+        }
+        final String subTitle = (String) fields.get(COLUMN_ELEMENT_SUB_TITLE);
+        if (subTitle != null) {
+            actorBuilder.setElementSubTitle(subTitle);
+        } else if (subIdentifier != null) {
+            actorBuilder.setElementSubTitle(subIdentifier);
+        }
+        eventBuilder.setActor(actorBuilder.build());
+
+        final Integer monitorId = intField(fields, COLUMN_MONITOR_ID);
+        if (monitorId != null) {
+            eventBuilder.setMonitor(daoCache.getMonitorFromId(monitorId));
+        }
+        final Integer agentId = intField(fields, COLUMN_AGENT_ID);
+        if (agentId != null) {
+            eventBuilder.setAgent(daoCache.getAgentFromId(agentId));
+        }
+        final Integer syslogFacility = intField(fields, COLUMN_SYSLOG_FACILITY);
+        if (syslogFacility != null) {
+            eventBuilder.setSyslogFacility(syslogFacility);
+        }
+        final Integer syslogPriority = intField(fields, COLUMN_SYSLOG_PRIORITY);
+        if (syslogPriority != null) {
+            eventBuilder.setSyslogPriority(SyslogPriority.valueOf(syslogPriority));
+        }
+        final Integer ntEventCode = intField(fields, COLUMN_NT_EVENT_CODE);
+        if (ntEventCode != null) {
+            eventBuilder.setNtEventCode(ntEventCode);
+        }
+        eventBuilder.setSummary((String) summary);
+        eventBuilder.setMessage((String) message);
+
+        final List<EventDetail> details = mapDetailsJson((String) fields.get(COLUMN_DETAILS_JSON));
+        if (details == null) {
+            return null;
+        }
+        eventBuilder.addAllDetails(details);
+
+        final String tagsJson = (String) fields.get(COLUMN_TAGS_JSON);
+        if (tagsJson != null && !tagsJson.isEmpty()) {
+            try {
+                eventBuilder.addAllTags(JsonFormat.mergeAllDelimitedFrom(tagsJson, EventTag.getDefaultInstance()));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return eventBuilder.build();
+    }
+
+    /**
+     * Maps the details_json column as {@link #eventMapper} does.
+     *
+     * @param detailsJson The column value.
+     * @return The details, or null if they can't be parsed.
+     */
+    public List<EventDetail> mapDetailsJson(String detailsJson) {
+        if (detailsJson == null || detailsJson.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            return JsonFormat.mergeAllDelimitedFrom(detailsJson, EventDetail.getDefaultInstance());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Integer intField(Map<String, Object> fields, String column) {
+        final Object value = fields.get(column);
+        return (value == null) ? null : ((Number) value).intValue();
+    }
+
+    /**
+     * Returns the UUID as it is read back from a UUID column, or null if it isn't in canonical form (the
+     * column may not read back the same string).
+     */
+    private static String canonicalUuid(String uuid) {
+        try {
+            return UUID.fromString(uuid).toString().equals(uuid) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     public int addNote(String tableName, String uuid, EventNote note, SimpleJdbcOperations template)
             throws ZepException {
         TypeConverter<Long> timestampConverter = databaseCompatibility.getTimestampConverter();
@@ -742,6 +940,195 @@ public class EventDaoHelper {
     }
 
 
+    /**
+     * Splits a table into ranges which can be scanned in parallel: one range per partition if the table is
+     * partitioned, otherwise up to uuidRanges ranges of UUIDs holding roughly the same number of events.
+     *
+     * @param template The template used to sample the UUIDs of the table.
+     * @param tableName The table to split.
+     * @param partitioner The partitioner of the table, or null if the table isn't partitioned.
+     * @param uuidRanges The number of UUID ranges to split a table without partitions into.
+     * @return The ranges.
+     */
+    public List<EventScanRange> listScanRanges(SimpleJdbcOperations template, String tableName,
+                                               RangePartitioner partitioner, int uuidRanges) {
+        final List<EventScanRange> ranges = new ArrayList<EventScanRange>();
+        if (partitioner != null) {
+            final List<Partition> partitions = partitioner.listPartitions();
+            if (!partitions.isEmpty()) {
+                // Newest partitions first, like listBatch
+                for (Partition p : Lists.reverse(partitions)) {
+                    final Long min = (p.getRangeMinimum() == null) ? null : p.getRangeMinimum().getTime();
+                    final Long lessThan = (p.getRangeLessThan() == null) ? null : p.getRangeLessThan().getTime();
+                    ranges.add(EventScanRange.forLastSeen("last_seen:" + ((min == null) ? "min" : min), min,
+                            lessThan));
+                }
+                return ranges;
+            }
+        }
+        // The UUIDs generated by UUIDGeneratorImpl start with the MAC address of the host, so the UUIDs of the
+        // events created by a host share their leading bytes. The boundaries are the quantiles of the UUIDs in the
+        // table rather than an even split of the UUID space.
+        final List<String> boundaries = sampleUuidBoundaries(template, tableName, Math.max(1, uuidRanges));
+        final int numRanges = boundaries.size() + 1;
+        String previous = null;
+        for (int i = 1; i <= numRanges; i++) {
+            final String next = (i == numRanges) ? null : boundaries.get(i - 1);
+            // The minimum is part of the id so a checkpoint is only resumed by a range with the same start
+            ranges.add(EventScanRange.forUuids("uuid:" + i + "/" + numRanges + ":" +
+                    ((previous == null) ? "min" : previous), previous, next));
+            previous = next;
+        }
+        return ranges;
+    }
+
+    private List<String> sampleUuidBoundaries(SimpleJdbcOperations template, String tableName, int numRanges) {
+        final List<String> boundaries = new ArrayList<String>(numRanges - 1);
+        if (numRanges <= 1) {
+            return boundaries;
+        }
+        final long count = template.queryForLong("SELECT COUNT(*) FROM " + tableName);
+        final String sql = "SELECT uuid FROM " + tableName + " ORDER BY uuid LIMIT 1 OFFSET :_offset";
+        final RowMapper<String> uuidMapper = new RowMapper<String>() {
+            @Override
+            public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+                return uuidConverter.fromDatabaseType(rs, COLUMN_UUID);
+            }
+        };
+        for (int i = 1; i < numRanges; i++) {
+            final long offset = (count * i) / numRanges;
+            if (offset == 0) {
+                continue;
+            }
+            final List<String> uuids = template.query(sql, uuidMapper,
+                    Collections.<String,Object>singletonMap("_offset", offset));
+            if (uuids.isEmpty()) {
+                // Rows were deleted since they were counted
+                break;
+            }
+            final String uuid = uuids.get(0);
+            if (boundaries.isEmpty() || !uuid.equals(boundaries.get(boundaries.size() - 1))) {
+                boundaries.add(uuid);
+            }
+        }
+        return boundaries;
+    }
+
+    // Columns of the names of the ids in rows read by scanRange, joined from the tables of the names
+    private static final String JOINED_EVENT_GROUP = "joined_event_group";
+    private static final String JOINED_EVENT_CLASS = "joined_event_class";
+    private static final String JOINED_EVENT_CLASS_KEY = "joined_event_class_key";
+    private static final String JOINED_EVENT_KEY = "joined_event_key";
+    private static final String JOINED_MONITOR = "joined_monitor";
+    private static final String JOINED_AGENT = "joined_agent";
+
+    private static void appendJoinedName(StringBuilder sql, String nameTable, String idColumn, String alias) {
+        sql.append(" LEFT JOIN ").append(nameTable).append(" ").append(alias).append(" ON ").append(alias)
+                .append(".id = e.").append(idColumn);
+    }
+
+    /**
+     * Streams the events in a range of a table to the callback in UUID order. Rows are read with a forward-only,
+     * read-only cursor so the range is read with a single query instead of a query per batch. The names of the ids
+     * in the rows are joined from their tables, as no other queries can run on the connection while MySQL streams
+     * the rows, so the row mapper must map events with joined names (see
+     * {@link #eventMapper(ResultSet, boolean, boolean)}).
+     *
+     * @param dataSource The data source (the scan uses the connection of the current transaction).
+     * @param tableName The table to scan.
+     * @param range The range of the table to scan.
+     * @param startingUuid Only events with a UUID greater than this UUID are returned, or null for the whole range.
+     * @param maxUpdateTime The maximum update time to include.
+     * @param fetchSize The number of rows fetched at a time.
+     * @param esrm Row mapper for the table, mapping events with joined names.
+     * @param callback The callback which receives the events.
+     * @return The UUID of the last event passed to the callback, or null if no events were.
+     * @throws ZepException If an exception occurs reading the events or is thrown by the callback.
+     */
+    public String scanRange(DataSource dataSource, String tableName, EventScanRange range, String startingUuid,
+                            long maxUpdateTime, int fetchSize, final EventSummaryRowMapper esrm,
+                            final EventScanCallback callback) throws ZepException {
+        final TypeConverter<Long> timestampConverter = databaseCompatibility.getTimestampConverter();
+        final List<Object> args = new ArrayList<Object>();
+        final StringBuilder sql = new StringBuilder();
+        sql.append("SELECT e.*, eg.name AS ").append(JOINED_EVENT_GROUP)
+                .append(", ec.name AS ").append(JOINED_EVENT_CLASS)
+                .append(", eck.name AS ").append(JOINED_EVENT_CLASS_KEY)
+                .append(", ek.name AS ").append(JOINED_EVENT_KEY)
+                .append(", m.name AS ").append(JOINED_MONITOR)
+                .append(", a.name AS ").append(JOINED_AGENT)
+                .append(" FROM ").append(tableName).append(" e");
+        appendJoinedName(sql, "event_group", COLUMN_EVENT_GROUP_ID, "eg");
+        appendJoinedName(sql, "event_class", COLUMN_EVENT_CLASS_ID, "ec");
+        appendJoinedName(sql, "event_class_key", COLUMN_EVENT_CLASS_KEY_ID, "eck");
+        appendJoinedName(sql, "event_key", COLUMN_EVENT_KEY_ID, "ek");
+        appendJoinedName(sql, "monitor", COLUMN_MONITOR_ID, "m");
+        appendJoinedName(sql, "agent", COLUMN_AGENT_ID, "a");
+        sql.append(" WHERE e.update_time <= ?");
+        args.add(timestampConverter.toDatabaseType(maxUpdateTime));
+        if (range.getLastSeenMinimum() != null) {
+            sql.append(" AND e.last_seen >= ?");
+            args.add(timestampConverter.toDatabaseType(range.getLastSeenMinimum()));
+        }
+        if (range.getLastSeenLessThan() != null) {
+            sql.append(" AND e.last_seen < ?");
+            args.add(timestampConverter.toDatabaseType(range.getLastSeenLessThan()));
+        }
+        if (startingUuid != null) {
+            sql.append(" AND e.uuid > ?");
+            args.add(uuidConverter.toDatabaseType(startingUuid));
+        } else if (range.getUuidMinimum() != null) {
+            sql.append(" AND e.uuid >= ?");
+            args.add(uuidConverter.toDatabaseType(range.getUuidMinimum()));
+        }
+        if (range.getUuidLessThan() != null) {
+            sql.append(" AND e.uuid < ?");
+            args.add(uuidConverter.toDatabaseType(range.getUuidLessThan()));
+        }
+        sql.append(" ORDER BY e.uuid");
+        final String query = sql.toString();
+
+        // MySQL Connector/J only streams rows (instead of reading the whole result) with a fetch size of
+        // Integer.MIN_VALUE, PostgreSQL uses the fetch size for its cursor (within a transaction).
+        final int streamingFetchSize = (databaseCompatibility.getDatabaseType() == DatabaseType.MYSQL) ?
+                Integer.MIN_VALUE : Math.max(1, fetchSize);
+        final ZepException[] failure = new ZepException[1];
+        final String lastUuid = new JdbcTemplate(dataSource).query(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                final PreparedStatement ps = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(streamingFetchSize);
+                for (int i = 0; i < args.size(); i++) {
+                    StatementCreatorUtils.setParameterValue(ps, i + 1, SqlTypeValue.TYPE_UNKNOWN, args.get(i));
+                }
+                return ps;
+            }
+        }, new ResultSetExtractor<String>() {
+            @Override
+            public String extractData(ResultSet rs) throws SQLException {
+                String last = null;
+                int rowNum = 0;
+                try {
+                    while (rs.next()) {
+                        final EventSummary event = esrm.mapRow(rs, rowNum++);
+                        last = event.getUuid();
+                        if (!callback.event(event)) {
+                            break;
+                        }
+                    }
+                } catch (ZepException e) {
+                    failure[0] = e;
+                }
+                return last;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return lastUuid;
+    }
+
 
     /**
      * Adds the {@link ZepConstants#DETAIL_MIGRATE_UPDATE_TIME} detail to the event occurrence.
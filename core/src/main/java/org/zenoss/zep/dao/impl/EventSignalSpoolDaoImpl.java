@@ -12,15 +12,25 @@ package org.zenoss.zep.dao.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcOperations;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.EventTriggerSubscription;
+import org.zenoss.protobufs.zep.Zep.Rule;
+import org.zenoss.protobufs.zep.Zep.RuleType;
 import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.annotations.TransactionalReadOnly;
 import org.zenoss.zep.annotations.TransactionalRollbackAllExceptions;
 import org.zenoss.zep.dao.EventSignalSpool;
+import org.zenoss.zep.dao.EventSignalSpoolContext;
 import org.zenoss.zep.dao.EventSignalSpoolDao;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
+import org.zenoss.zep.dao.impl.compat.NestedTransactionCallback;
+import org.zenoss.zep.dao.impl.compat.NestedTransactionContext;
 import org.zenoss.zep.dao.impl.compat.NestedTransactionService;
 import org.zenoss.zep.dao.impl.compat.TypeConverter;
 import org.zenoss.zep.dao.impl.compat.TypeConverterUtils;
@@ -48,23 +58,88 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
     public static final String COLUMN_SENT_SIGNAL = "sent_signal";
 
     private class EventSignalSpoolMapper implements RowMapper<EventSignalSpool> {
+        private final String prefix;
+
+        public EventSignalSpoolMapper() {
+            this("");
+        }
+
+        /**
+         * @param prefix Prefix of the spool column names in the result set.
+         */
+        public EventSignalSpoolMapper(String prefix) {
+            this.prefix = prefix;
+        }
+
         @Override
         public EventSignalSpool mapRow(ResultSet rs, int rowNum)
                 throws SQLException {
             TypeConverter<Long> timestampConverter = databaseCompatibility.getTimestampConverter();
             EventSignalSpool spool = new EventSignalSpool();
-            spool.setUuid(uuidConverter.fromDatabaseType(rs, COLUMN_UUID));
-            spool.setCreated(timestampConverter.fromDatabaseType(rs, COLUMN_CREATED));
-            spool.setEventCount(rs.getInt(COLUMN_EVENT_COUNT));
-            spool.setEventSummaryUuid(uuidConverter.fromDatabaseType(rs, COLUMN_EVENT_SUMMARY_UUID));
-            spool.setSubscriptionUuid(uuidConverter.fromDatabaseType(rs, COLUMN_EVENT_TRIGGER_SUBSCRIPTION_UUID));
-            spool.setFlushTime(rs.getLong(COLUMN_FLUSH_TIME));
-            spool.setSentSignal(rs.getBoolean(COLUMN_SENT_SIGNAL));
+            spool.setUuid(uuidConverter.fromDatabaseType(rs, prefix + COLUMN_UUID));
+            spool.setCreated(timestampConverter.fromDatabaseType(rs, prefix + COLUMN_CREATED));
+            spool.setEventCount(rs.getInt(prefix + COLUMN_EVENT_COUNT));
+            spool.setEventSummaryUuid(uuidConverter.fromDatabaseType(rs, prefix + COLUMN_EVENT_SUMMARY_UUID));
+            spool.setSubscriptionUuid(uuidConverter.fromDatabaseType(rs,
+                    prefix + COLUMN_EVENT_TRIGGER_SUBSCRIPTION_UUID));
+            spool.setFlushTime(rs.getLong(prefix + COLUMN_FLUSH_TIME));
+            spool.setSentSignal(rs.getBoolean(prefix + COLUMN_SENT_SIGNAL));
             return spool;
         }
     }
 
-    @SuppressWarnings("unused")
+    /**
+     * Maps the rows of {@link #FIND_ALL_DUE_WITH_CONTEXT_SQL}. The event summary columns keep their names, so
+     * the columns of the other tables are aliased with a prefix.
+     */
+    private class EventSignalSpoolContextMapper implements RowMapper<EventSignalSpoolContext> {
+        private final EventSignalSpoolMapper spoolMapper = new EventSignalSpoolMapper("spool_");
+        private final EventSummaryRowMapper summaryMapper =
+                new EventSummaryRowMapper(eventDaoHelper, databaseCompatibility);
+
+        @Override
+        public EventSignalSpoolContext mapRow(ResultSet rs, int rowNum) throws SQLException {
+            final EventSignalSpool spool = spoolMapper.mapRow(rs, rowNum);
+
+            EventSummary summary = null;
+            if (uuidConverter.fromDatabaseType(rs, EventConstants.COLUMN_UUID) != null) {
+                summary = summaryMapper.mapRow(rs, rowNum);
+            }
+
+            EventTriggerSubscription subscription = null;
+            final String subscriptionUuid = uuidConverter.fromDatabaseType(rs, "sub_uuid");
+            if (subscriptionUuid != null) {
+                EventTriggerSubscription.Builder subBuilder = EventTriggerSubscription.newBuilder();
+                subBuilder.setUuid(subscriptionUuid);
+                subBuilder.setTriggerUuid(uuidConverter.fromDatabaseType(rs, "sub_event_trigger_uuid"));
+                subBuilder.setSubscriberUuid(uuidConverter.fromDatabaseType(rs, "sub_subscriber_uuid"));
+                subBuilder.setDelaySeconds(rs.getInt("sub_delay_seconds"));
+                subBuilder.setRepeatSeconds(rs.getInt("sub_repeat_seconds"));
+                subBuilder.setSendInitialOccurrence(rs.getBoolean("sub_send_initial_occurrence"));
+                subscription = subBuilder.build();
+            }
+
+            EventTrigger trigger = null;
+            final String triggerUuid = uuidConverter.fromDatabaseType(rs, "trigger_uuid");
+            if (triggerUuid != null) {
+                EventTrigger.Builder triggerBuilder = EventTrigger.newBuilder();
+                triggerBuilder.setUuid(triggerUuid);
+                String name = rs.getString("trigger_name");
+                if (name != null) {
+                    triggerBuilder.setName(name);
+                }
+                triggerBuilder.setEnabled(rs.getBoolean("trigger_enabled"));
+                Rule.Builder ruleBuilder = Rule.newBuilder();
+                ruleBuilder.setApiVersion(rs.getInt("trigger_rule_api_version"));
+                ruleBuilder.setType(RuleType.valueOf(rs.getInt("trigger_rule_type_id")));
+                ruleBuilder.setSource(rs.getString("trigger_rule_source"));
+                triggerBuilder.setRule(ruleBuilder.build());
+                trigger = triggerBuilder.build();
+            }
+            return new EventSignalSpoolContext(spool, summary, subscription, trigger);
+        }
+    }
+
     private static Logger logger = LoggerFactory.getLogger(EventSignalSpoolDaoImpl.class);
 
     private final SimpleJdbcOperations template;
@@ -72,6 +147,7 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
     private DatabaseCompatibility databaseCompatibility;
     private TypeConverter<String> uuidConverter;
     private NestedTransactionService nestedTransactionService;
+    private EventDaoHelper eventDaoHelper;
 
     public EventSignalSpoolDaoImpl(DataSource dataSource) {
         this.template = (SimpleJdbcOperations) Proxy.newProxyInstance(SimpleJdbcOperations.class.getClassLoader(),
@@ -91,6 +167,10 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
         this.nestedTransactionService = nestedTransactionService;
     }
 
+    public void setEventDaoHelper(EventDaoHelper eventDaoHelper) {
+        this.eventDaoHelper = eventDaoHelper;
+    }
+
     private Map<String, Object> spoolToFields(EventSignalSpool spool) {
         final Map<String, Object> fields = new LinkedHashMap<String, Object>();
 
@@ -104,15 +184,18 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
         return fields;
     }
 
-    @Override
-    @TransactionalRollbackAllExceptions
-    public String create(EventSignalSpool spool) throws ZepException {
+    private Map<String, Object> spoolToInsertFields(EventSignalSpool spool) {
         final Map<String, Object> fields = spoolToFields(spool);
         String uuid = spool.getUuid();
         if (uuid == null) {
             uuid = uuidGenerator.generate().toString();
+            spool.setUuid(uuid);
         }
         fields.put(COLUMN_UUID, uuidConverter.toDatabaseType(uuid));
+        return fields;
+    }
+
+    private static String insertSql(Map<String, Object> fields) {
         final StringBuilder names = new StringBuilder();
         final StringBuilder values = new StringBuilder();
         for (String key : fields.keySet()) {
@@ -123,14 +206,49 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
             names.append(key);
             values.append(':').append(key);
         }
+        return String.format("INSERT INTO event_trigger_signal_spool (%s) VALUES(%s)", names, values);
+    }
+
+    private static final String INCREMENT_EVENT_COUNT_SQL =
+            "UPDATE event_trigger_signal_spool SET event_count = event_count + 1 WHERE uuid=:uuid";
+
+    @Override
+    @TransactionalRollbackAllExceptions
+    public String create(EventSignalSpool spool) throws ZepException {
+        final Map<String, Object> fields = spoolToInsertFields(spool);
+        DaoUtils.insertOrUpdate(nestedTransactionService, template, insertSql(fields), INCREMENT_EVENT_COUNT_SQL,
+                fields);
+        return spool.getUuid();
+    }
 
-        final String insertSql = String.format("INSERT INTO event_trigger_signal_spool (%s) VALUES(%s)", names,
-                    values);
-        final String updateSql = "UPDATE event_trigger_signal_spool SET event_count = event_count + 1" +
-                    " WHERE uuid=:uuid";
-        DaoUtils.insertOrUpdate(nestedTransactionService, template, insertSql, updateSql, fields);
-        spool.setUuid(uuid);
-        return uuid;
+    @Override
+    @TransactionalRollbackAllExceptions
+    @SuppressWarnings("unchecked")
+    public void createAll(Collection<EventSignalSpool> spools) throws ZepException {
+        if (spools.isEmpty()) {
+            return;
+        }
+        final Map<String, Object>[] batch = new Map[spools.size()];
+        int i = 0;
+        for (EventSignalSpool spool : spools) {
+            batch[i++] = spoolToInsertFields(spool);
+        }
+        final String insertSql = insertSql(batch[0]);
+        try {
+            nestedTransactionService.executeInNestedTransaction(new NestedTransactionCallback<int[]>() {
+                @Override
+                public int[] doInNestedTransaction(NestedTransactionContext context) throws DataAccessException {
+                    return context.getSimpleJdbcTemplate().batchUpdate(insertSql, batch);
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            // The batch was rolled back - fall back to inserting (or updating) one at a time
+            logger.debug("Duplicate spool in batch, creating individually");
+            for (Map<String, Object> fields : batch) {
+                DaoUtils.insertOrUpdate(nestedTransactionService, template, insertSql, INCREMENT_EVENT_COUNT_SQL,
+                        fields);
+            }
+        }
     }
 
     @Override
@@ -202,17 +320,42 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
         return spool;
     }
 
-    @Override
-    @TransactionalRollbackAllExceptions
-    public int update(EventSignalSpool spool) throws ZepException {
+    private static final String UPDATE_SQL = "UPDATE event_trigger_signal_spool SET flush_time=:flush_time," +
+            "event_count=:event_count,sent_signal=:sent_signal WHERE uuid=:uuid";
+
+    private Map<String, Object> spoolToUpdateFields(EventSignalSpool spool) {
         Map<String, Object> fields = new HashMap<String, Object>();
         fields.put(COLUMN_UUID, uuidConverter.toDatabaseType(spool.getUuid()));
         fields.put(COLUMN_FLUSH_TIME, spool.getFlushTime());
         fields.put(COLUMN_EVENT_COUNT, spool.getEventCount());
         fields.put(COLUMN_SENT_SIGNAL, spool.isSentSignal());
-        final String sql = "UPDATE event_trigger_signal_spool SET flush_time=:flush_time,event_count=:event_count,"
-                + "sent_signal=:sent_signal WHERE uuid=:uuid";
-        return this.template.update(sql, fields);
+        return fields;
+    }
+
+    @Override
+    @TransactionalRollbackAllExceptions
+    public int update(EventSignalSpool spool) throws ZepException {
+        return this.template.update(UPDATE_SQL, spoolToUpdateFields(spool));
+    }
+
+    @Override
+    @TransactionalRollbackAllExceptions
+    @SuppressWarnings("unchecked")
+    public int updateAll(Collection<EventSignalSpool> spools) throws ZepException {
+        if (spools.isEmpty()) {
+            return 0;
+        }
+        final Map<String, Object>[] batch = new Map[spools.size()];
+        int i = 0;
+        for (EventSignalSpool spool : spools) {
+            batch[i++] = spoolToUpdateFields(spool);
+        }
+        int numRows = 0;
+        for (int updated : this.template.batchUpdate(UPDATE_SQL, batch)) {
+            // Drivers may report an unknown count (Statement.SUCCESS_NO_INFO) for batched statements
+            numRows += Math.max(updated, 0);
+        }
+        return numRows;
     }
 
     @Override
@@ -239,6 +382,51 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
         return this.template.query(sql, new EventSignalSpoolMapper(), fields);
     }
 
+    private static final String FIND_ALL_DUE_WITH_CONTEXT_SQL = "SELECT event_summary.*," +
+            "spool.uuid AS spool_uuid,spool.created AS spool_created,spool.event_count AS spool_event_count," +
+            "spool.event_summary_uuid AS spool_event_summary_uuid," +
+            "spool.event_trigger_subscription_uuid AS spool_event_trigger_subscription_uuid," +
+            "spool.flush_time AS spool_flush_time,spool.sent_signal AS spool_sent_signal," +
+            "sub.uuid AS sub_uuid,sub.event_trigger_uuid AS sub_event_trigger_uuid," +
+            "sub.subscriber_uuid AS sub_subscriber_uuid,sub.delay_seconds AS sub_delay_seconds," +
+            "sub.repeat_seconds AS sub_repeat_seconds,sub.send_initial_occurrence AS sub_send_initial_occurrence," +
+            "trig.uuid AS trigger_uuid,trig.name AS trigger_name,trig.enabled AS trigger_enabled," +
+            "trig.rule_api_version AS trigger_rule_api_version,trig.rule_type_id AS trigger_rule_type_id," +
+            "trig.rule_source AS trigger_rule_source " +
+            "FROM event_trigger_signal_spool AS spool " +
+            "LEFT JOIN event_summary ON spool.event_summary_uuid = event_summary.uuid " +
+            "LEFT JOIN event_trigger_subscription AS sub ON spool.event_trigger_subscription_uuid = sub.uuid " +
+            "LEFT JOIN event_trigger AS trig ON sub.event_trigger_uuid = trig.uuid " +
+            "WHERE spool.flush_time <= :flush_time";
+
+    @Override
+    @TransactionalReadOnly
+    public List<EventSignalSpoolContext> findAllDueWithContext() throws ZepException {
+        Map<String,Long> fields = Collections.singletonMap(COLUMN_FLUSH_TIME, System.currentTimeMillis());
+        return this.template.query(FIND_ALL_DUE_WITH_CONTEXT_SQL, new EventSignalSpoolContextMapper(), fields);
+    }
+
+    @Override
+    @TransactionalReadOnly
+    public List<EventSignalSpoolContext> findAllDueWithContext(Collection<String> uuids) throws ZepException {
+        if (uuids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(COLUMN_FLUSH_TIME, System.currentTimeMillis());
+        fields.put("_uuids", TypeConverterUtils.batchToDatabaseType(uuidConverter, uuids));
+        final String sql = FIND_ALL_DUE_WITH_CONTEXT_SQL + " AND spool.uuid IN (:_uuids)";
+        return this.template.query(sql, new EventSignalSpoolContextMapper(), fields);
+    }
+
+    @Override
+    @TransactionalReadOnly
+    public List<EventSignalSpool> findAllScheduled() throws ZepException {
+        Map<String,Long> fields = Collections.singletonMap(COLUMN_FLUSH_TIME, Long.MAX_VALUE);
+        final String sql = "SELECT * FROM event_trigger_signal_spool WHERE flush_time < :flush_time";
+        return this.template.query(sql, new EventSignalSpoolMapper(), fields);
+    }
+
     @Override
     @TransactionalReadOnly
     public List<EventSignalSpool> findAllByEventSummaryUuid(String eventSummaryUuid) throws ZepException {
@@ -10,7 +10,10 @@
 
 package org.zenoss.zep.dao.impl;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -49,6 +52,8 @@ import org.zenoss.zep.annotations.TransactionalReadOnly;
 import org.zenoss.zep.annotations.TransactionalRollbackAllExceptions;
 import org.zenoss.zep.dao.EventBatch;
 import org.zenoss.zep.dao.EventBatchParams;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
 import org.zenoss.zep.dao.EventSummaryDao;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
 import org.zenoss.zep.dao.impl.compat.DatabaseType;
@@ -64,6 +69,7 @@ import org.zenoss.zep.plugins.EventPreCreateContext;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -73,13 +79,12 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import static org.zenoss.zep.dao.impl.EventConstants.*;
@@ -88,12 +93,20 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
 
     private static final Logger logger = LoggerFactory.getLogger(EventSummaryDaoImpl.class);
 
-    @Autowired
     protected MetricRegistry metricRegistry;
 
     private boolean txSynchronizedQueue = true;
 
-    private final ConcurrentMap<String, List<Event>> deduping = new ConcurrentHashMap<String, List<Event>>();
+    private final FingerprintDedupTable<Event> dedupTable = new FingerprintDedupTable<Event>();
+
+    private volatile DedupSummaryCache dedupCache = null;
+    private Meter dedupCacheHitMeter;
+    private Meter dedupCacheMissMeter;
+    private Meter dedupCacheStaleMeter;
+
+    private volatile IndexSummaryCache indexCache = null;
+    private Meter indexCacheHitMeter;
+    private Meter indexCacheMissMeter;
 
     private final DataSource dataSource;
 
@@ -125,6 +138,67 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         this.insert = new SimpleJdbcInsert(dataSource).withTableName(TABLE_EVENT_SUMMARY);
     }
 
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        this.dedupTable.setMetrics(metricRegistry.meter(getClass().getName() + ".dedupContention"),
+                metricRegistry.histogram(getClass().getName() + ".dedupBatchSize"));
+        this.dedupCacheHitMeter = metricRegistry.meter(getClass().getName() + ".dedupCacheHit");
+        this.dedupCacheMissMeter = metricRegistry.meter(getClass().getName() + ".dedupCacheMiss");
+        this.dedupCacheStaleMeter = metricRegistry.meter(getClass().getName() + ".dedupCacheStale");
+        metricRegistry.register(getClass().getName() + ".dedupCacheHitRatio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(dedupCacheHitMeter.getFifteenMinuteRate(), dedupCacheHitMeter.getFifteenMinuteRate() +
+                        dedupCacheMissMeter.getFifteenMinuteRate() + dedupCacheStaleMeter.getFifteenMinuteRate());
+            }
+        });
+        metricRegistry.register(getClass().getName() + ".dedupCacheSize", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final DedupSummaryCache cache = dedupCache;
+                return (cache != null) ? cache.size() : 0L;
+            }
+        });
+        this.indexCacheHitMeter = metricRegistry.meter(getClass().getName() + ".indexCacheHit");
+        this.indexCacheMissMeter = metricRegistry.meter(getClass().getName() + ".indexCacheMiss");
+        metricRegistry.register(getClass().getName() + ".indexCacheHitRatio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(indexCacheHitMeter.getFifteenMinuteRate(), indexCacheHitMeter.getFifteenMinuteRate() +
+                        indexCacheMissMeter.getFifteenMinuteRate());
+            }
+        });
+        metricRegistry.register(getClass().getName() + ".indexCacheSize", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final IndexSummaryCache cache = indexCache;
+                return (cache != null) ? cache.size() : 0L;
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum number of open event summaries cached to skip the locking SELECT when
+     * de-duplicating. A value of zero disables the cache.
+     *
+     * @param dedupCacheSize The maximum number of cached summaries.
+     */
+    public void setDedupCacheSize(int dedupCacheSize) {
+        this.dedupCache = (dedupCacheSize > 0) ? new DedupSummaryCache(dedupCacheSize) : null;
+    }
+
+    /**
+     * Sets the maximum number of summaries written by de-duplication which are cached for the index
+     * workers, so {@link #findByKey(Collection)} can skip reading them back. Only used when the index
+     * queue is synchronized with transactions. A value of zero disables the cache.
+     *
+     * @param indexCacheSize The maximum number of cached summaries.
+     */
+    public void setIndexCacheSize(int indexCacheSize) {
+        this.indexCache = (indexCacheSize > 0) ? new IndexSummaryCache(indexCacheSize) : null;
+    }
+
     public void setEventDaoHelper(EventDaoHelper eventDaoHelper) {
         this.eventDaoHelper = eventDaoHelper;
     }
@@ -152,6 +226,10 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                 oldSummaryBuilder.setStatus(EventStatus.valueOf(rs.getInt(COLUMN_STATUS_ID)));
                 oldSummaryBuilder.setStatusChangeTime(timestampConverter.fromDatabaseType(rs, COLUMN_STATUS_CHANGE));
                 oldSummaryBuilder.setUuid(uuidConverter.fromDatabaseType(rs, COLUMN_UUID));
+                final Long updateTime = timestampConverter.fromDatabaseType(rs, COLUMN_UPDATE_TIME);
+                if (updateTime != null) {
+                    oldSummaryBuilder.setUpdateTime(updateTime);
+                }
 
                 final Event.Builder occurrenceBuilder = oldSummaryBuilder.addOccurrenceBuilder(0);
                 final String detailsJson = rs.getString(COLUMN_DETAILS_JSON);
@@ -240,23 +318,12 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
             uuid = saveEventByFingerprint(fingerprintHash, Collections.singleton(event), context, createClearHash);
         } else {
             fingerprintHash = DaoUtils.sha1(fingerprint);
-            final String hashAsString = new String(fingerprintHash).intern();
             final Event finalEvent = event;
             try {
-                metricRegistry.timer(getClass().getName() + ".queueDedup").time(new Callable() {
+                metricRegistry.timer(getClass().getName() + ".queueDedup").time(new Callable<Object>() {
                     @Override
                     public Object call() throws Exception {
-                        boolean queued = false;
-                        while (!queued) {
-                            List<Event> events = deduping.get(hashAsString);
-                            if (events == null) {
-                                deduping.putIfAbsent(hashAsString, Collections.EMPTY_LIST);
-                                continue;
-                            }
-                            List<Event> newEvents = Lists.newArrayList(events);
-                            newEvents.add(finalEvent);
-                            queued = deduping.replace(hashAsString, events, newEvents);
-                        }
+                        dedupTable.append(fingerprintHash, finalEvent);
                         return null;
                     }
                 });
@@ -270,12 +337,12 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                 uuid = metricRegistry.timer(getClass().getName() + ".dedupSync").time(new Callable<String>() {
                     @Override
                     public String call() throws Exception {
-                        synchronized (hashAsString) {
-                            List<Event> events = deduping.remove(hashAsString);
-                            if (events == null)
-                                events = Collections.EMPTY_LIST;
-                            return saveEventByFingerprint(fingerprintHash, events, context, createClearHash);
-                        }
+                        return dedupTable.drain(fingerprintHash, new FingerprintDedupTable.Drainer<Event, String>() {
+                            @Override
+                            public String drain(List<Event> events) throws Exception {
+                                return saveEventByFingerprint(fingerprintHash, events, context, createClearHash);
+                            }
+                        });
                     }
                 });
             } catch (ZepException e) {
@@ -316,6 +383,200 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         return uuid;
     }
 
+    @Override
+    @Timed(absolute=true, name="EventSummary.createAll")
+    @TransactionalRollbackAllExceptions
+    public List<String> createAll(List<Event> events, List<EventPreCreateContext> contexts) throws ZepException {
+        if (events.size() != contexts.size()) {
+            throw new IllegalArgumentException("Expected one context per event");
+        }
+        final List<String> uuids = new ArrayList<String>(Collections.<String>nCopies(events.size(), null));
+
+        // Open events waiting to be de-duplicated, grouped by fingerprint hash in arrival order.
+        final Map<ByteBuffer, DedupGroup> pending = new LinkedHashMap<ByteBuffer, DedupGroup>();
+        for (int i = 0; i < events.size(); i++) {
+            final Event event = events.get(i);
+            final EventPreCreateContext context = contexts.get(i);
+            if (event.getSeverity() == EventSeverity.SEVERITY_CLEAR ||
+                    ZepConstants.CLOSED_STATUSES.contains(event.getStatus())) {
+                // Clear events must see the open events which arrived before them in the batch.
+                saveEventsByFingerprint(pending.values(), uuids);
+                pending.clear();
+                uuids.set(i, create(event, context));
+            } else {
+                final String fingerprint = DaoUtils.truncateStringToUtf8(event.getFingerprint(), MAX_FINGERPRINT);
+                final byte[] fingerprintHash = DaoUtils.sha1(fingerprint);
+                final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+                DedupGroup group = pending.get(key);
+                if (group == null) {
+                    group = new DedupGroup(fingerprintHash);
+                    pending.put(key, group);
+                }
+                group.add(i, event, context);
+            }
+        }
+        saveEventsByFingerprint(pending.values(), uuids);
+        return uuids;
+    }
+
+    /**
+     * Open events in a batch which share the same fingerprint hash.
+     */
+    private static class DedupGroup {
+        private final byte[] fingerprintHash;
+        private final List<Integer> positions = new ArrayList<Integer>();
+        private final List<Event> events = new ArrayList<Event>();
+        private EventPreCreateContext context;
+
+        public DedupGroup(byte[] fingerprintHash) {
+            this.fingerprintHash = fingerprintHash;
+        }
+
+        public void add(int position, Event event, EventPreCreateContext context) {
+            this.positions.add(position);
+            this.events.add(event);
+            // Matches the single event path, where the context of the last de-duplicated event is used.
+            this.context = context;
+        }
+    }
+
+    private static String createDedupUpdateSql(Collection<String> fieldNames) {
+        final StringBuilder updateSql = new StringBuilder("UPDATE event_summary SET ");
+        int i = 0;
+        for (String fieldName : fieldNames) {
+            if (++i > 1) updateSql.append(',');
+            updateSql.append(fieldName).append("=:").append(fieldName);
+        }
+        updateSql.append(" WHERE fingerprint_hash=:fingerprint_hash");
+        return updateSql.toString();
+    }
+
+    private void saveEventsByFingerprint(final Collection<DedupGroup> groups, final List<String> uuids)
+            throws ZepException {
+        if (groups.isEmpty()) {
+            return;
+        }
+        try {
+            metricRegistry.timer(getClass().getName() + ".saveEventsByFingerprint").time(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    final List<byte[]> fingerprintHashes = new ArrayList<byte[]>(groups.size());
+                    for (DedupGroup group : groups) {
+                        fingerprintHashes.add(group.fingerprintHash);
+                    }
+
+                    // Lock all of the existing rows for the batch with a single query.
+                    final Map<ByteBuffer, EventSummary.Builder> oldSummaries =
+                            new HashMap<ByteBuffer, EventSummary.Builder>();
+                    template.query("SELECT fingerprint_hash,event_count,first_seen,last_seen,details_json," +
+                            "status_id,status_change,update_time,uuid FROM event_summary" +
+                            " WHERE fingerprint_hash IN (:_fingerprint_hashes) FOR UPDATE",
+                            new RowMapper<Object>() {
+                                @Override
+                                public Object mapRow(ResultSet rs, int rowNum) throws SQLException {
+                                    oldSummaries.put(ByteBuffer.wrap(rs.getBytes(COLUMN_FINGERPRINT_HASH)),
+                                            eventDedupMapper.mapRow(rs, rowNum));
+                                    return null;
+                                }
+                            }, Collections.singletonMap("_fingerprint_hashes", fingerprintHashes));
+
+                    final long updateTime = System.currentTimeMillis();
+                    final List<Map<String, Object>> inserts = new ArrayList<Map<String, Object>>();
+                    final List<Map<String, Object>> newerUpdates = new ArrayList<Map<String, Object>>();
+                    final List<Map<String, Object>> olderUpdates = new ArrayList<Map<String, Object>>();
+                    String newerUpdateSql = null;
+                    String olderUpdateSql = null;
+                    final List<String> indexUuids = new ArrayList<String>(groups.size());
+                    final Map<String, Map<String, Object>> writtenRows = new HashMap<String, Map<String, Object>>();
+                    final Map<String, EventSummary.Builder> writtenSummaries =
+                            new HashMap<String, EventSummary.Builder>();
+                    final Map<String, Long> writtenUpdateTimes = new HashMap<String, Long>();
+                    long dedupCount = 0;
+
+                    for (DedupGroup group : groups) {
+                        EventSummary.Builder summary = oldSummaries.get(ByteBuffer.wrap(group.fingerprintHash));
+                        final boolean exists = (summary != null);
+                        if (!exists) {
+                            summary = EventSummary.newBuilder();
+                            summary.setCount(0);
+                            summary.addOccurrenceBuilder(0);
+                        }
+
+                        final Long previousUpdateTime = (exists && summary.hasUpdateTime()) ?
+                                summary.getUpdateTime() : null;
+                        boolean isNewer = false;
+                        for (Event event : group.events) {
+                            isNewer = merge(summary, event) || isNewer;
+                        }
+                        summary.setUpdateTime(updateTime);
+                        final Map<String, Object> fields;
+
+                        if (exists) {
+                            dedupCount += group.events.size();
+                            fields = getUpdateFields(summary, isNewer, group.context, true);
+                            if (isNewer) {
+                                if (newerUpdateSql == null) {
+                                    newerUpdateSql = createDedupUpdateSql(fields.keySet());
+                                }
+                                newerUpdates.add(fields);
+                            } else {
+                                if (olderUpdateSql == null) {
+                                    olderUpdateSql = createDedupUpdateSql(fields.keySet());
+                                }
+                                olderUpdates.add(fields);
+                            }
+                            fields.put(COLUMN_FINGERPRINT_HASH, group.fingerprintHash);
+                        } else {
+                            dedupCount += group.events.size() - 1;
+                            summary.setUuid(uuidGenerator.generate().toString());
+                            fields = getInsertFields(summary, group.context, true);
+                            fields.put(COLUMN_FINGERPRINT_HASH, group.fingerprintHash);
+                            inserts.add(fields);
+                        }
+
+                        final String uuid = summary.getUuid();
+                        for (Integer position : group.positions) {
+                            uuids.set(position, uuid);
+                        }
+                        indexUuids.add(uuid);
+                        writtenRows.put(uuid, fields);
+                        writtenSummaries.put(uuid, summary);
+                        writtenUpdateTimes.put(uuid, previousUpdateTime);
+                        cacheAfterCommit(group.fingerprintHash, summary);
+                    }
+
+                    if (!newerUpdates.isEmpty()) {
+                        template.batchUpdate(newerUpdateSql, newerUpdates.toArray(new Map[newerUpdates.size()]));
+                    }
+                    if (!olderUpdates.isEmpty()) {
+                        template.batchUpdate(olderUpdateSql, olderUpdates.toArray(new Map[olderUpdates.size()]));
+                    }
+                    if (!inserts.isEmpty()) {
+                        insert.executeBatch(inserts.toArray(new Map[inserts.size()]));
+                    }
+                    for (String uuid : indexUuids) {
+                        indexSignal(writtenSummaries.get(uuid), writtenRows.get(uuid), writtenUpdateTimes.get(uuid));
+                    }
+
+                    final long finalDedupCount = dedupCount;
+                    if (finalDedupCount > 0) {
+                        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                            @Override
+                            public void afterCommit() {
+                                counters.addToDedupedEventCount(finalDedupCount);
+                            }
+                        });
+                    }
+                    return null;
+                }
+            });
+        } catch (ZepException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ZepException(e);
+        }
+    }
+
     private Map<String, Object> getInsertFields(EventSummaryOrBuilder summary, EventPreCreateContext context,
                                                 boolean createClearHash)
             throws ZepException {
@@ -341,6 +602,95 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         return fields;
     }
 
+    /**
+     * De-duplicates the events against the cached state of the open summary for the fingerprint hash,
+     * skipping the locking SELECT. The UPDATE only applies if the row still has the cached event count,
+     * status and update time; otherwise the entry is invalidated and null is returned so the caller
+     * falls back to reading the row.
+     */
+    private String saveCachedEventByFingerprint(final byte[] fingerprintHash, final Collection<Event> events,
+                                                final EventPreCreateContext context, final boolean createClearHash)
+            throws ZepException {
+        final DedupSummaryCache cache = this.dedupCache;
+        final EventSummary cached = cache.get(fingerprintHash);
+        if (cached == null) {
+            dedupCacheMissMeter.mark();
+            return null;
+        }
+        final EventSummary.Builder summary = EventSummary.newBuilder(cached);
+        boolean isNewer = false;
+        for (Event event : events) {
+            isNewer = merge(summary, event) || isNewer;
+        }
+        summary.setUpdateTime(System.currentTimeMillis());
+
+        final TypeConverter<Long> timestampConverter = databaseCompatibility.getTimestampConverter();
+        final Map<String, Object> fields = getUpdateFields(summary, isNewer, context, createClearHash);
+        final String updateSql = createDedupUpdateSql(fields.keySet()) +
+                " AND event_count=:_cached_event_count AND status_id=:_cached_status_id" +
+                " AND update_time=:_cached_update_time";
+        fields.put(COLUMN_FINGERPRINT_HASH, fingerprintHash);
+        fields.put("_cached_event_count", cached.getCount());
+        fields.put("_cached_status_id", cached.getStatus().getNumber());
+        fields.put("_cached_update_time", timestampConverter.toDatabaseType(cached.getUpdateTime()));
+        if (template.update(updateSql, fields) != 1) {
+            cache.invalidate(fingerprintHash);
+            dedupCacheStaleMeter.mark();
+            return null;
+        }
+        dedupCacheHitMeter.mark();
+
+        indexSignal(summary, fields, cached.getUpdateTime());
+        final long dedupCount = events.size();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                counters.addToDedupedEventCount(dedupCount);
+            }
+        });
+        cacheAfterCommit(fingerprintHash, summary);
+        return summary.getUuid();
+    }
+
+    /**
+     * Caches the de-duplication fields of an open summary once the transaction which wrote them commits.
+     */
+    private void cacheAfterCommit(final byte[] fingerprintHash, EventSummary.Builder summary) {
+        final DedupSummaryCache cache = this.dedupCache;
+        if (cache == null) {
+            return;
+        }
+        if (ZepConstants.CLOSED_STATUSES.contains(summary.getStatus())) {
+            cache.invalidate(fingerprintHash);
+            return;
+        }
+        final EventSummary dedupSummary = DedupSummaryCache.toDedupSummary(summary);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cache.put(fingerprintHash, dedupSummary);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    cache.invalidate(fingerprintHash);
+                }
+            }
+        });
+    }
+
+    private void invalidateDedupCache(Collection<String> uuids) {
+        final DedupSummaryCache cache = this.dedupCache;
+        if (cache != null) {
+            cache.invalidateUuids(uuids);
+        }
+        final IndexSummaryCache summaryCache = this.indexCache;
+        if (summaryCache != null) {
+            summaryCache.invalidate(uuids);
+        }
+    }
+
     private String saveEventByFingerprint(final byte[] fingerprintHash, final Collection<Event> events,
                                           final EventPreCreateContext context, final boolean createClearHash)
             throws ZepException {
@@ -348,8 +698,16 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
             return metricRegistry.timer(getClass().getName() + ".saveEventByFingerprint").time(new Callable<String>() {
                 @Override
                 public String call() throws Exception {
+                    if (!events.isEmpty() && dedupCache != null) {
+                        final String uuid = saveCachedEventByFingerprint(fingerprintHash, events, context,
+                                createClearHash);
+                        if (uuid != null) {
+                            return uuid;
+                        }
+                    }
                     final List<EventSummary.Builder> oldSummaryList = template.getJdbcOperations().query(
-                            "SELECT event_count,first_seen,last_seen,details_json,status_id,status_change,uuid" +
+                            "SELECT event_count,first_seen,last_seen,details_json,status_id,status_change," +
+                                    "update_time,uuid" +
                                     " FROM event_summary WHERE fingerprint_hash=? FOR UPDATE",
                             new RowMapperResultSetExtractor<EventSummary.Builder>(eventDedupMapper, 1),
                             fingerprintHash);
@@ -362,6 +720,8 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                         summary.addOccurrenceBuilder(0);
                     }
 
+                    final Long previousUpdateTime = (!oldSummaryList.isEmpty() && summary.hasUpdateTime()) ?
+                            summary.getUpdateTime() : null;
                     boolean isNewer = false;
                     for (Event event : events) {
                         isNewer = merge(summary, event) || isNewer;
@@ -370,27 +730,22 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                     if (!events.isEmpty()) {
                         summary.setUpdateTime(System.currentTimeMillis());
                         final long dedupCount;
+                        final Map<String, Object> fields;
                         if (!oldSummaryList.isEmpty()) {
                             dedupCount = events.size();
-                            final Map<String, Object> fields = getUpdateFields(summary, isNewer, context, createClearHash);
-                            final StringBuilder updateSql = new StringBuilder("UPDATE event_summary SET ");
-                            int i = 0;
-                            for (String fieldName : fields.keySet()) {
-                                if (++i > 1) updateSql.append(',');
-                                updateSql.append(fieldName).append("=:").append(fieldName);
-                            }
-                            updateSql.append(" WHERE fingerprint_hash=:fingerprint_hash");
-                            fields.put("fingerprint_hash", fingerprintHash);
-                            template.update(updateSql.toString(), fields);
+                            fields = getUpdateFields(summary, isNewer, context, createClearHash);
+                            final String updateSql = createDedupUpdateSql(fields.keySet());
+                            fields.put(COLUMN_FINGERPRINT_HASH, fingerprintHash);
+                            template.update(updateSql, fields);
 
                         } else {
                             dedupCount = events.size() - 1;
                             summary.setUuid(uuidGenerator.generate().toString());
-                            final Map<String, Object> fields = getInsertFields(summary, context, createClearHash);
+                            fields = getInsertFields(summary, context, createClearHash);
                             fields.put(COLUMN_FINGERPRINT_HASH, fingerprintHash);
                             insert.execute(fields);
                         }
-                        indexSignal(summary.getUuid());
+                        indexSignal(summary, fields, previousUpdateTime);
                         if (dedupCount > 0) {
                             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
                                 @Override
@@ -399,6 +754,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                                 }
                             });
                         }
+                        cacheAfterCommit(fingerprintHash, summary);
                     }
                     return summary.getUuid();
                 }
@@ -771,14 +1127,46 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
     @TransactionalReadOnly
     @Timed(absolute=true, name="EventSummary.findByKey")
     /**
-     * This implementation only makes use of the UUID field to lookup the events.
+     * This implementation looks up the events by UUID. If the index cache is enabled, summaries
+     * written by de-duplication are returned from the cache when the last seen time of the key
+     * matches the commit time of the write, or the last seen time of the cached row.
      */
     public List<EventSummary> findByKey(final Collection<EventSummary> toLookup) throws ZepException {
         if (toLookup == null || toLookup.isEmpty())
             return Collections.emptyList();
-        Set<String> uuids = Sets.newHashSetWithExpectedSize(toLookup.size());
-        for (EventSummary event : toLookup) uuids.add(event.getUuid());
-        return findByUuids(uuids);
+        final IndexSummaryCache cache = this.indexCache;
+        if (cache == null) {
+            Set<String> uuids = Sets.newHashSetWithExpectedSize(toLookup.size());
+            for (EventSummary event : toLookup) uuids.add(event.getUuid());
+            return findByUuids(uuids);
+        }
+
+        final Map<String, EventSummary> cached = new LinkedHashMap<String, EventSummary>();
+        final Set<String> uuids = Sets.newHashSetWithExpectedSize(toLookup.size());
+        for (EventSummary event : toLookup) {
+            final String uuid = event.getUuid();
+            if (uuids.contains(uuid)) {
+                continue;
+            }
+            final EventSummary summary = event.hasLastSeenTime() ? cache.get(uuid, event.getLastSeenTime()) : null;
+            final EventSummary previous = cached.put(uuid, summary);
+            // Read the row if any key for the UUID misses, or two keys hit different versions
+            if (summary == null || (previous != null && previous != summary)) {
+                cached.remove(uuid);
+                uuids.add(uuid);
+            }
+        }
+
+        final List<EventSummary> results = new ArrayList<EventSummary>(toLookup.size());
+        results.addAll(cached.values());
+        if (indexCacheHitMeter != null) {
+            indexCacheHitMeter.mark(results.size());
+            indexCacheMissMeter.mark(uuids.size());
+        }
+        if (!uuids.isEmpty()) {
+            results.addAll(findByUuids(uuids));
+        }
+        return results;
     }
 
     @Override
@@ -789,6 +1177,21 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                 new EventSummaryRowMapper(eventDaoHelper, databaseCompatibility));
     }
 
+    @Override
+    @TransactionalReadOnly
+    public List<EventScanRange> listScanRanges(int uuidRanges) throws ZepException {
+        return this.eventDaoHelper.listScanRanges(this.template, TABLE_EVENT_SUMMARY, null, uuidRanges);
+    }
+
+    @Override
+    @TransactionalReadOnly
+    @Timed(absolute=true, name="EventSummary.scanRange")
+    public String scanRange(EventScanRange range, String startingUuid, long maxUpdateTime, int fetchSize,
+                            EventScanCallback callback) throws ZepException {
+        return this.eventDaoHelper.scanRange(this.dataSource, TABLE_EVENT_SUMMARY, range, startingUuid, maxUpdateTime,
+                fetchSize, new EventSummaryRowMapper(eventDaoHelper, databaseCompatibility, true), callback);
+    }
+
     private static final EnumSet<EventStatus> AUDIT_LOG_STATUSES = EnumSet.of(
             EventStatus.STATUS_NEW, EventStatus.STATUS_ACKNOWLEDGED, EventStatus.STATUS_CLOSED,
             EventStatus.STATUS_CLEARED);
@@ -907,6 +1310,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
             throws ZepException {
         final long updateTime = System.currentTimeMillis();
         this.indexSignal(uuid);
+        this.invalidateDedupCache(Collections.singletonList(uuid));
 
         return this.eventDaoHelper.updateDetails(TABLE_EVENT_SUMMARY, uuid, details.getDetailsList(), template);
     }
@@ -983,6 +1387,8 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
             fields.put(COLUMN_CURRENT_USER_UUID, null);
         }
 
+        invalidateDedupCache(uuids);
+
         StringBuilder sb = new StringBuilder("SELECT uuid,fingerprint,audit_json FROM event_summary");
         StringBuilder sbw = new StringBuilder(" WHERE uuid IN (:_uuids)");
         /*
@@ -1231,6 +1637,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         final long updateTime = System.currentTimeMillis();
         /* signal event_summary table rows to get indexed */
         this.indexSignal(uuids);
+        this.invalidateDedupCache(uuids);
 
         String insertSql = String.format("INSERT INTO event_archive (%s) SELECT %s FROM event_summary" +
                         " WHERE uuid IN (:_uuids) AND closed_status = TRUE ON DUPLICATE KEY UPDATE summary=event_summary.summary",
@@ -1289,6 +1696,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                 return uuidConverter.fromDatabaseType(rs, COLUMN_UUID);
             }
         }, fields);
+        this.invalidateDedupCache(ids);
         this.indexSignal(ids);
     }
 
@@ -1298,29 +1706,112 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
 
     private void indexSignal(final List<String> eventUuids) {
         if (!txSynchronizedQueue) {
-            doIndexSignal(eventUuids);
+            doIndexSignal(eventUuids, System.currentTimeMillis());
             return;
         }
 
-        IndexQueueSynchronizer idxSync = null;
+        final IndexQueueSynchronizer idxSync = getIndexQueueSynchronizer();
+        idxSync.uuids.addAll(eventUuids);
+        final IndexSummaryCache cache = this.indexCache;
+        if (cache != null) {
+            // Rows written by anything other than de-duplication must be read from the database.
+            for (String uuid : eventUuids) {
+                final IndexSummaryCache.Entry pending = idxSync.staged.remove(uuid);
+                if (pending != null) {
+                    cache.discard(uuid, pending);
+                }
+                idxSync.invalidated.add(uuid);
+            }
+            cache.invalidate(eventUuids);
+        }
+    }
+
+    /**
+     * Signals the index for a row written by de-duplication, caching the written summary for the index workers.
+     *
+     * @param summary The merged summary which was written.
+     * @param fields The columns written to the row.
+     * @param previousUpdateTime The update time of the row before it was updated, or null if it was inserted.
+     */
+    private void indexSignal(final EventSummaryOrBuilder summary, final Map<String, Object> fields,
+                             final Long previousUpdateTime) {
+        final String eventUuid = summary.getUuid();
+        final IndexSummaryCache cache = this.indexCache;
+        if (cache == null || !txSynchronizedQueue) {
+            indexSignal(eventUuid);
+            return;
+        }
+        final IndexQueueSynchronizer idxSync = getIndexQueueSynchronizer();
+        EventSummary base = null;
+        if (previousUpdateTime != null) {
+            final IndexSummaryCache.Entry staged = idxSync.staged.get(eventUuid);
+            base = (staged != null) ? staged.getSummary() : cache.getSummary(eventUuid, previousUpdateTime);
+            if (base == null) {
+                indexSignal(eventUuid);
+                return;
+            }
+        }
+        final EventSummary written = writtenSummary(summary, base, fields);
+        if (written == null) {
+            indexSignal(eventUuid);
+            return;
+        }
+        idxSync.uuids.add(eventUuid);
+        idxSync.invalidated.remove(eventUuid);
+        idxSync.staged.put(eventUuid, cache.reserve(eventUuid, written));
+    }
+
+    /**
+     * Returns the summary the row mapper reads back from a row written by de-duplication: the occurrence
+     * columns are only written for inserts and for newer occurrences (along with the status and last seen
+     * time), the other columns written are the same for every de-duplication.
+     *
+     * @param merged The merged summary which was written.
+     * @param base The summary read from the row before it was updated, or null if it was inserted.
+     * @param fields The columns written to the row.
+     * @return The summary as it is read from the row, or null if it can't be derived from the written columns.
+     */
+    private EventSummary writtenSummary(EventSummaryOrBuilder merged, EventSummary base, Map<String, Object> fields) {
+        final EventSummary.Builder written = (base == null) ? EventSummary.newBuilder() : EventSummary.newBuilder(base);
+        written.setUuid(merged.getUuid());
+        written.setCount(merged.getCount());
+        written.setUpdateTime(merged.getUpdateTime());
+        written.setFirstSeenTime(merged.getFirstSeenTime());
+        final Event occurrence;
+        if (base == null || fields.containsKey(COLUMN_SEVERITY_ID)) {
+            written.setStatus(merged.getStatus());
+            written.setStatusChangeTime(merged.getStatusChangeTime());
+            written.setLastSeenTime(merged.getLastSeenTime());
+            occurrence = eventDaoHelper.mapOccurrenceFields(merged.getOccurrence(0),
+                    (base == null) ? null : base.getOccurrence(0), fields, merged.getLastSeenTime());
+        } else {
+            final List<EventDetail> details = eventDaoHelper.mapDetailsJson((String) fields.get(COLUMN_DETAILS_JSON));
+            occurrence = (details == null) ? null :
+                    Event.newBuilder(base.getOccurrence(0)).clearDetails().addAllDetails(details).build();
+        }
+        if (occurrence == null) {
+            return null;
+        }
+        written.clearOccurrence();
+        written.addOccurrence(occurrence);
+        return written.build();
+    }
+
+    private IndexQueueSynchronizer getIndexQueueSynchronizer() {
         for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
             if (sync instanceof IndexQueueSynchronizer) {
-                idxSync = (IndexQueueSynchronizer) sync;
-                break;
+                return (IndexQueueSynchronizer) sync;
             }
         }
-        if (idxSync == null) {
-            idxSync = new IndexQueueSynchronizer();
-            TransactionSynchronizationManager.registerSynchronization(idxSync);
-        }
-        idxSync.uuids.addAll(eventUuids);
+        final IndexQueueSynchronizer idxSync = new IndexQueueSynchronizer(this.indexCache);
+        TransactionSynchronizationManager.registerSynchronization(idxSync);
+        return idxSync;
     }
 
-    private void doIndexSignal(final Collection<String> eventUuids) {
+    private void doIndexSignal(final Collection<String> eventUuids, final long updateTime) {
         if (eventUuids.isEmpty()) {
             return;
         }
-        Long updateTime = System.currentTimeMillis();
         List<EventIndexBackendTask> tasks = Lists.newArrayListWithCapacity(eventUuids.size());
         for (String uuid : eventUuids) {
             tasks.add(EventIndexBackendTask.Index(uuid, updateTime));
@@ -1329,12 +1820,38 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
     }
 
 
-    private class IndexQueueSynchronizer extends TransactionSynchronizationAdapter {
+    class IndexQueueSynchronizer extends TransactionSynchronizationAdapter {
         TreeSet<String> uuids = new TreeSet<>();
+        /* Rows written by de-duplication in this transaction, reserved in the index cache. */
+        Map<String, IndexSummaryCache.Entry> staged = new HashMap<>();
+        /* Rows written by anything else in this transaction. */
+        Set<String> invalidated = new TreeSet<>();
+        final IndexSummaryCache cache;
+
+        IndexQueueSynchronizer(IndexSummaryCache cache) {
+            this.cache = cache;
+        }
 
         @Override
         public void afterCommit() {
-            doIndexSignal(uuids);
+            final long updateTime = System.currentTimeMillis();
+            if (cache != null) {
+                // Invalidate again in case a concurrent writer cached the row before this transaction took its lock.
+                cache.invalidate(invalidated);
+                for (Map.Entry<String, IndexSummaryCache.Entry> entry : staged.entrySet()) {
+                    cache.promote(entry.getKey(), entry.getValue(), updateTime);
+                }
+            }
+            doIndexSignal(uuids, updateTime);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (cache != null && status != STATUS_COMMITTED) {
+                for (Map.Entry<String, IndexSummaryCache.Entry> entry : staged.entrySet()) {
+                    cache.discard(entry.getKey(), entry.getValue());
+                }
+            }
         }
     }
 }
@@ -31,11 +31,22 @@ public class EventSummaryRowMapper implements RowMapper<EventSummary> {
     private final EventDaoHelper helper;
     private final TypeConverter<Long> timestampConverter;
     private final TypeConverter<String> uuidConverter;
+    protected final boolean joinedNames;
 
     public EventSummaryRowMapper(EventDaoHelper eventDaoHelper, DatabaseCompatibility databaseCompatibility) {
+        this(eventDaoHelper, databaseCompatibility, false);
+    }
+
+    /**
+     * @param joinedNames True if the names of the ids in the rows are joined from their tables, as in the rows
+     *                    read by {@link EventDaoHelper#scanRange}.
+     */
+    public EventSummaryRowMapper(EventDaoHelper eventDaoHelper, DatabaseCompatibility databaseCompatibility,
+                                 boolean joinedNames) {
         this.helper = eventDaoHelper;
         this.timestampConverter = databaseCompatibility.getTimestampConverter();
         this.uuidConverter = databaseCompatibility.getUUIDConverter();
+        this.joinedNames = joinedNames;
     }
 
     @Override
@@ -92,7 +103,7 @@ public class EventSummaryRowMapper implements RowMapper<EventSummary> {
      * @throws SQLException
      */
     protected Event mapEvent(ResultSet rs) throws SQLException {
-        return helper.eventMapper(rs, false);
+        return helper.eventMapper(rs, false, joinedNames);
     }
 
 }
@@ -0,0 +1,175 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.simple.SimpleJdbcOperations;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventTriggerCache;
+import org.zenoss.zep.dao.EventTriggerSnapshot;
+import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
+import org.zenoss.zep.dao.impl.compat.TypeConverter;
+import org.zenoss.zep.impl.ThreadRenamingRunnable;
+
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches an immutable {@link EventTriggerSnapshot}, replacing it (copy-on-write) whenever the trigger change
+ * version in the event_trigger_version table moves. Local changes replace the snapshot when they commit, and
+ * the version is polled to pick up changes made by other ZEP instances.
+ */
+public class EventTriggerCacheImpl implements EventTriggerCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventTriggerCacheImpl.class);
+
+    private static final String SELECT_VERSION_SQL = "SELECT version FROM event_trigger_version";
+    private static final String INCREMENT_VERSION_SQL = "UPDATE event_trigger_version SET version = version + 1";
+
+    private final SimpleJdbcOperations template;
+    private TypeConverter<String> uuidConverter;
+    private TaskScheduler scheduler;
+    private long pollIntervalSeconds = 10L;
+    private ScheduledFuture<?> pollFuture;
+
+    private volatile EventTriggerSnapshot snapshot;
+
+    public EventTriggerCacheImpl(DataSource dataSource) {
+        this.template = (SimpleJdbcOperations) Proxy.newProxyInstance(SimpleJdbcOperations.class.getClassLoader(),
+                new Class<?>[] {SimpleJdbcOperations.class}, new SimpleJdbcTemplateProxy(dataSource));
+    }
+
+    public void setDatabaseCompatibility(DatabaseCompatibility databaseCompatibility) {
+        this.uuidConverter = databaseCompatibility.getUUIDConverter();
+    }
+
+    public void setScheduler(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param pollIntervalSeconds How often the trigger change version is checked for changes made by other ZEP
+     *                            instances. Specify an interval <= 0 to disable polling.
+     */
+    public void setPollIntervalSeconds(long pollIntervalSeconds) {
+        this.pollIntervalSeconds = pollIntervalSeconds;
+    }
+
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        final String baseName = getClass().getName();
+        metrics.register(MetricRegistry.name(baseName, "snapshotVersion"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final EventTriggerSnapshot current = snapshot;
+                return (current != null) ? current.getVersion() : -1L;
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "snapshotAgeSeconds"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final EventTriggerSnapshot current = snapshot;
+                if (current == null) {
+                    return -1L;
+                }
+                return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - current.getLoadedTime());
+            }
+        });
+    }
+
+    public void init() {
+        if (this.scheduler == null || this.pollIntervalSeconds <= 0) {
+            return;
+        }
+        this.pollFuture = this.scheduler.scheduleWithFixedDelay(new ThreadRenamingRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    logger.warn("Failed to refresh event triggers", e);
+                }
+            }
+        }, "ZEP_TRIGGER_CACHE_POLL"), TimeUnit.SECONDS.toMillis(this.pollIntervalSeconds));
+    }
+
+    public void close() {
+        if (this.pollFuture != null) {
+            this.pollFuture.cancel(false);
+            this.pollFuture = null;
+        }
+    }
+
+    @Override
+    public EventTriggerSnapshot getSnapshot() throws ZepException {
+        EventTriggerSnapshot current = this.snapshot;
+        if (current == null) {
+            try {
+                current = refresh();
+            } catch (DataAccessException e) {
+                throw new ZepException(e.getLocalizedMessage(), e);
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void triggersChanged() throws ZepException {
+        this.template.update(INCREMENT_VERSION_SQL);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    try {
+                        refresh();
+                    } catch (Exception e) {
+                        // The next poll picks up the change
+                        logger.warn("Failed to refresh event triggers", e);
+                    }
+                }
+            });
+        } else {
+            refresh();
+        }
+    }
+
+    /**
+     * Loads a new snapshot if the trigger change version has moved since the current snapshot was loaded.
+     *
+     * @return The current snapshot.
+     */
+    private synchronized EventTriggerSnapshot refresh() {
+        // The version is read first, so a concurrent change can only make the snapshot newer than its version
+        // (and be loaded again by the next refresh), never older.
+        final long version = this.template.queryForLong(SELECT_VERSION_SQL);
+        EventTriggerSnapshot current = this.snapshot;
+        if (current == null || current.getVersion() != version) {
+            final List<EventTrigger> triggers = this.template.getJdbcOperations().query(
+                    EventTriggerDaoImpl.SELECT_TRIGGERS_SQL, new EventTriggerDaoImpl.EventTriggerExtractor(uuidConverter));
+            current = new EventTriggerSnapshot(version, System.currentTimeMillis(), triggers);
+            this.snapshot = current;
+            logger.debug("Loaded event trigger snapshot: {}", current);
+        }
+        return current;
+    }
+}
@@ -23,6 +23,7 @@ import org.zenoss.zep.ZepException;
 import org.zenoss.zep.annotations.TransactionalReadOnly;
 import org.zenoss.zep.annotations.TransactionalRollbackAllExceptions;
 import org.zenoss.zep.dao.EventSignalSpoolDao;
+import org.zenoss.zep.dao.EventTriggerCache;
 import org.zenoss.zep.dao.EventTriggerDao;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
 import org.zenoss.zep.dao.impl.compat.TypeConverter;
@@ -52,7 +53,13 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
 
     private final SimpleJdbcOperations template;
 
+    // Selects triggers with their subscriptions
+    static final String SELECT_TRIGGERS_SQL = "SELECT event_trigger.*,sub.uuid AS event_sub_uuid," +
+            "sub.subscriber_uuid,sub.delay_seconds,sub.repeat_seconds,sub.send_initial_occurrence FROM event_trigger " +
+            "LEFT JOIN event_trigger_subscription AS sub ON event_trigger.uuid = sub.event_trigger_uuid";
+
     private EventSignalSpoolDao eventSignalSpoolDao;
+    private EventTriggerCache eventTriggerCache;
     private TypeConverter<String> uuidConverter;
 
     public EventTriggerDaoImpl(DataSource dataSource) {
@@ -64,6 +71,10 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
         this.eventSignalSpoolDao = eventSignalSpoolDao;
     }
 
+    public void setEventTriggerCache(EventTriggerCache eventTriggerCache) {
+        this.eventTriggerCache = eventTriggerCache;
+    }
+
     public void setDatabaseCompatibility(DatabaseCompatibility databaseCompatibility) {
         this.uuidConverter = databaseCompatibility.getUUIDConverter();
     }
@@ -83,13 +94,18 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
             values.append(':').append(key);
         }
         this.template.update(String.format("INSERT INTO event_trigger (%s) VALUES (%s)", names, values), fields);
+        triggersChanged();
     }
 
     @Override
     @TransactionalRollbackAllExceptions
     public int delete(String uuidStr) throws ZepException {
         final Map<String,Object> fields = Collections.singletonMap(COLUMN_UUID, uuidConverter.toDatabaseType(uuidStr));
-        return this.template.update("DELETE FROM event_trigger WHERE uuid=:uuid", fields);
+        final int numRows = this.template.update("DELETE FROM event_trigger WHERE uuid=:uuid", fields);
+        if (numRows > 0) {
+            triggersChanged();
+        }
+        return numRows;
     }
 
     @Override
@@ -97,12 +113,9 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
     public EventTrigger findByUuid(String uuidStr) throws ZepException {
         final Object uuid = uuidConverter.toDatabaseType(uuidStr);
         final Map<String,Object> fields = Collections.singletonMap(COLUMN_UUID, uuid);
-        String sql = "SELECT event_trigger.*,sub.uuid AS event_sub_uuid,sub.subscriber_uuid,sub.delay_seconds,"
-                + "sub.repeat_seconds,sub.send_initial_occurrence FROM event_trigger "
-                + "LEFT JOIN event_trigger_subscription AS sub ON event_trigger.uuid = sub.event_trigger_uuid "
-                + "WHERE event_trigger.uuid=:uuid";
+        String sql = SELECT_TRIGGERS_SQL + " WHERE event_trigger.uuid=:uuid";
         List<EventTrigger> triggers = this.template.getNamedParameterJdbcOperations().query(
-                sql, fields, new EventTriggerExtractor());
+                sql, fields, new EventTriggerExtractor(uuidConverter));
         EventTrigger trigger = null;
         if (!triggers.isEmpty()) {
             trigger = triggers.get(0);
@@ -113,20 +126,14 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
     @Override
     @TransactionalReadOnly
     public List<EventTrigger> findAll() throws ZepException {
-        String sql = "SELECT event_trigger.*,sub.uuid AS event_sub_uuid,sub.subscriber_uuid,sub.delay_seconds,"
-                + "sub.repeat_seconds,sub.send_initial_occurrence FROM event_trigger "
-                + "LEFT JOIN event_trigger_subscription AS sub ON event_trigger.uuid = sub.event_trigger_uuid";
-        return this.template.getJdbcOperations().query(sql, new EventTriggerExtractor());
+        return this.template.getJdbcOperations().query(SELECT_TRIGGERS_SQL, new EventTriggerExtractor(uuidConverter));
     }
 
     @Override
     @TransactionalReadOnly
     public List<EventTrigger> findAllEnabled() throws ZepException {
-        String sql = "SELECT event_trigger.*,sub.uuid AS event_sub_uuid,sub.subscriber_uuid,sub.delay_seconds,"
-                + "sub.repeat_seconds,sub.send_initial_occurrence FROM event_trigger "
-                + "LEFT JOIN event_trigger_subscription AS sub ON event_trigger.uuid = sub.event_trigger_uuid "
-                + "WHERE event_trigger.enabled <> ?";
-        return this.template.getJdbcOperations().query(sql, new EventTriggerExtractor(), Boolean.FALSE);
+        String sql = SELECT_TRIGGERS_SQL + " WHERE event_trigger.enabled <> ?";
+        return this.template.getJdbcOperations().query(sql, new EventTriggerExtractor(uuidConverter), Boolean.FALSE);
     }
 
     @Override
@@ -148,6 +155,9 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
         }
         String sql = String.format("UPDATE event_trigger SET %s WHERE uuid=:uuid", fieldsSql.toString());
         int numRows = template.update(sql, fields);
+        if (numRows > 0) {
+            triggersChanged();
+        }
 
         /* If trigger is now disabled, remove any spooled signals */
         if (trigger.hasEnabled() && !trigger.getEnabled()) {
@@ -169,7 +179,18 @@ public class EventTriggerDaoImpl implements EventTriggerDao {
         return fields;
     }
 
-    private class EventTriggerExtractor implements ResultSetExtractor<List<EventTrigger>> {
+    private void triggersChanged() throws ZepException {
+        if (this.eventTriggerCache != null) {
+            this.eventTriggerCache.triggersChanged();
+        }
+    }
+
+    static class EventTriggerExtractor implements ResultSetExtractor<List<EventTrigger>> {
+        private final TypeConverter<String> uuidConverter;
+
+        EventTriggerExtractor(TypeConverter<String> uuidConverter) {
+            this.uuidConverter = uuidConverter;
+        }
 
         @Override
         public List<EventTrigger> extractData(ResultSet rs)
@@ -20,6 +20,7 @@ import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.annotations.TransactionalReadOnly;
 import org.zenoss.zep.annotations.TransactionalRollbackAllExceptions;
+import org.zenoss.zep.dao.EventTriggerCache;
 import org.zenoss.zep.dao.EventTriggerSubscriptionDao;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
 import org.zenoss.zep.dao.impl.compat.NestedTransactionService;
@@ -70,6 +71,7 @@ public class EventTriggerSubscriptionDaoImpl implements EventTriggerSubscription
     private UUIDGenerator uuidGenerator;
     private TypeConverter<String> uuidConverter;
     private NestedTransactionService nestedTransactionService;
+    private EventTriggerCache eventTriggerCache;
 
     public EventTriggerSubscriptionDaoImpl(DataSource dataSource) {
     	this.template = (SimpleJdbcOperations) Proxy.newProxyInstance(SimpleJdbcOperations.class.getClassLoader(), 
@@ -89,6 +91,16 @@ public class EventTriggerSubscriptionDaoImpl implements EventTriggerSubscription
         this.nestedTransactionService = nestedTransactionService;
     }
 
+    public void setEventTriggerCache(EventTriggerCache eventTriggerCache) {
+        this.eventTriggerCache = eventTriggerCache;
+    }
+
+    private void triggersChanged() throws ZepException {
+        if (this.eventTriggerCache != null) {
+            this.eventTriggerCache.triggersChanged();
+        }
+    }
+
     private Map<String, Object> subscriptionToFields(EventTriggerSubscription evtTriggerSub) {
         final Map<String, Object> fields = new LinkedHashMap<String, Object>();
 
@@ -113,6 +125,7 @@ public class EventTriggerSubscriptionDaoImpl implements EventTriggerSubscription
         }
         fields.put(COLUMN_UUID, uuidConverter.toDatabaseType(uuid));
         this.insert.execute(fields);
+        triggersChanged();
         return uuid;
     }
 
@@ -120,7 +133,11 @@ public class EventTriggerSubscriptionDaoImpl implements EventTriggerSubscription
     @TransactionalRollbackAllExceptions
     public int delete(String uuid) throws ZepException {
         final String sql = "DELETE FROM event_trigger_subscription WHERE uuid=?";
-        return this.template.update(sql, uuidConverter.toDatabaseType(uuid));
+        final int numRows = this.template.update(sql, uuidConverter.toDatabaseType(uuid));
+        if (numRows > 0) {
+            triggersChanged();
+        }
+        return numRows;
     }
 
     @Override
@@ -192,6 +209,9 @@ public class EventTriggerSubscriptionDaoImpl implements EventTriggerSubscription
                         fields);
             }
         }
+        if (numRows > 0) {
+            triggersChanged();
+        }
         return numRows;
     }
 }
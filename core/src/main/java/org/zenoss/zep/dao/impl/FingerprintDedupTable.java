@@ -0,0 +1,173 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes and coalesces work on items which share the same fingerprint hash.
+ * <p/>
+ * Callers first {@link #append(byte[], Object)} their item to the buffer for its
+ * fingerprint hash, then call {@link #drain(byte[], Drainer)}. The thread which
+ * acquires the lock for the hash takes every item buffered so far, so a storm of
+ * identical events is written as a few large batches instead of one at a time.
+ * Threads which find the buffer already drained are passed an empty list.
+ * <p/>
+ * Locks are taken from a fixed-size striped table, so unlike interning the hash
+ * as a String this does not grow with the number of distinct fingerprints.
+ *
+ * @param <T> The type of item being coalesced.
+ */
+public class FingerprintDedupTable<T> {
+
+    /**
+     * Callback used to process the items which were buffered for a fingerprint hash.
+     *
+     * @param <T> The type of item being coalesced.
+     * @param <R> The result type.
+     */
+    public interface Drainer<T, R> {
+        /**
+         * Processes the buffered items. Called while holding the lock for the fingerprint hash.
+         *
+         * @param items The buffered items (may be empty if another thread already processed them).
+         * @return The result of processing the items.
+         * @throws Exception If an exception occurs.
+         */
+        R drain(List<T> items) throws Exception;
+    }
+
+    private static final class Stripe<T> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<ByteBuffer, List<T>> buffers = new HashMap<ByteBuffer, List<T>>();
+    }
+
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private final Stripe<T>[] stripes;
+    private final int mask;
+    private volatile Meter contentionMeter = null;
+    private volatile Histogram batchSizeHistogram = null;
+
+    public FingerprintDedupTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    @SuppressWarnings("unchecked")
+    public FingerprintDedupTable(int numStripes) {
+        if (numStripes <= 0) {
+            throw new IllegalArgumentException("Number of stripes must be positive: " + numStripes);
+        }
+        int size = 1;
+        while (size < numStripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe<T>();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Sets the metrics updated by the table.
+     *
+     * @param contentionMeter Marked each time a thread has to wait for the lock of a fingerprint hash.
+     * @param batchSizeHistogram Updated with the number of items drained by each lock holder.
+     */
+    public void setMetrics(Meter contentionMeter, Histogram batchSizeHistogram) {
+        this.contentionMeter = contentionMeter;
+        this.batchSizeHistogram = batchSizeHistogram;
+    }
+
+    /**
+     * Returns the number of lock stripes in the table.
+     *
+     * @return The number of lock stripes.
+     */
+    public int getNumStripes() {
+        return this.stripes.length;
+    }
+
+    private Stripe<T> getStripe(byte[] fingerprintHash) {
+        int h = Arrays.hashCode(fingerprintHash);
+        h ^= (h >>> 16);
+        return this.stripes[h & this.mask];
+    }
+
+    /**
+     * Adds the item to the buffer for the fingerprint hash.
+     *
+     * @param fingerprintHash The fingerprint hash.
+     * @param item The item to buffer.
+     */
+    public void append(byte[] fingerprintHash, T item) {
+        final Stripe<T> stripe = getStripe(fingerprintHash);
+        final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+        synchronized (stripe.buffers) {
+            List<T> buffer = stripe.buffers.get(key);
+            if (buffer == null) {
+                buffer = new ArrayList<T>(4);
+                stripe.buffers.put(key, buffer);
+            }
+            buffer.add(item);
+        }
+    }
+
+    /**
+     * Acquires the lock for the fingerprint hash and passes all currently buffered
+     * items for the hash to the drainer.
+     *
+     * @param fingerprintHash The fingerprint hash.
+     * @param drainer The callback which processes the buffered items.
+     * @param <R> The result type.
+     * @return The result of the drainer.
+     * @throws Exception If the drainer throws an exception.
+     */
+    public <R> R drain(byte[] fingerprintHash, Drainer<T, R> drainer) throws Exception {
+        final Stripe<T> stripe = getStripe(fingerprintHash);
+        final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+        if (!stripe.lock.tryLock()) {
+            final Meter meter = this.contentionMeter;
+            if (meter != null) {
+                meter.mark();
+            }
+            stripe.lock.lock();
+        }
+        try {
+            List<T> items;
+            synchronized (stripe.buffers) {
+                items = stripe.buffers.remove(key);
+            }
+            if (items == null) {
+                items = Collections.emptyList();
+            } else {
+                final Histogram histogram = this.batchSizeHistogram;
+                if (histogram != null) {
+                    histogram.update(items.size());
+                }
+            }
+            return drainer.drain(items);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+
+import java.util.Collection;
+
+/**
+ * Bounded near-cache of event summaries written by de-duplication, read by the index workers
+ * instead of selecting the rows they were just told to index.
+ * <p/>
+ * Summaries are held as the row mapper reads them back from the written rows (see
+ * {@link EventDaoHelper#mapOccurrenceFields}), so a hit returns the same summary as selecting the
+ * row. Index tasks are versioned by different times depending on who queued them: the tasks
+ * signalled when a transaction commits carry the commit time, while the tasks queued for the index
+ * backends carry the last seen time of the summary. An entry matches a lookup with either the
+ * commit time of its transaction or the last seen time of its summary; any other version is a miss.
+ * <p/>
+ * Writers reserve an entry while they hold the row lock, and the entry only becomes visible if
+ * nothing invalidated the UUID before the writer's transaction committed. Every other write to
+ * a summary invalidates its entry.
+ */
+public class IndexSummaryCache {
+
+    /**
+     * A cached summary. Entries compare by identity, so a writer can only promote its own reservation.
+     */
+    public static final class Entry {
+        private final EventSummary summary;
+        private final long version;
+        private final boolean committed;
+
+        private Entry(EventSummary summary, long version, boolean committed) {
+            this.summary = summary;
+            this.version = version;
+            this.committed = committed;
+        }
+
+        private boolean matches(long version) {
+            return this.version == version || (summary.hasLastSeenTime() && summary.getLastSeenTime() == version);
+        }
+
+        public EventSummary getSummary() {
+            return summary;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+
+    public IndexSummaryCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Returns the committed summary for the UUID if it was last written with the given update time.
+     *
+     * @param uuid The event summary UUID.
+     * @param updateTime The update time read from the database.
+     * @return The cached summary, or null.
+     */
+    public EventSummary getSummary(String uuid, long updateTime) {
+        final Entry entry = cache.getIfPresent(uuid);
+        if (entry == null || !entry.committed) {
+            return null;
+        }
+        return (entry.summary.getUpdateTime() == updateTime) ? entry.summary : null;
+    }
+
+    /**
+     * Returns the summary for the UUID if it was cached for the index task with the given version.
+     *
+     * @param uuid The event summary UUID.
+     * @param version The version of the index task: the commit time of the write, or the last seen
+     *                time of the summary.
+     * @return The cached summary, or null on a miss or version mismatch.
+     */
+    public EventSummary get(String uuid, long version) {
+        final Entry entry = cache.getIfPresent(uuid);
+        return (entry != null && entry.committed && entry.matches(version)) ? entry.summary : null;
+    }
+
+    /**
+     * Reserves the entry for a summary being written in the current transaction. Must be called
+     * while holding the row lock.
+     */
+    public Entry reserve(String uuid, EventSummary summary) {
+        final Entry pending = new Entry(summary, 0L, false);
+        cache.put(uuid, pending);
+        return pending;
+    }
+
+    /**
+     * Makes a reserved summary visible once its transaction has committed, unless it was invalidated.
+     *
+     * @return True if the summary was cached.
+     */
+    public boolean promote(String uuid, Entry pending, long version) {
+        return cache.asMap().replace(uuid, pending, new Entry(pending.summary, version, true));
+    }
+
+    /**
+     * Drops a reservation whose transaction rolled back.
+     */
+    public void discard(String uuid, Entry pending) {
+        cache.asMap().remove(uuid, pending);
+    }
+
+    public void invalidate(String uuid) {
+        cache.invalidate(uuid);
+    }
+
+    public void invalidate(Collection<String> uuids) {
+        cache.invalidateAll(uuids);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
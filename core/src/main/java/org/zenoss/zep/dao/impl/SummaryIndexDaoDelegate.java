@@ -117,15 +117,24 @@ public class SummaryIndexDaoDelegate implements IndexDaoDelegate {
 
             final Set<String> eventUuids = new HashSet<String>();
             final Set<String> found = new HashSet<String>();
+            final Set<EventSummary> toLookup = new HashSet<EventSummary>();
 
             //clear out dups though there shouldn't be any.
             for (EventIndexBackendTask et : queueIDs) {
                 String iqUuid = et.uuid;
                 eventUuids.add(iqUuid);
+                if (iqUuid == null) {
+                    continue;
+                }
+                EventSummary.Builder key = EventSummary.newBuilder().setUuid(iqUuid);
+                if (et.lastSeen != null) {
+                    key.setLastSeenTime(et.lastSeen);
+                }
+                toLookup.add(key.build());
             }
 
-            //read in events and figure out which are deleted
-            indexed = this.eventSummaryDao.findByUuids(Lists.newArrayList(eventUuids));
+            //read in events (the task time lets the index cache serve them) and figure out which are deleted
+            indexed = this.eventSummaryDao.findByKey(toLookup);
             for (EventSummary es : indexed) {
                 found.add(es.getUuid());
             }
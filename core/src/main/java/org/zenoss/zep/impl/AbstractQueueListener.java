@@ -22,6 +22,8 @@ import org.zenoss.amqp.QueueListener;
 import org.zenoss.zep.ZepUtils;
 import org.zenoss.zep.dao.impl.DaoUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 
@@ -36,6 +38,7 @@ public abstract class AbstractQueueListener extends QueueListener {
 
     private final String ackMessageTimerName     = this.getClass().getName() + ".ackMessage";
     private final String handleMessageTimerName  = this.getClass().getName() + ".handleMessage";
+    private final String handleBatchTimerName    = this.getClass().getName() + ".handleBatch";
     private final String receiveMessageTimerName = this.getClass().getName() + ".receiveMessage";
     private final String rejectMessageTimerName  = this.getClass().getName() + ".rejectMessage";
 
@@ -72,47 +75,148 @@ public abstract class AbstractQueueListener extends QueueListener {
                 AbstractQueueListener.this.executorService.submit(new Runnable() {
                     @Override
                     public void run() {
-                        try {
-                            DaoUtils.deadlockRetry(new Callable<Object>() {
-                                @Override
-                                public Object call() throws Exception {
-                                    metricRegistry.timer(handleMessageTimerName).time(new Callable<Object>() {
-                                        @Override
-                                        public Object call() throws Exception {
-                                            handle(message.getBody());
-                                            return null;
-                                        }
-                                    });
-                                    return null;
-                                }
-                            });
-                            metricRegistry.timer(ackMessageTimerName).time(new Callable<Object>() {
-                                @Override
-                                public Object call() throws Exception {
-                                    consumer.ackMessage(message);
-                                    return null;
-                                }
-                            });
-                        } catch (Exception e) {
-                            if (ZepUtils.isExceptionOfType(e, TransientDataAccessException.class)) {
-                        /* Re-queue the message if we get a temporary database failure */
-                                logger.debug("Transient database exception", e);
-                                logger.debug("Re-queueing message due to transient failure: {}", message);
-                                rejectMessage(consumer, message, true);
-                            } else if (!message.getEnvelope().isRedeliver()) {
-                        /* Attempt one redelivery of the message */
-                                logger.debug("First failure processing message: " + message, e);
-                                rejectMessage(consumer, message, true);
-                            } else {
-                        /* TODO: Dead letter queue or other safety net? */
-                                logger.warn("Failed processing message: " + message, e);
-                                rejectMessage(consumer, message, false);
-                            }
-                        }
+                        process(message, consumer);
                     }
                 });
                 return null;
             }
         });
     }
+
+    /**
+     * Handles a batch of messages. The default implementation handles each message individually, subclasses which
+     * support batching should override this to process the whole batch in a single transaction.
+     *
+     * @param messages The message bodies.
+     * @throws Exception If an exception occurs processing the batch.
+     */
+    protected void handleBatch(List<com.google.protobuf.Message> messages) throws Exception {
+        for (com.google.protobuf.Message message : messages) {
+            handle(message);
+        }
+    }
+
+    /**
+     * Submits a batch of messages received from the same consumer to the executor service to be handled by
+     * {@link #processBatch(List, Consumer)}.
+     *
+     * @param messages The messages in the batch.
+     * @param consumer The consumer the messages were received from.
+     */
+    protected void submitBatch(final List<Message<com.google.protobuf.Message>> messages,
+                               final Consumer<com.google.protobuf.Message> consumer) {
+        this.executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                processBatch(messages, consumer);
+            }
+        });
+    }
+
+    /**
+     * Handles a batch of messages received from the same consumer on the calling thread. The messages are only
+     * acknowledged after {@link #handleBatch(List)} returns successfully. If the batch fails with a non-transient
+     * exception, each message is retried individually (in order) so a single bad message doesn't fail the entire
+     * batch.
+     *
+     * @param messages The messages in the batch.
+     * @param consumer The consumer the messages were received from.
+     */
+    protected void processBatch(final List<Message<com.google.protobuf.Message>> messages,
+                                final Consumer<com.google.protobuf.Message> consumer) {
+        final List<com.google.protobuf.Message> bodies =
+                new ArrayList<com.google.protobuf.Message>(messages.size());
+        for (Message<com.google.protobuf.Message> message : messages) {
+            bodies.add(message.getBody());
+        }
+        try {
+            DaoUtils.deadlockRetry(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    metricRegistry.timer(handleBatchTimerName).time(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            handleBatch(bodies);
+                            return null;
+                        }
+                    });
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            if (ZepUtils.isExceptionOfType(e, TransientDataAccessException.class)) {
+                /* Re-queue the messages if we get a temporary database failure */
+                logger.debug("Transient database exception", e);
+                logger.debug("Re-queueing {} messages due to transient failure", messages.size());
+                for (Message<com.google.protobuf.Message> message : messages) {
+                    rejectMessage(consumer, message, true);
+                }
+            } else {
+                logger.debug("Failed processing batch, retrying messages individually", e);
+                for (Message<com.google.protobuf.Message> message : messages) {
+                    process(message, consumer);
+                }
+            }
+            return;
+        }
+        for (Message<com.google.protobuf.Message> message : messages) {
+            ackMessage(consumer, message);
+        }
+    }
+
+    private void ackMessage(final Consumer<com.google.protobuf.Message> consumer,
+                            final Message<com.google.protobuf.Message> message) {
+        try {
+            metricRegistry.timer(ackMessageTimerName).time(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    consumer.ackMessage(message);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            logger.warn("Failed acknowledging message", e);
+        }
+    }
+
+    private void process(final Message<com.google.protobuf.Message> message,
+                         final Consumer<com.google.protobuf.Message> consumer) {
+        try {
+            DaoUtils.deadlockRetry(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    metricRegistry.timer(handleMessageTimerName).time(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            handle(message.getBody());
+                            return null;
+                        }
+                    });
+                    return null;
+                }
+            });
+            metricRegistry.timer(ackMessageTimerName).time(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    consumer.ackMessage(message);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            if (ZepUtils.isExceptionOfType(e, TransientDataAccessException.class)) {
+                /* Re-queue the message if we get a temporary database failure */
+                logger.debug("Transient database exception", e);
+                logger.debug("Re-queueing message due to transient failure: {}", message);
+                rejectMessage(consumer, message, true);
+            } else if (!message.getEnvelope().isRedeliver()) {
+                /* Attempt one redelivery of the message */
+                logger.debug("First failure processing message: " + message, e);
+                rejectMessage(consumer, message, true);
+            } else {
+                /* TODO: Dead letter queue or other safety net? */
+                logger.warn("Failed processing message: " + message, e);
+                rejectMessage(consumer, message, false);
+            }
+        }
+    }
 }
@@ -0,0 +1,193 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.amqp.AmqpConnectionManager;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.ExchangeConfiguration;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Publishes a batch of messages (an index batch of fan-out events or signals) through the shared publishing
+ * channel of the {@link AmqpConnectionManager}.
+ *
+ * The publishing channel doesn't use publisher confirms, so a message counts as published once the channel
+ * accepts it; a message which is lost by the broker after that isn't reported. Messages which fail to publish are
+ * retried (after the rest of the batch) up to maxRetries times, and the messages which still can't be published
+ * are returned to the caller, one {@link PublishFailure} each. A message which failed on a channel that had
+ * already sent it can be delivered twice, so delivery is at-least-once and consumers must tolerate duplicates.
+ */
+public class AmqpBatchPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(AmqpBatchPublisher.class);
+
+    /**
+     * A message to publish.
+     */
+    public static final class PublishRequest {
+        private final ExchangeConfiguration exchange;
+        private final String routingKey;
+        private final Message message;
+
+        public PublishRequest(ExchangeConfiguration exchange, String routingKey, Message message) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+        }
+
+        public ExchangeConfiguration getExchange() {
+            return exchange;
+        }
+
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * A message which couldn't be published, with the exception from its last attempt.
+     */
+    public static final class PublishFailure {
+        private final PublishRequest request;
+        private final AmqpException cause;
+
+        public PublishFailure(PublishRequest request, AmqpException cause) {
+            this.request = request;
+            this.cause = cause;
+        }
+
+        public PublishRequest getRequest() {
+            return request;
+        }
+
+        public AmqpException getCause() {
+            return cause;
+        }
+    }
+
+    private final AmqpConnectionManager connectionManager;
+
+    private int maxRetries = 2;
+    private long retryDelayMillis = 100L;
+
+    private Meter publishedMessages = new Meter();
+    private Meter retriedMessages = new Meter();
+    private Meter failedMessages = new Meter();
+    private Timer batchTimer = new Timer();
+
+    public AmqpBatchPublisher(AmqpConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * @param maxRetries The number of times messages which failed to publish are retried.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param retryDelayMillis The delay before retrying the messages which failed to publish.
+     */
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = Math.max(0L, retryDelayMillis);
+    }
+
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        final String baseName = getClass().getName();
+        this.publishedMessages = metrics.meter(MetricRegistry.name(baseName, "published"));
+        this.retriedMessages = metrics.meter(MetricRegistry.name(baseName, "retried"));
+        this.failedMessages = metrics.meter(MetricRegistry.name(baseName, "failed"));
+        this.batchTimer = metrics.timer(MetricRegistry.name(baseName, "batch"));
+    }
+
+    /**
+     * Publishes the batch of messages.
+     *
+     * @param requests The messages to publish, in order.
+     * @return The messages which couldn't be published. Empty if every message was published.
+     */
+    public List<PublishFailure> publish(List<PublishRequest> requests) {
+        if (requests.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Timer.Context timerContext = batchTimer.time();
+        try {
+            List<PublishRequest> pending = requests;
+            List<PublishFailure> failures = Collections.emptyList();
+            for (int attempt = 0; attempt <= maxRetries; attempt++) {
+                if (attempt > 0) {
+                    retriedMessages.mark(pending.size());
+                    if (!sleep(retryDelayMillis * attempt)) {
+                        break;
+                    }
+                }
+                failures = publishAll(pending);
+                if (failures.isEmpty()) {
+                    break;
+                }
+                pending = new ArrayList<PublishRequest>(failures.size());
+                for (PublishFailure failure : failures) {
+                    pending.add(failure.getRequest());
+                }
+            }
+            publishedMessages.mark(requests.size() - failures.size());
+            if (!failures.isEmpty()) {
+                failedMessages.mark(failures.size());
+                logger.warn("Failed to publish {} of {} messages", failures.size(), requests.size());
+            }
+            return failures;
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    private List<PublishFailure> publishAll(List<PublishRequest> requests) {
+        final List<PublishFailure> failures = new ArrayList<PublishFailure>();
+        for (PublishRequest request : requests) {
+            try {
+                connectionManager.publish(request.getExchange(), request.getRoutingKey(), request.getMessage());
+            } catch (AmqpException e) {
+                logger.debug("Failed to publish message", e);
+                failures.add(new PublishFailure(request, e));
+            }
+        }
+        return failures;
+    }
+
+    private static boolean sleep(long millis) {
+        if (millis <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -12,13 +12,13 @@ package org.zenoss.zep.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.zenoss.amqp.AmqpConnectionManager;
-import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.ExchangeConfiguration;
 import org.zenoss.amqp.ZenossQueueConfig;
 import org.zenoss.protobufs.zep.Zep;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.zep.ZepException;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishFailure;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishRequest;
 import org.zenoss.zep.plugins.EventPostIndexContext;
 import org.zenoss.zep.plugins.EventPostIndexPlugin;
 
@@ -31,7 +31,7 @@ public class EventFanOutPlugin extends EventPostIndexPlugin {
     private static final Logger logger = LoggerFactory.getLogger(EventFanOutPlugin.class);
     private static final String ROUTING_KEY_PREFIX = "zenoss.zenevent.";
 
-    private AmqpConnectionManager amqpConnectionManager;
+    private AmqpBatchPublisher batchPublisher;
     
     private final ExchangeConfiguration exchangeConfiguration;
 
@@ -40,8 +40,8 @@ public class EventFanOutPlugin extends EventPostIndexPlugin {
                 "$ProcessedZenEvents");
     }
 
-    public void setAmqpConnectionManager(AmqpConnectionManager amqpConnectionManager) {
-        this.amqpConnectionManager = amqpConnectionManager;
+    public void setBatchPublisher(AmqpBatchPublisher batchPublisher) {
+        this.batchPublisher = batchPublisher;
     }
 
     @Override
@@ -58,22 +58,23 @@ public class EventFanOutPlugin extends EventPostIndexPlugin {
     @Override
     public void endBatch(EventPostIndexContext context) throws Exception {
         List<EventSummary> events = (List<EventSummary>) context.getPluginState(this);
-        AmqpException lastException = null;
-        int exceptionCount = 0;
+        context.setPluginState(this, null);
+        List<PublishRequest> requests = new ArrayList<PublishRequest>(events.size());
         for (EventSummary eventSummary : events) {
             final String eventClass = eventSummary.getOccurrence(0).getEventClass();
-            try {
-                logger.debug("Publishing event to fan-out exchange: {}", eventSummary);
-                this.amqpConnectionManager.publish(this.exchangeConfiguration,
-                        ROUTING_KEY_PREFIX + sanitizeEventClass(eventClass), eventSummary);
-            } catch (AmqpException e) {
-                lastException = e;
-                exceptionCount++;
-            }
+            logger.debug("Publishing event to fan-out exchange: {}", eventSummary);
+            requests.add(new PublishRequest(this.exchangeConfiguration,
+                    ROUTING_KEY_PREFIX + sanitizeEventClass(eventClass), eventSummary));
         }
-        context.setPluginState(this, null);
-        if (exceptionCount > 0 && lastException != null) {
-            throw new ZepException(lastException);
+        List<PublishFailure> failures = this.batchPublisher.publish(requests);
+        if (!failures.isEmpty()) {
+            for (PublishFailure failure : failures) {
+                EventSummary eventSummary = (EventSummary) failure.getRequest().getMessage();
+                logger.warn("Failed to publish event {} to fan-out exchange: {}", eventSummary.getUuid(),
+                        failure.getCause().getLocalizedMessage());
+            }
+            throw new ZepException(String.format("Failed to publish %d of %d events to fan-out exchange",
+                    failures.size(), requests.size()), failures.get(0).getCause());
         }
     }
 
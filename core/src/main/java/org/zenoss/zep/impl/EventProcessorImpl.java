@@ -31,6 +31,8 @@ import org.zenoss.zep.plugins.EventPreCreateContext;
 import org.zenoss.zep.plugins.EventPreCreatePlugin;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -83,26 +85,90 @@ public class EventProcessorImpl implements EventProcessor {
     @Override
     @Timed(absolute=true, name="EventProcessor.processEvent")
     public void processEvent(ZepRawEvent zepRawEvent) throws ZepException {
+        EventPreCreateContext ctx = new EventPreCreateContextImpl(zepRawEvent);
+        Event event = preCreate(zepRawEvent, ctx);
+        if (event == null) {
+            return;
+        }
+
+        String uuid;
+        try {
+            uuid = this.eventSummaryDao.create(event, ctx);
+        } catch (DuplicateKeyException e) {
+            // Catch DuplicateKeyException and retry creating the event. Otherwise, the failure
+            // will propagate to the AMQP consumer, the message will be rejected (and re-queued),
+            // leading to unnecessary load on the AMQP server re-queueing/re-delivering the event.
+            if (logger.isDebugEnabled()) {
+                logger.info("DuplicateKeyException - retrying event: {}", event);
+            } else {
+                logger.info("DuplicateKeyException - retrying event: {}", event.getUuid());
+            }
+            uuid = this.eventSummaryDao.create(event, ctx);
+        }
+
+        postCreate(event, uuid);
+    }
+
+    @Override
+    @Timed(absolute=true, name="EventProcessor.processEvents")
+    public void processEvents(List<ZepRawEvent> zepRawEvents) throws ZepException {
+        final List<Event> events = new ArrayList<Event>(zepRawEvents.size());
+        final List<EventPreCreateContext> contexts = new ArrayList<EventPreCreateContext>(zepRawEvents.size());
+        for (ZepRawEvent zepRawEvent : zepRawEvents) {
+            EventPreCreateContext ctx = new EventPreCreateContextImpl(zepRawEvent);
+            Event event = preCreate(zepRawEvent, ctx);
+            if (event != null) {
+                events.add(event);
+                contexts.add(ctx);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+
+        List<String> uuids;
+        try {
+            uuids = this.eventSummaryDao.createAll(events, contexts);
+        } catch (DuplicateKeyException e) {
+            // Another node (or a concurrent single event) inserted one of the fingerprints first. The
+            // batch was rolled back, so retry it once now that the row exists.
+            logger.info("DuplicateKeyException - retrying batch of {} events", events.size());
+            uuids = this.eventSummaryDao.createAll(events, contexts);
+        }
+
+        for (int i = 0; i < events.size(); i++) {
+            postCreate(events.get(i), uuids.get(i));
+        }
+    }
+
+    /**
+     * Validates the raw event and runs the pre-create plug-ins on it.
+     *
+     * @param zepRawEvent The raw event.
+     * @param ctx The context passed to the pre-create plug-ins.
+     * @return The event to persist, or null if the event was dropped.
+     * @throws ZepException If a plug-in fails.
+     */
+    private Event preCreate(ZepRawEvent zepRawEvent, EventPreCreateContext ctx) throws ZepException {
         logger.debug("processEvent: event={}", zepRawEvent);
         counters.addToProcessedEventCount(1);
 
         if (zepRawEvent.getEvent().getStatus() == EventStatus.STATUS_DROPPED) {
             logger.debug("Event dropped: {}", zepRawEvent);
             counters.addToDroppedEventCount(1);
-            return;
+            return null;
         } else if (zepRawEvent.getEvent().getUuid().isEmpty()) {
             logger.error("Could not process event, has no uuid: {}",
                     zepRawEvent);
             counters.addToDroppedEventCount(1);
-            return;
+            return null;
         } else if (!zepRawEvent.getEvent().hasCreatedTime()) {
             logger.error("Could not process event, has no created_time: {}",
                     zepRawEvent);
             counters.addToDroppedEventCount(1);
-            return;
+            return null;
         }
 
-        EventPreCreateContext ctx = new EventPreCreateContextImpl(zepRawEvent);
         Event event = eventFromRawEvent(zepRawEvent);
 
         for (EventPreCreatePlugin plugin : pluginService.getPluginsByType(EventPreCreatePlugin.class)) {
@@ -112,7 +178,7 @@ public class EventProcessorImpl implements EventProcessor {
             if (modified != null && modified.getStatus() == EventStatus.STATUS_DROPPED) {
                 logger.debug("Event dropped by {}", plugin.getId());
                 counters.addToDroppedEventCount(1);
-                return;
+                return null;
             }
 
             if (modified != null && !modified.equals(event)) {
@@ -120,22 +186,10 @@ public class EventProcessorImpl implements EventProcessor {
                 event = modified;
             }
         }
+        return event;
+    }
 
-        String uuid;
-        try {
-            uuid = this.eventSummaryDao.create(event, ctx);
-        } catch (DuplicateKeyException e) {
-            // Catch DuplicateKeyException and retry creating the event. Otherwise, the failure
-            // will propagate to the AMQP consumer, the message will be rejected (and re-queued),
-            // leading to unnecessary load on the AMQP server re-queueing/re-delivering the event.
-            if (logger.isDebugEnabled()) {
-                logger.info("DuplicateKeyException - retrying event: {}", event);
-            } else {
-                logger.info("DuplicateKeyException - retrying event: {}", event.getUuid());
-            }
-            uuid = this.eventSummaryDao.create(event, ctx);
-        }
-
+    private void postCreate(Event event, String uuid) throws ZepException {
         EventSummary summary = null;
         EventPostCreateContext context = new EventPostCreateContext() {
         };
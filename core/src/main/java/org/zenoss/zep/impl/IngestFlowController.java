@@ -0,0 +1,388 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.TaskScheduler;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.Channel;
+import org.zenoss.zep.events.EventIndexQueueSizeEvent;
+import org.zenoss.zep.index.WorkQueue;
+
+import javax.annotation.Resource;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adjusts the rate raw events are consumed at based on the depth of the event summary index queue, the rate
+ * it drains at and the time taken to persist events.
+ * <p/>
+ * The controller uses additive-increase / multiplicative-decrease on two limits: the AMQP prefetch count of
+ * the consuming channel and the number of messages which may be handled concurrently. The limits are decreased
+ * while the queue grows above the low watermark, or whenever it grows faster than the indexer drains it, and
+ * increased while it stays below the low watermark. If the index queue exceeds the high watermark, consumption
+ * is paused until the queue falls back below the low watermark.
+ */
+public class IngestFlowController implements ApplicationListener<EventIndexQueueSizeEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestFlowController.class);
+
+    public enum Decision {
+        INCREASE, HOLD, DECREASE, PAUSE
+    }
+
+    private final WorkQueue indexQueue;
+    private final TaskScheduler scheduler;
+
+    private boolean enabled = false;
+    private long intervalMillis = 1000L;
+    private long highWatermark = 10000L;
+    private volatile int indexLimit = 0;
+    private long lowWatermark = -1L;
+    private long latencyTargetMillis = 1000L;
+    private int minPrefetch = 1;
+    private int maxPrefetch = 100;
+    private int prefetchIncrement = 10;
+    private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+    private double decreaseFactor = 0.5;
+
+    private volatile Channel channel = null;
+    private volatile int prefetch;
+    private int concurrency;
+    private int inFlight = 0;
+    private final Object concurrencyLock = new Object();
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private long lastProcessed = 0L;
+    private long lastDepth = -1L;
+    private volatile long depth = 0L;
+    private volatile double ingestRate = 0.0;
+    private volatile double drainRate = 0.0;
+    private volatile double latencyMillis = 0.0;
+    private volatile Decision lastDecision = Decision.HOLD;
+    private volatile long lastDecisionTime = 0L;
+
+    private final Map<Decision, Meter> decisionMeters = new EnumMap<Decision, Meter>(Decision.class);
+    private ScheduledFuture<?> future = null;
+
+    public IngestFlowController(WorkQueue indexQueue, TaskScheduler scheduler) {
+        this.indexQueue = indexQueue;
+        this.scheduler = scheduler;
+        this.prefetch = this.maxPrefetch;
+        this.concurrency = this.maxConcurrency;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Sets the index queue depth above which consumption is paused. As with zep.index.throttle_threshold, zero
+     * sets it to twice the size of the index batches (at least 200).
+     */
+    public void setHighWatermark(long highWatermark) {
+        this.highWatermark = Math.max(0L, highWatermark);
+    }
+
+    /**
+     * Sets the index queue depth below which the limits are increased. By default half the high watermark.
+     */
+    public void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public void setLatencyTargetMillis(long latencyTargetMillis) {
+        this.latencyTargetMillis = latencyTargetMillis;
+    }
+
+    public void setMinPrefetch(int minPrefetch) {
+        this.minPrefetch = Math.max(1, minPrefetch);
+    }
+
+    public void setMaxPrefetch(int maxPrefetch) {
+        this.maxPrefetch = Math.max(1, maxPrefetch);
+        this.prefetch = this.maxPrefetch;
+    }
+
+    public void setPrefetchIncrement(int prefetchIncrement) {
+        this.prefetchIncrement = Math.max(1, prefetchIncrement);
+    }
+
+    /**
+     * Sets the maximum number of messages handled concurrently. Zero uses the number of processors.
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = (maxConcurrency > 0) ? maxConcurrency : Runtime.getRuntime().availableProcessors();
+        synchronized (this.concurrencyLock) {
+            this.concurrency = this.maxConcurrency;
+        }
+    }
+
+    public void setDecreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        final String baseName = this.getClass().getCanonicalName();
+        for (Decision decision : Decision.values()) {
+            this.decisionMeters.put(decision, metrics.meter(MetricRegistry.name(baseName, "decision",
+                    decision.name().toLowerCase())));
+        }
+        metrics.register(MetricRegistry.name(baseName, "prefetch"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return prefetch;
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "concurrency"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getConcurrency();
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "indexQueueDepth"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return depth;
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "drainRate"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return drainRate;
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "latencyMillis"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return latencyMillis;
+            }
+        });
+    }
+
+    public synchronized void start() {
+        if (this.enabled && this.future == null) {
+            logger.info("Starting raw event flow control at interval: {} milliseconds", this.intervalMillis);
+            this.future = this.scheduler.scheduleWithFixedDelay(new ThreadRenamingRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sample();
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed adjusting raw event flow control", e);
+                    }
+                }
+            }, "ZEP_INGEST_FLOW_CONTROLLER"), this.intervalMillis);
+        }
+    }
+
+    public synchronized void stop() {
+        if (this.future != null) {
+            this.future.cancel(true);
+            this.future = null;
+        }
+        synchronized (this.concurrencyLock) {
+            // Don't leave handlers blocked on a paused controller during shutdown.
+            this.concurrency = this.maxConcurrency;
+            this.concurrencyLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets the channel raw events are consumed on and applies the current prefetch count to it.
+     *
+     * @param channel The consuming channel.
+     * @throws AmqpException If the prefetch count can't be set.
+     */
+    @Override
+    public void onApplicationEvent(EventIndexQueueSizeEvent event) {
+        if (event.getTableName().startsWith("event_summary")) {
+            // The limit is the current index batch size
+            this.indexLimit = event.getLimit();
+        }
+    }
+
+    public void setChannel(Channel channel) throws AmqpException {
+        this.channel = channel;
+        channel.setQos(0, this.prefetch);
+    }
+
+    /**
+     * Waits until another message may be handled. Must be followed by a call to {@link #release(int, long)}.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        synchronized (this.concurrencyLock) {
+            while (this.inFlight >= this.concurrency) {
+                this.concurrencyLock.wait();
+            }
+            ++this.inFlight;
+        }
+    }
+
+    /**
+     * Releases a permit obtained by {@link #acquire()}.
+     *
+     * @param numMessages The number of messages which were handled.
+     * @param elapsedNanos The time taken to handle them.
+     */
+    public void release(int numMessages, long elapsedNanos) {
+        if (numMessages > 0) {
+            this.processed.addAndGet(numMessages);
+            this.latencyNanos.addAndGet(elapsedNanos);
+        }
+        synchronized (this.concurrencyLock) {
+            --this.inFlight;
+            this.concurrencyLock.notifyAll();
+        }
+    }
+
+    public int getPrefetch() {
+        return this.prefetch;
+    }
+
+    public int getConcurrency() {
+        synchronized (this.concurrencyLock) {
+            return this.concurrency;
+        }
+    }
+
+    public Decision getLastDecision() {
+        return this.lastDecision;
+    }
+
+    private long getHighWatermark() {
+        return (this.highWatermark > 0) ? this.highWatermark : Math.max(this.indexLimit, 100) * 2L;
+    }
+
+    private long getLowWatermark() {
+        return (this.lowWatermark >= 0) ? this.lowWatermark : getHighWatermark() / 2;
+    }
+
+    synchronized void sample() {
+        final long now = System.currentTimeMillis();
+        final long currentDepth = this.indexQueue.size();
+        final long currentProcessed = this.processed.get();
+        final long processedDelta = currentProcessed - this.lastProcessed;
+        final long depthDelta = (this.lastDepth >= 0) ? currentDepth - this.lastDepth : 0L;
+        final long latency = this.latencyNanos.getAndSet(0L);
+        final double intervalSeconds = Math.max(this.intervalMillis, 1L) / 1000.0;
+
+        this.depth = currentDepth;
+        this.ingestRate = processedDelta / intervalSeconds;
+        // Each persisted event queues (at most) one index task, so anything not added to the depth was drained.
+        this.drainRate = Math.max(0L, processedDelta - depthDelta) / intervalSeconds;
+        this.latencyMillis = (processedDelta > 0) ? TimeUnit.NANOSECONDS.toMillis(latency) / (double) processedDelta
+                : 0.0;
+        this.lastProcessed = currentProcessed;
+        this.lastDepth = currentDepth;
+
+        adjust(currentDepth, depthDelta / intervalSeconds, this.drainRate, this.latencyMillis);
+        this.lastDecisionTime = now;
+    }
+
+    /**
+     * Applies one control step.
+     *
+     * @param depth The current depth of the index queue.
+     * @param growthRate The rate (per second) the index queue grew at since the previous step.
+     * @param drainRate The rate (per second) the index queue was drained at since the previous step.
+     * @param latencyMillis The mean time taken to handle a message since the previous step.
+     * @return The decision which was made.
+     */
+    synchronized Decision adjust(long depth, double growthRate, double drainRate, double latencyMillis) {
+        final int currentConcurrency = getConcurrency();
+        int newPrefetch = this.prefetch;
+        int newConcurrency = currentConcurrency;
+        final Decision decision;
+        if (depth > getHighWatermark()) {
+            decision = Decision.PAUSE;
+            newPrefetch = this.minPrefetch;
+            newConcurrency = 0;
+        } else if (currentConcurrency == 0 && depth > getLowWatermark()) {
+            // Stay paused until the index catches up
+            decision = Decision.HOLD;
+        } else if ((depth > getLowWatermark() && growthRate > 0) || growthRate > drainRate
+                || latencyMillis > this.latencyTargetMillis) {
+            // Back off before the queue reaches the low watermark if it grows faster than the indexer drains it
+            decision = Decision.DECREASE;
+            newPrefetch = Math.max(this.minPrefetch, (int) (this.prefetch * this.decreaseFactor));
+            newConcurrency = Math.max(1, (int) (currentConcurrency * this.decreaseFactor));
+        } else if (depth <= getLowWatermark()) {
+            decision = Decision.INCREASE;
+            newPrefetch = Math.min(this.maxPrefetch, this.prefetch + this.prefetchIncrement);
+            newConcurrency = Math.min(this.maxConcurrency, currentConcurrency + 1);
+        } else {
+            decision = Decision.HOLD;
+        }
+
+        if (decision != this.lastDecision && (decision == Decision.PAUSE || this.lastDecision == Decision.PAUSE)) {
+            logger.info("Raw event flow control {} (index queue depth: {})", decision, depth);
+        }
+        this.lastDecision = decision;
+        final Meter meter = this.decisionMeters.get(decision);
+        if (meter != null) {
+            meter.mark();
+        }
+
+        synchronized (this.concurrencyLock) {
+            this.concurrency = newConcurrency;
+            this.concurrencyLock.notifyAll();
+        }
+        if (newPrefetch != this.prefetch) {
+            this.prefetch = newPrefetch;
+            final Channel channel = this.channel;
+            if (channel != null) {
+                try {
+                    channel.setQos(0, newPrefetch);
+                } catch (AmqpException e) {
+                    logger.warn("Failed setting prefetch count", e);
+                }
+            }
+        }
+        return decision;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestFlowController{" +
+                "decision=" + lastDecision +
+                ", decisionTime=" + lastDecisionTime +
+                ", prefetch=" + prefetch +
+                ", concurrency=" + getConcurrency() +
+                ", indexQueueDepth=" + depth +
+                ", ingestRate=" + ingestRate +
+                ", drainRate=" + drainRate +
+                ", latencyMillis=" + latencyMillis +
+                ", highWatermark=" + getHighWatermark() +
+                ", lowWatermark=" + getLowWatermark() +
+                '}';
+    }
+}
@@ -10,19 +10,31 @@
 
 package org.zenoss.zep.impl;
 
+import com.codahale.metrics.Gauge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.TaskScheduler;
 import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.Channel;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Message;
+import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
 import org.zenoss.zep.EventProcessor;
 import org.zenoss.zep.events.EventIndexQueueSizeEvent;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
 public class RawEventQueueListener extends AbstractQueueListener
-    implements ApplicationListener<EventIndexQueueSizeEvent>, ApplicationEventPublisherAware {
+    implements ApplicationListener<EventIndexQueueSizeEvent>, ApplicationEventPublisherAware, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(RawEventQueueListener.class);
 
@@ -33,7 +45,54 @@ public class RawEventQueueListener extends AbstractQueueListener
     public void setPrefetchCount(int prefetchCount) {
         this.prefetchCount = prefetchCount;
     }
+
+    /*
+     * When batchSize > 1, messages are collected into batches which are persisted in a single
+     * transaction. A batch is submitted when it is full or batchTimeout milliseconds after its
+     * first message arrived. Messages are only acknowledged after the batch commits.
+     */
+    private int batchSize = 1;
+    private long batchTimeout = 100L;
+    private TaskScheduler scheduler;
+    private final Object batchLock = new Object();
+    private List<Message<com.google.protobuf.Message>> batch = new ArrayList<Message<com.google.protobuf.Message>>();
+    private Consumer<com.google.protobuf.Message> batchConsumer = null;
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchTimeout(long batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    public void setScheduler(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /*
+     * When lanes > 0, messages are hash-partitioned by event fingerprint onto single-threaded lanes instead of
+     * being submitted to the executor service. Events with the same fingerprint are always processed in order
+     * by the same lane, and each lane persists the messages queued behind it (up to batchSize) in a single
+     * transaction.
+     */
+    private int lanes = 0;
+    private LaneThread[] laneThreads = null;
+
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
     
+    /*
+     * When set, the flow controller replaces the sleep-based throttle: it limits the number of messages handled
+     * concurrently and adjusts the prefetch count of the channel.
+     */
+    private IngestFlowController flowController = null;
+
+    public void setFlowController(IngestFlowController flowController) {
+        this.flowController = (flowController != null && flowController.isEnabled()) ? flowController : null;
+    }
+
     private boolean throttleConsumer = true;
     private volatile boolean indexQueueLag = false;
     private int indexQueueThreshold = 10000;
@@ -79,6 +138,12 @@ public class RawEventQueueListener extends AbstractQueueListener
 
     @Override
     protected void configureChannel(Channel channel) throws AmqpException {
+        if (this.flowController != null) {
+            logger.debug("Using flow controlled prefetch count: {} for queue: {}", this.flowController.getPrefetch(),
+                    getQueueIdentifier());
+            this.flowController.setChannel(channel);
+            return;
+        }
         logger.debug("Using prefetch count: {} for queue: {}", this.prefetchCount, getQueueIdentifier());
         channel.setQos(0, this.prefetchCount);
     }
@@ -106,10 +171,202 @@ public class RawEventQueueListener extends AbstractQueueListener
         this.consumerSleepTime = consumerSleepTime;
     }
 
+    private int getEffectiveBatchSize() {
+        // Never wait for more messages than the broker will deliver without acknowledgement.
+        if (this.prefetchCount > 0) {
+            return Math.min(this.batchSize, this.prefetchCount);
+        }
+        return this.batchSize;
+    }
+
+    @Override
+    protected void receive(final Message<com.google.protobuf.Message> message,
+                           final Consumer<com.google.protobuf.Message> consumer) throws Exception {
+        if (this.lanes > 0) {
+            getLane(message.getBody()).queue.add(new LaneMessage(message, consumer));
+            return;
+        }
+        if (this.batchSize <= 1 || this.scheduler == null) {
+            super.receive(message, consumer);
+            return;
+        }
+        synchronized (this.batchLock) {
+            if (this.batchConsumer != null && this.batchConsumer != consumer) {
+                // Messages can only be acknowledged on the consumer they were received from.
+                flushBatch();
+            }
+            this.batch.add(message);
+            this.batchConsumer = consumer;
+            if (this.batch.size() >= getEffectiveBatchSize()) {
+                flushBatch();
+            } else if (this.batch.size() == 1) {
+                final List<Message<com.google.protobuf.Message>> scheduledBatch = this.batch;
+                this.scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (batchLock) {
+                            if (batch == scheduledBatch) {
+                                flushBatch();
+                            }
+                        }
+                    }
+                }, new Date(System.currentTimeMillis() + this.batchTimeout));
+            }
+        }
+    }
+
+    private void flushBatch() {
+        if (!this.batch.isEmpty()) {
+            submitBatch(this.batch, this.batchConsumer);
+        }
+        this.batch = new ArrayList<Message<com.google.protobuf.Message>>();
+        this.batchConsumer = null;
+    }
+
+    private static String getPartitionKey(com.google.protobuf.Message message) {
+        if (message instanceof ZepRawEvent) {
+            final Event event = ((ZepRawEvent) message).getEvent();
+            if (event.hasFingerprint()) {
+                return event.getFingerprint();
+            }
+            return event.getActor().getElementIdentifier();
+        }
+        return "";
+    }
+
+    private synchronized LaneThread getLane(com.google.protobuf.Message message) {
+        if (this.laneThreads == null) {
+            final LaneThread[] threads = new LaneThread[this.lanes];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new LaneThread(i);
+                threads[i].start();
+            }
+            this.laneThreads = threads;
+            metricRegistry.register(getClass().getName() + ".laneQueueSize", new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    int size = 0;
+                    for (LaneThread thread : threads) {
+                        size += thread.queue.size();
+                    }
+                    return size;
+                }
+            });
+        }
+        final int hash = getPartitionKey(message).hashCode();
+        return this.laneThreads[(hash & Integer.MAX_VALUE) % this.laneThreads.length];
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (this.laneThreads != null) {
+            for (LaneThread thread : this.laneThreads) {
+                thread.shutdown();
+            }
+        }
+    }
+
+    private static class LaneMessage {
+        private final Message<com.google.protobuf.Message> message;
+        private final Consumer<com.google.protobuf.Message> consumer;
+
+        private LaneMessage(Message<com.google.protobuf.Message> message,
+                            Consumer<com.google.protobuf.Message> consumer) {
+            this.message = message;
+            this.consumer = consumer;
+        }
+    }
+
+    /**
+     * Processes the messages partitioned onto a lane in the order they were received. Unacknowledged messages
+     * still queued when the lane is shut down are redelivered by the broker.
+     */
+    private class LaneThread extends Thread {
+        private final BlockingQueue<LaneMessage> queue = new LinkedBlockingQueue<LaneMessage>();
+        private volatile boolean running = true;
+
+        public LaneThread(int lane) {
+            this.setDaemon(true);
+            this.setName(getQueueIdentifier() + " lane " + lane);
+        }
+
+        public void shutdown() {
+            this.running = false;
+            this.interrupt();
+        }
+
+        @Override
+        public void run() {
+            final List<LaneMessage> drained = new ArrayList<LaneMessage>();
+            while (this.running) {
+                try {
+                    drained.add(this.queue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                this.queue.drainTo(drained, Math.max(getEffectiveBatchSize(), 1) - 1);
+                try {
+                    // Messages can only be acknowledged on the consumer they were received from.
+                    int start = 0;
+                    for (int i = 1; i <= drained.size(); i++) {
+                        if (i == drained.size() || drained.get(i).consumer != drained.get(start).consumer) {
+                            final List<Message<com.google.protobuf.Message>> batch =
+                                    new ArrayList<Message<com.google.protobuf.Message>>(i - start);
+                            for (LaneMessage laneMessage : drained.subList(start, i)) {
+                                batch.add(laneMessage.message);
+                            }
+                            processBatch(batch, drained.get(start).consumer);
+                            start = i;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("Failed processing messages on " + getName(), e);
+                } finally {
+                    drained.clear();
+                }
+            }
+            logger.debug("{} exited", getName());
+        }
+    }
+
+    @Override
+    protected void handleBatch(List<com.google.protobuf.Message> messages) throws Exception {
+        final List<ZepRawEvent> events = new ArrayList<ZepRawEvent>(messages.size());
+        for (com.google.protobuf.Message message : messages) {
+            if (!(message instanceof ZepRawEvent)) {
+                logger.warn("Unexpected message type: {}", message);
+            } else {
+                events.add((ZepRawEvent) message);
+            }
+        }
+        if (this.flowController != null) {
+            this.flowController.acquire();
+            final long start = System.nanoTime();
+            try {
+                this.eventProcessor.processEvents(events);
+            } finally {
+                this.flowController.release(events.size(), System.nanoTime() - start);
+            }
+            return;
+        }
+        while (this.indexQueueLag && this.throttleConsumer) {
+            Thread.sleep(this.consumerSleepTime);
+        }
+        this.eventProcessor.processEvents(events);
+    }
+
     @Override
     public void handle(com.google.protobuf.Message message) throws Exception {
         if (!(message instanceof ZepRawEvent)) {
             logger.warn("Unexpected message type: {}", message);
+        } else if (this.flowController != null) {
+            this.flowController.acquire();
+            final long start = System.nanoTime();
+            try {
+                this.eventProcessor.processEvent((ZepRawEvent) message);
+            } finally {
+                this.flowController.release(1, System.nanoTime() - start);
+            }
         } else {
             while (this.indexQueueLag && this.throttleConsumer) {
                 Thread.sleep(this.consumerSleepTime);
@@ -0,0 +1,148 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory schedule of signal spool flush times, keyed by spool UUID. The event_trigger_signal_spool table
+ * remains the durable record; this only tracks when each spool is next due so the spool can be flushed without
+ * querying the database for the next flush time.
+ *
+ * Flush times are kept in a heap. Rescheduling or removing a spool leaves its old heap entry in place, which is
+ * skipped when it reaches the top of the heap.
+ */
+final class SignalSpoolSchedule {
+
+    private static final class Entry implements Comparable<Entry> {
+        private final String uuid;
+        private final long flushTime;
+
+        private Entry(String uuid, long flushTime) {
+            this.uuid = uuid;
+            this.flushTime = flushTime;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return (flushTime < other.flushTime) ? -1 : ((flushTime == other.flushTime) ? 0 : 1);
+        }
+    }
+
+    // Minimum heap size before stale entries are compacted
+    private static final int MIN_COMPACT_SIZE = 1024;
+
+    private final PriorityQueue<Entry> heap = new PriorityQueue<Entry>();
+    private final Map<String, Long> flushTimes = new HashMap<String, Long>();
+
+    /**
+     * Schedules the spool to flush at the specified time, replacing any previous flush time. A flush time of
+     * {@link Long#MAX_VALUE} means the spool won't be flushed again and removes it from the schedule.
+     *
+     * @param uuid The spool UUID.
+     * @param flushTime The time the spool is next due.
+     */
+    public synchronized void schedule(String uuid, long flushTime) {
+        if (flushTime == Long.MAX_VALUE) {
+            remove(uuid);
+            return;
+        }
+        final Long previous = flushTimes.put(uuid, flushTime);
+        if (previous == null || previous != flushTime) {
+            heap.add(new Entry(uuid, flushTime));
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the spool from the schedule.
+     *
+     * @param uuid The spool UUID.
+     */
+    public synchronized void remove(String uuid) {
+        if (flushTimes.remove(uuid) != null) {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the spools from the schedule.
+     *
+     * @param uuids The spool UUIDs.
+     */
+    public synchronized void removeAll(Collection<String> uuids) {
+        for (String uuid : uuids) {
+            flushTimes.remove(uuid);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the earliest scheduled flush time.
+     *
+     * @return The earliest scheduled flush time, or {@link Long#MAX_VALUE} if no spools are scheduled.
+     */
+    public synchronized long getNextFlushTime() {
+        final Entry next = peekCurrent();
+        return (next != null) ? next.flushTime : Long.MAX_VALUE;
+    }
+
+    /**
+     * Removes and returns the UUIDs of the spools due at or before the specified time.
+     *
+     * @param time The cutoff time.
+     * @return The UUIDs of the due spools, in flush time order.
+     */
+    public synchronized List<String> pollDue(long time) {
+        final List<String> due = new ArrayList<String>();
+        Entry next;
+        while ((next = peekCurrent()) != null && next.flushTime <= time) {
+            heap.poll();
+            flushTimes.remove(next.uuid);
+            due.add(next.uuid);
+        }
+        return due;
+    }
+
+    /**
+     * @return The number of scheduled spools.
+     */
+    public synchronized int size() {
+        return flushTimes.size();
+    }
+
+    private Entry peekCurrent() {
+        Entry next;
+        while ((next = heap.peek()) != null) {
+            final Long flushTime = flushTimes.get(next.uuid);
+            if (flushTime != null && flushTime == next.flushTime) {
+                return next;
+            }
+            heap.poll();
+        }
+        return null;
+    }
+
+    private void compactIfNeeded() {
+        if (heap.size() < MIN_COMPACT_SIZE || heap.size() <= 2 * flushTimes.size()) {
+            return;
+        }
+        heap.clear();
+        for (Map.Entry<String, Long> entry : flushTimes.entrySet()) {
+            heap.add(new Entry(entry.getKey(), entry.getValue()));
+        }
+    }
+}
@@ -10,7 +10,9 @@
 
 package org.zenoss.zep.impl;
 
-import com.google.common.base.Splitter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import org.python.core.Py;
 import org.python.core.PyDictionary;
 import org.python.core.PyException;
@@ -28,14 +30,13 @@ import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.Trigger;
 import org.springframework.scheduling.TriggerContext;
-import org.zenoss.amqp.AmqpConnectionManager;
-import org.zenoss.amqp.AmqpException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zenoss.amqp.ExchangeConfiguration;
 import org.zenoss.amqp.ZenossQueueConfig;
 import org.zenoss.protobufs.model.Model.ModelElementType;
 import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventActor;
-import org.zenoss.protobufs.zep.Zep.EventDetail;
 import org.zenoss.protobufs.zep.Zep.EventStatus;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.protobufs.zep.Zep.EventTrigger;
@@ -45,16 +46,25 @@ import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.ZepUtils;
 import org.zenoss.zep.dao.EventSignalSpool;
+import org.zenoss.zep.dao.EventSignalSpoolContext;
 import org.zenoss.zep.dao.EventSignalSpoolDao;
 import org.zenoss.zep.dao.EventStoreDao;
 import org.zenoss.zep.dao.EventSummaryDao;
-import org.zenoss.zep.dao.EventTriggerDao;
-import org.zenoss.zep.dao.EventTriggerSubscriptionDao;
+import org.zenoss.zep.dao.EventTriggerCache;
+import org.zenoss.zep.dao.EventTriggerSnapshot;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishFailure;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishRequest;
+import org.zenoss.zep.impl.TriggerRuleCompiler.CompiledRule;
 import org.zenoss.zep.plugins.EventPostIndexContext;
 import org.zenoss.zep.plugins.EventPostIndexPlugin;
 
+import javax.annotation.Resource;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -76,32 +86,45 @@ public class TriggerPlugin extends EventPostIndexPlugin {
 
     private static final Logger logger = LoggerFactory.getLogger(TriggerPlugin.class);
 
-    private EventTriggerDao triggerDao;
+    private EventTriggerCache triggerCache;
     private EventSignalSpoolDao signalSpoolDao;
     private EventStoreDao eventStoreDao;
     private EventSummaryDao eventSummaryDao;
-    private EventTriggerSubscriptionDao eventTriggerSubscriptionDao;
     private UUIDGenerator uuidGenerator;
 
-    private AmqpConnectionManager connectionManager;
+    private AmqpBatchPublisher batchPublisher;
     private ExchangeConfiguration destinationExchange;
 
     // The default value is specified in zep-config.xml.
     // Can be overridden by specifying plugin.TriggerPlugin.triggerRuleCacheSize
     // in the zeneventserver.conf file.
     private int triggerRuleCacheSize;
+
+    // Rules for a batch of events are evaluated on up to this many threads (including the indexing thread).
+    private int evaluationThreads = 1;
+    private ExecutorService evaluationExecutor;
+    // Batches smaller than this aren't worth splitting across threads
+    private static final int MIN_EVENTS_PER_EVALUATION = 16;
+
     /**
-     * Caches the result of compiling a trigger rule. Contains the original rule source, and the compiled PyFunction
-     * from the source. The PyFunction can be null if the rule source is invalid and can't be compiled to valid
-     * Python. It is cached no matter what to prevent trying to compile an invalid rule over and over again.
+     * Caches the result of compiling a trigger rule. Contains the original rule source, and either the rule compiled
+     * to Java by {@link TriggerRuleCompiler} or the compiled PyFunction from the source. Both can be null if the rule
+     * source is invalid and can't be compiled to valid Python. It is cached no matter what to prevent trying to
+     * compile an invalid rule over and over again.
      */
     static final class TriggerRuleCache {
         private final String ruleSource;
         private final PyFunction pyFunction;
+        private final CompiledRule compiledRule;
         
         public TriggerRuleCache(String ruleSource, PyFunction pyFunction) {
+            this(ruleSource, pyFunction, null);
+        }
+
+        public TriggerRuleCache(String ruleSource, PyFunction pyFunction, CompiledRule compiledRule) {
             this.ruleSource = ruleSource;
             this.pyFunction = pyFunction;
+            this.compiledRule = compiledRule;
         }
 
         public String getRuleSource() {
@@ -112,6 +135,10 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             return pyFunction;
         }
 
+        public CompiledRule getCompiledRule() {
+            return compiledRule;
+        }
+
         @Override
         public String toString() {
             return "TriggerRuleCache{" +
@@ -125,11 +152,28 @@ public class TriggerPlugin extends EventPostIndexPlugin {
 
     // The maximum amount of time to wait between processing the signal spool.
     private static final long MAXIMUM_DELAY_MS = TimeUnit.SECONDS.toMillis(60);
+    // The amount of time to wait before retrying to load the signal spool schedule.
+    private static final long SPOOL_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
 
     private TaskScheduler scheduler;
     private ScheduledFuture<?> spoolFuture;
+
+    // Flush times of the spooled signals. Loaded from the spool table on startup, then kept current as spools
+    // are created, updated and deleted.
+    final SignalSpoolSchedule spoolSchedule = new SignalSpoolSchedule();
+    private volatile boolean spoolScheduleLoaded = false;
+    // The time the spool task is next scheduled to run
+    private volatile long nextSpoolExecution = Long.MAX_VALUE;
     PythonHelper pythonHelper = new PythonHelper();
 
+    // Index of the compiled rules of the enabled triggers
+    final TriggerRuleIndex ruleIndex = new TriggerRuleIndex();
+    // The active triggers of the last trigger snapshot, rebuilt only when the snapshot version changes
+    private volatile ActiveTriggers activeTriggers = null;
+
+    private Meter nativeEvaluations = new Meter();
+    private Meter fallbackEvaluations = new Meter();
+
     /**
      * Helper class to enable lazy-initialization of Jython. Initializing the runtime and compiling code is expensive
      * to perform on each startup - better to do it when we first need it for evaluating triggers.
@@ -197,13 +241,46 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         this.uuidGenerator = uuidGenerator;
     }
 
+    @Resource(name="metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        final String baseName = getClass().getName();
+        this.nativeEvaluations = metrics.meter(MetricRegistry.name(baseName, "nativeRuleEvaluations"));
+        this.fallbackEvaluations = metrics.meter(MetricRegistry.name(baseName, "fallbackRuleEvaluations"));
+        metrics.register(MetricRegistry.name(baseName, "nativeRules"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ruleIndex.getCompiledTriggerCount();
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "fallbackRules"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ruleIndex.getFallbackTriggerCount();
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "scheduledSpools"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return spoolSchedule.size();
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "rulePredicates"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ruleIndex.getNodeCount();
+            }
+        });
+    }
+
     @Override
     public void start(Map<String, String> properties) {
         int triggerRuleCacheSize = this.getTriggerRuleCacheSize();
         logger.info("TriggerPlugin trigger rule cache size: {}", triggerRuleCacheSize);
+        logger.info("TriggerPlugin evaluation threads: {}", evaluationThreads);
         Map<String,TriggerRuleCache> boundedMap = ZepUtils.createBoundedMap(triggerRuleCacheSize);
         this.triggerRuleCache = Collections.synchronizedMap(boundedMap);
         super.start(properties);
+        loadSpoolSchedule();
         scheduleSpool();
     }
 
@@ -215,6 +292,18 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         }
     }
 
+    public int getEvaluationThreads() {
+        return evaluationThreads;
+    }
+
+    public void setEvaluationThreads(int evaluationThreads) {
+        this.evaluationThreads = Math.max(1, evaluationThreads);
+    }
+
+    public void setEvaluationExecutor(ExecutorService evaluationExecutor) {
+        this.evaluationExecutor = evaluationExecutor;
+    }
+
     public int getTriggerRuleCacheSize() {
         return triggerRuleCacheSize;
     }
@@ -227,27 +316,21 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         return cache.size() >= this.getTriggerRuleCacheSize();
     }
 
-    private void scheduleSpool() {
+    private synchronized void scheduleSpool() {
         if (spoolFuture != null) {
             spoolFuture.cancel(false);
         }
         Trigger trigger = new Trigger() {
             @Override
             public Date nextExecutionTime(TriggerContext triggerContext) {
-                Date nextExecution = null;
-                try {
-                    long nextFlushTime = signalSpoolDao.getNextFlushTime();
-                    if (nextFlushTime > 0) {
-                        nextExecution = new Date(nextFlushTime);
-                        logger.debug("Next flush time: {}", nextExecution);
-                    }
-                } catch (Exception e) {
-                    logger.warn("Exception getting next flush time", e);
-                }
-                if (nextExecution == null) {
-                    nextExecution = new Date(System.currentTimeMillis() + MAXIMUM_DELAY_MS);
-                }
-                return nextExecution;
+                final long now = System.currentTimeMillis();
+                // Retry loading the schedule soon if it couldn't be loaded
+                long nextExecution = spoolScheduleLoaded ? spoolSchedule.getNextFlushTime() :
+                        now + SPOOL_RETRY_DELAY_MS;
+                nextExecution = Math.min(nextExecution, now + MAXIMUM_DELAY_MS);
+                nextSpoolExecution = nextExecution;
+                logger.debug("Next flush time: {}", nextExecution);
+                return new Date(nextExecution);
             }
         };
         Runnable runnable = new ThreadRenamingRunnable(new Runnable() {
@@ -263,8 +346,59 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         }
     }
 
-    public void setTriggerDao(EventTriggerDao triggerDao) {
-        this.triggerDao = triggerDao;
+    /**
+     * Adds the flush times of all of the scheduled spools in the spool table to the in-memory schedule.
+     */
+    private void loadSpoolSchedule() {
+        try {
+            List<EventSignalSpool> spools = this.signalSpoolDao.findAllScheduled();
+            for (EventSignalSpool spool : spools) {
+                spoolSchedule.schedule(spool.getUuid(), spool.getFlushTime());
+            }
+            spoolScheduleLoaded = true;
+            logger.info("Loaded {} scheduled signal spools", spools.size());
+        } catch (Exception e) {
+            logger.warn("Failed to load signal spool schedule", e);
+        }
+    }
+
+    /**
+     * Updates the in-memory schedule with the new flush times of the spools and the deleted spools once the
+     * current transaction commits (or immediately if there is no transaction), so the spool task never looks for
+     * spool rows which aren't visible yet.
+     */
+    private void updateSpoolSchedule(Collection<EventSignalSpool> spools, final Collection<String> deletedUuids) {
+        final Map<String, Long> flushTimes = new HashMap<String, Long>(spools.size());
+        for (EventSignalSpool spool : spools) {
+            flushTimes.put(spool.getUuid(), spool.getFlushTime());
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    applySpoolSchedule(flushTimes, deletedUuids);
+                }
+            });
+        } else {
+            applySpoolSchedule(flushTimes, deletedUuids);
+        }
+    }
+
+    private void applySpoolSchedule(Map<String, Long> flushTimes, Collection<String> deletedUuids) {
+        spoolSchedule.removeAll(deletedUuids);
+        long earliest = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> entry : flushTimes.entrySet()) {
+            spoolSchedule.schedule(entry.getKey(), entry.getValue());
+            earliest = Math.min(earliest, entry.getValue());
+        }
+        // Only need to reschedule the spool task if a spool is now due before it next runs
+        if (earliest < nextSpoolExecution) {
+            scheduleSpool();
+        }
+    }
+
+    public void setTriggerCache(EventTriggerCache triggerCache) {
+        this.triggerCache = triggerCache;
     }
 
     public void setSignalSpoolDao(EventSignalSpoolDao spoolDao) {
@@ -275,12 +409,8 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         this.eventSummaryDao = eventSummaryDao;
     }
 
-    public void setEventTriggerSubscriptionDao(EventTriggerSubscriptionDao eventTriggerSubscriptionDao) {
-        this.eventTriggerSubscriptionDao = eventTriggerSubscriptionDao;
-    }
-
-    public void setConnectionManager(AmqpConnectionManager connmgr) {
-        this.connectionManager = connmgr;
+    public void setBatchPublisher(AmqpBatchPublisher batchPublisher) {
+        this.batchPublisher = batchPublisher;
     }
 
     public void setEventStoreDao(EventStoreDao eventStoreDao) {
@@ -288,17 +418,33 @@ public class TriggerPlugin extends EventPostIndexPlugin {
     }
 
     /**
-     * Local context class used to store the Python objects created from the event which are passed in to the
-     * trigger's rule for evaluation.
+     * Local context class used to store the event fields read by compiled rules, and the Python objects created
+     * from the event which are passed in to the trigger's rule for evaluation. The Python objects are only created
+     * when a rule has to be evaluated by Jython.
      */
     static class RuleContext {
+        private final TriggerRuleFields fields;
+        private final PythonHelper pythonHelper;
         PyObject event;
         PyObject device;
         PyObject element;
         PyObject subElement;
         PyObject zpDetails;
 
-        private RuleContext() {
+        private RuleContext(EventSummary evtsummary, PythonHelper pythonHelper) {
+            this.fields = new TriggerRuleFields(evtsummary);
+            this.pythonHelper = pythonHelper;
+        }
+
+        TriggerRuleFields getFields() {
+            return fields;
+        }
+
+        PyObject[] getPythonArguments() {
+            if (event == null) {
+                populate(this, pythonHelper.getToObject());
+            }
+            return new PyObject[] { event, device, element, subElement, zpDetails };
         }
 
         private static void putTitleAndUuidInDict(PyDictionary dict, String title, String uuid) {
@@ -310,37 +456,34 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             }
         }
 
-        private static final Splitter ORGANIZER_SPLITTER = Splitter.on('/').omitEmptyStrings();
-
         /**
-         * Given a list of organizers, returns a list containing those same organizers plus
-         * any parent organizers. For example, ['/First/Second/Third','/OtherFirst/OtherSecond']
-         * will return ['/First', '/First/Second', '/First/Second/Third', '/OtherFirst',
-         * '/OtherFirst/OtherSecond'].
+         * Creates a rule context from the toObject function and event summary.
          *
-         * @param baseOrganizers List of most-specific organizer names.
-         * @return A list containing all of the organizers plus their parent organizers.
+         * @param toObject The toObject function which converts a dictionary to the appropriate object.
+         * @param evtsummary The event to convert to a context.
+         * @return A rule context for the event.
          */
-        private static List<String> includeParentOrganizers(List<String> baseOrganizers) {
-            Set<String> allOrganizers = new TreeSet<String>();
-            for (String organizer : baseOrganizers) {
-                final StringBuilder sb = new StringBuilder(organizer.length());
-                for (String subOrganizer : ORGANIZER_SPLITTER.split(organizer)) {
-                    sb.append('/').append(subOrganizer);
-                    allOrganizers.add(sb.toString());
-                }
-            }
-            return new ArrayList<String>(allOrganizers);
+        public static RuleContext createContext(PyFunction toObject, EventSummary evtsummary) {
+            RuleContext ctx = new RuleContext(evtsummary, null);
+            populate(ctx, toObject);
+            return ctx;
         }
 
         /**
-         * Creates a rule context from the toObject function and event summary.
+         * Creates a rule context for the event summary which only initializes Jython if a rule needs it.
          *
-         * @param toObject The toObject function which converts a dictionary to the appropriate object.
+         * @param pythonHelper The Jython helper.
          * @param evtsummary The event to convert to a context.
          * @return A rule context for the event.
          */
-        public static RuleContext createContext(PyFunction toObject, EventSummary evtsummary) {
+        public static RuleContext createContext(PythonHelper pythonHelper, EventSummary evtsummary) {
+            return new RuleContext(evtsummary, pythonHelper);
+        }
+
+        private static void populate(RuleContext ctx, PyFunction toObject) {
+            final TriggerRuleFields fields = ctx.fields;
+            final EventSummary evtsummary = fields.getEventSummary();
+
             // set up interpreter environment to evaluate the rule source
             PyDictionary eventdict = new PyDictionary();
             PyDictionary devdict = new PyDictionary();
@@ -348,15 +491,6 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             PyDictionary subelemdict = new PyDictionary();
             PyDictionary zpDetDict = new PyDictionary();
 
-            // Match old behavior (pre-4.x)
-            int prodState = 0;
-            int devicePriority = DEVICE_PRIORITY_NORMAL;
-            String ipAddress = "";
-            List<String> systemsAndParents = Collections.emptyList();
-            List<String> groupsAndParents = Collections.emptyList();
-            String location = "";
-            String deviceClass = "";
-
             // extract event data from most recent occurrence
             Event event = evtsummary.getOccurrence(0);
 
@@ -412,77 +546,29 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                 putTitleAndUuidInDict(subelemdict, title, uuid);
             }
 
-            for (EventDetail detail : event.getDetailsList()) {
-                final String detailName = detail.getName();
-                // This should never happen
-                if (detail.getValueCount() == 0) {
-                    continue;
-                }
-                final String singleDetailValue = detail.getValue(0);
-                
-                if (DETAIL_DEVICE_PRODUCTION_STATE.equals(detailName)) {
-                    try {
-                        prodState = Integer.parseInt(singleDetailValue);
-                    } catch (NumberFormatException e) {
-                        logger.warn("Failed retrieving production state", e);
-                    }
-                }
-                else if (DETAIL_DEVICE_PRIORITY.equals(detailName)) {
-                    try {
-                        devicePriority = Integer.parseInt(singleDetailValue);
-                    } catch (NumberFormatException e) {
-                        logger.warn("Failed retrieving device priority", e);
-                    }
-                }
-                else if (DETAIL_DEVICE_CLASS.equals(detailName)) {
-                    // expect that this is a single-value detail.
-                    deviceClass = singleDetailValue;
-                }
-                else if (DETAIL_DEVICE_SYSTEMS.equals(detailName)) {
-                    // expect that this is a multi-value detail.
-                    systemsAndParents = includeParentOrganizers(detail.getValueList());
-                }
-                else if (DETAIL_DEVICE_GROUPS.equals(detailName)) {
-                    // expect that this is a multi-value detail.
-                    groupsAndParents = includeParentOrganizers(detail.getValueList());
-                }
-                else if (DETAIL_DEVICE_IP_ADDRESS.equals(detailName)) {
-                    // expect that this is a single-value detail.
-                    ipAddress = singleDetailValue;
-                }
-                else if (DETAIL_DEVICE_LOCATION.equals(detailName)) {
-                    // expect that this is a single-value detail.
-                    location = singleDetailValue;
-                }
-                else {
-                    // Custom details added by ZenPacks, we replace the dots by underscore and add them
-                    // to the zp detail dict. The UI did the same when the rule was created
-                    String customDetail = detailName.replaceAll("\\.", "_");
-                    zpDetDict.put(customDetail, new PyString(singleDetailValue));
-                }
+            for (Map.Entry<String, String> zpDetail : fields.getZenPackDetails().entrySet()) {
+                zpDetDict.put(zpDetail.getKey(), new PyString(zpDetail.getValue()));
             }
 
-            devdict.put("device_class", new PyString(deviceClass));
-            devdict.put("production_state", new PyInteger(prodState));
-            devdict.put("priority", new PyInteger(devicePriority));
-            devdict.put("groups", new PyList(groupsAndParents));
-            devdict.put("systems", new PyList(systemsAndParents));
-            devdict.put("ip_address", new PyString(ipAddress));
-            devdict.put("location", new PyString(location));
+            devdict.put("device_class", new PyString(fields.getDeviceClass()));
+            devdict.put("production_state", new PyInteger(fields.getProductionState()));
+            devdict.put("priority", new PyInteger(fields.getDevicePriority()));
+            devdict.put("groups", new PyList(fields.getGroups()));
+            devdict.put("systems", new PyList(fields.getSystems()));
+            devdict.put("ip_address", new PyString(fields.getIpAddress()));
+            devdict.put("location", new PyString(fields.getLocation()));
 
             // add more data from the EventSummary itself
             eventdict.put("status", evtsummary.getStatus().getNumber());
             eventdict.put("count", new PyInteger(evtsummary.getCount()));
             eventdict.put("current_user_name", new PyString(evtsummary.getCurrentUserName()));
 
-            RuleContext ctx = new RuleContext();
             // create vars to pass to rule expression function
             ctx.event = toObject.__call__(eventdict);
             ctx.device = toObject.__call__(devdict);
             ctx.element = toObject.__call__(elemdict);
             ctx.subElement = toObject.__call__(subelemdict);
             ctx.zpDetails = toObject.__call__(zpDetDict);
-            return ctx;
         }
     }
 
@@ -500,32 +586,39 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     cacheSizeWarningCounter = 0;
                 }
             }
-            // use rule to build and evaluate a Python lambda expression
             TriggerRuleCache cacheItem = triggerRuleCache.get(triggerUuid);
-            PyFunction fn = null;
             if (cacheItem == null || !cacheItem.getRuleSource().equals(ruleSource)) {
-                try {
-                    fn = (PyFunction)this.pythonHelper.getPythonInterpreter().eval(
-                            "lambda evt, dev, elem, sub_elem, zp_det : " + ruleSource
-                    );
-                } catch (PySyntaxError e) {
-                    String fmt = Py.formatException(e.type, e.value);
-                    logger.warn("syntax error exception raised while compiling rule: {}, {}", ruleSource, fmt);
+                // Compile the rule to Java if possible, otherwise build a Python lambda expression from it
+                PyFunction fn = null;
+                CompiledRule compiledRule = TriggerRuleCompiler.compile(ruleSource);
+                if (compiledRule == null) {
+                    logger.debug("Rule can't be compiled, evaluating with Jython: {}", ruleSource);
+                    try {
+                        fn = (PyFunction)this.pythonHelper.getPythonInterpreter().eval(
+                                "lambda evt, dev, elem, sub_elem, zp_det : " + ruleSource
+                        );
+                    } catch (PySyntaxError e) {
+                        String fmt = Py.formatException(e.type, e.value);
+                        logger.warn("syntax error exception raised while compiling rule: {}, {}", ruleSource, fmt);
+                    }
                 }
                 // Cache result of trigger evaluation (even if it failed to compile). This will prevent trying to
                 // recompile the same invalid rule over and over again.
-                triggerRuleCache.put(triggerUuid, new TriggerRuleCache(ruleSource, fn));
+                cacheItem = new TriggerRuleCache(ruleSource, fn, compiledRule);
+                triggerRuleCache.put(triggerUuid, cacheItem);
             }
-            else {
-                fn = cacheItem.getPyFunction();
+            if (cacheItem.getCompiledRule() != null) {
+                nativeEvaluations.mark();
+                return cacheItem.getCompiledRule().matches(ruleContext.getFields());
             }
+            PyFunction fn = cacheItem.getPyFunction();
             if (fn == null) {
                 logger.debug("Invalid rule source: {}", ruleSource);
                 return false;
             }
             // evaluate the rule function
-            PyObject [] args = { ruleContext.event, ruleContext.device, ruleContext.element, ruleContext.subElement, ruleContext.zpDetails } ;
-            result = fn.__call__(args);
+            fallbackEvaluations.mark();
+            result = fn.__call__(ruleContext.getPythonArguments());
         } catch (PySyntaxError pysynerr) {
             // evaluating rule raised an exception - treat as "False" eval
             String fmt = Py.formatException(pysynerr.type, pysynerr.value);
@@ -551,10 +644,19 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         return result.__nonzero__();
     }
 
+    private static final class ActiveTriggers {
+        private final long version;
+        private final List<EventTrigger> triggers;
+
+        private ActiveTriggers(long version, List<EventTrigger> triggers) {
+            this.version = version;
+            this.triggers = triggers;
+        }
+    }
+
     private static class BatchIndexState {
+        private EventTriggerSnapshot snapshot;
         private List<EventTrigger> triggers;
-        private Map<String, List<EventTriggerSubscription>> triggerSubscriptions =
-                new HashMap<String, List<EventTriggerSubscription>>();
         private Map<String, EventSummary> eventsToDeleteFromSpool = new HashMap<String, EventSummary>();
     }
 
@@ -579,19 +681,26 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         if (!state.eventsToDeleteFromSpool.isEmpty()) {
             Set<String> eventUuids = state.eventsToDeleteFromSpool.keySet();
             List<EventSignalSpool> spools = signalSpoolDao.findAllByEventSummaryUuids(eventUuids);
+            EventTriggerSnapshot snapshot = (state.snapshot != null) ? state.snapshot : triggerCache.getSnapshot();
+            List<PublishRequest> signals = new ArrayList<PublishRequest>();
             for (EventSignalSpool spool : spools) {
                 if (spool.isSentSignal()) {
                     logger.debug("sending clear signal for event: {}", spool.getEventSummaryUuid());
-                    EventTriggerSubscription subscription =
-                            eventTriggerSubscriptionDao.findByUuid(spool.getSubscriptionUuid());
+                    EventTriggerSubscription subscription = snapshot.getSubscription(spool.getSubscriptionUuid());
                     EventSummary eventSummary = state.eventsToDeleteFromSpool.get(spool.getEventSummaryUuid());
-                    publishSignal(eventSummary, subscription);
+                    signals.add(createSignal(eventSummary, subscription));
                 } else {
                     logger.debug("Skipping sending of clear signal for event {} and subscription {} - !sentSignal",
                             spool.getEventSummaryUuid(), spool.getSubscriptionUuid());
                 }
             }
             signalSpoolDao.deleteByEventSummaryUuids(eventUuids);
+            publishSignals(signals);
+            final List<String> deletedUuids = new ArrayList<String>(spools.size());
+            for (EventSignalSpool spool : spools) {
+                deletedUuids.add(spool.getUuid());
+            }
+            updateSpoolSchedule(Collections.<EventSignalSpool>emptyList(), deletedUuids);
         }
         batchState.remove();
     }
@@ -637,68 +746,200 @@ public class TriggerPlugin extends EventPostIndexPlugin {
 
     @Override
     public void processEvent(EventSummary eventSummary, EventPostIndexContext context) throws ZepException {
+        processEvents(Collections.singletonList(eventSummary), context);
+    }
+
+    @Override
+    public void processEvents(List<EventSummary> eventSummaries, EventPostIndexContext context) throws ZepException {
         // Ignore events in the archive.
         if (context.isArchive()) {
             return;
         }
-        final EventStatus evtstatus = eventSummary.getStatus();
-
-        if (OPEN_STATUSES.contains(evtstatus)) {
-            processOpenEvent(eventSummary, context);
-        } else {
-            batchState.get().eventsToDeleteFromSpool.put(eventSummary.getUuid(), eventSummary);
+        final BatchIndexState state = batchState.get();
+        final List<EventSummary> openEvents = new ArrayList<EventSummary>(eventSummaries.size());
+        for (EventSummary eventSummary : eventSummaries) {
+            if (OPEN_STATUSES.contains(eventSummary.getStatus())) {
+                openEvents.add(eventSummary);
+            } else {
+                state.eventsToDeleteFromSpool.put(eventSummary.getUuid(), eventSummary);
+            }
         }
-    }
-
-    private void processOpenEvent(EventSummary eventSummary, EventPostIndexContext context) throws ZepException {
-        final long now = System.currentTimeMillis();
-        BatchIndexState state = batchState.get();
-        List<EventTrigger> triggers = state.triggers;
-        if (triggers == null) {
-            triggers = this.triggerDao.findAllEnabled();
-            state.triggers = triggers;
+        if (openEvents.isEmpty()) {
+            return;
+        }
+        final List<EventTrigger> triggers = getActiveTriggers(state);
+        if (triggers.isEmpty()) {
+            return;
         }
 
-        // iterate over all enabled triggers to see if any rules will match
-        // for this event summary
+        // Rule evaluation has no side effects, so it is spread across the evaluator threads. The spool is then
+        // updated from the results in index order, and all of its changes are written at once.
+        final BitSet[] matches = evaluateTriggers(openEvents, triggers);
+        final SpoolChanges changes = new SpoolChanges();
         boolean rescheduleSpool = false;
-
-        RuleContext ruleContext = null;
-
-        if (!triggers.isEmpty()) {
-            logger.debug("Event: {}", eventSummary);
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] == null) {
+                continue;
+            }
+            final EventSummary eventSummary = openEvents.get(i);
+            try {
+                rescheduleSpool |= processOpenEvent(eventSummary, triggers, matches[i], context, changes);
+            } catch (ZepException e) {
+                // Post-processing plug-in failures are not fatal errors.
+                logger.warn("Failed to run post-processing plug-in on event: " + eventSummary, e);
+            }
+        }
+        if (!changes.created.isEmpty()) {
+            this.signalSpoolDao.createAll(changes.created);
+        }
+        if (!changes.updated.isEmpty()) {
+            this.signalSpoolDao.updateAll(changes.updated);
+        }
+        publishSignals(changes.signals);
+        if (rescheduleSpool) {
+            final List<EventSignalSpool> changed = new ArrayList<EventSignalSpool>(changes.created);
+            changed.addAll(changes.updated);
+            updateSpoolSchedule(changed, Collections.<String>emptyList());
         }
+    }
 
-        for (EventTrigger trigger : triggers) {
+    /**
+     * Returns the enabled triggers which have a rule and at least one subscription, taken from the current trigger
+     * snapshot on first use in the batch. The rule index is only updated when the snapshot version changes.
+     */
+    private List<EventTrigger> getActiveTriggers(BatchIndexState state) throws ZepException {
+        if (state.triggers == null) {
+            final EventTriggerSnapshot snapshot = this.triggerCache.getSnapshot();
+            ActiveTriggers active = this.activeTriggers;
+            if (active == null || active.version < snapshot.getVersion()) {
+                final List<EventTrigger> triggers = snapshot.getEnabledTriggers();
+                this.ruleIndex.update(triggers);
+                final List<EventTrigger> activeList = new ArrayList<EventTrigger>(triggers.size());
+                for (EventTrigger trigger : triggers) {
+                    // verify trigger has a defined rule and has any subscriptions registered with it
+                    if (trigger.hasRule() && trigger.getRule().hasSource() && trigger.getSubscriptionsCount() > 0) {
+                        activeList.add(trigger);
+                    }
+                }
+                active = new ActiveTriggers(snapshot.getVersion(), Collections.unmodifiableList(activeList));
+                this.activeTriggers = active;
+            }
+            state.snapshot = snapshot;
+            state.triggers = active.triggers;
+        }
+        return state.triggers;
+    }
 
-            // verify trigger has a defined rule
-            if (!(trigger.hasRule() && trigger.getRule().hasSource())) {
-                continue;
+    /**
+     * Evaluates the triggers against each of the events. Returns, for each event, the set of indices of the
+     * triggers it matches, or null if evaluating the event's rules failed.
+     */
+    private BitSet[] evaluateTriggers(final List<EventSummary> eventSummaries, final List<EventTrigger> triggers)
+            throws ZepException {
+        final BitSet[] matches = new BitSet[eventSummaries.size()];
+        final ExecutorService executor = this.evaluationExecutor;
+        final int numTasks = (executor == null) ? 1 :
+                Math.min(this.evaluationThreads, (eventSummaries.size() + MIN_EVENTS_PER_EVALUATION - 1) /
+                        MIN_EVENTS_PER_EVALUATION);
+        if (numTasks <= 1) {
+            evaluateTriggers(eventSummaries, triggers, matches, 0, matches.length);
+            return matches;
+        }
+        final int eventsPerTask = (matches.length + numTasks - 1) / numTasks;
+        final List<Future<?>> futures = new ArrayList<Future<?>>(numTasks - 1);
+        try {
+            for (int from = eventsPerTask; from < matches.length; from += eventsPerTask) {
+                final int taskFrom = from;
+                final int taskTo = Math.min(from + eventsPerTask, matches.length);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        evaluateTriggers(eventSummaries, triggers, matches, taskFrom, taskTo);
+                    }
+                }));
             }
-            // confirm trigger has any subscriptions registered with it
-            List<EventTriggerSubscription> subscriptions = state.triggerSubscriptions.get(trigger.getUuid());
-            if (subscriptions == null) {
-                subscriptions = trigger.getSubscriptionsList();
-                state.triggerSubscriptions.put(trigger.getUuid(), subscriptions);
+            // The indexing thread evaluates the first range itself
+            evaluateTriggers(eventSummaries, triggers, matches, 0, eventsPerTask);
+            for (Future<?> future : futures) {
+                future.get();
             }
-            if (subscriptions.isEmpty()) {
-                continue;
+        } catch (RejectedExecutionException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ZepException(e.getLocalizedMessage(), e);
+        } catch (ExecutionException e) {
+            throw new ZepException(e.getLocalizedMessage(), e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
             }
+        }
+        return matches;
+    }
 
-            final String ruleSource = trigger.getRule().getSource();
+    private void evaluateTriggers(List<EventSummary> eventSummaries, List<EventTrigger> triggers, BitSet[] matches,
+                                  int from, int to) {
+        for (int i = from; i < to; i++) {
+            final EventSummary eventSummary = eventSummaries.get(i);
+            try {
+                matches[i] = evaluateTriggers(eventSummary, triggers);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to evaluate triggers for event: " + eventSummary, e);
+            }
+        }
+    }
 
-            // Determine if event matches trigger rule
-            if (ruleContext == null) {
-                ruleContext = RuleContext.createContext(this.pythonHelper.getToObject(), eventSummary);
+    private BitSet evaluateTriggers(EventSummary eventSummary, List<EventTrigger> triggers) {
+        logger.debug("Event: {}", eventSummary);
+        final BitSet matched = new BitSet(triggers.size());
+        // All of the compiled rules are matched at once.
+        final RuleContext ruleContext = RuleContext.createContext(this.pythonHelper, eventSummary);
+        final TriggerRuleIndex.Match match = this.ruleIndex.match(ruleContext.getFields());
+        for (int i = 0; i < triggers.size(); i++) {
+            final EventTrigger trigger = triggers.get(i);
+            final String ruleSource = trigger.getRule().getSource();
+            final Boolean indexedMatch = match.matches(trigger.getUuid(), ruleSource);
+            final boolean eventSatisfiesRule;
+            if (indexedMatch != null) {
+                nativeEvaluations.mark();
+                eventSatisfiesRule = indexedMatch;
+            } else {
+                // The Jython interpreter isn't safe to use from multiple threads
+                synchronized (this.pythonHelper) {
+                    eventSatisfiesRule = eventSatisfiesRule(ruleContext, trigger.getUuid(), ruleSource);
+                }
             }
-            final boolean eventSatisfiesRule = eventSatisfiesRule(ruleContext, trigger.getUuid(), ruleSource);
 
             if (eventSatisfiesRule) {
                 logger.debug("Trigger {} ({}) MATCHES", trigger.getName(), ruleSource);
+                matched.set(i);
             }
             else {
                 logger.debug("Trigger {} ({}) DOES NOT MATCH", trigger.getName(), ruleSource);
             }
+        }
+        return matched;
+    }
+
+    /**
+     * Spool rows created and modified, and signals to send, while processing a batch. These are written and
+     * published once the batch has been processed.
+     */
+    private static class SpoolChanges {
+        private final List<EventSignalSpool> created = new ArrayList<EventSignalSpool>();
+        private final List<EventSignalSpool> updated = new ArrayList<EventSignalSpool>();
+        private final List<PublishRequest> signals = new ArrayList<PublishRequest>();
+    }
+
+    private boolean processOpenEvent(EventSummary eventSummary, List<EventTrigger> triggers, BitSet matches,
+                                     EventPostIndexContext context, SpoolChanges changes) throws ZepException {
+        final long now = System.currentTimeMillis();
+        boolean rescheduleSpool = false;
+
+        for (int i = 0; i < triggers.size(); i++) {
+            final List<EventTriggerSubscription> subscriptions = triggers.get(i).getSubscriptionsList();
+            final boolean eventSatisfiesRule = matches.get(i);
 
             // handle interval evaluation/buffering
             for (EventTriggerSubscription subscription : subscriptions) {
@@ -731,12 +972,12 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                 else if (delaySeconds <= 0) {
                     if (!onlySendInitial) {
                         logger.debug("delay <= 0 and !onlySendInitial, send signal");
-                        this.publishSignal(eventSummary, subscription);
+                        changes.signals.add(createSignal(eventSummary, subscription));
                         
                         if (!spoolExists) {
                             currentSpool = EventSignalSpool.buildSpool(subscription, eventSummary, this.uuidGenerator);
                             currentSpool.setSentSignal(true);
-                            this.signalSpoolDao.create(currentSpool);
+                            changes.created.add(currentSpool);
                             rescheduleSpool = true;
                         }
                         else if (!currentSpool.isSentSignal()) {
@@ -747,11 +988,11 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     else {
                         if (!spoolExists) {
                             logger.debug("delay <=0 and spool doesn't exist, send signal");
-                            this.publishSignal(eventSummary, subscription);
+                            changes.signals.add(createSignal(eventSummary, subscription));
                             
                             currentSpool = EventSignalSpool.buildSpool(subscription, eventSummary, this.uuidGenerator);
                             currentSpool.setSentSignal(true);
-                            this.signalSpoolDao.create(currentSpool);
+                            changes.created.add(currentSpool);
                             rescheduleSpool = true;
                         }
                         else {
@@ -769,7 +1010,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     // delaySeconds > 0
                     if (!spoolExists) {
                         currentSpool = EventSignalSpool.buildSpool(subscription, eventSummary, this.uuidGenerator);
-                        this.signalSpoolDao.create(currentSpool);
+                        changes.created.add(currentSpool);
                         rescheduleSpool = true;
                     }
                     else {
@@ -791,16 +1032,15 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                 }
                 
                 if (spoolModified) {
-                    this.signalSpoolDao.update(currentSpool);
+                    changes.updated.add(currentSpool);
                 }
             }
         }
-        if (rescheduleSpool) {
-            scheduleSpool();
-        }
+        return rescheduleSpool;
     }
 
-    protected void publishSignal(EventSummary eventSummary, EventTriggerSubscription subscription) throws ZepException {
+    protected PublishRequest createSignal(EventSummary eventSummary, EventTriggerSubscription subscription)
+            throws ZepException {
         Event occurrence = eventSummary.getOccurrence(0);
         Signal.Builder signalBuilder = Signal.newBuilder();
         signalBuilder.setUuid(uuidGenerator.generate().toString());
@@ -821,25 +1061,52 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         }
         Signal signal = signalBuilder.build();
         logger.debug("Publishing signal: {}", signal);
-        try {
-            this.connectionManager.publish(destinationExchange, "zenoss.signal", signal);
-        } catch (AmqpException e) {
-            throw new ZepException(e);
+        return new PublishRequest(destinationExchange, "zenoss.signal", signal);
+    }
+
+    /**
+     * Publishes the signals as one batch. Signals are delivered at-least-once: a signal can be published
+     * again after a failed attempt (by the batch publisher, or by retrying its spool), so a subscriber may
+     * receive the same signal more than once. Publishing doesn't wait for broker confirms, so only failures
+     * reported by the channel are retried.
+     *
+     * @return The signals which couldn't be published.
+     */
+    private List<PublishFailure> publishSignals(List<PublishRequest> signals) {
+        final List<PublishFailure> failures = this.batchPublisher.publish(signals);
+        for (PublishFailure failure : failures) {
+            final Signal signal = (Signal) failure.getRequest().getMessage();
+            logger.warn("Failed to publish signal for event {} to subscriber {} of trigger {}: {}",
+                    new Object[] { signal.getEvent().getUuid(), signal.getSubscriberUuid(), signal.getTriggerUuid(),
+                            failure.getCause().getLocalizedMessage() });
         }
+        return failures;
     }
 
-    protected synchronized void processSpool(long processCutoffTime) {
+    protected void processSpool(long processCutoffTime) {
         logger.debug("Processing signal spool");
+        if (!spoolScheduleLoaded) {
+            loadSpoolSchedule();
+            if (!spoolScheduleLoaded) {
+                return;
+            }
+        }
+        // Spools are removed from the schedule as they are taken, so concurrent runs never flush the same spool
+        final List<String> dueUuids = spoolSchedule.pollDue(processCutoffTime);
+        if (dueUuids.isEmpty()) {
+            return;
+        }
         try {
-            // TODO: This should be refactored to have findAllDue return consistent set of spool, event, subscription,
-            // and trigger.
-
-            // get spools that need to be processed
-            List<EventSignalSpool> spools = this.signalSpoolDao.findAllDue();
-            List<String> spoolsToDelete = new ArrayList<String>(spools.size());
-
-            for (EventSignalSpool spool : spools) {
-                EventSummary eventSummary = this.eventSummaryDao.findByUuid(spool.getEventSummaryUuid());
+            // get spools that need to be processed, along with their event, subscription and trigger. Spools
+            // which have since been deleted or rescheduled aren't returned.
+            List<EventSignalSpoolContext> dueSpools = this.signalSpoolDao.findAllDueWithContext(dueUuids);
+            List<String> spoolsToDelete = new ArrayList<String>();
+            List<EventSignalSpool> spoolsToUpdate = new ArrayList<EventSignalSpool>(dueSpools.size());
+            Map<PublishRequest, EventSignalSpool> signals = new LinkedHashMap<PublishRequest, EventSignalSpool>();
+
+            for (EventSignalSpoolContext dueSpool : dueSpools) {
+                EventSignalSpool spool = dueSpool.getSpool();
+                EventSummary eventSummary = dueSpool.getEventSummary();
                 EventStatus status = (eventSummary != null) ? eventSummary.getStatus() : null;
 
                 // These should have been deleted when the event was run through the TriggerPlugin when the status
@@ -849,8 +1116,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     continue;
                 }
 
-                EventTriggerSubscription trSub = this.eventTriggerSubscriptionDao
-                        .findByUuid(spool.getSubscriptionUuid());
+                EventTriggerSubscription trSub = dueSpool.getSubscription();
                 if (trSub == null) {
                     logger.debug("Current spool entry no longer valid (subscription deleted), skipping: {}",
                             spool.getUuid());
@@ -858,7 +1124,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                 }
 
                 // Check to see if trigger is still enabled
-                EventTrigger trigger = this.triggerDao.findByUuid(trSub.getTriggerUuid());
+                EventTrigger trigger = dueSpool.getTrigger();
                 if (trigger == null) {
                     logger.debug("Current spool entry no longer valid (trigger deleted), skipping: {}",
                             spool.getUuid());
@@ -866,10 +1132,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                 }
 
                 if (trigger.getEnabled()) {
-                    publishSignal(eventSummary, trSub);
-                    if (!spool.isSentSignal()) {
-                        spool.setSentSignal(true);
-                    }
+                    signals.put(createSignal(eventSummary, trSub), spool);
                 }
 
                 int repeatInterval = trSub.getRepeatSeconds();
@@ -883,7 +1146,21 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     // Update the existing spool entry to make sure it won't send again
                     spool.setFlushTime(Long.MAX_VALUE);
                 }
-                this.signalSpoolDao.update(spool);
+                spoolsToUpdate.add(spool);
+            }
+            // Spools whose signal couldn't be published are retried instead of waiting for the next repeat
+            final List<PublishFailure> failures = publishSignals(new ArrayList<PublishRequest>(signals.keySet()));
+            for (PublishFailure failure : failures) {
+                signals.remove(failure.getRequest()).setFlushTime(System.currentTimeMillis() + SPOOL_RETRY_DELAY_MS);
+            }
+            for (EventSignalSpool spool : signals.values()) {
+                spool.setSentSignal(true);
+            }
+            if (!spoolsToUpdate.isEmpty()) {
+                this.signalSpoolDao.updateAll(spoolsToUpdate);
+                for (EventSignalSpool spool : spoolsToUpdate) {
+                    spoolSchedule.schedule(spool.getUuid(), spool.getFlushTime());
+                }
             }
             if (!spoolsToDelete.isEmpty()) {
                 this.signalSpoolDao.delete(spoolsToDelete);
@@ -891,6 +1168,8 @@ public class TriggerPlugin extends EventPostIndexPlugin {
 
         } catch (Exception e) {
             logger.warn("Failed to process signal spool", e);
+            // The due spools were already taken from the schedule - reload it from the spool table
+            spoolScheduleLoaded = false;
         }
     }
 }
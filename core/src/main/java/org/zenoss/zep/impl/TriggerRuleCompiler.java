@@ -0,0 +1,926 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles trigger rules to Java so they can be evaluated without Jython.
+ * <p/>
+ * Only the restricted subset of Python generated by the trigger rule builder in the UI is supported:
+ * comparisons, <code>in</code> and <code>not in</code>, <code>startswith</code>, <code>endswith</code>,
+ * <code>lower</code> and <code>upper</code>, and <code>and</code>, <code>or</code> and <code>not</code>
+ * over the attributes of <code>evt</code>, <code>dev</code>, <code>elem</code>, <code>sub_elem</code> and
+ * <code>zp_det</code>. Each attribute has a fixed type, and a rule is only compiled if every operation in
+ * it has the same result in Java as in Python for those types. Anything else is left to Jython.
+ * <p/>
+ * As with Jython, a rule which reads an attribute the event doesn't have evaluates to false.
+ */
+public final class TriggerRuleCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TriggerRuleCompiler.class);
+
+    private TriggerRuleCompiler() {
+    }
+
+    /**
+     * The objects passed to a rule.
+     */
+    public enum Namespace {
+        EVT("evt"), DEV("dev"), ELEM("elem"), SUB_ELEM("sub_elem"), ZP_DET("zp_det");
+
+        private final String name;
+
+        Namespace(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The type of a value in a rule. Integers are represented as Long, lists as List&lt;String&gt;, and literal
+     * tuples and lists as Set.
+     */
+    enum Type {
+        BOOLEAN, STRING, INTEGER, LIST, SET
+    }
+
+    enum Scope {
+        EVENT, DEVICE, ELEMENT
+    }
+
+    /**
+     * The attributes of the objects passed to a rule, other than ZenPack details.
+     */
+    public enum Field {
+        SUMMARY("summary", Scope.EVENT, Type.STRING),
+        MESSAGE("message", Scope.EVENT, Type.STRING),
+        EVENT_CLASS("event_class", Scope.EVENT, Type.STRING),
+        FINGERPRINT("fingerprint", Scope.EVENT, Type.STRING),
+        EVENT_KEY("event_key", Scope.EVENT, Type.STRING),
+        AGENT("agent", Scope.EVENT, Type.STRING),
+        MONITOR("monitor", Scope.EVENT, Type.STRING),
+        SEVERITY("severity", Scope.EVENT, Type.INTEGER),
+        EVENT_CLASS_KEY("event_class_key", Scope.EVENT, Type.STRING),
+        SYSLOG_PRIORITY("syslog_priority", Scope.EVENT, Type.INTEGER),
+        SYSLOG_FACILITY("syslog_facility", Scope.EVENT, Type.INTEGER),
+        NT_EVENT_CODE("nt_event_code", Scope.EVENT, Type.INTEGER),
+        STATUS("status", Scope.EVENT, Type.INTEGER),
+        COUNT("count", Scope.EVENT, Type.INTEGER),
+        CURRENT_USER_NAME("current_user_name", Scope.EVENT, Type.STRING),
+
+        DEVICE_CLASS("device_class", Scope.DEVICE, Type.STRING),
+        PRODUCTION_STATE("production_state", Scope.DEVICE, Type.INTEGER),
+        PRIORITY("priority", Scope.DEVICE, Type.INTEGER),
+        GROUPS("groups", Scope.DEVICE, Type.LIST),
+        SYSTEMS("systems", Scope.DEVICE, Type.LIST),
+        IP_ADDRESS("ip_address", Scope.DEVICE, Type.STRING),
+        LOCATION("location", Scope.DEVICE, Type.STRING),
+
+        NAME("name", Scope.ELEMENT, Type.STRING),
+        UUID("uuid", Scope.ELEMENT, Type.STRING),
+        TYPE("type", Scope.ELEMENT, Type.STRING);
+
+        private static final Map<String, Field> FIELDS_BY_NAME = new HashMap<String, Field>();
+        static {
+            for (Field field : values()) {
+                FIELDS_BY_NAME.put(field.name, field);
+            }
+        }
+
+        private final String name;
+        private final Scope scope;
+        private final Type type;
+
+        Field(String name, Scope scope, Type type) {
+            this.name = name;
+            this.scope = scope;
+            this.type = type;
+        }
+
+        Scope getScope() {
+            return scope;
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * Returns the attribute with the given name which can be read from the namespace, or null.
+         */
+        static Field forName(Namespace namespace, String name) {
+            final Field field = FIELDS_BY_NAME.get(name);
+            if (field == null) {
+                return null;
+            }
+            if (namespace == Namespace.EVT) {
+                return (field.scope == Scope.EVENT) ? field : null;
+            }
+            return (field.scope != Scope.EVENT) ? field : null;
+        }
+    }
+
+    /**
+     * A compiled trigger rule.
+     */
+    public static final class CompiledRule {
+        private final String source;
+        private final Expr expr;
+
+        private CompiledRule(String source, Expr expr) {
+            this.source = source;
+            this.expr = expr;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        Expr getExpr() {
+            return expr;
+        }
+
+        /**
+         * Evaluates the rule against an event.
+         *
+         * @param fields The event.
+         * @return True if the event matches the rule.
+         */
+        boolean matches(TriggerRuleFields fields) {
+            try {
+                return expr.test(fields);
+            } catch (MissingAttributeException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return expr.toString();
+        }
+    }
+
+    /**
+     * Compiles a trigger rule.
+     *
+     * @param source The rule source.
+     * @return The compiled rule, or null if the rule uses anything outside of the supported subset (including
+     *         invalid syntax) and has to be evaluated by Jython.
+     */
+    public static CompiledRule compile(String source) {
+        try {
+            return new CompiledRule(source, new Parser(source).parseRule());
+        } catch (UnsupportedRuleException e) {
+            logger.debug("Unable to compile rule {}: {}", source, e.getMessage());
+            return null;
+        }
+    }
+
+    private static final class UnsupportedRuleException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedRuleException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a rule reads an attribute the event doesn't have. Evaluation of the rule stops, and the rule
+     * doesn't match - this is the equivalent of the AttributeError raised by Jython.
+     */
+    static final class MissingAttributeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final MissingAttributeException MISSING_ATTRIBUTE = new MissingAttributeException();
+
+    /* Expressions */
+
+    abstract static class Expr {
+        final Type type;
+
+        Expr(Type type) {
+            this.type = type;
+        }
+
+        abstract Object evaluate(TriggerRuleFields fields);
+
+        /**
+         * Evaluates the expression as a condition, using Python truth values.
+         */
+        boolean test(TriggerRuleFields fields) {
+            final Object value = evaluate(fields);
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            } else if (value instanceof String) {
+                return !((String) value).isEmpty();
+            } else if (value instanceof Long) {
+                return (Long) value != 0L;
+            }
+            return !((Collection<?>) value).isEmpty();
+        }
+    }
+
+    static final class Literal extends Expr {
+        private final Object value;
+
+        Literal(Type type, Object value) {
+            super(type);
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            if (value instanceof String) {
+                return quote((String) value);
+            } else if (value instanceof Set) {
+                final StringBuilder sb = new StringBuilder();
+                for (Object element : (Set<?>) value) {
+                    sb.append((sb.length() == 0) ? "(" : ", ");
+                    sb.append((element instanceof String) ? quote((String) element) : element);
+                }
+                return sb.append(",)").toString();
+            }
+            return String.valueOf(value);
+        }
+
+        private static String quote(String value) {
+            return '\'' + value.replace("\\", "\\\\").replace("'", "\\'") + '\'';
+        }
+    }
+
+    static final class Attribute extends Expr {
+        private final Namespace namespace;
+        private final Field field;
+
+        Attribute(Namespace namespace, Field field) {
+            super(field.getType());
+            this.namespace = namespace;
+            this.field = field;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            final Object value = fields.get(namespace, field);
+            if (value == null) {
+                throw MISSING_ATTRIBUTE;
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return namespace + "." + field;
+        }
+    }
+
+    static final class ZenPackDetail extends Expr {
+        private final String name;
+
+        ZenPackDetail(String name) {
+            super(Type.STRING);
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            final String value = fields.getZenPackDetail(name);
+            if (value == null) {
+                throw MISSING_ATTRIBUTE;
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return Namespace.ZP_DET + "." + name;
+        }
+    }
+
+    enum StringMethod {
+        LOWER("lower", Type.STRING, false),
+        UPPER("upper", Type.STRING, false),
+        STARTSWITH("startswith", Type.BOOLEAN, true),
+        ENDSWITH("endswith", Type.BOOLEAN, true);
+
+        private final String name;
+        private final Type type;
+        private final boolean hasArgument;
+
+        StringMethod(String name, Type type, boolean hasArgument) {
+            this.name = name;
+            this.type = type;
+            this.hasArgument = hasArgument;
+        }
+
+        static StringMethod forName(String name) {
+            for (StringMethod method : values()) {
+                if (method.name.equals(name)) {
+                    return method;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class StringMethodCall extends Expr {
+        private final Expr target;
+        private final StringMethod method;
+        private final String argument;
+
+        StringMethodCall(Expr target, StringMethod method, String argument) {
+            super(method.type);
+            this.target = target;
+            this.method = method;
+            this.argument = argument;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            final String value = (String) target.evaluate(fields);
+            switch (method) {
+                case LOWER:
+                    return value.toLowerCase(Locale.ENGLISH);
+                case UPPER:
+                    return value.toUpperCase(Locale.ENGLISH);
+                case STARTSWITH:
+                    return value.startsWith(argument);
+                default:
+                    return value.endsWith(argument);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return target + "." + method.name + "(" + (argument != null ? Literal.quote(argument) : "") + ")";
+        }
+    }
+
+    enum Operator {
+        EQ("=="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">="), IN("in"), NOT_IN("not in");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        @Override
+        public String toString() {
+            return symbol;
+        }
+    }
+
+    static final class Comparison extends Expr {
+        private final Operator operator;
+        private final Expr left;
+        private final Expr right;
+
+        Comparison(Operator operator, Expr left, Expr right) {
+            super(Type.BOOLEAN);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            final Object l = left.evaluate(fields);
+            final Object r = right.evaluate(fields);
+            switch (operator) {
+                case IN:
+                    return contains(l, r);
+                case NOT_IN:
+                    return !contains(l, r);
+                case EQ:
+                    return l.equals(r);
+                case NE:
+                    return !l.equals(r);
+            }
+            final int cmp = (l instanceof String) ? ((String) l).compareTo((String) r) : ((Long) l).compareTo((Long) r);
+            switch (operator) {
+                case LT:
+                    return cmp < 0;
+                case LE:
+                    return cmp <= 0;
+                case GT:
+                    return cmp > 0;
+                default:
+                    return cmp >= 0;
+            }
+        }
+
+        private static boolean contains(Object needle, Object haystack) {
+            if (haystack instanceof String) {
+                return ((String) haystack).contains((String) needle);
+            }
+            return ((Collection<?>) haystack).contains(needle);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + operator + " " + right + ")";
+        }
+    }
+
+    static final class Not extends Expr {
+        private final Expr operand;
+
+        Not(Expr operand) {
+            super(Type.BOOLEAN);
+            this.operand = operand;
+        }
+
+        Expr getOperand() {
+            return operand;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            return !operand.test(fields);
+        }
+
+        @Override
+        public String toString() {
+            return "(not " + operand + ")";
+        }
+    }
+
+    /**
+     * <code>and</code> and <code>or</code>. Operands are evaluated left to right and evaluation stops as soon
+     * as the result is known, so an attribute after that point isn't read.
+     */
+    static final class Junction extends Expr {
+        private final boolean and;
+        private final List<Expr> operands;
+
+        Junction(boolean and, List<Expr> operands) {
+            super(Type.BOOLEAN);
+            this.and = and;
+            this.operands = operands;
+        }
+
+        boolean isAnd() {
+            return and;
+        }
+
+        List<Expr> getOperands() {
+            return operands;
+        }
+
+        @Override
+        Object evaluate(TriggerRuleFields fields) {
+            for (Expr operand : operands) {
+                if (operand.test(fields) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < operands.size(); i++) {
+                if (i > 0) {
+                    sb.append(and ? " and " : " or ");
+                }
+                sb.append(operands.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /* Parser */
+
+    private enum TokenType {
+        NAME, STRING, INTEGER, OPERATOR, END
+    }
+
+    private static final class Token {
+        private final TokenType type;
+        private final String text;
+        private final Object value;
+
+        private Token(TokenType type, String text, Object value) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+        }
+
+        private boolean is(TokenType type, String text) {
+            return this.type == type && this.text.equals(text);
+        }
+
+        @Override
+        public String toString() {
+            return (type == TokenType.END) ? "end of rule" : "'" + text + "'";
+        }
+    }
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "and", "as", "assert", "break", "class", "continue", "def", "del", "elif", "else", "except", "exec",
+            "finally", "for", "from", "global", "if", "import", "in", "is", "lambda", "not", "or", "pass", "print",
+            "raise", "return", "try", "while", "with", "yield"));
+
+    private static final String[] OPERATORS = {
+            "==", "!=", "<>", "<=", ">=", "<", ">", "(", ")", "[", "]", ",", ".", "-"
+    };
+
+    private static List<Token> tokenize(String source) throws UnsupportedRuleException {
+        final List<Token> tokens = new ArrayList<Token>();
+        final int length = source.length();
+        int i = 0;
+        while (i < length) {
+            final char c = source.charAt(i);
+            if (c == ' ' || c == '\t') {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                i = readString(source, i, tokens);
+            } else if (c >= '0' && c <= '9') {
+                int end = i;
+                while (end < length && Character.isDigit(source.charAt(end))) {
+                    end++;
+                }
+                // Octal, long, float and imaginary literals aren't supported
+                if ((c == '0' && end - i > 1) ||
+                        (end < length && (Character.isLetter(source.charAt(end)) || source.charAt(end) == '.'))) {
+                    throw new UnsupportedRuleException("unsupported number at " + i);
+                }
+                final String text = source.substring(i, end);
+                try {
+                    tokens.add(new Token(TokenType.INTEGER, text, Long.valueOf(text)));
+                } catch (NumberFormatException e) {
+                    throw new UnsupportedRuleException("number out of range at " + i);
+                }
+                i = end;
+            } else if (c == '_' || (c < 128 && Character.isLetter(c))) {
+                int end = i + 1;
+                while (end < length && isNameChar(source.charAt(end))) {
+                    end++;
+                }
+                final String text = source.substring(i, end);
+                tokens.add(new Token(TokenType.NAME, text, text));
+                i = end;
+            } else {
+                String operator = null;
+                for (String op : OPERATORS) {
+                    if (source.startsWith(op, i)) {
+                        operator = op;
+                        break;
+                    }
+                }
+                // Includes newlines, continuations and comments
+                if (operator == null) {
+                    throw new UnsupportedRuleException("unsupported character at " + i);
+                }
+                tokens.add(new Token(TokenType.OPERATOR, operator, operator));
+                i += operator.length();
+            }
+        }
+        tokens.add(new Token(TokenType.END, "", null));
+        return tokens;
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '_' || (c < 128 && Character.isLetterOrDigit(c));
+    }
+
+    private static int readString(String source, int start, List<Token> tokens) throws UnsupportedRuleException {
+        final char quote = source.charAt(start);
+        if (source.startsWith(new String(new char[]{quote, quote, quote}), start)) {
+            throw new UnsupportedRuleException("triple quoted string at " + start);
+        }
+        final StringBuilder sb = new StringBuilder();
+        int i = start + 1;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == quote) {
+                final String value = sb.toString();
+                tokens.add(new Token(TokenType.STRING, source.substring(start, i + 1), value));
+                return i + 1;
+            }
+            // Byte string and unicode comparisons can differ for anything other than ASCII
+            if (c >= 128 || c == '\n' || c == '\r') {
+                throw new UnsupportedRuleException("unsupported character in string at " + i);
+            }
+            if (c == '\\') {
+                if (++i >= source.length()) {
+                    break;
+                }
+                switch (source.charAt(i)) {
+                    case '\\':
+                        c = '\\';
+                        break;
+                    case '\'':
+                        c = '\'';
+                        break;
+                    case '"':
+                        c = '"';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    default:
+                        throw new UnsupportedRuleException("unsupported escape in string at " + i);
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        throw new UnsupportedRuleException("unterminated string at " + start);
+    }
+
+    /**
+     * Recursive descent parser following the Python grammar (and precedence) for the supported subset:
+     * <pre>
+     * or_test     ::= and_test ('or' and_test)*
+     * and_test    ::= not_test ('and' not_test)*
+     * not_test    ::= 'not' not_test | comparison
+     * comparison  ::= primary [comp_op primary]
+     * comp_op     ::= '==' | '!=' | '&lt;&gt;' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' | 'in' | 'not' 'in'
+     * primary     ::= atom ('.' NAME '(' [STRING] ')')*
+     * atom        ::= NAME '.' NAME | STRING | ['-'] INTEGER | '(' or_test ')' | '(' literals ')' | '[' literals ']'
+     * </pre>
+     */
+    private static final class Parser {
+        private final List<Token> tokens;
+        private int position = 0;
+
+        private Parser(String source) throws UnsupportedRuleException {
+            this.tokens = tokenize(source);
+        }
+
+        private Token peek() {
+            return tokens.get(position);
+        }
+
+        private Token next() {
+            return tokens.get(position++);
+        }
+
+        private boolean accept(TokenType type, String text) {
+            if (peek().is(type, text)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private Token expect(TokenType type, String text) throws UnsupportedRuleException {
+            final Token token = next();
+            if (token.type != type || (text != null && !token.text.equals(text))) {
+                throw unexpected(token);
+            }
+            return token;
+        }
+
+        private static UnsupportedRuleException unexpected(Token token) {
+            return new UnsupportedRuleException("unexpected " + token);
+        }
+
+        Expr parseRule() throws UnsupportedRuleException {
+            final Expr expr = parseOr();
+            expect(TokenType.END, null);
+            return expr;
+        }
+
+        private Expr parseOr() throws UnsupportedRuleException {
+            final List<Expr> operands = new ArrayList<Expr>();
+            operands.add(parseAnd());
+            while (accept(TokenType.NAME, "or")) {
+                operands.add(parseAnd());
+            }
+            return (operands.size() == 1) ? operands.get(0) : new Junction(false, operands);
+        }
+
+        private Expr parseAnd() throws UnsupportedRuleException {
+            final List<Expr> operands = new ArrayList<Expr>();
+            operands.add(parseNot());
+            while (accept(TokenType.NAME, "and")) {
+                operands.add(parseNot());
+            }
+            return (operands.size() == 1) ? operands.get(0) : new Junction(true, operands);
+        }
+
+        private Expr parseNot() throws UnsupportedRuleException {
+            if (accept(TokenType.NAME, "not")) {
+                return new Not(parseNot());
+            }
+            return parseComparison();
+        }
+
+        private Expr parseComparison() throws UnsupportedRuleException {
+            final Expr left = parsePrimary();
+            final Operator operator = parseOperator();
+            if (operator == null) {
+                return left;
+            }
+            final Expr right = parsePrimary();
+            // Chained comparisons aren't supported
+            if (parseOperator() != null) {
+                throw new UnsupportedRuleException("chained comparison");
+            }
+            checkOperands(operator, left, right);
+            return new Comparison(operator, left, right);
+        }
+
+        private Operator parseOperator() {
+            final Token token = peek();
+            Operator operator = null;
+            if (token.type == TokenType.OPERATOR) {
+                if ("==".equals(token.text)) {
+                    operator = Operator.EQ;
+                } else if ("!=".equals(token.text) || "<>".equals(token.text)) {
+                    operator = Operator.NE;
+                } else if ("<".equals(token.text)) {
+                    operator = Operator.LT;
+                } else if ("<=".equals(token.text)) {
+                    operator = Operator.LE;
+                } else if (">".equals(token.text)) {
+                    operator = Operator.GT;
+                } else if (">=".equals(token.text)) {
+                    operator = Operator.GE;
+                }
+            } else if (token.is(TokenType.NAME, "in")) {
+                operator = Operator.IN;
+            } else if (token.is(TokenType.NAME, "not") && tokens.get(position + 1).is(TokenType.NAME, "in")) {
+                position++;
+                operator = Operator.NOT_IN;
+            }
+            if (operator != null) {
+                position++;
+            }
+            return operator;
+        }
+
+        /**
+         * Only accepts operands whose types give the same result in Java as in Python.
+         */
+        private static void checkOperands(Operator operator, Expr left, Expr right) throws UnsupportedRuleException {
+            final boolean supported;
+            if (operator == Operator.IN || operator == Operator.NOT_IN) {
+                if (right.type == Type.STRING || right.type == Type.LIST) {
+                    supported = (left.type == Type.STRING);
+                } else if (right.type == Type.SET) {
+                    final Set<?> values = (Set<?>) ((Literal) right).value;
+                    final Object first = values.iterator().next();
+                    supported = (left.type == Type.STRING && first instanceof String) ||
+                            (left.type == Type.INTEGER && first instanceof Long);
+                } else {
+                    supported = false;
+                }
+            } else {
+                supported = (left.type == right.type) && (left.type == Type.STRING || left.type == Type.INTEGER);
+            }
+            if (!supported) {
+                throw new UnsupportedRuleException("unsupported operands for " + operator + ": " +
+                        left.type + ", " + right.type);
+            }
+        }
+
+        private Expr parsePrimary() throws UnsupportedRuleException {
+            Expr expr = parseAtom();
+            while (accept(TokenType.OPERATOR, ".")) {
+                final Token name = expect(TokenType.NAME, null);
+                final StringMethod method = StringMethod.forName(name.text);
+                if (expr.type != Type.STRING || method == null) {
+                    throw new UnsupportedRuleException("unsupported method " + name);
+                }
+                expect(TokenType.OPERATOR, "(");
+                String argument = null;
+                if (method.hasArgument) {
+                    argument = (String) expect(TokenType.STRING, null).value;
+                }
+                expect(TokenType.OPERATOR, ")");
+                expr = new StringMethodCall(expr, method, argument);
+            }
+            return expr;
+        }
+
+        private Expr parseAtom() throws UnsupportedRuleException {
+            final Token token = next();
+            switch (token.type) {
+                case STRING:
+                    return new Literal(Type.STRING, token.value);
+                case INTEGER:
+                    return new Literal(Type.INTEGER, token.value);
+                case NAME:
+                    return parseAttribute(token);
+                case OPERATOR:
+                    if ("-".equals(token.text)) {
+                        final Token number = expect(TokenType.INTEGER, null);
+                        return new Literal(Type.INTEGER, -(Long) number.value);
+                    } else if ("(".equals(token.text)) {
+                        if (isLiteral(peek()) && tokens.get(position + 1).is(TokenType.OPERATOR, ",")) {
+                            return parseLiterals(")");
+                        }
+                        final Expr expr = parseOr();
+                        expect(TokenType.OPERATOR, ")");
+                        return expr;
+                    } else if ("[".equals(token.text)) {
+                        return parseLiterals("]");
+                    }
+                    break;
+            }
+            throw unexpected(token);
+        }
+
+        private Expr parseAttribute(Token token) throws UnsupportedRuleException {
+            Namespace namespace = null;
+            for (Namespace ns : Namespace.values()) {
+                if (ns.name.equals(token.text)) {
+                    namespace = ns;
+                }
+            }
+            if (namespace == null) {
+                throw new UnsupportedRuleException("unsupported name " + token);
+            }
+            expect(TokenType.OPERATOR, ".");
+            final Token name = expect(TokenType.NAME, null);
+            if (KEYWORDS.contains(name.text)) {
+                throw unexpected(name);
+            }
+            if (namespace == Namespace.ZP_DET) {
+                return new ZenPackDetail(name.text);
+            }
+            final Field field = Field.forName(namespace, name.text);
+            if (field == null) {
+                throw new UnsupportedRuleException("unsupported attribute " + namespace + "." + name.text);
+            }
+            return new Attribute(namespace, field);
+        }
+
+        private static boolean isLiteral(Token token) {
+            return token.type == TokenType.STRING || token.type == TokenType.INTEGER;
+        }
+
+        /**
+         * Parses a non-empty tuple or list of literals of the same type.
+         */
+        private Expr parseLiterals(String close) throws UnsupportedRuleException {
+            final Set<Object> values = new LinkedHashSet<Object>();
+            TokenType type = null;
+            do {
+                if (peek().is(TokenType.OPERATOR, close) && !values.isEmpty()) {
+                    break;
+                }
+                final Token token = next();
+                if (!isLiteral(token) || (type != null && token.type != type)) {
+                    throw unexpected(token);
+                }
+                type = token.type;
+                values.add(token.value);
+            } while (accept(TokenType.OPERATOR, ","));
+            expect(TokenType.OPERATOR, close);
+            return new Literal(Type.SET, Collections.unmodifiableSet(values));
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import com.google.common.base.Splitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventDetail;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.impl.TriggerRuleCompiler.Field;
+import org.zenoss.zep.impl.TriggerRuleCompiler.Namespace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.zenoss.zep.ZepConstants.*;
+
+/**
+ * The values a trigger rule can reference, read directly from an event summary. These are the same values
+ * (and have the same presence) as the attributes of the objects passed to a rule evaluated by Jython.
+ * Event details are only parsed the first time a device or ZenPack attribute is read.
+ */
+final class TriggerRuleFields {
+
+    private static final Logger logger = LoggerFactory.getLogger(TriggerRuleFields.class);
+
+    private static final Splitter ORGANIZER_SPLITTER = Splitter.on('/').omitEmptyStrings();
+
+    private final EventSummary eventSummary;
+    private final Event event;
+    private final EventActor actor;
+    private final Namespace deviceNamespace;
+
+    private boolean detailsParsed = false;
+    // Match old behavior (pre-4.x)
+    private int productionState = 0;
+    private int devicePriority = DEVICE_PRIORITY_NORMAL;
+    private String ipAddress = "";
+    private List<String> systems = Collections.emptyList();
+    private List<String> groups = Collections.emptyList();
+    private String location = "";
+    private String deviceClass = "";
+    private Map<String, String> zenPackDetails = Collections.emptyMap();
+
+    TriggerRuleFields(EventSummary eventSummary) {
+        this.eventSummary = eventSummary;
+        // extract event data from most recent occurrence
+        this.event = eventSummary.getOccurrence(0);
+        this.actor = event.getActor();
+        // The device attributes are set on the sub-element or element when either is the device
+        if (actor.hasElementSubTypeId() && actor.getElementSubTypeId() == ModelElementType.DEVICE) {
+            this.deviceNamespace = Namespace.SUB_ELEM;
+        } else if (actor.hasElementTypeId() && actor.getElementTypeId() == ModelElementType.DEVICE) {
+            this.deviceNamespace = Namespace.ELEM;
+        } else {
+            this.deviceNamespace = Namespace.DEV;
+        }
+    }
+
+    EventSummary getEventSummary() {
+        return eventSummary;
+    }
+
+    /**
+     * Returns the value of an attribute as a String, Long or List of Strings.
+     *
+     * @param namespace The object the attribute is read from.
+     * @param field The attribute.
+     * @return The value of the attribute, or null if the object doesn't have the attribute.
+     */
+    Object get(Namespace namespace, Field field) {
+        switch (field.getScope()) {
+            case EVENT:
+                return (namespace == Namespace.EVT) ? getEventValue(field) : null;
+            case DEVICE:
+                return (namespace == Namespace.DEV || namespace == deviceNamespace) ? getDeviceValue(field) : null;
+            case ELEMENT:
+                final Namespace element = (namespace == Namespace.DEV) ? deviceNamespace : namespace;
+                if (element == Namespace.ELEM) {
+                    return getElementValue(field, actor.hasElementTypeId(), actor.getElementTypeId(),
+                            actor.hasElementTitle() ? actor.getElementTitle() : null,
+                            actor.hasElementIdentifier() ? actor.getElementIdentifier() : null,
+                            actor.hasElementUuid() ? actor.getElementUuid() : null);
+                } else if (element == Namespace.SUB_ELEM) {
+                    return getElementValue(field, actor.hasElementSubTypeId(), actor.getElementSubTypeId(),
+                            actor.hasElementSubTitle() ? actor.getElementSubTitle() : null,
+                            actor.hasElementSubIdentifier() ? actor.getElementSubIdentifier() : null,
+                            actor.hasElementSubUuid() ? actor.getElementSubUuid() : null);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the value of a ZenPack detail, or null if the event doesn't have the detail.
+     */
+    String getZenPackDetail(String name) {
+        parseDetails();
+        return zenPackDetails.get(name);
+    }
+
+    private Object getEventValue(Field field) {
+        switch (field) {
+            case SUMMARY:
+                return event.getSummary();
+            case MESSAGE:
+                return event.getMessage();
+            case EVENT_CLASS:
+                return event.getEventClass();
+            case FINGERPRINT:
+                return event.getFingerprint();
+            case EVENT_KEY:
+                return event.getEventKey();
+            case AGENT:
+                return event.getAgent();
+            case MONITOR:
+                return event.getMonitor();
+            case SEVERITY:
+                return (long) event.getSeverity().getNumber();
+            case EVENT_CLASS_KEY:
+                return event.getEventClassKey();
+            case SYSLOG_PRIORITY:
+                return event.hasSyslogPriority() ? (long) event.getSyslogPriority().getNumber() : null;
+            case SYSLOG_FACILITY:
+                return event.hasSyslogFacility() ? (long) event.getSyslogFacility() : null;
+            case NT_EVENT_CODE:
+                return event.hasNtEventCode() ? (long) event.getNtEventCode() : null;
+            case STATUS:
+                return (long) eventSummary.getStatus().getNumber();
+            case COUNT:
+                return (long) eventSummary.getCount();
+            case CURRENT_USER_NAME:
+                return eventSummary.getCurrentUserName();
+            default:
+                return null;
+        }
+    }
+
+    private Object getDeviceValue(Field field) {
+        parseDetails();
+        switch (field) {
+            case DEVICE_CLASS:
+                return deviceClass;
+            case PRODUCTION_STATE:
+                return (long) productionState;
+            case PRIORITY:
+                return (long) devicePriority;
+            case GROUPS:
+                return groups;
+            case SYSTEMS:
+                return systems;
+            case IP_ADDRESS:
+                return ipAddress;
+            case LOCATION:
+                return location;
+            default:
+                return null;
+        }
+    }
+
+    private static Object getElementValue(Field field, boolean hasType, ModelElementType type, String title,
+                                          String id, String uuid) {
+        // Elements without a type still have an empty name and uuid
+        switch (field) {
+            case NAME:
+                if (hasType) {
+                    final String name = (title != null) ? title : id;
+                    return (name != null) ? name : "";
+                }
+                return "";
+            case UUID:
+                return (hasType && uuid != null) ? uuid : "";
+            case TYPE:
+                return hasType ? type.name() : null;
+            default:
+                return null;
+        }
+    }
+
+    int getProductionState() {
+        parseDetails();
+        return productionState;
+    }
+
+    int getDevicePriority() {
+        parseDetails();
+        return devicePriority;
+    }
+
+    String getIpAddress() {
+        parseDetails();
+        return ipAddress;
+    }
+
+    List<String> getSystems() {
+        parseDetails();
+        return systems;
+    }
+
+    List<String> getGroups() {
+        parseDetails();
+        return groups;
+    }
+
+    String getLocation() {
+        parseDetails();
+        return location;
+    }
+
+    String getDeviceClass() {
+        parseDetails();
+        return deviceClass;
+    }
+
+    Map<String, String> getZenPackDetails() {
+        parseDetails();
+        return zenPackDetails;
+    }
+
+    private void parseDetails() {
+        if (detailsParsed) {
+            return;
+        }
+        detailsParsed = true;
+        for (EventDetail detail : event.getDetailsList()) {
+            final String detailName = detail.getName();
+            // This should never happen
+            if (detail.getValueCount() == 0) {
+                continue;
+            }
+            final String singleDetailValue = detail.getValue(0);
+
+            if (DETAIL_DEVICE_PRODUCTION_STATE.equals(detailName)) {
+                try {
+                    productionState = Integer.parseInt(singleDetailValue);
+                } catch (NumberFormatException e) {
+                    logger.warn("Failed retrieving production state", e);
+                }
+            }
+            else if (DETAIL_DEVICE_PRIORITY.equals(detailName)) {
+                try {
+                    devicePriority = Integer.parseInt(singleDetailValue);
+                } catch (NumberFormatException e) {
+                    logger.warn("Failed retrieving device priority", e);
+                }
+            }
+            else if (DETAIL_DEVICE_CLASS.equals(detailName)) {
+                // expect that this is a single-value detail.
+                deviceClass = singleDetailValue;
+            }
+            else if (DETAIL_DEVICE_SYSTEMS.equals(detailName)) {
+                // expect that this is a multi-value detail.
+                systems = includeParentOrganizers(detail.getValueList());
+            }
+            else if (DETAIL_DEVICE_GROUPS.equals(detailName)) {
+                // expect that this is a multi-value detail.
+                groups = includeParentOrganizers(detail.getValueList());
+            }
+            else if (DETAIL_DEVICE_IP_ADDRESS.equals(detailName)) {
+                // expect that this is a single-value detail.
+                ipAddress = singleDetailValue;
+            }
+            else if (DETAIL_DEVICE_LOCATION.equals(detailName)) {
+                // expect that this is a single-value detail.
+                location = singleDetailValue;
+            }
+            else {
+                // Custom details added by ZenPacks, we replace the dots by underscore and add them
+                // to the zp details. The UI did the same when the rule was created
+                if (zenPackDetails.isEmpty()) {
+                    zenPackDetails = new HashMap<String, String>();
+                }
+                zenPackDetails.put(detailName.replace('.', '_'), singleDetailValue);
+            }
+        }
+    }
+
+    /**
+     * Given a list of organizers, returns a list containing those same organizers plus
+     * any parent organizers. For example, ['/First/Second/Third','/OtherFirst/OtherSecond']
+     * will return ['/First', '/First/Second', '/First/Second/Third', '/OtherFirst',
+     * '/OtherFirst/OtherSecond'].
+     *
+     * @param baseOrganizers List of most-specific organizer names.
+     * @return A list containing all of the organizers plus their parent organizers.
+     */
+    static List<String> includeParentOrganizers(List<String> baseOrganizers) {
+        Set<String> allOrganizers = new TreeSet<String>();
+        for (String organizer : baseOrganizers) {
+            final StringBuilder sb = new StringBuilder(organizer.length());
+            for (String subOrganizer : ORGANIZER_SPLITTER.split(organizer)) {
+                sb.append('/').append(subOrganizer);
+                allOrganizers.add(sb.toString());
+            }
+        }
+        return new ArrayList<String>(allOrganizers);
+    }
+}
@@ -0,0 +1,424 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.zep.impl.TriggerRuleCompiler.CompiledRule;
+import org.zenoss.zep.impl.TriggerRuleCompiler.Expr;
+import org.zenoss.zep.impl.TriggerRuleCompiler.Junction;
+import org.zenoss.zep.impl.TriggerRuleCompiler.MissingAttributeException;
+import org.zenoss.zep.impl.TriggerRuleCompiler.Not;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Matches events against the rules of all enabled triggers at once.
+ * <p/>
+ * Each compiled rule is split into the conditions joined by its top-level <code>and</code>. Every distinct
+ * sub-expression of those conditions (keyed by its canonical form) becomes a single node shared by all of the
+ * rules which contain it, so each distinct predicate is evaluated only once per event. A node remembers which
+ * triggers need it to be true and which need it to be false as bit sets, and the matching triggers are found by
+ * clearing those bits for each node with the wrong result.
+ * <p/>
+ * The index is updated incrementally with the current list of enabled triggers: only triggers which were added,
+ * removed or had their rule changed are compiled or removed. Rules which can't be compiled are left to the caller
+ * to evaluate with Jython.
+ */
+public class TriggerRuleIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(TriggerRuleIndex.class);
+
+    /* Results of evaluating a node. MISSING means the node read an attribute the event doesn't have. */
+    static final byte FALSE = 0;
+    static final byte TRUE = 1;
+    static final byte MISSING = 2;
+
+    private abstract static class Node {
+        private final String key;
+        private final int id;
+        private int references = 1;
+        private BitSet positive;
+        private BitSet negative;
+
+        private Node(String key, int id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        abstract byte evaluate(TriggerRuleFields fields, byte[] values);
+
+        abstract Node[] getChildren();
+    }
+
+    private static final class PredicateNode extends Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+        private final Expr expr;
+
+        private PredicateNode(String key, int id, Expr expr) {
+            super(key, id);
+            this.expr = expr;
+        }
+
+        @Override
+        byte evaluate(TriggerRuleFields fields, byte[] values) {
+            try {
+                return expr.test(fields) ? TRUE : FALSE;
+            } catch (MissingAttributeException e) {
+                return MISSING;
+            }
+        }
+
+        @Override
+        Node[] getChildren() {
+            return NO_CHILDREN;
+        }
+    }
+
+    private static final class NotNode extends Node {
+        private final Node operand;
+
+        private NotNode(String key, int id, Node operand) {
+            super(key, id);
+            this.operand = operand;
+        }
+
+        @Override
+        byte evaluate(TriggerRuleFields fields, byte[] values) {
+            final byte value = values[operand.id];
+            return (value == MISSING) ? MISSING : (value == TRUE) ? FALSE : TRUE;
+        }
+
+        @Override
+        Node[] getChildren() {
+            return new Node[] { operand };
+        }
+    }
+
+    private static final class JunctionNode extends Node {
+        private final boolean and;
+        private final Node[] operands;
+
+        private JunctionNode(String key, int id, boolean and, Node[] operands) {
+            super(key, id);
+            this.and = and;
+            this.operands = operands;
+        }
+
+        @Override
+        byte evaluate(TriggerRuleFields fields, byte[] values) {
+            // Operands after the first one which decides the result (or is missing) are never evaluated by Python
+            final byte decided = and ? FALSE : TRUE;
+            for (Node operand : operands) {
+                final byte value = values[operand.id];
+                if (value == decided || value == MISSING) {
+                    return value;
+                }
+            }
+            return and ? TRUE : FALSE;
+        }
+
+        @Override
+        Node[] getChildren() {
+            return operands;
+        }
+    }
+
+    private static final class Condition {
+        private final Node node;
+        private final boolean positive;
+
+        private Condition(Node node, boolean positive) {
+            this.node = node;
+            this.positive = positive;
+        }
+    }
+
+    private static final class IndexedTrigger {
+        private final String ruleSource;
+        /* The bit used for the trigger, or -1 if the rule isn't compiled. */
+        private final int slot;
+        private final List<Condition> conditions;
+
+        private IndexedTrigger(String ruleSource, int slot, List<Condition> conditions) {
+            this.ruleSource = ruleSource;
+            this.slot = slot;
+            this.conditions = conditions;
+        }
+    }
+
+    /**
+     * The result of matching an event against the index.
+     */
+    public static final class Match {
+        private final Map<String, IndexedTrigger> triggers;
+        private final BitSet matched;
+
+        private Match(Map<String, IndexedTrigger> triggers, BitSet matched) {
+            this.triggers = triggers;
+            this.matched = matched;
+        }
+
+        /**
+         * Returns whether the event matches the trigger's rule.
+         *
+         * @param triggerUuid The trigger UUID.
+         * @param ruleSource The trigger's rule source.
+         * @return True or false if the rule was compiled and indexed when the event was matched, otherwise null
+         *         (the rule must be evaluated with Jython).
+         */
+        public Boolean matches(String triggerUuid, String ruleSource) {
+            final IndexedTrigger trigger = triggers.get(triggerUuid);
+            if (trigger == null || trigger.slot < 0 || !trigger.ruleSource.equals(ruleSource)) {
+                return null;
+            }
+            return matched.get(trigger.slot);
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /* Nodes are added after their children and removed before them, so this is always in evaluation order. */
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private final BitSet nodeIds = new BitSet();
+    private final BitSet compiledTriggers = new BitSet();
+    private volatile Map<String, IndexedTrigger> triggers = Collections.emptyMap();
+
+    /**
+     * Updates the index to contain the rules of the specified triggers. Triggers which are no longer in the list are
+     * removed from the index.
+     *
+     * @param enabledTriggers The enabled triggers.
+     */
+    public void update(Collection<EventTrigger> enabledTriggers) {
+        final Map<String, String> rules = new HashMap<String, String>(enabledTriggers.size());
+        boolean changed = false;
+        final Map<String, IndexedTrigger> current = this.triggers;
+        for (EventTrigger trigger : enabledTriggers) {
+            if (!(trigger.hasRule() && trigger.getRule().hasSource())) {
+                continue;
+            }
+            final String ruleSource = trigger.getRule().getSource();
+            rules.put(trigger.getUuid(), ruleSource);
+            final IndexedTrigger indexed = current.get(trigger.getUuid());
+            if (indexed == null || !indexed.ruleSource.equals(ruleSource)) {
+                changed = true;
+            }
+        }
+        if (!changed && rules.size() == current.size()) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            final Map<String, IndexedTrigger> updated = new HashMap<String, IndexedTrigger>(this.triggers);
+            int removed = 0, added = 0;
+            for (Map.Entry<String, IndexedTrigger> entry : this.triggers.entrySet()) {
+                if (!entry.getValue().ruleSource.equals(rules.get(entry.getKey()))) {
+                    remove(entry.getValue());
+                    updated.remove(entry.getKey());
+                    ++removed;
+                }
+            }
+            for (Map.Entry<String, String> entry : rules.entrySet()) {
+                if (!updated.containsKey(entry.getKey())) {
+                    updated.put(entry.getKey(), add(entry.getValue()));
+                    ++added;
+                }
+            }
+            this.triggers = Collections.unmodifiableMap(updated);
+            logger.debug("Updated trigger rule index: {} added, {} removed, {} compiled rules, {} predicates",
+                    new Object[] { added, removed, compiledTriggers.cardinality(), nodes.size() });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private IndexedTrigger add(String ruleSource) {
+        final CompiledRule rule = TriggerRuleCompiler.compile(ruleSource);
+        if (rule == null) {
+            return new IndexedTrigger(ruleSource, -1, Collections.<Condition>emptyList());
+        }
+        final int slot = compiledTriggers.nextClearBit(0);
+        compiledTriggers.set(slot);
+        final List<Condition> conditions = new ArrayList<Condition>();
+        addConditions(rule.getExpr(), conditions);
+        for (Condition condition : conditions) {
+            final Node node = condition.node;
+            if (condition.positive) {
+                if (node.positive == null) {
+                    node.positive = new BitSet();
+                }
+                node.positive.set(slot);
+            } else {
+                if (node.negative == null) {
+                    node.negative = new BitSet();
+                }
+                node.negative.set(slot);
+            }
+        }
+        return new IndexedTrigger(ruleSource, slot, conditions);
+    }
+
+    /**
+     * A rule matches if every operand of its top-level <code>and</code> is true - if any is false or missing the
+     * rule is false no matter which operand Python would have stopped at.
+     */
+    private void addConditions(Expr expr, List<Condition> conditions) {
+        if (expr instanceof Junction && ((Junction) expr).isAnd()) {
+            for (Expr operand : ((Junction) expr).getOperands()) {
+                addConditions(operand, conditions);
+            }
+        } else if (expr instanceof Not) {
+            conditions.add(new Condition(intern(((Not) expr).getOperand()), false));
+        } else {
+            conditions.add(new Condition(intern(expr), true));
+        }
+    }
+
+    private Node intern(Expr expr) {
+        final String key = expr.toString();
+        Node node = nodes.get(key);
+        if (node != null) {
+            ++node.references;
+            return node;
+        }
+        if (expr instanceof Not) {
+            final Node operand = intern(((Not) expr).getOperand());
+            node = new NotNode(key, nextNodeId(), operand);
+        } else if (expr instanceof Junction) {
+            final List<Expr> operands = ((Junction) expr).getOperands();
+            final Node[] children = new Node[operands.size()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = intern(operands.get(i));
+            }
+            node = new JunctionNode(key, nextNodeId(), ((Junction) expr).isAnd(), children);
+        } else {
+            node = new PredicateNode(key, nextNodeId(), expr);
+        }
+        nodes.put(key, node);
+        return node;
+    }
+
+    private int nextNodeId() {
+        final int id = nodeIds.nextClearBit(0);
+        nodeIds.set(id);
+        return id;
+    }
+
+    private void remove(IndexedTrigger trigger) {
+        if (trigger.slot < 0) {
+            return;
+        }
+        for (Condition condition : trigger.conditions) {
+            final Node node = condition.node;
+            if (condition.positive) {
+                node.positive.clear(trigger.slot);
+                if (node.positive.isEmpty()) {
+                    node.positive = null;
+                }
+            } else {
+                node.negative.clear(trigger.slot);
+                if (node.negative.isEmpty()) {
+                    node.negative = null;
+                }
+            }
+            release(node);
+        }
+        compiledTriggers.clear(trigger.slot);
+    }
+
+    private void release(Node node) {
+        if (--node.references > 0) {
+            return;
+        }
+        nodes.remove(node.key);
+        nodeIds.clear(node.id);
+        for (Node child : node.getChildren()) {
+            release(child);
+        }
+    }
+
+    /**
+     * Matches an event against the compiled rules in the index.
+     *
+     * @param fields The event.
+     * @return The triggers matching the event.
+     */
+    public Match match(TriggerRuleFields fields) {
+        lock.readLock().lock();
+        try {
+            final BitSet matched = (BitSet) compiledTriggers.clone();
+            final byte[] values = new byte[nodeIds.length()];
+            for (Node node : nodes.values()) {
+                if (matched.isEmpty()) {
+                    break;
+                }
+                final byte value = node.evaluate(fields, values);
+                values[node.id] = value;
+                if (node.positive != null && value != TRUE) {
+                    matched.andNot(node.positive);
+                }
+                if (node.negative != null && value != FALSE) {
+                    matched.andNot(node.negative);
+                }
+            }
+            return new Match(this.triggers, matched);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of indexed triggers whose rules are compiled.
+     */
+    public int getCompiledTriggerCount() {
+        lock.readLock().lock();
+        try {
+            return compiledTriggers.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of indexed triggers whose rules have to be evaluated with Jython.
+     */
+    public int getFallbackTriggerCount() {
+        lock.readLock().lock();
+        try {
+            return this.triggers.size() - compiledTriggers.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct predicates and sub-expressions evaluated for each event.
+     */
+    public int getNodeCount() {
+        lock.readLock().lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.zenoss.zep.ZepException;
 import org.zenoss.zep.dao.Purgable;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * DAO for Event Index.
@@ -154,6 +155,17 @@ public interface EventIndexDao extends Purgable {
      */
     public void clear() throws ZepException;
 
+    /**
+     * Re-indexes the indexed events which have any of the specified details, so details which were added to the
+     * indexed details configuration (or changed type) are indexed on existing events without rebuilding the
+     * index. The migration runs in the background.
+     *
+     * @param detailKeys The keys of the added or changed indexed details.
+     * @return True if the migration was scheduled, false if it can't be (the index must be rebuilt instead).
+     * @throws ZepException If the migration can't be scheduled.
+     */
+    public boolean migrateDetails(Set<String> detailKeys) throws ZepException;
+
     /**
      * Returns event tag severities for the specified filter. If the filter specifies
      * tags, then there will be one EventTagSeverities object returned in the
@@ -22,14 +22,24 @@ public final class EventIndexBackendConfiguration implements Cloneable {
     private volatile Boolean asyncUpdates;
     private volatile Boolean honorDeletes;
     private volatile Integer batchSize;
+    private volatile Integer workerShards;
     private volatile Long lastCleared;
     private volatile Long lastRebuilt;
 
     public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_WORKER_SHARDS = 1;
 
     public static EventIndexBackendConfiguration createInstance(boolean enabled, String name, EventIndexBackend backend,
                                                               BackendStatus status, boolean asyncUpdates,
                                                               boolean honorDeletes, int batchSize) throws Exception {
+        return createInstance(enabled, name, backend, status, asyncUpdates, honorDeletes, batchSize,
+                DEFAULT_WORKER_SHARDS);
+    }
+
+    public static EventIndexBackendConfiguration createInstance(boolean enabled, String name, EventIndexBackend backend,
+                                                              BackendStatus status, boolean asyncUpdates,
+                                                              boolean honorDeletes, int batchSize,
+                                                              int workerShards) throws Exception {
 
         if (!enabled){
             return null;
@@ -46,6 +56,7 @@ public final class EventIndexBackendConfiguration implements Cloneable {
         result.setAsyncUpdates(asyncUpdates);
         result.setHonorDeletes(honorDeletes);
         result.setBatchSize(batchSize);
+        result.setWorkerShards(workerShards);
         return result;
     }
 
@@ -82,6 +93,13 @@ public final class EventIndexBackendConfiguration implements Cloneable {
         this.batchSize = batchSize;
     }
 
+    /**
+     * Sets the number of work queue shards for asynchronous updates, each drained by its own worker thread.
+     */
+    public void setWorkerShards(int workerShards) {
+        this.workerShards = workerShards;
+    }
+
     public void setLastRebuilt(long lastRebuilt) {
         this.lastRebuilt = lastRebuilt;
     }
@@ -118,6 +136,10 @@ public final class EventIndexBackendConfiguration implements Cloneable {
         return batchSize == null ? DEFAULT_BATCH_SIZE : batchSize;
     }
 
+    public int getWorkerShards() {
+        return (workerShards == null || workerShards < 1) ? DEFAULT_WORKER_SHARDS : workerShards;
+    }
+
     public Long getLastRebuilt() {
         return lastRebuilt;
     }
@@ -146,6 +168,7 @@ public final class EventIndexBackendConfiguration implements Cloneable {
         if (lastRebuilt != null) map.put("lastRebuilt", lastRebuilt.toString());
         if (lastCleared != null) map.put("lastCleared", lastCleared.toString());
         if (batchSize != null) map.put("batchSize", batchSize.toString());
+        if (workerShards != null) map.put("workerShards", workerShards.toString());
         try {
             sb.append(mapper.writeValueAsString(map));
         } catch (IOException e) {
@@ -218,6 +241,14 @@ public final class EventIndexBackendConfiguration implements Cloneable {
                     // ignore it
                 }
             }
+
+            if (map.get("workerShards") != null) {
+                try {
+                    result.workerShards = Integer.parseInt(map.get("workerShards"), 10);
+                } catch (RuntimeException e) {
+                    // ignore it
+                }
+            }
             return result;
         }
         else return null;
@@ -246,5 +277,7 @@ public final class EventIndexBackendConfiguration implements Cloneable {
         }
         if (that.batchSize != null)
             this.batchSize = that.batchSize;
+        if (that.workerShards != null)
+            this.workerShards = that.workerShards;
     }
 }
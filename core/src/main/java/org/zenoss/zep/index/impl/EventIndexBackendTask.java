@@ -1,7 +1,35 @@
 package org.zenoss.zep.index.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
 public final class EventIndexBackendTask {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /*
+     * Binary encoding (version 2):
+     *
+     *   byte     version (BINARY_VERSION)
+     *   byte     op ordinal, OR'ed with FLAG_LAST_SEEN, FLAG_STRING_UUID and FLAG_UUID
+     *   byte[16] uuid (most significant bits first) if FLAG_UUID, or a varint length and UTF-8 bytes if
+     *            FLAG_STRING_UUID, or nothing if the task has no uuid
+     *   varint   lastSeen (if FLAG_LAST_SEEN)
+     *
+     * Version 1 had no FLAG_UUID: the 16 bytes of the uuid followed the op byte of every INDEX_EVENT task without
+     * FLAG_STRING_UUID. Tasks queued by version 1 are still decoded that way.
+     *
+     * The text encoding always starts with "op:", so the first byte distinguishes the formats.
+     */
+    static final byte BINARY_VERSION = 2;
+    private static final byte BINARY_VERSION_1 = 1;
+    private static final int FLAG_LAST_SEEN = 0x80;
+    private static final int FLAG_STRING_UUID = 0x40;
+    private static final int FLAG_UUID = 0x20;
+    private static final int OP_MASK = 0x1f;
+
     public enum Op {FLUSH, INDEX_EVENT}
 
     public final Op op;
@@ -53,4 +81,113 @@ public final class EventIndexBackendTask {
             throw new IllegalArgumentException("Unparsable task: " + s, e);
         }
     }
+
+    /**
+     * Returns the compact binary encoding of the task.
+     *
+     * @return The encoded task.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        out.write(BINARY_VERSION);
+        UUID parsedUuid = null;
+        if (uuid != null) {
+            try {
+                parsedUuid = UUID.fromString(uuid);
+                if (!parsedUuid.toString().equals(uuid)) {
+                    parsedUuid = null;
+                }
+            } catch (IllegalArgumentException e) {
+                // Not in canonical form - stored as a string
+            }
+        }
+        int opByte = op.ordinal();
+        if (lastSeen != null)
+            opByte |= FLAG_LAST_SEEN;
+        if (parsedUuid != null)
+            opByte |= FLAG_UUID;
+        else if (uuid != null)
+            opByte |= FLAG_STRING_UUID;
+        out.write(opByte);
+        if (parsedUuid != null) {
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            buf.putLong(parsedUuid.getMostSignificantBits());
+            buf.putLong(parsedUuid.getLeastSignificantBits());
+            out.write(buf.array(), 0, 16);
+        } else if (uuid != null) {
+            byte[] bytes = uuid.getBytes(UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        if (lastSeen != null)
+            writeVarint(out, lastSeen);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns true if the encoded task uses the legacy text encoding.
+     *
+     * @param bytes The encoded task.
+     * @return True if the task is encoded as text.
+     */
+    public static boolean isLegacyEncoding(byte[] bytes) {
+        return bytes.length == 0 || (bytes[0] != BINARY_VERSION && bytes[0] != BINARY_VERSION_1);
+    }
+
+    /**
+     * Decodes a task in either the binary or the legacy text encoding.
+     *
+     * @param bytes The encoded task.
+     * @return The decoded task.
+     * @throws IllegalArgumentException If the task can't be decoded.
+     */
+    public static EventIndexBackendTask parseBytes(byte[] bytes) {
+        if (isLegacyEncoding(bytes)) {
+            return parse(new String(bytes, UTF_8));
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+            int opByte = buf.get() & 0xff;
+            Op[] ops = Op.values();
+            int ordinal = opByte & OP_MASK;
+            if (ordinal >= ops.length)
+                throw new IllegalArgumentException("Unknown op: " + ordinal);
+            Op op = ops[ordinal];
+            String uuid = null;
+            if ((opByte & FLAG_STRING_UUID) != 0) {
+                byte[] uuidBytes = new byte[(int) readVarint(buf)];
+                buf.get(uuidBytes);
+                uuid = new String(uuidBytes, UTF_8);
+            } else if ((opByte & FLAG_UUID) != 0 || (bytes[0] == BINARY_VERSION_1 && op == Op.INDEX_EVENT)) {
+                uuid = new UUID(buf.getLong(), buf.getLong()).toString();
+            }
+            Long lastSeen = null;
+            if ((opByte & FLAG_LAST_SEEN) != 0)
+                lastSeen = readVarint(buf);
+            return new EventIndexBackendTask(op, uuid, lastSeen);
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException)
+                throw (IllegalArgumentException) e;
+            throw new IllegalArgumentException("Unparsable task of " + bytes.length + " bytes", e);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
 }
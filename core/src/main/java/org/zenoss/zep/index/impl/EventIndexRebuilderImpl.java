@@ -17,6 +17,7 @@ import org.zenoss.protobufs.zep.Zep.EventDetailItem;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.protobufs.zep.Zep.ZepConfig;
 import org.zenoss.zep.ZepException;
+import org.zenoss.zep.ZepUtils;
 import org.zenoss.zep.dao.*;
 import org.zenoss.zep.dao.impl.DaoUtils;
 import org.zenoss.zep.events.IndexRebuildRequiredEvent;
@@ -27,10 +28,17 @@ import org.zenoss.zep.index.EventIndexer;
 import org.zenoss.zep.index.IndexedDetailsConfiguration;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -58,7 +66,9 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
     private volatile boolean configurationChanged = false;
     private final Object lock = new Object();
     private byte[] indexVersionHash;
+    private Map<String,EventDetailItem> indexedDetails;
     private File indexStateFile;
+    private File indexDetailsFile;
 
     public EventIndexRebuilderImpl(boolean enableIndexing) {
         this.enableIndexing = enableIndexing;
@@ -76,9 +86,7 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
                 while (!shutdown) {
                     try {
                         configurationChanged = false;
-                        Map<String,EventDetailItem> detailItems =
-                                indexedDetailsConfiguration.getEventDetailItemsByName();
-                        indexVersionHash = calculateIndexVersionHash(detailItems);
+                        setIndexedDetails(indexedDetailsConfiguration.getEventDetailItemsByName());
                         recreateIndexIfNeeded();
 
                         // Wait to be interrupted if the configuration changes for the index
@@ -111,6 +119,7 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
 
     public void setIndexDir(File indexDir) {
         this.indexStateFile = new File(indexDir, ".index_state_" + indexDao.getName() + ".properties");
+        this.indexDetailsFile = new File(indexDir, ".index_details_" + indexDao.getName() + ".properties");
         if (this.enableIndexing) {
             File parentDir = this.indexStateFile.getParentFile();
             if (!parentDir.isDirectory() && !parentDir.mkdirs()) {
@@ -143,21 +152,37 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
         this.indexedDetailsConfiguration = indexedDetailsConfiguration;
     }
 
+    void setIndexedDetails(Map<String,EventDetailItem> detailItems) throws ZepException {
+        this.indexedDetails = detailItems;
+        this.indexVersionHash = calculateIndexVersionHash(indexedDetailTypes(detailItems));
+    }
+
+    byte[] getIndexVersionHash() {
+        return this.indexVersionHash;
+    }
+
     private void deleteStateFile() {
         if (this.indexStateFile.isFile() && !this.indexStateFile.delete()) {
             logger.info("Failed to remove index rebuild state file");
         }
     }
 
-    private static byte[] calculateIndexVersionHash(Map<String,EventDetailItem> detailItems) throws ZepException {
-        TreeMap<String,EventDetailItem> sorted = new TreeMap<String,EventDetailItem>(detailItems);
+    private static SortedMap<String,String> indexedDetailTypes(Map<String,EventDetailItem> detailItems) {
+        // Only key and type affect the indexing behavior - ignore changes to display name
+        SortedMap<String,String> types = new TreeMap<String,String>();
+        for (EventDetailItem item : detailItems.values()) {
+            types.put(item.getKey(), item.getType().name());
+        }
+        return types;
+    }
+
+    private static byte[] calculateIndexVersionHash(SortedMap<String,String> detailTypes) throws ZepException {
         StringBuilder indexConfigStr = new StringBuilder();
-        for (EventDetailItem item : sorted.values()) {
-            // Only key and type affect the indexing behavior - ignore changes to display name
+        for (Map.Entry<String,String> entry : detailTypes.entrySet()) {
             indexConfigStr.append('|');
-            indexConfigStr.append(item.getKey());
+            indexConfigStr.append(entry.getKey());
             indexConfigStr.append('|');
-            indexConfigStr.append(item.getType().name());
+            indexConfigStr.append(entry.getValue());
             indexConfigStr.append('|');
         }
         if (indexConfigStr.length() == 0) {
@@ -166,6 +191,72 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
         return DaoUtils.sha1(indexConfigStr.toString());
     }
 
+    /**
+     * Loads the indexed details the index was last built or migrated with.
+     *
+     * @return The types of the indexed details by key, or null if they aren't known.
+     */
+    private SortedMap<String,String> loadIndexedDetails() {
+        if (!this.indexDetailsFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(this.indexDetailsFile);
+            properties.load(fis);
+        } catch (IOException e) {
+            logger.warn("Failed to load indexed details from: " + this.indexDetailsFile.getAbsolutePath(), e);
+            return null;
+        } finally {
+            ZepUtils.close(fis);
+        }
+        SortedMap<String,String> types = new TreeMap<String,String>();
+        for (String key : properties.stringPropertyNames()) {
+            types.put(key, properties.getProperty(key));
+        }
+        return types;
+    }
+
+    void saveIndexedDetails() {
+        Properties properties = new Properties();
+        properties.putAll(indexedDetailTypes(this.indexedDetails));
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(this.indexDetailsFile);
+            properties.store(fos, "ZEP Internal Indexed Details - Do Not Modify");
+        } catch (IOException e) {
+            logger.warn("Failed to save indexed details to: " + this.indexDetailsFile.getAbsolutePath(), e);
+        } finally {
+            ZepUtils.close(fos);
+        }
+    }
+
+    /**
+     * Finds the indexed details which have to be migrated when only the indexed details configuration changed.
+     *
+     * @param indexMetadata The metadata of the existing index.
+     * @return The keys of the added details and the details whose type changed, or null if the index must be
+     *         rebuilt (the details the index was built with aren't known).
+     */
+    Set<String> detailsToMigrate(IndexMetadata indexMetadata) throws ZepException {
+        if (IndexConstants.INDEX_VERSION != indexMetadata.getIndexVersion()) {
+            return null;
+        }
+        final SortedMap<String,String> previous = loadIndexedDetails();
+        if (previous == null ||
+                !Arrays.equals(calculateIndexVersionHash(previous), indexMetadata.getIndexVersionHash())) {
+            return null;
+        }
+        final Set<String> changed = new TreeSet<String>();
+        for (Map.Entry<String,String> entry : indexedDetailTypes(this.indexedDetails).entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
     public void shutdown() throws InterruptedException {
         this.shutdown = true;
         synchronized (this.lock) {
@@ -182,12 +273,13 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
         this.executorService.awaitTermination(0, TimeUnit.SECONDS);
     }
 
-    private void recreateIndexIfNeeded() throws ZepException, InterruptedException {
+    void recreateIndexIfNeeded() throws ZepException, InterruptedException {
         final IndexMetadata indexMetadata = indexMetadataDao.findIndexMetadata(indexDao.getName());
         final int numDocs = indexDao.getNumDocs();
 
         boolean recreateIndex = false;
         IndexRebuildState indexRebuildState = null;
+        Set<String> detailsToMigrate = null;
 
         // Stop the event indexer if it is currently running.
         eventIndexer.stop();
@@ -207,7 +299,7 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
             deleteStateFile();
             recreateIndex = true;
         }
-        // Recreate index if the version number or indexed details changed
+        // Recreate index if the version number changed, migrate it if only the indexed details changed
         else {
             recreateIndex = false;
             try {
@@ -215,17 +307,32 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
             } catch (Exception e) {
                 logger.warn("Failed to restore index rebuild state from: " + this.indexStateFile.getAbsolutePath(), e);
             }
+            final boolean versionChanged = indexVersionChanged(indexMetadata);
             if (indexRebuildState != null) {
                 recreateIndex = true;
-                if (indexVersionChanged(indexMetadata)) {
+                if (versionChanged) {
                     if (indexRebuildState.getIndexVersion() != IndexConstants.INDEX_VERSION ||
                             !Arrays.equals(indexRebuildState.getIndexVersionHash(), this.indexVersionHash)) {
                         // We have state from an previous version / hash - ignore it
                         indexRebuildState = null;
                         deleteStateFile();
+                        detailsToMigrate = detailsToMigrate(indexMetadata);
+                        recreateIndex = (detailsToMigrate == null);
                     }
                 }
             }
+            else if (IndexConstants.INDEX_VERSION != indexMetadata.getIndexVersion()) {
+                // The fields of the index changed - rebuild it, even with no interrupted rebuild to resume
+                recreateIndex = true;
+            }
+            else if (versionChanged) {
+                detailsToMigrate = detailsToMigrate(indexMetadata);
+                recreateIndex = (detailsToMigrate == null);
+            }
+            else if (!this.indexDetailsFile.isFile()) {
+                // Index built by an earlier version - record the details it was built with
+                saveIndexedDetails();
+            }
         }
 
         if (recreateIndex) {
@@ -245,7 +352,35 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
         else {
             // Start the event indexer - we have done all the necessary initialization.
             eventIndexer.start(this.configDao.getConfig());
+
+            if (detailsToMigrate != null) {
+                migrateIndexedDetails(detailsToMigrate);
+            }
+        }
+    }
+
+    /**
+     * Updates the index for a change which only affects the indexed details. Removed details are no longer
+     * queried, so only the indexed events which have an added (or changed) detail are re-indexed, in the
+     * background. The index is rebuilt if the migration can't be scheduled.
+     */
+    private void migrateIndexedDetails(Set<String> detailKeys) throws ZepException {
+        if (detailKeys.isEmpty()) {
+            logger.info("Indexed details removed from {} - no migration needed", indexDao.getName());
+        }
+        else if (indexDao.migrateDetails(detailKeys)) {
+            logger.info("Migrating indexed details {} on {}", detailKeys, indexDao.getName());
+        }
+        else {
+            logger.info("Unable to migrate indexed details on {} - recreating index", indexDao.getName());
+            byte[] checksum = new byte[20];
+            Arrays.fill(checksum, (byte) 0);
+            this.indexMetadataDao.updateIndexVersion(this.indexDao.getName(), 0, checksum);
+            recreateIndexFromDatabase(null);
+            return;
         }
+        indexMetadataDao.updateIndexVersion(indexDao.getName(), IndexConstants.INDEX_VERSION, indexVersionHash);
+        saveIndexedDetails();
     }
 
     private boolean indexVersionChanged(IndexMetadata indexMetadata) {
@@ -321,6 +456,7 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
         if (numIndexed > 0) {
             indexDao.commit();
             indexMetadataDao.updateIndexVersion(indexDao.getName(), IndexConstants.INDEX_VERSION, indexVersionHash);
+            saveIndexedDetails();
         }
         logger.info("Finished recreating index for {} events on table: {}", numIndexed, indexDao.getName());
         deleteStateFile();
@@ -33,6 +33,7 @@ import org.zenoss.zep.plugins.EventPostIndexPlugin;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -61,6 +62,7 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
     private final boolean isSummary;
     private EventIndexQueueDao queueDao;
     private PluginService pluginService;
+    private EventPostIndexStage postIndexStage;
     private volatile int limit;
     private volatile long intervalMilliseconds;
 
@@ -82,6 +84,13 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
         this.pluginService = pluginService;
     }
 
+    /**
+     * @param postIndexStage If enabled, the stage which runs the post-index plug-ins instead of the indexing thread.
+     */
+    public void setPostIndexStage(EventPostIndexStage postIndexStage) {
+        this.postIndexStage = postIndexStage;
+    }
+
     private void updateIndexConfig(ZepConfig zepConfig) {
         limit = zepConfig.getIndexLimit();
         if (isSummary) {
@@ -125,6 +134,10 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
         stop();
         this.updateIndexConfig(config);
         this.shutdown = false;
+        if (this.postIndexStage != null) {
+            // Started with the indexer, as plug-ins are only loaded once ZEP is initialized
+            this.postIndexStage.start();
+        }
         this.indexFuture = this.executorService.submit(new ThreadRenamingRunnable(new Runnable() {
             @Override
             public void run() {
@@ -182,6 +195,9 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
         } finally {
             this.executorService.shutdown();
             this.executorService.awaitTermination(0L, TimeUnit.SECONDS);
+            if (this.postIndexStage != null) {
+                this.postIndexStage.stop();
+            }
         }
     }
 
@@ -259,8 +275,13 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
                 pluginState.put(plugin, state);
             }
         };
-        final List<EventPostIndexPlugin> plugins = this.pluginService.getPluginsByType(EventPostIndexPlugin.class);
+        // Post-index plug-ins either run on their own stage once the indexed events are committed, or inline
+        final EventPostIndexStage stage = (this.postIndexStage != null && this.postIndexStage.isEnabled()) ?
+                this.postIndexStage : null;
+        final List<EventPostIndexPlugin> plugins = (stage != null) ? Collections.<EventPostIndexPlugin>emptyList() :
+                this.pluginService.getPluginsByType(EventPostIndexPlugin.class);
         final AtomicBoolean calledStartBatch = new AtomicBoolean();
+        final List<EventSummary> postProcessEvents = new ArrayList<EventSummary>();
         final List<IndexQueueID> indexQueueIds = queueDao.indexEvents(new EventIndexHandler() {
             @Override
             public void prepareToHandle(Collection<EventSummary> events) throws Exception {
@@ -268,7 +289,7 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
                 for (EventSummary event : events) {
                     if (shouldRunPostprocessing(event)) willPostProcess.add(event);
                 }
-                if (!willPostProcess.isEmpty()) {
+                if (!willPostProcess.isEmpty() && !plugins.isEmpty()) {
                     boolean shouldStartBatch = calledStartBatch.compareAndSet(false, true);
                     for (EventPostIndexPlugin plugin : plugins) {
                         try {
@@ -287,7 +308,28 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
             @Override
             public void handle(EventSummary event) throws Exception {
                 indexDao.stage(event);
+                // Post-processing runs once over the whole batch so plug-ins can work on it as a unit
                 if (shouldRunPostprocessing(event)) {
+                    postProcessEvents.add(event);
+                }
+            }
+
+            @Override
+            public void handleDeleted(String uuid) throws Exception {
+                indexDao.stageDelete(uuid);
+            }
+
+            @Override
+            public void handleComplete() throws Exception {
+                if (stage != null) {
+                    // Queued before the index queue rows are removed, so a failure retries the whole batch
+                    if (!postProcessEvents.isEmpty()) {
+                        stage.enqueue(postProcessEvents);
+                    }
+                    indexDao.commit();
+                    return;
+                }
+                if (!postProcessEvents.isEmpty()) {
                     boolean shouldStartBatch = calledStartBatch.compareAndSet(false, true);
                     final Timer.Context timerContext = pluginsTimer.time();
                     for (EventPostIndexPlugin plugin : plugins) {
@@ -295,23 +337,14 @@ public class EventIndexerImpl implements EventIndexer, ApplicationListener<ZepCo
                             if (shouldStartBatch) {
                                 plugin.startBatch(context);
                             }
-                            plugin.processEvent(event, context);
+                            plugin.processEvents(postProcessEvents, context);
                         } catch (Exception e) {
                             // Post-processing plug-in failures are not fatal errors.
-                            logger.warn("Failed to run post-processing plug-in on event: " + event, e);
+                            logger.warn("Failed to run post-processing plug-in on events", e);
                         }
                     }
                     timerContext.stop();
                 }
-            }
-
-            @Override
-            public void handleDeleted(String uuid) throws Exception {
-                indexDao.stageDelete(uuid);
-            }
-
-            @Override
-            public void handleComplete() throws Exception {
                 indexDao.commit();
                 if (calledStartBatch.get()) {
                     for (EventPostIndexPlugin plugin : plugins) {
@@ -0,0 +1,358 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.PluginService;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.plugins.EventPostIndexContext;
+import org.zenoss.zep.plugins.EventPostIndexPlugin;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link EventPostIndexPlugin}s on their own pipeline stage, so slow plug-ins (publishing signals or
+ * fanning out events) don't delay index commits. The indexer adds the indexed events to a work queue within its
+ * transaction, so a batch which can't be queued is indexed again, and worker threads take batches off the queue,
+ * read the current events and pass them to the plug-ins.
+ *
+ * A batch is only completed on the work queue once every plug-in has run on it without failing. Batches whose
+ * events can't be read are retried until they can be, and batches a plug-in fails on are retried up to
+ * maxAttempts times before they are dropped. Plug-ins may therefore see an event more than once.
+ */
+public class EventPostIndexStage {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventPostIndexStage.class);
+
+    // How often tasks which were polled but never completed (by a failed batch) are requeued
+    private static final long REQUEUE_INTERVAL_MS = 1000L;
+
+    private final String name;
+    private final boolean archive;
+    private final WorkQueue queue;
+    private final EventSummaryBaseDao eventDao;
+    private final PluginService pluginService;
+
+    private boolean enabled = false;
+    private int threads = 1;
+    private int batchSize = 1000;
+    private int maxAttempts = 5;
+
+    // Number of times the plug-ins failed on each queued task, keyed by the task
+    private final ConcurrentMap<String, Integer> failedAttempts = new ConcurrentHashMap<String, Integer>();
+
+    private final List<WorkerThread> workers = new ArrayList<WorkerThread>();
+    private volatile boolean shutdown = false;
+    private volatile long lastRequeueTime = 0L;
+
+    private volatile long lagMillis = 0L;
+    private Meter processedEvents = new Meter();
+    private Timer pluginsTimer = new Timer();
+
+    /**
+     * Creates the stage.
+     *
+     * @param name The name of the index the events come from, used for metric and thread names.
+     * @param archive True if the events are in the event archive, false otherwise.
+     * @param queue The work queue the indexer hands events off on.
+     * @param eventDao DAO used to read the queued events.
+     * @param pluginService Plug-in service used to find the post-index plug-ins.
+     */
+    public EventPostIndexStage(String name, boolean archive, WorkQueue queue, EventSummaryBaseDao eventDao,
+                               PluginService pluginService) {
+        this.name = name;
+        this.archive = archive;
+        this.queue = queue;
+        this.eventDao = eventDao;
+        this.pluginService = pluginService;
+    }
+
+    /**
+     * @param enabled True to run the post-index plug-ins on this stage, false to run them on the indexing thread.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxAttempts The number of times the plug-ins are run on a task before it is dropped.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        final String baseName = MetricRegistry.name(getClass().getCanonicalName(), name);
+        metrics.register(MetricRegistry.name(baseName, "queueDepth"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return queue.size();
+            }
+        });
+        metrics.register(MetricRegistry.name(baseName, "lagMillis"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return lagMillis;
+            }
+        });
+        this.processedEvents = metrics.meter(MetricRegistry.name(baseName, "processedEvents"));
+        this.pluginsTimer = metrics.timer(MetricRegistry.name(baseName, "plugins"));
+    }
+
+    public synchronized void start() {
+        if (!enabled || !workers.isEmpty()) {
+            return;
+        }
+        shutdown = false;
+        final int numThreads = Math.max(1, threads);
+        for (int i = 0; i < numThreads; i++) {
+            WorkerThread worker = new WorkerThread(i);
+            workers.add(worker);
+            worker.start();
+        }
+        logger.info("Started {} post-index plug-in threads for {}", numThreads, name);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        shutdown = true;
+        for (WorkerThread worker : workers) {
+            worker.interrupt();
+        }
+        for (WorkerThread worker : workers) {
+            worker.join();
+        }
+        workers.clear();
+    }
+
+    /**
+     * Queues the indexed events for the post-index plug-ins. This should be called within the transaction which
+     * removes the events from the index queue, so a failure to queue them rolls it back.
+     *
+     * @param events The indexed events.
+     */
+    public void enqueue(Collection<EventSummary> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        final List<EventIndexBackendTask> tasks = new ArrayList<EventIndexBackendTask>(events.size());
+        for (EventSummary event : events) {
+            tasks.add(EventIndexBackendTask.Index(event.getUuid(),
+                    event.hasLastSeenTime() ? event.getLastSeenTime() : null));
+        }
+        queue.addAll(tasks);
+    }
+
+    /**
+     * Runs the post-index plug-ins on a batch of tasks taken off the work queue.
+     *
+     * @param tasks The tasks.
+     * @throws ZepException If the events can't be read or a plug-in fails on them. The tasks which haven't run out
+     * of attempts aren't completed and will be retried.
+     */
+    void process(List<EventIndexBackendTask> tasks) throws ZepException {
+        final Set<EventSummary> toLookup = new HashSet<EventSummary>(tasks.size());
+        for (EventIndexBackendTask task : tasks) {
+            if (task.uuid == null) {
+                continue;
+            }
+            EventSummary.Builder key = EventSummary.newBuilder().setUuid(task.uuid);
+            if (task.lastSeen != null) {
+                key.setLastSeenTime(task.lastSeen);
+            }
+            toLookup.add(key.build());
+        }
+        // Events deleted since they were indexed aren't returned
+        final List<EventSummary> events = toLookup.isEmpty() ? new ArrayList<EventSummary>() :
+                eventDao.findByKey(toLookup);
+        if (!events.isEmpty()) {
+            final Timer.Context timerContext = pluginsTimer.time();
+            final Exception failure;
+            try {
+                failure = runPlugins(events);
+            } finally {
+                timerContext.stop();
+            }
+            if (failure != null) {
+                failBatch(tasks, failure);
+            }
+            long oldest = Long.MAX_VALUE;
+            for (EventSummary event : events) {
+                oldest = Math.min(oldest, event.getUpdateTime());
+            }
+            lagMillis = Math.max(0L, System.currentTimeMillis() - oldest);
+            processedEvents.mark(events.size());
+        }
+        for (EventIndexBackendTask task : tasks) {
+            failedAttempts.remove(task.toString());
+        }
+        queue.completeAll(tasks);
+    }
+
+    /**
+     * Records a failed attempt at the tasks. Tasks which have run out of attempts are completed, so they are
+     * dropped, and the rest are left to be requeued.
+     */
+    private void failBatch(List<EventIndexBackendTask> tasks, Exception failure) throws ZepException {
+        final List<EventIndexBackendTask> dropped = new ArrayList<EventIndexBackendTask>();
+        for (EventIndexBackendTask task : tasks) {
+            final String key = task.toString();
+            final Integer previous = failedAttempts.get(key);
+            final int attempts = (previous == null) ? 1 : previous + 1;
+            if (attempts >= maxAttempts) {
+                failedAttempts.remove(key);
+                dropped.add(task);
+            } else {
+                failedAttempts.put(key, attempts);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            logger.error("Dropping {} post-index tasks for {} after {} failed attempts",
+                    new Object[] { dropped.size(), name, maxAttempts });
+            queue.completeAll(dropped);
+        }
+        throw new ZepException(failure.getLocalizedMessage(), failure);
+    }
+
+    /**
+     * Runs every plug-in on the events, even if one of them fails.
+     *
+     * @return The first exception thrown by a plug-in, or null if none of them failed.
+     */
+    private Exception runPlugins(List<EventSummary> events) {
+        final EventPostIndexContext context = new EventPostIndexContext() {
+            private final Map<EventPostIndexPlugin, Object> pluginState = new HashMap<EventPostIndexPlugin, Object>();
+
+            @Override
+            public boolean isArchive() {
+                return archive;
+            }
+
+            @Override
+            public int getIndexLimit() {
+                return batchSize;
+            }
+
+            @Override
+            public Object getPluginState(EventPostIndexPlugin plugin) {
+                return pluginState.get(plugin);
+            }
+
+            @Override
+            public void setPluginState(EventPostIndexPlugin plugin, Object state) {
+                pluginState.put(plugin, state);
+            }
+        };
+        final List<EventPostIndexPlugin> plugins = this.pluginService.getPluginsByType(EventPostIndexPlugin.class);
+        Exception failure = null;
+        for (EventPostIndexPlugin plugin : plugins) {
+            try {
+                plugin.startBatch(context);
+                plugin.preProcessEvents(events, context);
+                plugin.processEvents(events, context);
+            } catch (Exception e) {
+                logger.warn("Failed to run post-processing plug-in on events", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        for (EventPostIndexPlugin plugin : plugins) {
+            try {
+                plugin.endBatch(context);
+            } catch (Exception e) {
+                logger.warn("Failed to finish batch for post-processing plug-in.", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        return failure;
+    }
+
+    private void requeueIfNeeded() {
+        final long now = System.currentTimeMillis();
+        if (now - lastRequeueTime < REQUEUE_INTERVAL_MS) {
+            return;
+        }
+        lastRequeueTime = now;
+        long requeued = queue.requeueOldTasks();
+        if (requeued > 0) {
+            logger.warn("Requeued {} post-index tasks for {}", requeued, name);
+        }
+    }
+
+    private class WorkerThread extends Thread {
+        public WorkerThread(int id) {
+            this.setDaemon(true);
+            this.setName("ZEP_POST_INDEX_" + name.toUpperCase() + "_" + id);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                List<EventIndexBackendTask> tasks = null;
+                try {
+                    if (!queue.isReady()) {
+                        sleep(1000L);
+                        continue;
+                    }
+                    requeueIfNeeded();
+                    tasks = queue.poll(batchSize, 500, TimeUnit.MILLISECONDS);
+                    if (tasks == null || tasks.isEmpty()) {
+                        continue;
+                    }
+                    process(tasks);
+                } catch (InterruptedException e) {
+                    // Checks for shutdown
+                } catch (Exception e) {
+                    logger.warn(String.format("Failed to run post-index plug-ins on %s, will retry",
+                            (tasks != null) ? tasks.size() + " events" : "events"), e);
+                    try {
+                        sleep(1000L);
+                    } catch (InterruptedException ie) {
+                        // Checks for shutdown
+                    }
+                }
+            }
+        }
+    }
+}
@@ -23,7 +23,7 @@ public class IndexConstants {
      * The version of the event index. This should be updated each time a new field
      * is added to the index or the way a field gets indexed changes.
      */
-    public static final int INDEX_VERSION = 10;
+    public static final int INDEX_VERSION = 11;
 
     public static final String FIELD_UUID = "uuid";
     public static final String FIELD_STATUS = "status";
@@ -56,6 +56,13 @@ public class IndexConstants {
     public static final String FIELD_PROTOBUF = "protobuf";
     public static final String FIELD_MESSAGE = "message";
 
+    // Column-stride (DocValues) copies of the fields read by the tag severity aggregation
+    public static final String FIELD_STATUS_DOC_VALUES = "status_dv";
+    public static final String FIELD_COUNT_DOC_VALUES = "count_dv";
+    public static final String FIELD_SEVERITY_DOC_VALUES = "severity_dv";
+    public static final String FIELD_TAGS_DOC_VALUES = "tag_dv";
+    public static final String FIELD_TAG_REPEATS_DOC_VALUES = "tag_repeats_dv";
+
     public static final Map<String,String> NON_ANALYZED;
     static {
         final Map<String,String> m = Maps.newHashMap();
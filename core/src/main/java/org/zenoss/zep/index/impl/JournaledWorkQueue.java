@@ -0,0 +1,396 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.zep.index.WorkQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded de-duping task queue held in memory and persisted to a
+ * memory-mapped, append-only journal on local disk.
+ *
+ * This has the same semantics as {@link RedisWorkQueue}: tasks are ordered
+ * FIFO, a task is not re-inserted while it is already queued, polled tasks
+ * are held "in-progress" until they are completed, and tasks which are
+ * in-progress for too long are re-inserted by {@link #requeueOldTasks()}.
+ *
+ * Every change is appended to the journal as a record of a one byte type,
+ * a two byte length and the binary encoding of the task. When the journal
+ * fills up it is compacted by writing the current contents of the queue to
+ * a new journal. On startup the journal is replayed, and any tasks which
+ * were in-progress when the process stopped are re-inserted immediately.
+ *
+ * Writes to the mapped journal survive the process exiting, but are only
+ * guaranteed to reach the disk when the operating system flushes them or
+ * the queue is closed.
+ */
+public class JournaledWorkQueue implements WorkQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournaledWorkQueue.class);
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_ADD = 1;
+    static final byte RECORD_POLL = 2;
+    static final byte RECORD_COMPLETE = 3;
+    static final byte RECORD_REQUEUE = 4;
+    private static final int RECORD_HEADER_SIZE = 3;
+
+    public static final int DEFAULT_JOURNAL_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_IN_PROGRESS_SECONDS = 60L;
+
+    private final File file;
+    private final String name;
+    private final int minimumJournalSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LinkedHashMap<ByteBuffer, EventIndexBackendTask> queue =
+            new LinkedHashMap<ByteBuffer, EventIndexBackendTask>();
+    /* Ordered by the time the task was polled. */
+    private final LinkedHashMap<ByteBuffer, Long> inProgress = new LinkedHashMap<ByteBuffer, Long>();
+    private long inProgressDurationInMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IN_PROGRESS_SECONDS);
+    private RandomAccessFile journalFile;
+    private MappedByteBuffer journal;
+    private volatile boolean ready = false;
+
+    public JournaledWorkQueue(File file, String name) throws IOException {
+        this(file, name, DEFAULT_JOURNAL_SIZE);
+    }
+
+    public JournaledWorkQueue(File file, String name, int journalSize) throws IOException {
+        this.file = file;
+        this.name = name;
+        this.minimumJournalSize = journalSize;
+        lock.lock();
+        try {
+            if (file.exists()) {
+                replay();
+            }
+            // Nothing can still be working on tasks which were in-progress when the journal was written.
+            for (ByteBuffer key : inProgress.keySet()) {
+                if (!queue.containsKey(key)) {
+                    queue.put(key, EventIndexBackendTask.parseBytes(key.array()));
+                }
+            }
+            inProgress.clear();
+            compact();
+            this.ready = true;
+            logger.info("Opened {} with {} queued tasks", this, queue.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        return new StringBuilder()
+                .append(JournaledWorkQueue.class.getSimpleName())
+                .append("[")
+                .append(name)
+                .append("]")
+                .toString();
+    }
+
+    public void setInProgressDuration(long duration, TimeUnit unit) {
+        this.inProgressDurationInMillis = unit.toMillis(duration);
+    }
+
+    private void replay() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            int records = 0;
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                final byte type = buf.get();
+                if (type == RECORD_END) {
+                    break;
+                }
+                final int length = buf.getShort() & 0xffff;
+                if (length > buf.remaining()) {
+                    logger.warn("Truncated record in {} after {} records", file, records);
+                    break;
+                }
+                final byte[] bytes = new byte[length];
+                buf.get(bytes);
+                final ByteBuffer key = ByteBuffer.wrap(bytes);
+                switch (type) {
+                    case RECORD_ADD:
+                        if (!queue.containsKey(key)) {
+                            queue.put(key, EventIndexBackendTask.parseBytes(bytes));
+                        }
+                        break;
+                    case RECORD_POLL:
+                        queue.remove(key);
+                        inProgress.remove(key);
+                        inProgress.put(key, 0L);
+                        break;
+                    case RECORD_COMPLETE:
+                        inProgress.remove(key);
+                        break;
+                    case RECORD_REQUEUE:
+                        inProgress.remove(key);
+                        if (!queue.containsKey(key)) {
+                            queue.put(key, EventIndexBackendTask.parseBytes(bytes));
+                        }
+                        break;
+                    default:
+                        logger.warn("Unknown record type {} in {} after {} records", type, file, records);
+                        return;
+                }
+                records++;
+            }
+            logger.debug("Replayed {} records from {}", records, file);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unparsable task in " + file + ", ignoring the remainder of the journal", e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the current contents of the queue to a new journal, and replaces the existing journal with it.
+     * Must be called while holding the lock.
+     */
+    private void compact() throws IOException {
+        long needed = 1;
+        for (ByteBuffer key : inProgress.keySet()) {
+            needed += 2 * (RECORD_HEADER_SIZE + key.remaining());
+        }
+        for (ByteBuffer key : queue.keySet()) {
+            needed += RECORD_HEADER_SIZE + key.remaining();
+        }
+        long size = minimumJournalSize;
+        while (size < needed * 2) {
+            size *= 2;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Work queue " + name + " is too large to journal");
+        }
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+        final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        final MappedByteBuffer buf;
+        try {
+            raf.setLength(size);
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (ByteBuffer key : inProgress.keySet()) {
+                write(buf, RECORD_ADD, key);
+                write(buf, RECORD_POLL, key);
+            }
+            for (ByteBuffer key : queue.keySet()) {
+                write(buf, RECORD_ADD, key);
+            }
+            buf.force();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        close(false);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.journalFile = raf;
+        this.journal = buf;
+    }
+
+    private static void write(ByteBuffer buf, byte type, ByteBuffer key) {
+        buf.put(type);
+        buf.putShort((short) key.remaining());
+        buf.put(key.duplicate());
+    }
+
+    /**
+     * Appends a record to the journal, compacting it first if it is full. Must be called while holding the lock.
+     */
+    private void append(byte type, ByteBuffer key) {
+        if (journal.remaining() < RECORD_HEADER_SIZE + key.remaining() + 1) {
+            try {
+                compact();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed compacting journal for " + this, e);
+            }
+            // The compacted journal already reflects this change
+            return;
+        }
+        write(journal, type, key);
+    }
+
+    private static ByteBuffer key(EventIndexBackendTask task) {
+        return ByteBuffer.wrap(task.toBytes());
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    @Override
+    public void add(EventIndexBackendTask task) {
+        if (task == null) return;
+        addAll(Collections.singleton(task));
+    }
+
+    @Override
+    public void addAll(Collection<EventIndexBackendTask> tasks) {
+        if (tasks == null || tasks.isEmpty())
+            return;
+        lock.lock();
+        try {
+            boolean added = false;
+            for (EventIndexBackendTask task : tasks) {
+                final ByteBuffer key = key(task);
+                if (!queue.containsKey(key)) {
+                    queue.put(key, task);
+                    append(RECORD_ADD, key);
+                    added = true;
+                }
+            }
+            if (added) {
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<EventIndexBackendTask> poll(int maxSize, int timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0) {
+                    return Collections.emptyList();
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            final Long now = System.currentTimeMillis();
+            final List<EventIndexBackendTask> result =
+                    Lists.newArrayListWithExpectedSize(Math.min(maxSize, queue.size()));
+            final Iterator<Map.Entry<ByteBuffer, EventIndexBackendTask>> it = queue.entrySet().iterator();
+            while (it.hasNext() && result.size() < maxSize) {
+                final Map.Entry<ByteBuffer, EventIndexBackendTask> entry = it.next();
+                it.remove();
+                inProgress.remove(entry.getKey());
+                inProgress.put(entry.getKey(), now);
+                append(RECORD_POLL, entry.getKey());
+                result.add(entry.getValue());
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void complete(EventIndexBackendTask task) {
+        if (task == null) return;
+        completeAll(Collections.singleton(task));
+    }
+
+    @Override
+    public void completeAll(Collection<EventIndexBackendTask> tasks) {
+        if (tasks == null || tasks.isEmpty()) return;
+        lock.lock();
+        try {
+            for (EventIndexBackendTask task : tasks) {
+                final ByteBuffer key = key(task);
+                if (inProgress.remove(key) != null) {
+                    append(RECORD_COMPLETE, key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long requeueOldTasks() {
+        final long cutoff = System.currentTimeMillis() - inProgressDurationInMillis;
+        long count = 0;
+        lock.lock();
+        try {
+            final Iterator<Map.Entry<ByteBuffer, Long>> it = inProgress.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<ByteBuffer, Long> entry = it.next();
+                if (entry.getValue() > cutoff) {
+                    break;
+                }
+                it.remove();
+                final ByteBuffer key = entry.getKey();
+                if (!queue.containsKey(key)) {
+                    queue.put(key, EventIndexBackendTask.parseBytes(key.array()));
+                }
+                append(RECORD_REQUEUE, key);
+                count++;
+            }
+            if (count > 0) {
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the journal to disk and closes it.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            this.ready = false;
+            close(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void close(boolean force) {
+        if (this.journalFile != null) {
+            try {
+                if (force) {
+                    this.journal.force();
+                }
+                this.journalFile.close();
+            } catch (IOException e) {
+                logger.warn("Failed closing journal for " + this, e);
+            }
+            this.journalFile = null;
+            this.journal = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.index.WorkQueueBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds {@link JournaledWorkQueue}s stored under a local directory. The queues only exist in this process, so
+ * every caller asking for the same queue id shares the same instance.
+ */
+public class JournaledWorkQueueBuilder implements WorkQueueBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournaledWorkQueueBuilder.class);
+
+    private final File directory;
+    private final int journalSize;
+    private long inProgressSeconds = JournaledWorkQueue.DEFAULT_IN_PROGRESS_SECONDS;
+    private final Map<String, JournaledWorkQueue> queues = new HashMap<String, JournaledWorkQueue>();
+
+    public JournaledWorkQueueBuilder(File directory, int journalSize) {
+        this.directory = directory;
+        this.journalSize = journalSize;
+    }
+
+    /**
+     * Sets how long a polled task may stay in progress before it is requeued for another poller.
+     */
+    public synchronized void setInProgressSeconds(long inProgressSeconds) {
+        this.inProgressSeconds = inProgressSeconds;
+        for (JournaledWorkQueue queue : queues.values()) {
+            queue.setInProgressDuration(inProgressSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public synchronized WorkQueue build(String queueId) {
+        JournaledWorkQueue queue = queues.get(queueId);
+        if (queue == null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Unable to create work queue directory: " + directory);
+            }
+            try {
+                queue = new JournaledWorkQueue(new File(directory, queueId + ".journal"), queueId, journalSize);
+                queue.setInProgressDuration(inProgressSeconds, TimeUnit.SECONDS);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open work queue " + queueId, e);
+            }
+            queues.put(queueId, queue);
+        }
+        return queue;
+    }
+
+    public synchronized void close() {
+        for (JournaledWorkQueue queue : queues.values()) {
+            logger.debug("Closing {}", queue);
+            queue.close();
+        }
+        queues.clear();
+    }
+}
@@ -29,9 +29,13 @@ import org.zenoss.zep.utils.KeyValueStore;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -48,14 +52,18 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
     private final List<EventIndexBackendConfiguration> initialBackendConfigurations;
     private final Map<String, EventIndexBackendConfiguration> backends;
     private final Map<String, WorkQueue> workQueues;
-    private final Map<String, WorkerThread> workers;
+    private final Map<String, List<WorkerThread>> workers;
     private final Map<String,RebuilderThread> rebuilders;
     private final KeyValueStore store;
+    private ParallelEventIndexRebuilder parallelRebuilder = null;
     private final EventSummaryBaseDao eventDao;
     private final ReadWriteLock backendsLock = new ReentrantReadWriteLock();
     private final Lock backendsUse = backendsLock.readLock();
     private final Lock backendsModify = backendsLock.writeLock();
 
+    // Saved searches used to migrate indexed details expire after this long without being used
+    private static final int MIGRATION_SEARCH_TIMEOUT_SECONDS = 600;
+
     public MultiBackendEventIndexDao(String name, EventSummaryBaseDao eventDao, WorkQueueBuilder queueBuilder, KeyValueStore store,
                                      Messages messages, TaskScheduler scheduler, UUIDGenerator uuidGenerator) {
         super(name, messages, scheduler, uuidGenerator);
@@ -173,20 +181,37 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         }
     }
 
+    /** Returns the queue drained by the worker for the given shard, or null if the backend has no work queue. */
+    private WorkQueue getShardQueue(String backendId, int shard) {
+        WorkQueue q = workQueues.get(backendId);
+        if (q instanceof ShardedWorkQueue) {
+            ShardedWorkQueue sharded = (ShardedWorkQueue) q;
+            return (shard < sharded.getNumShards()) ? sharded.getShard(shard) : null;
+        }
+        return (shard == 0) ? q : null;
+    }
+
     /**
      * The thread will exit cleanly once its backend has no registered work queue (in workQueues).
      */
     private class WorkerThread extends Thread {
         private final String backendId;
-        public WorkerThread(String backendId) {
+        private final int shard;
+        public WorkerThread(String backendId, int shard) {
             this.backendId = backendId;
+            this.shard = shard;
             this.setDaemon(true);
-            this.setName(MultiBackendEventIndexDao.this + " backend " + backendId + " event indexing worker thread");
+            this.setName(MultiBackendEventIndexDao.this + " backend " + backendId + " shard " + shard +
+                    " event indexing worker thread");
+        }
+        private boolean isCurrent() {
+            List<WorkerThread> current = workers.get(backendId);
+            return current != null && current.contains(this);
         }
         @Override
         public void run() {
-            logger.info("Started processing queue for {}", backendId);
-            WorkQueue q = workQueues.get(backendId);
+            logger.info("Started processing queue shard {} for {}", shard, backendId);
+            WorkQueue q = getShardQueue(backendId, shard);
             EventIndexBackendConfiguration config = getBackendConfiguration(backendId);
 
             EventIndexBackend backend = config.getBackend();
@@ -195,7 +220,7 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
             }
             else {
                 List<EventIndexBackendTask> tasks;
-                while(q != null && config != null && workers.get(backendId) == this) {
+                while(q != null && config != null && isCurrent()) {
                     boolean sleep_and_continue = false;
 
                     if (!backend.isReady()) {
@@ -234,12 +259,12 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                         logger.warn(String.format("failed to fetch tasks for backend %s", backendId), e);
                         try { sleep(1000); } catch (InterruptedException ie) { /* ignore */ }
                     } finally {
-                        q = workQueues.get(backendId);
+                        q = getShardQueue(backendId, shard);
                         config = getBackendConfiguration(backendId);
                     }
                 }
             }
-            logger.info("Stopped processing queue for {}", backendId);
+            logger.info("Stopped processing queue shard {} for {}", shard, backendId);
         }
     }
 
@@ -289,37 +314,90 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
     }
 
     /**
-     * Start a background thread to pull tasks off a work queue and pass them to the backend.
+     * Start background threads to pull tasks off a work queue and pass them to the backend.
      *
      * Pre-condition: The backend must have an entry in workQueues (the worker thread will exit if not).
      */
     protected void startBackendWorker(String backendId) {
         backendsModify.lock();
         try {
+            EventIndexBackendConfiguration config = backends.get(backendId);
+            startBackendWorker(backendId, (config == null) ? EventIndexBackendConfiguration.DEFAULT_WORKER_SHARDS
+                    : config.getWorkerShards());
+        } finally { backendsModify.unlock(); }
+    }
+
+    /**
+     * Start a background thread per shard to pull tasks off the backend's work queue and pass them to the backend.
+     * Tasks are partitioned over the shards by event UUID.
+     */
+    protected void startBackendWorker(String backendId, int shards) {
+        backendsModify.lock();
+        try {
+            final WorkQueue previous = workQueues.get(backendId);
             stopBackendWorker(backendId);
             if (!enableAsyncProcessing) return;
-            WorkQueue q = queueBuilder.build(backendId);
+            WorkQueue q = (shards > 1) ? new ShardedWorkQueue(queueBuilder, backendId, shards)
+                    : queueBuilder.build(backendId);
             workQueues.put(backendId, q);
-            WorkerThread worker = new WorkerThread(backendId);
-            worker.start();
-            if (worker.isAlive())
-                workers.put(backendId, worker);
-            else
-                logger.error("Failed to start worker thread for event indexing backend {}", backendId);
+            if (previous instanceof ShardedWorkQueue) {
+                drainRemovedShards((ShardedWorkQueue) previous, shards, q);
+            }
+            List<WorkerThread> started = new CopyOnWriteArrayList<WorkerThread>();
+            workers.put(backendId, started);
+            for (int shard = 0; shard < shards; shard++) {
+                WorkerThread worker = new WorkerThread(backendId, shard);
+                started.add(worker);
+                worker.start();
+                if (!worker.isAlive()) {
+                    started.remove(worker);
+                    logger.error("Failed to start worker thread {} for event indexing backend {}", shard, backendId);
+                }
+            }
+            if (started.isEmpty())
+                workers.remove(backendId);
             new RequeueThread(backendId, q).start();
         } finally { backendsModify.unlock(); }
     }
 
+    /** Moves tasks left on shards which no longer exist onto the new work queue. */
+    private void drainRemovedShards(ShardedWorkQueue previous, int shards, WorkQueue q) {
+        for (int shard = shards; shard < previous.getNumShards(); shard++) {
+            final WorkQueue removed = previous.getShard(shard);
+            try {
+                List<EventIndexBackendTask> tasks;
+                do {
+                    tasks = removed.poll(EventIndexBackendConfiguration.DEFAULT_BATCH_SIZE, 0, TimeUnit.MILLISECONDS);
+                    q.addAll(tasks);
+                    removed.completeAll(tasks);
+                } while (!tasks.isEmpty());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.warn(String.format("failed to move tasks from removed shard %d for backend %s",
+                        shard, previous), e);
+            }
+        }
+    }
+
+    private int getWorkerCount(String backendId) {
+        List<WorkerThread> current = workers.get(backendId);
+        return (current == null) ? 0 : current.size();
+    }
+
     protected void stopBackendWorker(String backendId) {
-        WorkerThread worker;
+        List<WorkerThread> stopped;
         backendsModify.lock();
         try {
-            worker = workers.remove(backendId);
+            stopped = workers.remove(backendId);
             workQueues.remove(backendId);
         } finally { backendsModify.unlock(); }
-        if (worker != null) {
+        if (stopped != null) {
             logger.info("Stopping backend worker for " + getName() + " backend " + backendId);
-            try { worker.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            for (WorkerThread worker : stopped) {
+                try { worker.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
         }
     }
 
@@ -349,6 +427,13 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         }
     }
 
+    /**
+     * Rebuilds backends which index synchronously with the parallel rebuilder instead of in sequential batches.
+     */
+    public void setParallelRebuilder(ParallelEventIndexRebuilder parallelRebuilder) {
+        this.parallelRebuilder = parallelRebuilder;
+    }
+
     /**
      * Set the initial list of EventIndexBackendConfiguration
      */
@@ -463,8 +548,10 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                         if (!conf.isWriter())
                             logger.info("enabled backend (" + backendId + ") for " + getName());
                         if (enableAsyncProcessing && input.isAsyncUpdates()) {
-                            if (!workers.containsKey(backendId)) {
-                                startBackendWorker(backendId);
+                            final EventIndexBackendConfiguration merged = conf.clone();
+                            merged.merge(input);
+                            if (getWorkerCount(backendId) != merged.getWorkerShards()) {
+                                startBackendWorker(backendId, merged.getWorkerShards());
                             }
                         }
                         if (!rebuilders.containsKey(backendId))
@@ -756,10 +843,74 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         }
     }
 
-    private static class RebuilderProgress implements Serializable {
+    @Override
+    public boolean migrateDetails(Set<String> detailKeys) throws ZepException {
+        if (disableRebuilders) {
+            return false;
+        }
+        backendsUse.lock();
+        try {
+            final Map<String,RebuilderProgress> migrations = Maps.newHashMap();
+            for (EventIndexBackendConfiguration config : backends.values()) {
+                if (!config.isWriter()) {
+                    continue;
+                }
+                final RebuilderProgress progress = loadRebuildProgress(config.getName());
+                if (progress == null || progress.done) {
+                    migrations.put(config.getName(), RebuilderProgress.migrate(System.currentTimeMillis(), detailKeys));
+                } else if (progress.migrateDetails != null) {
+                    // Restart the unfinished migration with the union of the details
+                    final Set<String> keys = Sets.newTreeSet(progress.migrateDetails);
+                    keys.addAll(detailKeys);
+                    migrations.put(config.getName(), RebuilderProgress.migrate(System.currentTimeMillis(), keys));
+                } else {
+                    logger.info("Rebuild in progress for " + getName() + " backend " + config.getName() +
+                            " - unable to migrate indexed details");
+                    return false;
+                }
+            }
+            for (Entry<String,RebuilderProgress> entry : migrations.entrySet()) {
+                saveRebuildProgress(entry.getKey(), entry.getValue());
+                logger.info("Scheduled migration of indexed details " + detailKeys + " for " + getName() +
+                        " backend " + entry.getKey());
+            }
+            return true;
+        } catch (IOException e) {
+            throw new ZepException(e);
+        } finally { backendsUse.unlock(); }
+    }
+
+    private String rebuilderStoreKeyName(String backendId) {
+        return "org.zenoss.zep.index.rebuilder:" + getName() + ":" + backendId;
+    }
+
+    private byte[] rebuilderStoreKey(String backendId) {
+        return rebuilderStoreKeyName(backendId).getBytes();
+    }
+
+    private void saveRebuildProgress(String backendId, RebuilderProgress progress) throws IOException {
+        store.store(rebuilderStoreKey(backendId), progress.toString().getBytes());
+    }
+
+    RebuilderProgress loadRebuildProgress(String backendId) throws IOException {
+        final byte[] data = store.load(rebuilderStoreKey(backendId));
+        if (data == null || data.length == 0) return null;
+        try {
+            return RebuilderProgress.parse(new String(data));
+        } catch (IllegalArgumentException e) {
+            logger.error("exception parsing index rebuilder progress", e);
+            return null;
+        }
+    }
+
+    static class RebuilderProgress implements Serializable {
         public final long throughTime;
         public final EventBatchParams nextBatch;
         public final boolean done;
+        // Keys of the indexed details being migrated, or null for a rebuild from the database
+        public final Set<String> migrateDetails;
+        // Offset of the next indexed event to migrate
+        public final int offset;
 
         public static RebuilderProgress begin(long throughTime) {
             return new RebuilderProgress(throughTime, null, false);
@@ -773,10 +924,25 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
             return new RebuilderProgress(progress.throughTime, nextBatch, false);
         }
 
+        public static RebuilderProgress migrate(long throughTime, Set<String> detailKeys) {
+            return new RebuilderProgress(throughTime, null, false, Sets.newTreeSet(detailKeys), 0);
+        }
+
+        public static RebuilderProgress migrate(RebuilderProgress progress, int offset) {
+            return new RebuilderProgress(progress.throughTime, null, false, progress.migrateDetails, offset);
+        }
+
         private RebuilderProgress(long throughTime, EventBatchParams nextBatch, boolean done) {
+            this(throughTime, nextBatch, done, null, 0);
+        }
+
+        private RebuilderProgress(long throughTime, EventBatchParams nextBatch, boolean done,
+                                  Set<String> migrateDetails, int offset) {
             this.throughTime = throughTime;
             this.nextBatch = nextBatch;
             this.done = done;
+            this.migrateDetails = migrateDetails;
+            this.offset = offset;
         }
 
         public String toString() {
@@ -794,6 +960,14 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                     sb.append(" ");
                 }
             }
+            if (migrateDetails != null && !done) {
+                sb.append("migrateDetails:");
+                sb.append(encodeDetailKeys(migrateDetails));
+                sb.append(" ");
+                sb.append("offset:");
+                sb.append(offset);
+                sb.append(" ");
+            }
             sb.append("done:");
             sb.append(done);
             return sb.toString();
@@ -810,6 +984,11 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                 long throughTime = Long.parseLong(pairs.get("throughTime"));
                 if ("true".equalsIgnoreCase(pairs.get("done")))
                     return new RebuilderProgress(throughTime, null, true);
+                String migrateDetailsStr = pairs.get("migrateDetails");
+                if (migrateDetailsStr != null) {
+                    int offset = Integer.parseInt(pairs.get("offset"));
+                    return new RebuilderProgress(throughTime, null, false, decodeDetailKeys(migrateDetailsStr), offset);
+                }
                 String lastSeenStr = pairs.get("nextLastSeen");
                 if (lastSeenStr == null)
                     return new RebuilderProgress(throughTime, null, false);
@@ -821,6 +1000,47 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                 throw new IllegalArgumentException("Unable to parse: " + s, e);
             }
         }
+
+        private static String encodeDetailKeys(Set<String> detailKeys) {
+            StringBuilder sb = new StringBuilder();
+            try {
+                for (String key : detailKeys) {
+                    if (sb.length() > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(URLEncoder.encode(key, "UTF-8"));
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return sb.toString();
+        }
+
+        private static Set<String> decodeDetailKeys(String s) {
+            Set<String> detailKeys = Sets.newTreeSet();
+            try {
+                for (String key : s.split(",")) {
+                    if (!key.isEmpty()) {
+                        detailKeys.add(URLDecoder.decode(key, "UTF-8"));
+                    }
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return detailKeys;
+        }
+    }
+
+    private static boolean hasAnyDetail(EventSummary event, Set<String> detailKeys) {
+        if (event.getOccurrenceCount() == 0) {
+            return false;
+        }
+        for (EventDetail detail : event.getOccurrence(0).getDetailsList()) {
+            if (detailKeys.contains(detail.getName())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static final SimpleDateFormat UTC;
@@ -834,33 +1054,138 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         }
     }
 
-    private class RebuilderThread extends Thread {
+    class RebuilderThread extends Thread {
 
         private final String backendId;
-        private final byte[] storeKey;
         private long nextStatusLog = 0;
+        private String migrationSearchId = null;
         public transient boolean forceRebuild;
 
         public RebuilderThread(MultiBackendEventIndexDao dao, String backendId) {
             this.backendId = backendId;
             this.forceRebuild = false;
-            this.storeKey = ("org.zenoss.zep.index.rebuilder:" + dao.getName() + ":" + backendId).getBytes();
             this.setDaemon(true);
             this.setName(dao.getName() + " backend " + backendId + " event index rebuilder thread");
         }
 
         private void saveRebuildProgress(RebuilderProgress progress) throws IOException {
-            store.store(storeKey, progress.toString().getBytes());
+            MultiBackendEventIndexDao.this.saveRebuildProgress(backendId, progress);
         }
 
         private RebuilderProgress loadRebuildProgress() throws IOException {
-            final byte[] data = store.load(storeKey);
-            if (data == null || data.length == 0) return null;
+            return MultiBackendEventIndexDao.this.loadRebuildProgress(backendId);
+        }
+
+        /**
+         * Re-indexes the events in the next page of the index which have any of the migrated details.
+         *
+         * @return The progress after the page, or the same progress if the backend isn't being written.
+         */
+        RebuilderProgress migrateDetails(EventIndexBackendConfiguration configuration,
+                                         EventIndexBackend backend, RebuilderProgress progress)
+                throws ZepException {
+            backendsUse.lock();
             try {
-                return RebuilderProgress.parse(new String(data));
-            } catch (IllegalArgumentException e) {
-                logger.error("exception parsing index rebuilder progress", e);
-                return null;
+                if (!configuration.isWriter()) {
+                    return progress;
+                }
+                if (migrationSearchId == null) {
+                    // Sorted by UUID so a migration interrupted by a restart resumes at about the same offset
+                    migrationSearchId = backend.createSavedSearch(EventQuery.newBuilder()
+                            .addSort(EventSort.newBuilder().setField(EventSort.Field.UUID))
+                            .setTimeout(MIGRATION_SEARCH_TIMEOUT_SECONDS)
+                            .build());
+                }
+                final EventSummaryResult result;
+                try {
+                    result = backend.savedSearch(migrationSearchId, progress.offset, configuration.getBatchSize());
+                } catch (ZepException e) {
+                    closeMigrationSearch(backend);
+                    throw e;
+                }
+                final List<EventSummary> events = Lists.newArrayList();
+                for (EventSummary event : result.getEventsList()) {
+                    if (hasAnyDetail(event, progress.migrateDetails)) {
+                        events.add(event);
+                    }
+                }
+                final boolean finished = !result.hasNextOffset();
+                if (enableAsyncProcessing && configuration.isAsyncUpdates()) {
+                    List<EventIndexBackendTask> tasks = Lists.newArrayListWithExpectedSize(events.size() + 1);
+                    for (EventSummary event : events)
+                        tasks.add(EventIndexBackendTask.Index(event.getUuid(), event.getLastSeenTime()));
+                    if (finished)
+                        tasks.add(EventIndexBackendTask.Flush());
+                    workQueues.get(backendId).addAll(tasks);
+                } else {
+                    // The saved search returns the events as they were indexed - index them as they are now
+                    final Set<EventSummary> keys = Sets.newHashSetWithExpectedSize(events.size());
+                    for (EventSummary event : events)
+                        keys.add(EventSummary.newBuilder().setUuid(event.getUuid())
+                                .setLastSeenTime(event.getLastSeenTime()).build());
+                    if (!keys.isEmpty()) {
+                        final List<EventSummary> current = eventDao.findByKey(keys);
+                        if (current.size() != keys.size())
+                            logger.debug("Found {} of {} migrated events by primary key", current.size(), keys.size());
+                        backend.index(current);
+                    }
+                    if (finished)
+                        backend.flush();
+                }
+                if (finished) {
+                    closeMigrationSearch(backend);
+                    logger.info(getName() + " finished migrating indexed details " + progress.migrateDetails);
+                    return RebuilderProgress.done(progress);
+                }
+                logStatus("migrated indexed details up to offset " + result.getNextOffset() + " of " +
+                        result.getTotal());
+                return RebuilderProgress.migrate(progress, result.getNextOffset());
+            } finally { backendsUse.unlock(); }
+        }
+
+        /**
+         * Rebuilds the backend with the parallel rebuilder. Ranges of the rebuild are checkpointed separately, the
+         * progress of the rebuild only records when it's done.
+         *
+         * @return True if the rebuild finished, false if it was stopped.
+         */
+        private boolean rebuildInParallel(final EventIndexBackendConfiguration configuration,
+                                          final EventIndexBackend backend, RebuilderProgress progress)
+                throws ZepException, InterruptedException {
+            final boolean finished = parallelRebuilder.rebuild(rebuilderStoreKeyName(backendId),
+                    progress.throughTime, configuration.getBatchSize(), new ParallelEventIndexRebuilder.Target() {
+                @Override
+                public boolean isRunning() {
+                    return rebuilders.get(backendId) == RebuilderThread.this && !forceRebuild;
+                }
+
+                @Override
+                public boolean index(List<EventSummary> events) throws ZepException {
+                    backendsUse.lock();
+                    try {
+                        if (!configuration.isWriter()) {
+                            return false;
+                        }
+                        backend.index(events);
+                        return true;
+                    } finally { backendsUse.unlock(); }
+                }
+            });
+            if (finished) {
+                backendsUse.lock();
+                try {
+                    if (configuration.isWriter()) {
+                        backend.flush();
+                    }
+                } finally { backendsUse.unlock(); }
+            }
+            return finished;
+        }
+
+        private void closeMigrationSearch(EventIndexBackend backend) {
+            if (migrationSearchId != null) {
+                backend.closeSavedSearch(migrationSearchId);
+                migrationSearchId = null;
             }
         }
 
@@ -935,6 +1260,24 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                         continue;
                     }
 
+                    if (progress.migrateDetails != null) {
+                        RebuilderProgress next = migrateDetails(configuration, backend, progress);
+                        if (next == progress)
+                            sleep(1000);
+                        else
+                            saveRebuildProgress(next);
+                        continue;
+                    }
+
+                    if (parallelRebuilder != null && parallelRebuilder.isEnabled() &&
+                            !(enableAsyncProcessing && configuration.isAsyncUpdates())) {
+                        if (rebuildInParallel(configuration, backend, progress))
+                            saveRebuildProgress(RebuilderProgress.done(progress));
+                        else
+                            sleep(1000);
+                        continue;
+                    }
+
                     int batchSize = configuration.getBatchSize();
                     EventBatch batch = null;
                     backendsUse.lock();
@@ -0,0 +1,461 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.utils.KeyValueStore;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rebuilds an event index backend from the database in parallel. The table is split into ranges (one per partition
+ * of the event archive, or ranges of UUIDs of the event summary), and each range is streamed from the database by
+ * its own reader thread. Readers hand batches of events to a pool of indexing threads, which map the events to
+ * documents and add them to the backend (all sharing the backend's single index writer).
+ *
+ * Each range is checkpointed in the {@link KeyValueStore} with the UUID of the last event of the last batch which
+ * was indexed (along with every earlier batch of the range), so an interrupted rebuild resumes every range from its
+ * checkpoint. Checkpoints are tied to the time the rebuild started, so a new rebuild ignores checkpoints of earlier
+ * rebuilds.
+ */
+public class ParallelEventIndexRebuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelEventIndexRebuilder.class);
+
+    // How often the progress of a rebuild is logged
+    private static final long STATUS_LOG_INTERVAL_MS = 60000L;
+
+    /**
+     * The backend being rebuilt.
+     */
+    public interface Target {
+        /**
+         * @return True while the rebuild should continue, false to stop it.
+         */
+        public boolean isRunning();
+
+        /**
+         * Indexes a batch of events. This is called concurrently from the indexing threads.
+         *
+         * @param events The events.
+         * @return True if the events were indexed, false if the backend can no longer be written (which stops the
+         *         rebuild).
+         * @throws ZepException If the events can't be indexed.
+         */
+        public boolean index(List<EventSummary> events) throws ZepException;
+    }
+
+    private final String name;
+    private final EventSummaryBaseDao eventDao;
+    private final KeyValueStore store;
+
+    private boolean enabled = true;
+    private int readerThreads = 4;
+    private int indexThreads = 2;
+    private int uuidRanges = 16;
+    private int fetchSize = 1000;
+    private int maxPendingBatches = 2;
+
+    private Meter indexedEvents = new Meter();
+
+    /**
+     * Creates the rebuilder.
+     *
+     * @param name The name of the index, used for metric and thread names.
+     * @param eventDao DAO used to read the events.
+     * @param store Store used for the checkpoints of the ranges.
+     */
+    public ParallelEventIndexRebuilder(String name, EventSummaryBaseDao eventDao, KeyValueStore store) {
+        this.name = name;
+        this.eventDao = eventDao;
+        this.store = store;
+    }
+
+    /**
+     * @param enabled True to rebuild indexes in parallel, false to use the sequential rebuild.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param readerThreads The maximum number of ranges read from the database at the same time.
+     */
+    public void setReaderThreads(int readerThreads) {
+        this.readerThreads = Math.max(1, readerThreads);
+    }
+
+    /**
+     * @param indexThreads The number of threads mapping and indexing batches of events.
+     */
+    public void setIndexThreads(int indexThreads) {
+        this.indexThreads = Math.max(1, indexThreads);
+    }
+
+    /**
+     * @param uuidRanges The number of UUID ranges a table without partitions is split into.
+     */
+    public void setUuidRanges(int uuidRanges) {
+        this.uuidRanges = Math.max(1, uuidRanges);
+    }
+
+    /**
+     * @param fetchSize The number of rows fetched from the database at a time.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = Math.max(1, fetchSize);
+    }
+
+    /**
+     * @param maxPendingBatches The maximum number of batches of each range waiting to be indexed before its reader
+     *                          waits for the oldest one.
+     */
+    public void setMaxPendingBatches(int maxPendingBatches) {
+        this.maxPendingBatches = Math.max(1, maxPendingBatches);
+    }
+
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        // The rate of the meter is the rebuild throughput in documents per second
+        this.indexedEvents = metrics.meter(MetricRegistry.name(getClass().getCanonicalName(), name, "indexedEvents"));
+    }
+
+    /**
+     * Rebuilds the index, resuming every range from its checkpoint.
+     *
+     * @param checkpointKey The prefix of the keys of the checkpoints of this rebuild.
+     * @param throughTime The maximum update time of the indexed events (the time the rebuild started).
+     * @param batchSize The number of events indexed in each batch.
+     * @param target The backend being rebuilt.
+     * @return True if the rebuild finished, false if it was stopped.
+     * @throws ZepException If events can't be read or indexed.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public boolean rebuild(String checkpointKey, long throughTime, int batchSize, Target target)
+            throws ZepException, InterruptedException {
+        final List<EventScanRange> ranges = eventDao.listScanRanges(uuidRanges);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final long startTime = System.currentTimeMillis();
+        final long startCount = indexedEvents.getCount();
+        logger.info("Rebuilding {} from {} ranges in parallel", name, ranges.size());
+
+        final String threadPrefix = "ZEP_REBUILD_" + name.toUpperCase();
+        final ExecutorService readers = Executors.newFixedThreadPool(Math.min(readerThreads, ranges.size()),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(threadPrefix + "_READER_%d").build());
+        final ExecutorService indexers = Executors.newFixedThreadPool(indexThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(threadPrefix + "_INDEXER_%d").build());
+        boolean finished = true;
+        ZepException failure = null;
+        try {
+            final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(ranges.size());
+            for (EventScanRange range : ranges) {
+                final String key = checkpointKey + ":range:" + range.getId();
+                results.add(readers.submit(new RangeReader(range, key, throughTime, Math.max(1, batchSize), target,
+                        aborted, indexers)));
+            }
+            long nextStatusLog = startTime + STATUS_LOG_INTERVAL_MS;
+            for (Future<Boolean> result : results) {
+                while (true) {
+                    try {
+                        if (!result.get(1, TimeUnit.SECONDS)) {
+                            finished = false;
+                        }
+                        break;
+                    } catch (TimeoutException e) {
+                        final long now = System.currentTimeMillis();
+                        if (now >= nextStatusLog) {
+                            logThroughput("Rebuilding", startTime, startCount);
+                            nextStatusLog = now + STATUS_LOG_INTERVAL_MS;
+                        }
+                    } catch (ExecutionException e) {
+                        // Stop the other ranges, they resume from their checkpoints on the next attempt
+                        aborted.set(true);
+                        finished = false;
+                        if (failure == null) {
+                            failure = (e.getCause() instanceof ZepException) ? (ZepException) e.getCause() :
+                                    new ZepException(e.getCause());
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            aborted.set(true);
+            readers.shutdownNow();
+            indexers.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            logThroughput("Finished rebuilding", startTime, startCount);
+            clearCheckpoints(checkpointKey, ranges);
+        } else {
+            logThroughput("Stopped rebuilding", startTime, startCount);
+        }
+        return finished;
+    }
+
+    private void logThroughput(String msg, long startTime, long startCount) {
+        final long count = indexedEvents.getCount() - startCount;
+        final double seconds = Math.max(1L, System.currentTimeMillis() - startTime) / 1000.0;
+        logger.info(String.format("%s %s: %d events in %.1f seconds (%.1f docs/sec)", msg, name, count, seconds,
+                count / seconds));
+    }
+
+    private void clearCheckpoints(String checkpointKey, List<EventScanRange> ranges) {
+        for (EventScanRange range : ranges) {
+            try {
+                store.store((checkpointKey + ":range:" + range.getId()).getBytes(), new byte[0]);
+            } catch (IOException e) {
+                logger.warn("Failed to clear rebuild checkpoint of range " + range.getId() + " of " + name, e);
+            }
+        }
+    }
+
+    /**
+     * The checkpoint of a range.
+     */
+    static final class Checkpoint {
+        final long throughTime;
+        final String lastUuid;
+        final boolean done;
+
+        Checkpoint(long throughTime, String lastUuid, boolean done) {
+            this.throughTime = throughTime;
+            this.lastUuid = lastUuid;
+            this.done = done;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("throughTime:").append(throughTime);
+            if (lastUuid != null) {
+                sb.append(" lastUuid:").append(lastUuid);
+            }
+            if (done) {
+                sb.append(" done:true");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return The checkpoint, or null if it can't be parsed.
+         */
+        static Checkpoint parse(String s) {
+            Long throughTime = null;
+            String lastUuid = null;
+            boolean done = false;
+            for (String field : s.trim().split(" ")) {
+                final int i = field.indexOf(':');
+                if (i <= 0) {
+                    continue;
+                }
+                final String key = field.substring(0, i);
+                final String value = field.substring(i + 1);
+                try {
+                    if ("throughTime".equals(key)) {
+                        throughTime = Long.valueOf(value);
+                    } else if ("lastUuid".equals(key)) {
+                        lastUuid = value;
+                    } else if ("done".equals(key)) {
+                        done = Boolean.parseBoolean(value);
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return (throughTime == null) ? null : new Checkpoint(throughTime, lastUuid, done);
+        }
+    }
+
+    private static final class PendingBatch {
+        final Future<Boolean> result;
+        final String lastUuid;
+
+        PendingBatch(Future<Boolean> result, String lastUuid) {
+            this.result = result;
+            this.lastUuid = lastUuid;
+        }
+    }
+
+    /**
+     * Streams a range of the table and indexes it in batches. Batches of the range are indexed concurrently, but are
+     * completed (and checkpointed) in order.
+     */
+    private class RangeReader implements Callable<Boolean>, EventScanCallback {
+        private final EventScanRange range;
+        private final byte[] key;
+        private final long throughTime;
+        private final int batchSize;
+        private final Target target;
+        private final AtomicBoolean aborted;
+        private final ExecutorService indexers;
+        private final Deque<PendingBatch> pending = new ArrayDeque<PendingBatch>();
+        private List<EventSummary> batch;
+        private boolean stopped = false;
+
+        RangeReader(EventScanRange range, String key, long throughTime, int batchSize, Target target,
+                    AtomicBoolean aborted, ExecutorService indexers) {
+            this.range = range;
+            this.key = key.getBytes();
+            this.throughTime = throughTime;
+            this.batchSize = batchSize;
+            this.target = target;
+            this.aborted = aborted;
+            this.indexers = indexers;
+            this.batch = new ArrayList<EventSummary>(batchSize);
+        }
+
+        private boolean isRunning() {
+            return !stopped && !aborted.get() && target.isRunning();
+        }
+
+        @Override
+        public Boolean call() throws ZepException {
+            final Checkpoint checkpoint = loadCheckpoint();
+            if (checkpoint != null && checkpoint.done) {
+                return true;
+            }
+            final String startingUuid = (checkpoint == null) ? null : checkpoint.lastUuid;
+            if (startingUuid != null) {
+                logger.debug("Resuming range {} of {} after {}", new Object[] { range.getId(), name, startingUuid });
+            }
+            try {
+                eventDao.scanRange(range, startingUuid, throughTime, fetchSize, this);
+                if (!stopped && !batch.isEmpty()) {
+                    submit();
+                }
+                // Indexes (and checkpoints) the batches already read, even if the rebuild is stopping
+                while (!pending.isEmpty()) {
+                    completeOldest();
+                }
+            } finally {
+                for (PendingBatch pendingBatch : pending) {
+                    pendingBatch.result.cancel(false);
+                }
+            }
+            if (stopped || !isRunning()) {
+                return false;
+            }
+            saveCheckpoint(new Checkpoint(throughTime, null, true));
+            return true;
+        }
+
+        @Override
+        public boolean event(EventSummary event) throws ZepException {
+            batch.add(event);
+            if (batch.size() >= batchSize) {
+                submit();
+            }
+            if (!isRunning()) {
+                stopped = true;
+            }
+            return !stopped;
+        }
+
+        private void submit() throws ZepException {
+            while (pending.size() >= maxPendingBatches) {
+                completeOldest();
+            }
+            if (stopped) {
+                return;
+            }
+            final List<EventSummary> events = batch;
+            batch = new ArrayList<EventSummary>(batchSize);
+            final Future<Boolean> result = indexers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws ZepException {
+                    if (aborted.get() || !target.index(events)) {
+                        return false;
+                    }
+                    indexedEvents.mark(events.size());
+                    return true;
+                }
+            });
+            pending.addLast(new PendingBatch(result, events.get(events.size() - 1).getUuid()));
+        }
+
+        private void completeOldest() throws ZepException {
+            final PendingBatch oldest = pending.removeFirst();
+            final boolean indexed;
+            try {
+                indexed = oldest.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ZepException("Interrupted rebuilding range " + range.getId() + " of " + name, e);
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof ZepException) ? (ZepException) e.getCause() :
+                        new ZepException(e.getCause());
+            }
+            if (indexed && !stopped) {
+                saveCheckpoint(new Checkpoint(throughTime, oldest.lastUuid, false));
+            } else {
+                // Later batches of the range are indexed again when the rebuild resumes
+                stopped = true;
+            }
+        }
+
+        private Checkpoint loadCheckpoint() throws ZepException {
+            final byte[] data;
+            try {
+                data = store.load(key);
+            } catch (IOException e) {
+                throw new ZepException(e);
+            }
+            if (data == null || data.length == 0) {
+                return null;
+            }
+            final Checkpoint checkpoint = Checkpoint.parse(new String(data));
+            if (checkpoint == null) {
+                logger.warn("Ignoring invalid rebuild checkpoint of range {} of {}", range.getId(), name);
+                return null;
+            }
+            // Checkpoints of an earlier rebuild are ignored
+            return (checkpoint.throughTime == throughTime) ? checkpoint : null;
+        }
+
+        private void saveCheckpoint(Checkpoint checkpoint) throws ZepException {
+            try {
+                store.store(key, checkpoint.toString().getBytes());
+            } catch (IOException e) {
+                throw new ZepException(e);
+            }
+        }
+    }
+}
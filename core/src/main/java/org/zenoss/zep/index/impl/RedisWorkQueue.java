@@ -8,6 +8,8 @@
  ****************************************************************************/
 package org.zenoss.zep.index.impl;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +19,10 @@ import org.zenoss.zep.utils.JedisUser;
 import org.zenoss.zep.utils.RedisTransactionCollision;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Transaction;
+import redis.clients.util.SafeEncoder;
 
 import java.util.*;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -37,6 +41,17 @@ import java.util.concurrent.TimeUnit;
  * holding area until they are marked "complete", after which time the copies
  * are removed. Tasks which are "in-progress" for too long are assumed to
  * have failed, and are automatically re-inserted at the tail of the queue.
+ *
+ * Tasks are stored in the compact binary encoding of
+ * {@link EventIndexBackendTask#toBytes()}. Tasks queued in the older text
+ * encoding are still accepted; when one is polled its in-progress copy is
+ * replaced with the binary encoding, so the old entries drain out of Redis.
+ *
+ * Every push also adds tokens to a short "notify" list, one for each poller
+ * blocked in BRPOP on that list (counted in a "waiters" key), so every idle
+ * poller wakes up rather than repeatedly polling the queue. BRPOP blocks for
+ * whole seconds, so polls with less than a second left (and polls beyond the
+ * shared limit of blocked connections) sleep and re-poll the queue instead.
  */
 public class RedisWorkQueue implements WorkQueue {
 
@@ -46,15 +61,30 @@ public class RedisWorkQueue implements WorkQueue {
     private long inProgressDurationInMillis;
     private final JedisPoolUtil pool;
     private final String name;
-    private final String queueListKey;
-    private final String queueSetKey;
-    private final String holdZsetKey;
+    private final byte[] queueListKey;
+    private final byte[] queueSetKey;
+    private final byte[] holdZsetKey;
+    private final byte[] notifyListKey;
+    private final byte[] waitersKey;
     private volatile JedisUser<Long> requeueJedisUser;
     private final JedisUser<Long> sizeJedisUser;
-    private final List<String> queueKeys;
-    private final List<String> allKeys;
-
-    private static final String NEGATIVE_INF = "-inf";
+    private final List<byte[]> queueKeys;
+    private final List<byte[]> allKeys;
+    private final List<byte[]> requeueKeys;
+    private volatile Meter emptyPollMeter = null;
+    private volatile Meter productivePollMeter = null;
+    private volatile Meter wakeupMeter = null;
+    private volatile Semaphore blockingPolls = null;
+
+    private static final byte[] NEGATIVE_INF = SafeEncoder.encode("-inf");
+    private static final byte[] NOTIFY_TOKEN = SafeEncoder.encode("1");
+    /* Bounds the number of unconsumed wake-up tokens kept when nothing is polling. */
+    private static final int MAXIMUM_NOTIFY_TOKENS = 16;
+    /* BRPOP only supports whole seconds, and must return within the Jedis socket timeout (2 seconds). */
+    private static final int BLOCK_SECONDS = 1;
+    private static final long BLOCK_NANOS = TimeUnit.SECONDS.toNanos(BLOCK_SECONDS);
+    /* Expires the count of blocked pollers if a poller dies without decrementing it. */
+    private static final int WAITERS_TTL_SECONDS = 60;
     private static final long MINIMUM_POLL_INTERVAL = TimeUnit.MICROSECONDS.toNanos(100);
     private static final long MAXIMUM_POLL_INTERVAL = TimeUnit.SECONDS.toNanos(1);
     private static final long MINIMUM_IN_PROGRESS_DURATION = TimeUnit.SECONDS.toMillis(1);
@@ -65,17 +95,37 @@ public class RedisWorkQueue implements WorkQueue {
     public RedisWorkQueue(JedisPoolUtil pool, String name) {
         this.pool = pool;
         this.name = name;
-        this.queueListKey = "zep.work.queue.list:" + name;
-        this.queueSetKey = "zep.work.queue.set:" + name;
-        this.holdZsetKey = "zep.work.inprogress.zset:" + name;
-        this.queueKeys = Lists.newArrayList(queueListKey, queueSetKey);
+        this.queueListKey = SafeEncoder.encode("zep.work.queue.list:" + name);
+        this.queueSetKey = SafeEncoder.encode("zep.work.queue.set:" + name);
+        this.holdZsetKey = SafeEncoder.encode("zep.work.inprogress.zset:" + name);
+        this.notifyListKey = SafeEncoder.encode("zep.work.queue.notify:" + name);
+        this.waitersKey = SafeEncoder.encode("zep.work.queue.waiters:" + name);
+        this.queueKeys = Lists.newArrayList(queueListKey, queueSetKey, notifyListKey, waitersKey);
         this.allKeys = Lists.newArrayList(queueListKey, queueSetKey, holdZsetKey);
+        this.requeueKeys = Lists.newArrayList(queueListKey, queueSetKey, holdZsetKey, notifyListKey, waitersKey);
         requeueJedisUser = null;
         sizeJedisUser = new SizeJedisUser();
         setInProgressDuration(1, TimeUnit.MINUTES);
         setPollInterval(1, TimeUnit.MILLISECONDS);
     }
 
+    public void setMetrics(MetricRegistry metrics) {
+        String baseName = MetricRegistry.name(RedisWorkQueue.class.getCanonicalName(), name);
+        this.emptyPollMeter = metrics.meter(MetricRegistry.name(baseName, "emptyPolls"));
+        this.productivePollMeter = metrics.meter(MetricRegistry.name(baseName, "productivePolls"));
+        this.wakeupMeter = metrics.meter(MetricRegistry.name(baseName, "wakeups"));
+    }
+
+    /**
+     * Limits the number of pool connections held by pollers blocked in BRPOP. Pollers which can't get a
+     * permit sleep and re-poll the queue instead.
+     *
+     * @param blockingPolls Permits shared by the queues using the pool, or null for no limit.
+     */
+    public void setBlockingPolls(Semaphore blockingPolls) {
+        this.blockingPolls = blockingPolls;
+    }
+
     public String toString() {
         return new StringBuilder()
                 .append(RedisWorkQueue.class.getSimpleName())
@@ -92,6 +142,8 @@ public class RedisWorkQueue implements WorkQueue {
                 jedis.del(queueListKey);
                 jedis.del(queueSetKey);
                 jedis.del(holdZsetKey);
+                jedis.del(notifyListKey);
+                jedis.del(waitersKey);
                 return null;
             }
 	    });
@@ -111,7 +163,7 @@ public class RedisWorkQueue implements WorkQueue {
     @Override
     public void completeAll(Collection<EventIndexBackendTask> tasks) {
         if (tasks == null || tasks.isEmpty()) return;
-        String[] serialized = new String[tasks.size()];
+        byte[][] serialized = new byte[tasks.size()][];
         int i=0;
         for (EventIndexBackendTask task : tasks) {
             serialized[i++] = serialize(task);
@@ -162,6 +214,9 @@ public class RedisWorkQueue implements WorkQueue {
         return pool.useJedis(sizeJedisUser);
     }
 
+    /**
+     * Sets how long polls which can't block in BRPOP sleep between polls of the queue.
+     */
     public void setPollInterval(long timeout, TimeUnit unit) {
         long nanos = unit.toNanos(timeout);
         if (nanos < MINIMUM_POLL_INTERVAL)
@@ -180,28 +235,48 @@ public class RedisWorkQueue implements WorkQueue {
         this.inProgressDurationInMillis = millis;
     }
 
-    private String serialize(EventIndexBackendTask task) {
-        return task.toString();
+    private byte[] serialize(EventIndexBackendTask task) {
+        return task.toBytes();
     }
 
-    private EventIndexBackendTask deserialize(String task) {
-        String s = new String(task);
+    private EventIndexBackendTask deserialize(byte[] task) {
         try {
-            return EventIndexBackendTask.parse(s);
+            return EventIndexBackendTask.parseBytes(task);
         } catch (NullPointerException e) {
-            logger.warn("Encountered unparsable task: " + s, e);
+            logger.warn("Encountered unparsable task: " + SafeEncoder.encode(task), e);
             //TODO: increment some metric
             complete(task);
             return null;
         } catch (IllegalArgumentException e) {
-            logger.warn("Encountered unparsable task: " + s, e);
+            logger.warn("Encountered unparsable task: " + SafeEncoder.encode(task), e);
             //TODO: increment some metric
             complete(task);
             return null;
         }
     }
 
-    private void complete(final String... tasks) {
+    /**
+     * Replaces the in-progress copies of tasks polled in the legacy text encoding with the binary
+     * encoding, so completing the task removes them.
+     */
+    private void migrateInProgress(final Map<byte[], EventIndexBackendTask> legacyTasks) {
+        pool.useJedis(new JedisUser<Object>() {
+            @Override
+            public Object use(Jedis jedis) throws RedisTransactionCollision {
+                final double now = System.currentTimeMillis();
+                final Transaction tx = jedis.multi();
+                for (Map.Entry<byte[], EventIndexBackendTask> entry : legacyTasks.entrySet()) {
+                    tx.zadd(holdZsetKey, now, serialize(entry.getValue()));
+                    tx.zrem(holdZsetKey, entry.getKey());
+                }
+                tx.exec();
+                return null;
+            }
+        });
+        logger.debug("Migrated {} in-progress tasks to binary encoding for {}", legacyTasks.size(), this);
+    }
+
+    private void complete(final byte[]... tasks) {
         pool.useJedis(new JedisUser<Boolean>() {
             @Override
             public Boolean use(Jedis jedis) throws RedisTransactionCollision {
@@ -210,23 +285,90 @@ public class RedisWorkQueue implements WorkQueue {
         });
     }
 
+    /**
+     * Retrieves up to maxSize tasks, blocking until tasks are pushed if the queue is empty. Blocking is done in
+     * whole seconds, so the last second of the timeout (or all of a timeout shorter than a second) is spent
+     * sleeping and re-polling the queue, and the poll returns close to its timeout.
+     */
     @Override
     public List<EventIndexBackendTask> poll(int maxSize, int timeout, TimeUnit unit) throws InterruptedException {
         List<EventIndexBackendTask> result = poll(maxSize);
         final long due = System.nanoTime() + unit.toNanos(timeout);
-        while (result == null || result.isEmpty()) {
+        while (result.isEmpty()) {
             final long remaining = due - System.nanoTime();
-            if (remaining <= 0)
+            if (remaining <= 0) {
+                mark(emptyPollMeter);
                 return Collections.emptyList();
-            final long nanos = (remaining < pollIntervalInNanos) ? remaining : pollIntervalInNanos;
-            Thread.sleep(nanos / 1000000, (int)nanos % 1000000);
+            }
+            if (remaining < BLOCK_NANOS || !awaitPush()) {
+                final long nanos = (remaining < pollIntervalInNanos) ? remaining : pollIntervalInNanos;
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
             result = poll(maxSize);
         }
+        mark(productivePollMeter);
         return result;
     }
 
+    private static void mark(Meter meter) {
+        if (meter != null)
+            meter.mark();
+    }
+
+    /**
+     * Blocks for up to a second until a push notification is available, counting this poller in the waiters
+     * key while it is blocked so pushes add a token for it.
+     *
+     * @return True if the poller blocked (whether woken by a push or not), false if no blocking permit was
+     *         available.
+     */
+    private boolean awaitPush() {
+        final Semaphore permits = this.blockingPolls;
+        if (permits != null && !permits.tryAcquire())
+            return false;
+        try {
+            List<byte[]> popped = pool.useJedis(new JedisUser<List<byte[]>>() {
+                @Override
+                public List<byte[]> use(Jedis jedis) throws RedisTransactionCollision {
+                    jedis.incr(waitersKey);
+                    jedis.expire(waitersKey, WAITERS_TTL_SECONDS);
+                    try {
+                        return jedis.brpop(BLOCK_SECONDS, notifyListKey);
+                    } finally {
+                        jedis.decr(waitersKey);
+                    }
+                }
+            });
+            if (popped != null && !popped.isEmpty())
+                mark(wakeupMeter);
+            return true;
+        } finally {
+            if (permits != null)
+                permits.release();
+        }
+    }
+
+    /**
+     * Returns the number of tokens to push to wake the blocked pollers: one for each of them, at least one
+     * and at most MAXIMUM_NOTIFY_TOKENS.
+     */
+    private int wakeTokens(Jedis jedis) {
+        byte[] waiters = jedis.get(waitersKey);
+        long count = 0;
+        if (waiters != null) {
+            try {
+                count = Long.parseLong(SafeEncoder.encode(waiters));
+            } catch (NumberFormatException e) {
+                // Treated as no waiters
+            }
+        }
+        return (int) Math.max(1L, Math.min(MAXIMUM_NOTIFY_TOKENS, count));
+    }
+
     private List<EventIndexBackendTask> poll(int maxSize) {
-        List<String> fetched;
+        List<byte[]> fetched;
         if (pool.supportsEval())
             fetched = pool.useJedis(new PollEvalJedisUser(maxSize));
         else
@@ -234,9 +376,18 @@ public class RedisWorkQueue implements WorkQueue {
         if (fetched == null || fetched.isEmpty())
             return Collections.emptyList();
         List<EventIndexBackendTask> tasks = Lists.newArrayListWithExpectedSize(fetched.size());
-        for (String s : fetched) {
-            tasks.add(deserialize(s));
+        Map<byte[], EventIndexBackendTask> legacyTasks = null;
+        for (byte[] s : fetched) {
+            EventIndexBackendTask task = deserialize(s);
+            tasks.add(task);
+            if (task != null && EventIndexBackendTask.isLegacyEncoding(s)) {
+                if (legacyTasks == null)
+                    legacyTasks = new IdentityHashMap<byte[], EventIndexBackendTask>();
+                legacyTasks.put(s, task);
+            }
         }
+        if (legacyTasks != null)
+            migrateInProgress(legacyTasks);
         return tasks;
     }
 
@@ -269,21 +420,49 @@ public class RedisWorkQueue implements WorkQueue {
     /* Methods based on "eval" support in Redis, available since Redis 2.6. */
     /* -------------------------------------------------------------------- */
 
+    /**
+     * Pushes a wake-up token for each blocked poller (at least one).
+     * notifyKey: KEYS index of notifyListKey
+     * waitersKey: KEYS index of waitersKey
+     */
+    private static String luaNotify(int notifyKey, int waitersKey) {
+        return ""
+                + " local w = tonumber(redis.call('get', KEYS[" + waitersKey + "]) or '0') or 0;"
+                + " if w < 1 then"
+                + "   w = 1;"
+                + " elseif w > " + MAXIMUM_NOTIFY_TOKENS + " then"
+                + "   w = " + MAXIMUM_NOTIFY_TOKENS + ";"
+                + " end"
+                + " for i = 1, w do"
+                + "   redis.call('lpush', KEYS[" + notifyKey + "], '1');"
+                + " end"
+                + " redis.call('ltrim', KEYS[" + notifyKey + "], 0, " + (MAXIMUM_NOTIFY_TOKENS - 1) + ");";
+    }
+
     /**
      * KEYS[1]: queueListKey
      * KEYS[2]: queueSetKey
+     * KEYS[3]: notifyListKey
+     * KEYS[4]: waitersKey
      * ARGV[*]: serialized tasks
      */
     private static final String LUA_PUSH = (""
+            + " local pushed = false;"
             + " for i, t in ipairs(ARGV) do"
             + "   if redis.call('sadd', KEYS[2], t) > 0 then"
             + "     redis.call('lpush', KEYS[1], t);"
+            + "     pushed = true;"
             + "   end"
             + " end"
+            + " if pushed then"
+            + luaNotify(3, 4)
+            + " end"
     ).replaceAll("\\s+"," ");
 
+    private static final byte[] LUA_PUSH_BYTES = SafeEncoder.encode(LUA_PUSH);
+
     private class PushEvalJedisUser implements JedisUser<Object> {
-        private final List<String> args;
+        private final List<byte[]> args;
 
         public PushEvalJedisUser(Collection<EventIndexBackendTask> tasks) {
             args = Lists.newArrayListWithExpectedSize(tasks.size());
@@ -294,7 +473,7 @@ public class RedisWorkQueue implements WorkQueue {
 
         @Override
         public Object use(Jedis jedis) {
-            jedis.eval(LUA_PUSH, queueKeys, args);
+            jedis.eval(LUA_PUSH_BYTES, queueKeys, args);
             return null;
         }
     }
@@ -325,7 +504,9 @@ public class RedisWorkQueue implements WorkQueue {
             + " end"
     ).replaceAll("\\s+"," ");
 
-    private class PollEvalJedisUser implements JedisUser<List<String>> {
+    private static final byte[] LUA_POLL_BYTES = SafeEncoder.encode(LUA_POLL);
+
+    private class PollEvalJedisUser implements JedisUser<List<byte[]>> {
         private final int maxSize;
 
         public PollEvalJedisUser(int maxSize) {
@@ -334,10 +515,11 @@ public class RedisWorkQueue implements WorkQueue {
 
         @Override
         @SuppressWarnings("unchecked")
-        public List<String> use(Jedis jedis) {
-            String currentTime = Long.toString(System.currentTimeMillis());
-            String maxSize = Long.toString(this.maxSize);
-            List<String> result = (List<String>) jedis.eval(LUA_POLL, allKeys, Lists.newArrayList(currentTime, maxSize));
+        public List<byte[]> use(Jedis jedis) {
+            byte[] currentTime = SafeEncoder.encode(Long.toString(System.currentTimeMillis()));
+            byte[] maxSize = SafeEncoder.encode(Long.toString(this.maxSize));
+            List<byte[]> result = (List<byte[]>) jedis.eval(LUA_POLL_BYTES, allKeys,
+                    Lists.newArrayList(currentTime, maxSize));
             return result == null ? null : Lists.reverse(result);
         }
     }
@@ -346,6 +528,8 @@ public class RedisWorkQueue implements WorkQueue {
      * KEYS[1]: queueListKey
      * KEYS[2]: queueSetKey
      * KEYS[3]: holdZsetKey
+     * KEYS[4]: notifyListKey
+     * KEYS[5]: waitersKey
      * ARGV[1]: minStartTime
      * ARGV[2]: maxStartTime
      *
@@ -362,16 +546,21 @@ public class RedisWorkQueue implements WorkQueue {
             + "     end"
             + "     redis.call('zrem', KEYS[3], time, event);"
             + "   end"
+            + "   if c > 0 then"
+            + luaNotify(4, 5)
+            + "   end"
             + "   return c;"
             + " end"
     ).replaceAll("\\s+", " ");
 
+    private static final byte[] LUA_REQUEUE_BYTES = SafeEncoder.encode(LUA_REQUEUE);
+
     private class RequeueEvalJedisUser implements JedisUser<Long> {
         @Override
         public Long use(Jedis jedis) throws RedisTransactionCollision {
             long maxStartTime = System.currentTimeMillis() - inProgressDurationInMillis;
-            String cutoff = Long.toString(maxStartTime);
-            return (Long) jedis.eval(LUA_REQUEUE, allKeys, Lists.newArrayList(NEGATIVE_INF, cutoff));
+            byte[] cutoff = SafeEncoder.encode(Long.toString(maxStartTime));
+            return (Long) jedis.eval(LUA_REQUEUE_BYTES, requeueKeys, Lists.newArrayList(NEGATIVE_INF, cutoff));
         }
     }
 
@@ -381,10 +570,10 @@ public class RedisWorkQueue implements WorkQueue {
     /* -------------------------------------------------------------------- */
 
     private class PushTxJedisUser implements JedisUser<Boolean> {
-        private final String[] values;
+        private final byte[][] values;
 
         public PushTxJedisUser(Collection<EventIndexBackendTask> tasks) {
-            values = new String[tasks.size()];
+            values = new byte[tasks.size()][];
             int i=0;
             for (EventIndexBackendTask task : tasks)
                 values[i++] = serialize(task);
@@ -392,21 +581,25 @@ public class RedisWorkQueue implements WorkQueue {
 
         @Override
         public Boolean use(Jedis jedis) throws RedisTransactionCollision {
-            String randomKey = randomKey();
+            byte[] randomKey = SafeEncoder.encode(randomKey());
             try {
                 jedis.sadd(randomKey, values);
                 jedis.watch(queueSetKey);
-                Set<String> toPush = jedis.sdiff(randomKey, queueSetKey);
+                Set<byte[]> toPush = jedis.sdiff(randomKey, queueSetKey);
                 if (toPush.isEmpty()) {
                     jedis.unwatch();
                     return false;
                 } else {
+                    int tokens = wakeTokens(jedis);
                     Transaction tx = jedis.multi();
-                    String[] values = toPush.toArray(new String[toPush.size()]);
+                    byte[][] values = toPush.toArray(new byte[toPush.size()][]);
                     tx.sadd(queueSetKey, values);
                     tx.lpush(queueListKey, values);
+                    for (int i = 0; i < tokens; i++)
+                        tx.lpush(notifyListKey, NOTIFY_TOKEN);
+                    tx.ltrim(notifyListKey, 0, MAXIMUM_NOTIFY_TOKENS - 1);
                     if (tx.exec() == null)
-                        throw new RedisTransactionCollision(new String(queueSetKey));
+                        throw new RedisTransactionCollision(SafeEncoder.encode(queueSetKey));
                     return true;
                 }
             } finally {
@@ -415,29 +608,29 @@ public class RedisWorkQueue implements WorkQueue {
         }
     }
 
-    private class PollTxJedisUser implements JedisUser<List<String>> {
+    private class PollTxJedisUser implements JedisUser<List<byte[]>> {
         private final int maxSize;
         public PollTxJedisUser(int maxSize) {
             this.maxSize = maxSize;
         }
         @Override
-        public List<String> use(Jedis jedis) throws RedisTransactionCollision {
+        public List<byte[]> use(Jedis jedis) throws RedisTransactionCollision {
             jedis.watch(queueListKey);
             if (jedis.llen(queueListKey) == 0) {
                 jedis.unwatch();
                 return null;
             } else {
-                List<String> elements = Lists.reverse(jedis.lrange(queueListKey, -maxSize, -1));
+                List<byte[]> elements = Lists.reverse(jedis.lrange(queueListKey, -maxSize, -1));
                 Transaction tx = jedis.multi();
                 tx.ltrim(queueListKey, 0, -(1+elements.size()));
-                tx.srem(queueSetKey, elements.toArray(new String[elements.size()]));
+                tx.srem(queueSetKey, elements.toArray(new byte[elements.size()][]));
                 //TODO: perhaps combine all the ZADD calls into one, but probably it doesn't matter since it's a multi.
                 long now = System.currentTimeMillis();
-                for (String e : elements) {
+                for (byte[] e : elements) {
                     tx.zadd(holdZsetKey, now, e);
                 }
                 if (tx.exec() == null)
-                    throw new RedisTransactionCollision(new String(queueListKey));
+                    throw new RedisTransactionCollision(SafeEncoder.encode(queueListKey));
                 return elements;
             }
         }
@@ -447,31 +640,37 @@ public class RedisWorkQueue implements WorkQueue {
         @Override
         public Long use(Jedis jedis) throws RedisTransactionCollision {
             long maxStartTime = System.currentTimeMillis() - inProgressDurationInMillis;
-            String cutoff = Long.toString(maxStartTime);
+            byte[] cutoff = SafeEncoder.encode(Long.toString(maxStartTime));
             long count = 0;
 
             jedis.watch(holdZsetKey, queueSetKey);
 
-            Set<String> tasks = jedis.zrangeByScore(holdZsetKey, NEGATIVE_INF, cutoff);
-            Set<String> tasksAlreadyInQueue = new HashSet<String>();
-            for (String task : tasks) {
-                if (jedis.sismember(queueSetKey, task)) {
-                    tasksAlreadyInQueue.add(task);
-                }
+            // byte[] has identity equality, so track membership by position rather than in a Set.
+            List<byte[]> tasks = new ArrayList<byte[]>(jedis.zrangeByScore(holdZsetKey, NEGATIVE_INF, cutoff));
+            boolean[] alreadyInQueue = new boolean[tasks.size()];
+            for (int i = 0; i < tasks.size(); i++) {
+                alreadyInQueue[i] = jedis.sismember(queueSetKey, tasks.get(i));
             }
-            tasks.removeAll(tasksAlreadyInQueue);
 
+            int tokens = wakeTokens(jedis);
             Transaction tx = jedis.multi();
-            for (String task : tasks) {
+            for (int i = 0; i < tasks.size(); i++) {
+                byte[] task = tasks.get(i);
                 count++;
-                if (!tasksAlreadyInQueue.contains(task)) {
+                if (!alreadyInQueue[i]) {
                     tx.sadd(queueSetKey, task);
                     tx.lpush(queueListKey, task);
                 }
                 tx.zrem(holdZsetKey, task);
             }
+            if (count > 0) {
+                for (int i = 0; i < tokens; i++)
+                    tx.lpush(notifyListKey, NOTIFY_TOKEN);
+                tx.ltrim(notifyListKey, 0, MAXIMUM_NOTIFY_TOKENS - 1);
+            }
             if (tx.exec() == null)
-                throw new RedisTransactionCollision(new String(holdZsetKey) + " or " + new String(queueSetKey));
+                throw new RedisTransactionCollision(SafeEncoder.encode(holdZsetKey) + " or " +
+                        SafeEncoder.encode(queueSetKey));
             return count;
         }
     }
@@ -1,19 +1,45 @@
 package org.zenoss.zep.index.impl;
 
+import com.codahale.metrics.MetricRegistry;
 import org.zenoss.zep.index.WorkQueue;
 import org.zenoss.zep.index.WorkQueueBuilder;
 import org.zenoss.zep.utils.JedisPoolUtil;
 
+import javax.annotation.Resource;
+import java.util.concurrent.Semaphore;
+
 public class RedisWorkQueueBuilder implements WorkQueueBuilder {
 
     private final JedisPoolUtil pool;
+    private MetricRegistry metrics;
+    private Semaphore blockingPolls;
 
     public RedisWorkQueueBuilder(JedisPoolUtil pool) {
         this.pool = pool;
     }
 
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Limits the number of pool connections held by pollers blocked in BRPOP across all queues built, so they
+     * can't exhaust the pool.
+     *
+     * @param maxBlockingPolls The maximum number of blocked pollers, or 0 for no limit.
+     */
+    public void setMaxBlockingPolls(int maxBlockingPolls) {
+        this.blockingPolls = (maxBlockingPolls > 0) ? new Semaphore(maxBlockingPolls) : null;
+    }
+
     @Override
     public WorkQueue build(String queueId) {
-        return new RedisWorkQueue(pool, queueId);
+        RedisWorkQueue queue = new RedisWorkQueue(pool, queueId);
+        if (metrics != null) {
+            queue.setMetrics(metrics);
+        }
+        queue.setBlockingPolls(blockingPolls);
+        return queue;
     }
 }
@@ -0,0 +1,178 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.google.common.collect.Lists;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.index.WorkQueueBuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads tasks over several work queues so that each can be drained by its own worker.
+ *
+ * Index tasks are partitioned by a hash of the event UUID, so every task for an event lands on the same shard
+ * and the de-duplication and requeue semantics of the underlying queues hold per shard. Flush tasks are added
+ * to every shard so that each shard flushes after the tasks queued before it.
+ *
+ * Shard 0 uses the queue id of the unsharded queue, so changing the number of shards does not strand tasks
+ * queued before the change in that shard.
+ */
+public class ShardedWorkQueue implements WorkQueue {
+
+    private static final long POLL_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private final String queueId;
+    private final List<WorkQueue> shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    public ShardedWorkQueue(WorkQueueBuilder builder, String queueId, int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+        }
+        this.queueId = queueId;
+        List<WorkQueue> shards = Lists.newArrayListWithCapacity(numShards);
+        for (int i = 0; i < numShards; i++) {
+            shards.add(builder.build(shardQueueId(queueId, i)));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    public static String shardQueueId(String queueId, int shard) {
+        return (shard == 0) ? queueId : queueId + ":" + shard;
+    }
+
+    public String toString() {
+        return ShardedWorkQueue.class.getSimpleName() + "[" + queueId + " x " + shards.size() + "]";
+    }
+
+    public int getNumShards() {
+        return shards.size();
+    }
+
+    public WorkQueue getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    int shardOf(EventIndexBackendTask task) {
+        return (task.uuid.hashCode() & Integer.MAX_VALUE) % shards.size();
+    }
+
+    private List<List<EventIndexBackendTask>> partition(Collection<EventIndexBackendTask> tasks) {
+        final List<List<EventIndexBackendTask>> partitioned = Lists.newArrayListWithCapacity(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            partitioned.add(Lists.<EventIndexBackendTask>newArrayList());
+        }
+        for (EventIndexBackendTask task : tasks) {
+            if (task.uuid == null) {
+                for (List<EventIndexBackendTask> shard : partitioned) {
+                    shard.add(task);
+                }
+            } else {
+                partitioned.get(shardOf(task)).add(task);
+            }
+        }
+        return partitioned;
+    }
+
+    @Override
+    public boolean isReady() {
+        for (WorkQueue shard : shards) {
+            if (!shard.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void add(EventIndexBackendTask task) {
+        if (task == null) return;
+        addAll(Collections.singleton(task));
+    }
+
+    @Override
+    public void addAll(Collection<EventIndexBackendTask> tasks) {
+        if (tasks == null || tasks.isEmpty()) return;
+        final List<List<EventIndexBackendTask>> partitioned = partition(tasks);
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).addAll(partitioned.get(i));
+        }
+    }
+
+    /**
+     * Polls the shards in turn, starting after the shard the last tasks were taken from, so that no shard is
+     * starved. While every shard is empty it waits on one shard at a time for a short slice of the timeout, so a
+     * task added to another shard may wait up to a slice (or the shard's own wake-up granularity) to be returned.
+     * Workers which drain a single shard should poll it from {@link #getShard(int)} instead.
+     */
+    @Override
+    public List<EventIndexBackendTask> poll(int maxSize, int timeout, TimeUnit unit) throws InterruptedException {
+        final long due = System.nanoTime() + unit.toNanos(timeout);
+        final int numShards = shards.size();
+        while (true) {
+            final int start = nextShard.get();
+            for (int i = 0; i < numShards; i++) {
+                final int shard = (start + i) % numShards;
+                final List<EventIndexBackendTask> tasks = shards.get(shard).poll(maxSize, 0, TimeUnit.NANOSECONDS);
+                if (!tasks.isEmpty()) {
+                    nextShard.set((shard + 1) % numShards);
+                    return tasks;
+                }
+            }
+            final long remaining = due - System.nanoTime();
+            if (remaining <= 0) {
+                return Collections.emptyList();
+            }
+            final List<EventIndexBackendTask> tasks = shards.get(start).poll(maxSize,
+                    (int) Math.min(remaining, POLL_SLICE_NANOS), TimeUnit.NANOSECONDS);
+            if (!tasks.isEmpty()) {
+                nextShard.set((start + 1) % numShards);
+                return tasks;
+            }
+        }
+    }
+
+    @Override
+    public void complete(EventIndexBackendTask task) {
+        if (task == null) return;
+        completeAll(Collections.singleton(task));
+    }
+
+    @Override
+    public void completeAll(Collection<EventIndexBackendTask> tasks) {
+        if (tasks == null || tasks.isEmpty()) return;
+        final List<List<EventIndexBackendTask>> partitioned = partition(tasks);
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).completeAll(partitioned.get(i));
+        }
+    }
+
+    @Override
+    public long requeueOldTasks() {
+        long requeued = 0;
+        for (WorkQueue shard : shards) {
+            requeued += shard.requeueOldTasks();
+        }
+        return requeued;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (WorkQueue shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+}
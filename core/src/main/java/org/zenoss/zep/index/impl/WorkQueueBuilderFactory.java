@@ -0,0 +1,124 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.zenoss.zep.index.WorkQueueBuilder;
+import org.zenoss.zep.utils.JedisPoolUtil;
+
+import javax.annotation.Resource;
+import java.io.File;
+
+/**
+ * Creates the {@link WorkQueueBuilder} selected by zep.workqueue.type: "redis" (the default) shares queues
+ * through Redis, "journal" keeps them in process with a local journal for single-node deployments.
+ */
+public class WorkQueueBuilderFactory implements FactoryBean<WorkQueueBuilder>, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkQueueBuilderFactory.class);
+
+    public static final String TYPE_REDIS = "redis";
+    public static final String TYPE_JOURNAL = "journal";
+
+    private WorkQueueBuilder builder;
+
+    private String type = TYPE_REDIS;
+    private JedisPoolUtil jedisPoolUtil;
+    private File journalDirectory;
+    private int journalSize = JournaledWorkQueue.DEFAULT_JOURNAL_SIZE;
+    private long journalInProgressSeconds = JournaledWorkQueue.DEFAULT_IN_PROGRESS_SECONDS;
+    private int redisMaxBlockingPolls = 0;
+    private MetricRegistry metrics;
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public void setJedisPoolUtil(JedisPoolUtil jedisPoolUtil) {
+        this.jedisPoolUtil = jedisPoolUtil;
+    }
+
+    public void setJournalDirectory(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public void setJournalSize(int journalSize) {
+        this.journalSize = journalSize;
+    }
+
+    public void setJournalInProgressSeconds(long journalInProgressSeconds) {
+        this.journalInProgressSeconds = journalInProgressSeconds;
+    }
+
+    public void setRedisMaxBlockingPolls(int redisMaxBlockingPolls) {
+        this.redisMaxBlockingPolls = redisMaxBlockingPolls;
+    }
+
+    @Resource(name = "metrics")
+    public void setMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public synchronized WorkQueueBuilder getObject() throws Exception {
+        if (builder != null) {
+            return builder;
+        }
+        final String queueType = (type == null) ? TYPE_REDIS : type.trim().toLowerCase();
+        if (TYPE_JOURNAL.equals(queueType)) {
+            if (journalDirectory == null) {
+                throw new RuntimeException("Journal directory must be specified");
+            }
+            if (journalSize <= 0) {
+                throw new RuntimeException("Journal size must be positive");
+            }
+            if (journalInProgressSeconds <= 0) {
+                throw new RuntimeException("Journal in progress duration must be positive");
+            }
+            logger.info("Using journaled work queues in {}", journalDirectory);
+            JournaledWorkQueueBuilder journalBuilder = new JournaledWorkQueueBuilder(journalDirectory, journalSize);
+            journalBuilder.setInProgressSeconds(journalInProgressSeconds);
+            builder = journalBuilder;
+        } else if (TYPE_REDIS.equals(queueType)) {
+            if (jedisPoolUtil == null) {
+                throw new RuntimeException("JedisPoolUtil must be set");
+            }
+            RedisWorkQueueBuilder redisBuilder = new RedisWorkQueueBuilder(jedisPoolUtil);
+            if (metrics != null) {
+                redisBuilder.setMetrics(metrics);
+            }
+            redisBuilder.setMaxBlockingPolls(redisMaxBlockingPolls);
+            builder = redisBuilder;
+        } else {
+            throw new RuntimeException("Unknown work queue type: " + type);
+        }
+        return builder;
+    }
+
+    @Override
+    public Class<WorkQueueBuilder> getObjectType() {
+        return WorkQueueBuilder.class;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (builder instanceof JournaledWorkQueueBuilder) {
+            ((JournaledWorkQueueBuilder) builder).close();
+        }
+    }
+}
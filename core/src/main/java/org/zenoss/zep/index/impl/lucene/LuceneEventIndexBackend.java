@@ -13,21 +13,28 @@ package org.zenoss.zep.index.impl.lucene;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.google.api.client.util.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ExecutionError;
 import com.google.common.util.concurrent.SimpleTimeLimiter;
 import com.google.common.util.concurrent.TimeLimiter;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.OpenBitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.TaskScheduler;
+import org.zenoss.protobufs.util.Util.TimestampRange;
 import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventActor;
 import org.zenoss.protobufs.zep.Zep.EventDetailItem;
@@ -41,10 +48,13 @@ import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.protobufs.zep.Zep.EventSummaryRequest;
 import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
 import org.zenoss.protobufs.zep.Zep.EventTag;
+import org.zenoss.protobufs.zep.Zep.FilterOperator;
 import org.zenoss.zep.Messages;
 import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepConstants;
 import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
 import org.zenoss.zep.dao.EventSummaryBaseDao;
 import org.zenoss.zep.index.IndexedDetailsConfiguration;
 import org.zenoss.zep.index.SavedSearchProcessor;
@@ -54,6 +64,7 @@ import javax.annotation.Resource;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Executors;
 
@@ -63,15 +74,14 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
 
     private static final Logger logger = LoggerFactory.getLogger(LuceneEventIndexBackend.class);
 
+    // The number of events indexed at a time when rebuilding a partition
+    private static final int PARTITION_REBUILD_BATCH_SIZE = 1000;
+
     private final String name;
-    private final IndexWriter writer;
-    private final SearcherManager searcherManager;
+    private final LuceneIndexPartitions index;
     private final boolean archive;
     private final EventSummaryBaseDao eventSummaryBaseDao;
     private final LuceneFilterCacheManager filterCacheManager;
-    private final TrackingIndexWriter trackingIndexWriter;
-    private ControlledRealTimeReopenThread nrtManagerReopenThread;
-    private int readerReopenInterval;
     private volatile boolean ready = false;
 
 
@@ -83,29 +93,33 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     private int indexResultsCount = -1;
     private int luceneSearchTimeout = 0;
     private TimeLimiter timeLimiter = null;
+    private int resultCacheSize = 0;
+    private int resultCacheTTL = 60;
+    private volatile Cache<ResultCacheKey,EventSummaryResult> resultCache = null;
 
     public LuceneEventIndexBackend(String name, IndexWriter writer, EventSummaryBaseDao eventSummaryBaseDao,
                                    Integer maxClauseCount, LuceneFilterCacheManager filterCacheManager, int readerRefreshInterval,
                                    Messages messages, TaskScheduler scheduler, UUIDGenerator uuidGenerator,
                                    int tagSeverityCacheSize, int tagSeveritiesCacheTTL)
             throws IOException
+    {
+        this(name, LuceneIndexPartitions.single(writer), eventSummaryBaseDao, maxClauseCount, filterCacheManager,
+                readerRefreshInterval, messages, scheduler, uuidGenerator, tagSeverityCacheSize, tagSeveritiesCacheTTL);
+    }
+
+    public LuceneEventIndexBackend(String name, LuceneIndexPartitions index, EventSummaryBaseDao eventSummaryBaseDao,
+                                   Integer maxClauseCount, LuceneFilterCacheManager filterCacheManager, int readerRefreshInterval,
+                                   Messages messages, TaskScheduler scheduler, UUIDGenerator uuidGenerator,
+                                   int tagSeverityCacheSize, int tagSeveritiesCacheTTL)
     {
         super(messages, scheduler, uuidGenerator, tagSeverityCacheSize, tagSeveritiesCacheTTL);
         this.name = name;
-        this.writer = writer;
-        this.trackingIndexWriter = new TrackingIndexWriter(this.writer);
-        this.searcherManager = new SearcherManager(this.writer, true, null);
+        this.index = index;
         this.eventSummaryBaseDao = eventSummaryBaseDao;
         this.archive = "event_archive".equals(name);
         this.filterCacheManager = filterCacheManager;
-        this.readerReopenInterval = readerRefreshInterval;
         BooleanQuery.setMaxClauseCount(maxClauseCount);
-        // Deal with the reader reopen thread
-        if (this.readerReopenInterval != 0) {
-            startReopenThread();
-        } else {
-            this.nrtManagerReopenThread = null;
-        }
+        this.index.setReaderReopenInterval(readerRefreshInterval);
     }
 
     private String getMetricName(String metricName) {
@@ -138,7 +152,7 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                 logger.info("Warming cache for {}", name);
                 IndexSearcher searcher = null;
                 try {
-                    searcher = getSearcher();
+                    searcher = getSearcher(null);
                     EventFilter filter = EventFilter.newBuilder()
                             .addAllStatus(Lists.newArrayList(EventStatus.values()))
                             .addAllSeverity(Lists.newArrayList(EventSeverity.values()))
@@ -149,7 +163,7 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                     sortList.add(EventSort.newBuilder().setField(EventSort.Field.LAST_SEEN).setDirection(Direction.DESCENDING).build());
                     Sort sort = buildSort(sortList);
                     logger.info("Warming cache for {}", name);
-                    searchToEventSummaryResult(searcher, query, sort, Sets.newHashSet(FIELD_PROTOBUF), 0, 1000);
+                    searchToEventSummaryResult(searcher, query, sort, Sets.newHashSet(FIELD_PROTOBUF), 0, 1000, null);
                     logger.info("Done warming cache for {}!", name);
                     ready = true;
                 } catch (Exception e) {
@@ -170,45 +184,43 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         warmer.start();
     }
 
-    private synchronized void startReopenThread() {
-        stopReopenThread();
-        logger.debug("Starting NRT Reopen Thread");
-        // Max = min on this because min only matters when you call
-        // waitForGeneration() on the NRTManager, which we never do
-        this.nrtManagerReopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(this.trackingIndexWriter, this.searcherManager,
-                this.readerReopenInterval, this.readerReopenInterval);
-        this.nrtManagerReopenThread.setName(name + "NRT Reopen Thread");
-        this.nrtManagerReopenThread.setPriority(Math.min(Thread.currentThread().getPriority() + 2, Thread.MAX_PRIORITY));
-        this.nrtManagerReopenThread.setDaemon(true);
-        this.nrtManagerReopenThread.start();
-    }
-
-    private synchronized void stopReopenThread() {
-        if (this.nrtManagerReopenThread != null) {
-            if (this.nrtManagerReopenThread.isAlive()) {
-                logger.debug("Stopping NRT Reopen Thread");
-                this.nrtManagerReopenThread.close();
-            } else {
-                this.nrtManagerReopenThread = null;
-            }
-        }
-    }
-
-    public synchronized void setReaderReopenInterval(int interval) {
-        if (this.readerReopenInterval == interval) {
-            return;
-        } else if (this.readerReopenInterval != 0 && interval == 0) {
-            this.readerReopenInterval = interval;
-            stopReopenThread();
-        } else {
-            this.readerReopenInterval = interval;
-            startReopenThread();
-        }
+    public void setReaderReopenInterval(int interval) {
+        this.index.setReaderReopenInterval(interval);
     }
 
     public synchronized void close() {
         super.close();
-        closeSearcherManager();
+        closeIndex();
+    }
+
+    /**
+     * Sets the maximum number of results of list requests cached until the index changes.
+     *
+     * @param resultCacheSize Maximum number of cached results, or 0 to disable the cache.
+     */
+    public synchronized void setResultCacheSize(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+        createResultCache();
+    }
+
+    /**
+     * Sets how long a result stays cached. Results are only reused while the index is unchanged, so this bounds
+     * how long the results of an index which rarely changes (and the events they hold) stay in memory.
+     *
+     * @param resultCacheTTL The time in seconds a result stays cached.
+     */
+    public synchronized void setResultCacheTTL(int resultCacheTTL) {
+        this.resultCacheTTL = Math.max(1, resultCacheTTL);
+        createResultCache();
+    }
+
+    private void createResultCache() {
+        if (this.resultCacheSize > 0) {
+            this.resultCache = CacheBuilder.newBuilder().maximumSize(this.resultCacheSize)
+                    .expireAfterWrite(this.resultCacheTTL, TimeUnit.SECONDS).build();
+        } else {
+            this.resultCache = null;
+        }
     }
 
     public void setLuceneSearchTimeout(int luceneSearchTimeout) {
@@ -231,31 +243,21 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
 
     @Override
     public long count() throws ZepException {
-        return this.writer.numDocs();
+        return this.index.numDocs();
     }
 
     @Override
     public long sizeInBytes() {
         try {
-            Directory directory = writer.getDirectory();
-            long size = 0L;
-            for (String name : directory.listAll()) {
-                size += directory.fileLength(name);
-            }
-            return size;
+            return this.index.sizeInBytes();
         } catch (IOException e) {
             logger.warn("Cannot get index size.");
             return -1L;
         }
     }
 
-    private synchronized void closeSearcherManager() {
-        stopReopenThread();
-        try {
-            this.searcherManager.close();
-        } catch (IOException e) {
-            logger.error("Unable to close SearcherManager: {}", e);
-        }
+    private synchronized void closeIndex() {
+        this.index.close();
     }
 
     public void setIndexDetailsConfiguration(IndexedDetailsConfiguration indexedDetailsConfiguration) {
@@ -282,14 +284,15 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                 indexedDetailsConfiguration.getEventDetailItemsByName(),
                 this.archive);
         try {
-            this.trackingIndexWriter.updateDocument(
+            this.index.updateDocument(
+                    event.getLastSeenTime(),
                     new Term(FIELD_UUID, event.getUuid()),
                     doc);
         } catch (IOException e) {
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while indexing event - {} : {}", event.getUuid(), e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         }
     }
@@ -303,7 +306,7 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     @Override
     public void delete(String eventUuid) throws ZepException {
         try {
-            this.trackingIndexWriter.deleteDocuments(new Term(FIELD_UUID, eventUuid));
+            this.index.deleteDocuments(new Term(FIELD_UUID, eventUuid));
         } catch (IOException e) {
             throw new ZepException(e);
         }
@@ -320,12 +323,12 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                 terms[i] = new Term(FIELD_UUID, uuid);
                 i++;
             }
-            this.trackingIndexWriter.deleteDocuments(terms);
+            this.index.deleteDocuments(terms);
         } catch (IOException e) {
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while deleting eventUuids : {} - {}", eventUuids, e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         }
         logger.debug("Deleted eventUuids: {}", eventUuids);
@@ -334,27 +337,62 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     @Override
     public void flush() throws ZepException {
         try {
-            this.writer.commit();
+            this.index.commit();
         } catch (IOException e) {
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while commiting event changes: {} ",e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         }
         logger.debug("Flushed");
     }
 
-    private IndexSearcher getSearcher() throws IOException {
-        if (this.readerReopenInterval == 0) {
-            this.searcherManager.maybeRefresh();
+    /**
+     * Acquires a searcher over the partitions of the index overlapping a range of last seen times.
+     *
+     * @param lastSeenRange The range of last seen times of the matching events (see {@link #lastSeenRange}), or
+     *                      null to search every partition.
+     */
+    private IndexSearcher getSearcher(Long[] lastSeenRange) throws IOException {
+        if (lastSeenRange == null) {
+            return this.index.acquire(null, null);
+        }
+        return this.index.acquire(lastSeenRange[0], lastSeenRange[1]);
+    }
+
+    /**
+     * Returns the range of last seen times which events matching a filter must be in, or null if the filter
+     * doesn't restrict the last seen time (or restricts it in a way which can't be used to skip partitions).
+     * Only last seen ranges combined with the rest of the filter with AND narrow the search - subfilters and
+     * exclusion filters are never used.
+     *
+     * @param filter The event filter.
+     * @return The minimum and maximum last seen time (inclusive, null if unbounded), or null.
+     */
+    static Long[] lastSeenRange(EventFilter filter) {
+        if (filter == null || filter.getLastSeenCount() == 0 || filter.getOperator() != FilterOperator.AND) {
+            return null;
+        }
+        // Ranges of the same field are ORed together
+        Long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+        for (TimestampRange range : filter.getLastSeenList()) {
+            if (from != null) {
+                from = range.hasStartTime() ? Math.min(from, range.getStartTime()) : null;
+            }
+            if (to != null) {
+                to = range.hasEndTime() ? Math.max(to, range.getEndTime()) : null;
+            }
         }
-        return this.searcherManager.acquire();
+        if (from == null && to == null) {
+            return null;
+        }
+        return new Long[] { from, to };
     }
 
     private void returnSearcher(IndexSearcher searcher) throws ZepException {
         try {
-            if (searcher != null) this.searcherManager.release(searcher);
+            if (searcher != null) this.index.release(searcher);
         } catch (IOException e) {
             throw new ZepException(e.getLocalizedMessage(), e);
         }
@@ -376,23 +414,106 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         return listInternal(request, UUID_FIELDS);
     }
 
-    private EventSummaryResult listInternal(EventSummaryRequest request, Set<String> fieldsToLoad) throws ZepException {
+    /**
+     * Key of the result cache: the parts of a request which change its results, and the version of the documents
+     * seen by the searcher the results were found with.
+     */
+    private static final class ResultCacheKey {
+        private final EventFilter filter;
+        private final EventFilter exclusionFilter;
+        private final List<EventSort> sortList;
+        private final int offset;
+        private final int limit;
+        private final Set<String> fieldsToLoad;
+        private final List<Long> version;
+
+        ResultCacheKey(EventSummaryRequest request, int queryLimit, Set<String> fieldsToLoad, List<Long> version) {
+            this.filter = request.hasEventFilter() ? request.getEventFilter() : null;
+            this.exclusionFilter = request.hasExclusionFilter() ? request.getExclusionFilter() : null;
+            this.sortList = request.getSortList();
+            this.offset = Math.max(request.getOffset(), 0);
+            this.limit = Math.min(request.getLimit(), queryLimit);
+            this.fieldsToLoad = fieldsToLoad;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ResultCacheKey)) return false;
+            ResultCacheKey that = (ResultCacheKey) o;
+            return version.equals(that.version) && offset == that.offset && limit == that.limit &&
+                    fieldsToLoad.equals(that.fieldsToLoad) && sortList.equals(that.sortList) &&
+                    (filter == null ? that.filter == null : filter.equals(that.filter)) &&
+                    (exclusionFilter == null ? that.exclusionFilter == null :
+                            exclusionFilter.equals(that.exclusionFilter));
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { filter, exclusionFilter, sortList, offset, limit, fieldsToLoad,
+                    version });
+        }
+    }
+
+    private EventSummaryResult listInternal(final EventSummaryRequest request, final Set<String> fieldsToLoad)
+            throws ZepException {
         IndexSearcher searcher = null;
-        long now = System.currentTimeMillis();
-        Query query = null;
         try {
-            searcher = getSearcher();
-            query = buildQuery(searcher.getIndexReader(), request.getEventFilter(), request.getExclusionFilter());
-            Sort sort = buildSort(request.getSortList());
-            return searchToEventSummaryResult(searcher, query, sort, fieldsToLoad, request.getOffset(), request.getLimit());
+            searcher = getSearcher(lastSeenRange(request.getEventFilter()));
+            final Cache<ResultCacheKey,EventSummaryResult> cache = this.resultCache;
+            if (cache == null) {
+                return searchRequest(searcher, request, fieldsToLoad);
+            }
+            // The same request with a searcher seeing the same documents has the same results. Concurrent identical
+            // requests wait for the first one to search.
+            final IndexSearcher requestSearcher = searcher;
+            final ResultCacheKey key = new ResultCacheKey(request, this.queryLimit, fieldsToLoad,
+                    this.index.getVersion(searcher));
+            final EventSummaryResult result = cache.get(key, new Callable<EventSummaryResult>() {
+                @Override
+                public EventSummaryResult call() throws Exception {
+                    return searchRequest(requestSearcher, request, fieldsToLoad);
+                }
+            });
+            // Cache hits don't search, so update the result count of the last search here
+            this.indexResultsCount = result.getTotal();
+            return result;
         } catch (IOException e) {
             throw new ZepException(e.getLocalizedMessage(), e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ZepException) {
+                throw (ZepException) cause;
+            }
+            throw new ZepException(cause.getLocalizedMessage(), cause);
+        } catch (UncheckedExecutionException e) {
+            throw new ZepException(e.getCause().getLocalizedMessage(), e.getCause());
+        } catch (ExecutionError e) {
+            if (e.getCause() instanceof OutOfMemoryError) {
+                logger.error("OutOfMemoryException thrown while performing listInternal search : {}", e.getCause());
+                closeIndex();
+            }
+            throw (Error) e.getCause();
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while performing listInternal search : {}", e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         } finally {
             returnSearcher(searcher);
+        }
+    }
+
+    private EventSummaryResult searchRequest(IndexSearcher searcher, EventSummaryRequest request,
+                                             Set<String> fieldsToLoad) throws IOException, ZepException {
+        long now = System.currentTimeMillis();
+        Query query = null;
+        try {
+            query = buildQuery(searcher.getIndexReader(), request.getEventFilter(), request.getExclusionFilter());
+            Sort sort = buildSort(request.getSortList());
+            return searchToEventSummaryResult(searcher, query, sort, fieldsToLoad, request.getOffset(), request.getLimit(),
+                    null);
+        } finally {
             if (query != null) {
                 logger.debug("Query {} finished in {} milliseconds", query.toString(), System.currentTimeMillis() - now);
             }
@@ -400,7 +521,8 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     }
 
     private TopDocs timeLimitedSearch(final IndexSearcher searcher, final Query query,
-                                         final Sort sort, final int offset, final int limit, final int numDocs)
+                                         final Sort sort, final int offset, final int limit, final int numDocs,
+                                         final ScoreDoc after)
         throws ZepException {
 
         TopDocs docs;
@@ -410,10 +532,12 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                 TopDocs tdocs;
                 if (sort != null) {
                     logger.debug("Query: {}, Sort: {}, Offset: {}, Limit: {}", new Object[]{query, sort, offset, limit});
-                    tdocs = searcher.search(query, null, numDocs, sort);
+                    tdocs = (after != null) ? searcher.searchAfter(after, query, null, numDocs, sort)
+                            : searcher.search(query, null, numDocs, sort);
                 } else {
                     logger.debug("Query: {}, Offset: {}, Limit: {}", new Object[]{query, offset, limit});
-                    tdocs = searcher.search(query, null, numDocs);
+                    tdocs = (after != null) ? searcher.searchAfter(after, query, null, numDocs)
+                            : searcher.search(query, null, numDocs);
                 }
                 return tdocs;
             }
@@ -446,8 +570,14 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         return docs;
     }
 
+    /**
+     * Searches for a page of events. When paging through a saved search, the search remembers the last document
+     * of the page, so a request for the following page (at the returned next offset) continues the search after
+     * that document instead of collecting and skipping every earlier result.
+     */
     private EventSummaryResult searchToEventSummaryResult(IndexSearcher searcher, Query query, Sort sort,
-                                                          Set<String> fieldsToLoad, int offset, int limit)
+                                                          Set<String> fieldsToLoad, int offset, int limit,
+                                                          LuceneSavedSearch savedSearch)
             throws IOException, ZepException {
         if (limit < 0) {
             throw new ZepException(messages.getMessage("invalid_query_limit", limit));
@@ -459,10 +589,14 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             offset = 0;
         }
 
+        final ScoreDoc after = (savedSearch != null) ? savedSearch.getCursor(offset) : null;
+        // Documents before this index of the results are skipped
+        final int firstDocument = (after != null) ? 0 : offset;
+
         // Lucene doesn't like querying for 0 documents - search for at least one here
-        final int numDocs = Math.max(limit + offset, 1);
+        final int numDocs = Math.max(limit + firstDocument, 1);
 
-        final TopDocs docs = this.timeLimitedSearch(searcher, query, sort, offset, limit, numDocs);
+        final TopDocs docs = this.timeLimitedSearch(searcher, query, sort, offset, limit, numDocs, after);
 
         this.indexResultsCount = docs.totalHits;
         logger.debug("Found {} results", docs.totalHits);
@@ -475,14 +609,17 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
 
         // Return the number of results they asked for (the query has to return at least one match
         // but the request may specified a limit of zero).
-        final int lastDocument = Math.min(limit + offset, docs.scoreDocs.length);
+        final int lastDocument = Math.min(limit + firstDocument, docs.scoreDocs.length);
+        if (savedSearch != null && lastDocument > firstDocument && result.hasNextOffset()) {
+            savedSearch.setCursor(result.getNextOffset(), docs.scoreDocs[lastDocument - 1]);
+        }
 
         if (this.archive && !UUID_FIELDS.equals(fieldsToLoad)) {
             // Event archive only stores UUID & last_seen - have to query results from database
             Map<String, EventSummary> sortedResults = Maps.newLinkedHashMap();
             Set<EventSummary> toLookup = Sets.newHashSetWithExpectedSize(lastDocument);
             Set<String> uuidAndLastSeen = Sets.newHashSet(FIELD_UUID, FIELD_LAST_SEEN_TIME);
-            for (int i = offset; i < lastDocument; i++) {
+            for (int i = firstDocument; i < lastDocument; i++) {
                 Document doc = searcher.doc(docs.scoreDocs[i].doc, uuidAndLastSeen);
                 EventSummary event = LuceneEventIndexMapper.toEventSummary(doc);
                 sortedResults.put(event.getUuid(), null);
@@ -510,7 +647,7 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             }
 
         } else {
-            for (int i = offset; i < lastDocument; i++) {
+            for (int i = firstDocument; i < lastDocument; i++) {
                 result.addEvents(LuceneEventIndexMapper.toEventSummary(searcher.doc(docs.scoreDocs[i].doc, fieldsToLoad)));
             }
         }
@@ -523,7 +660,7 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         EventSummary summary = null;
         IndexSearcher searcher = null;
         try {
-            searcher = getSearcher();
+            searcher = getSearcher(null);
             TopDocs docs = searcher.search(query, 1);
             if (docs.scoreDocs.length > 0) {
                 // Not the most efficient way to search the archive, however this should give consistent results
@@ -542,7 +679,7 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while findingByUuid for eventUuid:{} - {}", uuid, e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         } finally {
             returnSearcher(searcher);
@@ -554,34 +691,92 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     public void purge(Date threshold) throws ZepException {
         IndexSearcher searcher = null;
         try {
-            searcher = getSearcher();
+            // Only the partitions overlapping the threshold need documents deleted, older ones are dropped
+            searcher = getSearcher(new Long[] { threshold.getTime(), threshold.getTime() });
             LuceneQueryBuilder query = new LuceneQueryBuilder(filterCacheManager,
                     searcher.getIndexReader(), this.indexedDetailsConfiguration);
             query.addRange(FIELD_LAST_SEEN_TIME, null, threshold.getTime());
-            this.trackingIndexWriter.deleteDocuments(query.build());
+            final int dropped = this.index.purge(threshold.getTime(), query.build());
+            if (dropped > 0) {
+                logger.info("Dropped {} {} index partitions older than {}", new Object[]{dropped, name, threshold});
+            }
             flush();
         } catch (IOException e) {
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while purging events older than {} :{} ",threshold.getDate(), e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         } finally {
             returnSearcher(searcher);
         }
     }
 
+    /**
+     * Rebuilds the partition of a partitioned index which holds a last seen time from the database, without
+     * rebuilding the rest of the index. The partition is dropped and the events of the table in its range of last
+     * seen times are indexed again, so searches of the partition return partial results until it's rebuilt.
+     *
+     * @param lastSeen A last seen time in the partition.
+     * @return The number of events indexed.
+     * @throws ZepException If the index isn't partitioned, or the events can't be read or indexed.
+     */
+    public int rebuildPartition(long lastSeen) throws ZepException {
+        if (!this.index.isPartitioned()) {
+            throw new ZepException("The " + name + " index isn't partitioned");
+        }
+        final long[] range;
+        try {
+            range = this.index.dropPartitionAt(lastSeen);
+        } catch (IOException e) {
+            throw new ZepException(e);
+        }
+        final long min = range[0], lessThan = range[1];
+        logger.info("Rebuilding {} index partition of last seen times [{}, {})", new Object[] { name, min, lessThan });
+        final List<EventSummary> batch = new ArrayList<EventSummary>(PARTITION_REBUILD_BATCH_SIZE);
+        final int[] indexed = { 0 };
+        final EventScanCallback callback = new EventScanCallback() {
+            @Override
+            public boolean event(EventSummary event) throws ZepException {
+                // A table without partitions is scanned whole
+                if (event.getLastSeenTime() >= min && event.getLastSeenTime() < lessThan) {
+                    batch.add(event);
+                    if (batch.size() >= PARTITION_REBUILD_BATCH_SIZE) {
+                        index(batch);
+                        indexed[0] += batch.size();
+                        batch.clear();
+                    }
+                }
+                return true;
+            }
+        };
+        for (EventScanRange scanRange : this.eventSummaryBaseDao.listScanRanges(1)) {
+            final Long rangeMin = scanRange.getLastSeenMinimum();
+            final Long rangeLessThan = scanRange.getLastSeenLessThan();
+            if ((rangeMin == null || rangeMin < lessThan) && (rangeLessThan == null || rangeLessThan > min)) {
+                this.eventSummaryBaseDao.scanRange(scanRange, null, Long.MAX_VALUE, PARTITION_REBUILD_BATCH_SIZE,
+                        callback);
+            }
+        }
+        index(batch);
+        indexed[0] += batch.size();
+        flush();
+        logger.info("Rebuilt {} index partition of last seen times [{}, {}) with {} events",
+                new Object[] { name, min, lessThan, indexed[0] });
+        return indexed[0];
+    }
+
     @Override
     public void clear() throws ZepException {
         logger.debug("Deleting all events for: {}", name);
         try {
-            this.trackingIndexWriter.deleteAll();
+            this.index.deleteAll();
             flush();
         } catch (IOException e) {
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while clearing events for {} : {} ",name, e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         }
     }
@@ -749,31 +944,12 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         final boolean hasTagsFilter = filter.getTagFilterCount() > 0;
         IndexSearcher searcher = null;
         try {
-            searcher = getSearcher();
+            searcher = getSearcher(lastSeenRange(filter));
             final Query query = buildQueryFromFilter(searcher.getIndexReader(), filter);
+            // Documents with the DocValues fields are counted as they're collected. Documents indexed before the
+            // DocValues fields were added (until the index is rebuilt) are counted afterwards from stored fields.
             final OpenBitSet docs = new OpenBitSet(searcher.getIndexReader().maxDoc());
-            searcher.search(query, new Collector() {
-                private int docBase;
-
-                @Override
-                public void setScorer(Scorer scorer) throws IOException {
-                }
-
-                @Override
-                public void collect(int doc) throws IOException {
-                    docs.set(docBase + doc);
-                }
-
-                @Override
-                public void setNextReader(AtomicReaderContext atomicReaderContext) throws IOException {
-                    this.docBase = atomicReaderContext.docBase;
-                }
-
-                @Override
-                public boolean acceptsDocsOutOfOrder() {
-                    return true;
-                }
-            });
+            searcher.search(query, new TagSeverityCollector(counter, docs));
             int docId;
             final DocIdSetIterator it = docs.iterator();
             while ((docId = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
@@ -826,13 +1002,110 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             throw new ZepException(e);
         } catch (OutOfMemoryError e) {
             logger.error("OutOfMemoryException thrown while searching EventTagSeverities : {}", e);
-            closeSearcherManager();
+            closeIndex();
             throw e;
         } finally {
             returnSearcher(searcher);
         }
     }
 
+    /**
+     * Counts tag severities in a single pass over the DocValues fields of the matching documents, without loading
+     * any stored fields. Documents without the DocValues fields are added to a bit set to be counted separately.
+     * A tag repeated in a document is counted once per occurrence, as it is from the stored fields.
+     */
+    private static final class TagSeverityCollector extends Collector {
+        // Decoded tag UUIDs are cached by ordinal in segments with at most this many distinct tags
+        private static final int MAX_CACHED_TAGS = 1 << 16;
+
+        private final EventTagSeverityCounter counter;
+        private final OpenBitSet missing;
+        private final BytesRef scratch = new BytesRef();
+        private final BytesRef repeatsScratch = new BytesRef();
+        private final ByteArrayDataInput repeats = new ByteArrayDataInput();
+        private int docBase;
+        private Bits docsWithValues;
+        private NumericDocValues severities;
+        private NumericDocValues statuses;
+        private NumericDocValues counts;
+        private SortedSetDocValues tags;
+        private BinaryDocValues tagRepeats;
+        private String[] tagCache;
+
+        public TagSeverityCollector(EventTagSeverityCounter counter, OpenBitSet missing) {
+            this.counter = counter;
+            this.missing = missing;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            final AtomicReader reader = context.reader();
+            this.docBase = context.docBase;
+            this.docsWithValues = reader.getDocsWithField(FIELD_SEVERITY_DOC_VALUES);
+            this.severities = reader.getNumericDocValues(FIELD_SEVERITY_DOC_VALUES);
+            this.statuses = reader.getNumericDocValues(FIELD_STATUS_DOC_VALUES);
+            this.counts = reader.getNumericDocValues(FIELD_COUNT_DOC_VALUES);
+            this.tags = reader.getSortedSetDocValues(FIELD_TAGS_DOC_VALUES);
+            this.tagRepeats = reader.getBinaryDocValues(FIELD_TAG_REPEATS_DOC_VALUES);
+            final long numTags = (this.tags != null) ? this.tags.getValueCount() : 0L;
+            this.tagCache = (numTags > 0L && numTags <= MAX_CACHED_TAGS) ? new String[(int) numTags] : null;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (docsWithValues == null || severities == null || statuses == null || counts == null ||
+                    !docsWithValues.get(doc)) {
+                missing.set(docBase + doc);
+                return;
+            }
+            if (tags == null) {
+                return;
+            }
+            final EventSeverity severity = EventSeverity.valueOf((int) severities.get(doc));
+            final boolean acknowledged = statuses.get(doc) == EventStatus.STATUS_ACKNOWLEDGED.getNumber();
+            final int count = (int) counts.get(doc);
+            tags.setDocument(doc);
+            // Documents without repeated tags have no repeat counts (see LuceneEventIndexMapper.addTagDocValues)
+            if (tagRepeats != null) {
+                tagRepeats.get(doc, repeatsScratch);
+                repeats.reset(repeatsScratch.bytes, repeatsScratch.offset, repeatsScratch.length);
+            } else {
+                repeats.reset(BytesRef.EMPTY_BYTES);
+            }
+            long ord;
+            while ((ord = tags.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                final String tag = lookupTag(ord);
+                final int occurrences = repeats.eof() ? 1 : repeats.readVInt();
+                for (int i = 0; i < occurrences; i++) {
+                    counter.update(tag, severity, count, acknowledged);
+                }
+            }
+        }
+
+        private String lookupTag(long ord) {
+            if (tagCache == null) {
+                tags.lookupOrd(ord, scratch);
+                return scratch.utf8ToString();
+            }
+            String tag = tagCache[(int) ord];
+            if (tag == null) {
+                tags.lookupOrd(ord, scratch);
+                tag = scratch.utf8ToString();
+                tagCache[(int) ord] = tag;
+            }
+            return tag;
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+    }
+
     private class Processor implements SavedSearchProcessor<LuceneSavedSearch> {
         private final Set<String> fieldsToLoad;
         public Processor(Set<String> fieldsToLoad) {
@@ -844,7 +1117,8 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             reader.incRef();
             try {
                 IndexSearcher searcher = new IndexSearcher(reader);
-                return searchToEventSummaryResult(searcher, search.getQuery(), search.getSort(), fieldsToLoad, offset, limit);
+                return searchToEventSummaryResult(searcher, search.getQuery(), search.getSort(), fieldsToLoad, offset, limit,
+                        search);
             } catch (IOException e) {
                 throw new ZepException(e);
             }
@@ -879,7 +1153,9 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
 
         IndexReader reader;
         try {
-            reader = DirectoryReader.open(writer, false);
+            final Long[] lastSeenRange = lastSeenRange(eventQuery.getEventFilter());
+            reader = (lastSeenRange == null) ? this.index.openReader(null, null)
+                    : this.index.openReader(lastSeenRange[0], lastSeenRange[1]);
         } catch (IOException e) {
             String msg = "Unable to get Lucene reader";
             logger.warn(msg, e);
@@ -13,6 +13,7 @@ package org.zenoss.zep.index.impl.lucene;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
@@ -20,9 +21,12 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.FloatField;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteArrayDataOutput;
 import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +41,7 @@ import org.zenoss.zep.ZepInstance;
 import org.zenoss.zep.index.impl.BaseEventIndexMapper;
 import org.zenoss.zep.utils.IpUtils;
 
+import java.io.IOException;
 import java.io.StringReader;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -44,9 +49,12 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_AGENT;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_COUNT;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_COUNT_DOC_VALUES;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_CURRENT_USER_NAME;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_IDENTIFIER;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_IDENTIFIER_NOT_ANALYZED;
@@ -68,11 +76,15 @@ import static org.zenoss.zep.index.impl.IndexConstants.FIELD_MESSAGE;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_MONITOR;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_PROTOBUF;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_SEVERITY;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_SEVERITY_DOC_VALUES;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_STATUS;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_STATUS_CHANGE_TIME;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_STATUS_DOC_VALUES;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_SUMMARY;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_SUMMARY_NOT_ANALYZED;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_TAGS;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_TAGS_DOC_VALUES;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_TAG_REPEATS_DOC_VALUES;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_UPDATE_TIME;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_UUID;
 import static org.zenoss.zep.index.impl.IndexConstants.IP_ADDRESS_TYPE_4;
@@ -140,6 +152,12 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
         doc.add(new Field(FIELD_SUMMARY, event.getSummary(), Store.NO, Index.ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_SUMMARY_NOT_ANALYZED, event.getSummary().toLowerCase(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
         doc.add(new IntField(FIELD_SEVERITY, event.getSeverity().getNumber(), Store.YES));
+        // Tag severities are only counted from the event summary index
+        if (!isArchive) {
+            doc.add(new NumericDocValuesField(FIELD_STATUS_DOC_VALUES, summary.getStatus().getNumber()));
+            doc.add(new NumericDocValuesField(FIELD_COUNT_DOC_VALUES, summary.getCount()));
+            doc.add(new NumericDocValuesField(FIELD_SEVERITY_DOC_VALUES, event.getSeverity().getNumber()));
+        }
 
         doc.add(new Field(FIELD_EVENT_CLASS, event.getEventClass(), Store.NO, Index.ANALYZED_NO_NORMS));
         // Store with a trailing slash to make lookups simpler
@@ -152,16 +170,17 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
         doc.add(new Field(FIELD_EVENT_GROUP, event.getEventGroup(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_MESSAGE, event.getMessage(), Store.NO, Index.ANALYZED_NO_NORMS));
 
+        final Map<String, Integer> tagCounts = new HashMap<String, Integer>();
         for (EventTag tag : event.getTagsList()) {
             for (String tagUuid : tag.getUuidList()) {
-                doc.add(new Field(FIELD_TAGS, tagUuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+                addTag(doc, tagUuid, tagCounts);
             }
         }
 
         EventActor actor = event.getActor();
         String uuid = actor.getElementUuid();
         if (uuid != null && !uuid.isEmpty()) {
-            doc.add(new Field(FIELD_TAGS, uuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+            addTag(doc, uuid, tagCounts);
         }
 
         String id = actor.getElementIdentifier();
@@ -174,7 +193,10 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
 
         String subUuid = actor.getElementSubUuid();
         if (subUuid != null && !subUuid.isEmpty()) {
-            doc.add(new Field(FIELD_TAGS, subUuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+            addTag(doc, subUuid, tagCounts);
+        }
+        if (!isArchive) {
+            addTagDocValues(doc, tagCounts);
         }
 
         String subId = actor.getElementSubIdentifier();
@@ -300,6 +322,41 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
         return doc;
     }
 
+    private static void addTag(Document doc, String uuid, Map<String, Integer> tagCounts) {
+        doc.add(new Field(FIELD_TAGS, uuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+        final Integer count = tagCounts.get(uuid);
+        tagCounts.put(uuid, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * Adds the distinct tags to the tags DocValues field. A sorted set only holds each tag once, so when a tag is
+     * repeated (like a device which is also one of the event's tags) the number of times each tag occurs is written
+     * to the tag repeats DocValues field, as VInts in the order the sorted set returns the tags of the document.
+     */
+    private static void addTagDocValues(Document doc, Map<String, Integer> tagCounts) throws ZepException {
+        final SortedMap<BytesRef, Integer> sortedCounts = new TreeMap<BytesRef, Integer>();
+        boolean repeated = false;
+        for (Map.Entry<String, Integer> entry : tagCounts.entrySet()) {
+            final BytesRef tag = new BytesRef(entry.getKey());
+            doc.add(new SortedSetDocValuesField(FIELD_TAGS_DOC_VALUES, tag));
+            sortedCounts.put(tag, entry.getValue());
+            repeated |= entry.getValue() > 1;
+        }
+        if (repeated) {
+            // A VInt takes at most 5 bytes
+            final byte[] bytes = new byte[5 * sortedCounts.size()];
+            final ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+            try {
+                for (int count : sortedCounts.values()) {
+                    out.writeVInt(count);
+                }
+            } catch (IOException e) {
+                throw new ZepException(e.getLocalizedMessage(), e);
+            }
+            doc.add(new BinaryDocValuesField(FIELD_TAG_REPEATS_DOC_VALUES, new BytesRef(bytes, 0, out.getPosition())));
+        }
+    }
+
     private static void createPathFields(Document doc, String detailKeyName, String detailValue) {
         String lowerCaseDetailValue = detailValue.toLowerCase();
         doc.add(new TextField(detailKeyName, new LucenePathTokenizer(new StringReader(lowerCaseDetailValue))));
@@ -0,0 +1,756 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.ZepInstance;
+import org.zenoss.zep.dao.EventScanRange;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.impl.PartitionTableConfig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Lucene index of a {@link LuceneEventIndexBackend}: either a single index, or one index per time partition of
+ * the last seen times of the events.
+ *
+ * Partitions have the same boundaries as the partitions of the database table (see {@link PartitionTableConfig}),
+ * falling back to multiples of the partition duration when the table isn't partitioned, and each one is a separate
+ * index in its own directory, so purging old events drops whole partitions instead of
+ * deleting documents (which have to be merged away later), and searches of a range of last seen times only search
+ * the partitions overlapping the range. Events are added to the partition of their last seen time, which doesn't
+ * change once an event is archived.
+ */
+public class LuceneIndexPartitions implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LuceneIndexPartitions.class);
+
+    // Partition directories are named by the range of last seen times in the partition (in UTC)
+    private static final String DATE_FORMAT = "yyyyMMdd_HHmmss";
+    private static final Pattern PARTITION_NAME = Pattern.compile("p(\\d{8}_\\d{6})-(\\d{8}_\\d{6})");
+
+    /**
+     * A partition of the index.
+     */
+    private static final class Partition {
+        final long id;
+        final String name;
+        final long rangeMinimum;
+        final long rangeLessThan;
+        final Directory directory;
+        final IndexWriter writer;
+        final SearcherManager searcherManager;
+
+        Partition(long id, String name, long rangeMinimum, long rangeLessThan, Directory directory,
+                  IndexWriter writer) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.rangeMinimum = rangeMinimum;
+            this.rangeLessThan = rangeLessThan;
+            this.directory = directory;
+            this.writer = writer;
+            this.searcherManager = new SearcherManager(writer, true, null);
+        }
+
+        boolean overlaps(Long from, Long to) {
+            return (from == null || from < rangeLessThan) && (to == null || to >= rangeMinimum);
+        }
+    }
+
+    /**
+     * A searcher over the partitions of the index, which releases the searchers of the partitions when it's
+     * released.
+     */
+    private static final class PartitionsSearcher extends IndexSearcher {
+        private final List<Partition> partitions;
+        private final List<IndexSearcher> searchers;
+
+        PartitionsSearcher(IndexReader reader, List<Partition> partitions, List<IndexSearcher> searchers) {
+            super(reader);
+            this.partitions = partitions;
+            this.searchers = searchers;
+        }
+    }
+
+    private final File directory;
+    private final Analyzer analyzer;
+    private final ZepInstance zepInstance;
+    private final long partitionMillis;
+    private final TreeMap<Long,Partition> partitions = new TreeMap<Long,Partition>();
+    // Partitions are numbered so a partition dropped and created again isn't mistaken for the old one
+    private final AtomicLong partitionIds = new AtomicLong();
+    private final ReadWriteLock partitionsLock = new ReentrantReadWriteLock();
+    private final Lock partitionsUse = partitionsLock.readLock();
+    private final Lock partitionsModify = partitionsLock.writeLock();
+
+    private EventSummaryBaseDao eventDao = null;
+    private File obsoleteDirectory = null;
+    private int readerReopenInterval = 0;
+    private ReopenThread reopenThread = null;
+
+    /**
+     * Creates a single, unpartitioned index. The index writer isn't closed with the index.
+     *
+     * @param writer The index writer.
+     * @return The index.
+     * @throws IOException If the index can't be read.
+     */
+    public static LuceneIndexPartitions single(IndexWriter writer) throws IOException {
+        return new LuceneIndexPartitions(writer);
+    }
+
+    private LuceneIndexPartitions(IndexWriter writer) throws IOException {
+        this.directory = null;
+        this.analyzer = null;
+        this.zepInstance = null;
+        this.partitionMillis = 0L;
+        this.partitions.put(Long.MIN_VALUE, new Partition(this.partitionIds.incrementAndGet(), null,
+                Long.MIN_VALUE, Long.MAX_VALUE, null, writer));
+    }
+
+    /**
+     * Opens a partitioned index, with a sub-directory for each partition.
+     *
+     * @param directory The directory of the index.
+     * @param analyzer The analyzer used by the index writers.
+     * @param zepInstance ZEP instance, used for the configuration of the index writers.
+     * @param partitionConfig Partitioning of the table the index is built from.
+     * @throws IOException If the index can't be read.
+     */
+    public LuceneIndexPartitions(File directory, Analyzer analyzer, ZepInstance zepInstance,
+                                 PartitionTableConfig partitionConfig) throws IOException {
+        this.directory = directory;
+        this.analyzer = analyzer;
+        this.zepInstance = zepInstance;
+        this.partitionMillis = partitionConfig.getPartitionUnit().toMillis(partitionConfig.getPartitionDuration());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create index directory: " + directory.getAbsolutePath());
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final Matcher matcher = PARTITION_NAME.matcher(file.getName());
+                if (!file.isDirectory() || !matcher.matches()) {
+                    continue;
+                }
+                try {
+                    final long min = parseDate(matcher.group(1));
+                    final long lessThan = parseDate(matcher.group(2));
+                    final Partition partition = openPartition(min, lessThan);
+                    this.partitions.put(min, partition);
+                } catch (ParseException e) {
+                    logger.warn("Ignoring index partition with invalid name: {}", file.getAbsolutePath());
+                }
+            }
+        }
+        logger.info("Opened {} index partitions in {}", this.partitions.size(), directory.getAbsolutePath());
+    }
+
+    /**
+     * Sets the DAO of the table the index is built from. New partitions take their boundaries from the partitions of
+     * the table, so each partition of the index holds the events of one partition of the table.
+     *
+     * @param eventDao The DAO of the table.
+     */
+    public void setEventDao(EventSummaryBaseDao eventDao) {
+        this.eventDao = eventDao;
+    }
+
+    /**
+     * @param obsoleteDirectory The directory of the index this index replaces, which is deleted by {@link #init()}.
+     */
+    public void setObsoleteDirectory(File obsoleteDirectory) {
+        this.obsoleteDirectory = obsoleteDirectory;
+    }
+
+    /**
+     * Deletes the directory of the index this index replaces (the unpartitioned index of earlier versions), which
+     * is no longer read or written.
+     */
+    public void init() {
+        if (this.obsoleteDirectory != null && this.obsoleteDirectory.exists()) {
+            logger.info("Deleting obsolete index directory: {}", this.obsoleteDirectory.getAbsolutePath());
+            if (!deleteRecursively(this.obsoleteDirectory)) {
+                logger.warn("Failed to delete obsolete index directory: {}", this.obsoleteDirectory.getAbsolutePath());
+            }
+        }
+    }
+
+    private static boolean deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete();
+    }
+
+    private static SimpleDateFormat dateFormat() {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static long parseDate(String date) throws ParseException {
+        return dateFormat().parse(date).getTime();
+    }
+
+    private static String partitionName(long min, long lessThan) {
+        final SimpleDateFormat format = dateFormat();
+        return "p" + format.format(new Date(min)) + "-" + format.format(new Date(lessThan));
+    }
+
+    private Partition openPartition(long min, long lessThan) throws IOException {
+        final String name = partitionName(min, lessThan);
+        final Directory dir = FSDirectory.open(new File(this.directory, name));
+        try {
+            final IndexWriter writer = new IndexWriter(dir,
+                    LuceneEventIndexMapper.createIndexWriterConfig(this.analyzer, this.zepInstance));
+            return new Partition(this.partitionIds.incrementAndGet(), name, min, lessThan, dir, writer);
+        } catch (IOException e) {
+            dir.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return True if the index is partitioned, false if it's a single index.
+     */
+    public boolean isPartitioned() {
+        return this.directory != null;
+    }
+
+    /**
+     * Returns the range of last seen times of a new partition holding a last seen time: the range of the partition
+     * of the table holding it or, if the table isn't partitioned (or can't be read), a range starting at a multiple
+     * of the partition duration (in UTC). Reads the partitions of the table, so don't call this with a lock held.
+     */
+    private long[] tablePartitionRange(long lastSeen) {
+        long min = lastSeen - (((lastSeen % partitionMillis) + partitionMillis) % partitionMillis);
+        long lessThan = min + partitionMillis;
+        if (this.eventDao != null) {
+            try {
+                for (EventScanRange range : this.eventDao.listScanRanges(1)) {
+                    final Long rangeMin = range.getLastSeenMinimum();
+                    final Long rangeLessThan = range.getLastSeenLessThan();
+                    if ((rangeMin == null || rangeMin <= lastSeen) &&
+                            (rangeLessThan == null || lastSeen < rangeLessThan)) {
+                        // The first and last partitions of the table may be unbounded
+                        if (rangeMin != null) {
+                            min = rangeMin;
+                        }
+                        if (rangeLessThan != null) {
+                            lessThan = rangeLessThan;
+                        }
+                        break;
+                    }
+                }
+            } catch (ZepException e) {
+                logger.warn("Failed to read the partitions of the table, using the partition duration", e);
+            }
+        }
+        return new long[] { min, lessThan };
+    }
+
+    /**
+     * Returns the partition of a last seen time, creating it with the given range if it doesn't exist. Only call
+     * this with the partitionsModify lock held.
+     */
+    private Partition getOrCreatePartition(long lastSeen, long[] range) throws IOException {
+        final Map.Entry<Long,Partition> floor = this.partitions.floorEntry(lastSeen);
+        if (floor != null && lastSeen < floor.getValue().rangeLessThan) {
+            return floor.getValue();
+        }
+        long min = range[0];
+        long lessThan = range[1];
+        // Don't overlap partitions created with other boundaries (e.g. before the table was repartitioned)
+        if (floor != null) {
+            min = Math.max(min, floor.getValue().rangeLessThan);
+        }
+        final Long ceiling = this.partitions.higherKey(lastSeen);
+        if (ceiling != null) {
+            lessThan = Math.min(lessThan, ceiling);
+        }
+        final Partition partition = openPartition(min, lessThan);
+        this.partitions.put(min, partition);
+        logger.info("Created index partition {}", partition.name);
+        return partition;
+    }
+
+    private Partition findPartition(long lastSeen) {
+        final Map.Entry<Long,Partition> floor = this.partitions.floorEntry(lastSeen);
+        return (floor != null && lastSeen < floor.getValue().rangeLessThan) ? floor.getValue() : null;
+    }
+
+    private List<Partition> overlapping(Long from, Long to) {
+        final List<Partition> result = new ArrayList<Partition>();
+        for (Partition partition : this.partitions.values()) {
+            if (partition.overlaps(from, to)) {
+                result.add(partition);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds or replaces a document in the partition of its last seen time.
+     *
+     * @param lastSeen The last seen time of the event.
+     * @param term The term identifying the document.
+     * @param doc The document.
+     * @throws IOException If the document can't be written.
+     */
+    public void updateDocument(long lastSeen, Term term, Document doc) throws IOException {
+        partitionsUse.lock();
+        try {
+            final Partition partition = findPartition(lastSeen);
+            if (partition != null) {
+                partition.writer.updateDocument(term, doc);
+                return;
+            }
+        } finally {
+            partitionsUse.unlock();
+        }
+        final long[] range = tablePartitionRange(lastSeen);
+        partitionsModify.lock();
+        try {
+            getOrCreatePartition(lastSeen, range).writer.updateDocument(term, doc);
+        } finally {
+            partitionsModify.unlock();
+        }
+    }
+
+    /**
+     * Deletes documents from every partition.
+     *
+     * @param terms The terms identifying the documents.
+     * @throws IOException If the documents can't be deleted.
+     */
+    public void deleteDocuments(Term... terms) throws IOException {
+        partitionsUse.lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.writer.deleteDocuments(terms);
+            }
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    /**
+     * Purges the documents last seen before the threshold. Partitions entirely before the threshold are dropped,
+     * and documents matching the query are deleted from the partitions which overlap the threshold.
+     *
+     * @param threshold The threshold (last seen time).
+     * @param olderThanQuery Query matching the documents last seen before the threshold.
+     * @return The number of partitions dropped.
+     * @throws IOException If the documents can't be deleted.
+     */
+    public int purge(long threshold, Query olderThanQuery) throws IOException {
+        int dropped = 0;
+        if (isPartitioned()) {
+            partitionsModify.lock();
+            try {
+                for (Partition partition : new ArrayList<Partition>(this.partitions.headMap(threshold).values())) {
+                    if (partition.rangeLessThan <= threshold) {
+                        dropPartition(partition);
+                        ++dropped;
+                    }
+                }
+            } finally {
+                partitionsModify.unlock();
+            }
+        }
+        partitionsUse.lock();
+        try {
+            for (Partition partition : overlapping(null, threshold)) {
+                partition.writer.deleteDocuments(olderThanQuery);
+            }
+        } finally {
+            partitionsUse.unlock();
+        }
+        return dropped;
+    }
+
+    /**
+     * Drops the partition of a partitioned index which holds a last seen time, so its events can be indexed again.
+     *
+     * @param lastSeen A last seen time in the partition.
+     * @return The range of last seen times of the partition (minimum inclusive, maximum exclusive), or the range of a
+     *         new partition holding the time if no partition holds it.
+     * @throws IOException If the partition can't be dropped.
+     */
+    public long[] dropPartitionAt(long lastSeen) throws IOException {
+        if (!isPartitioned()) {
+            throw new IllegalStateException("Index isn't partitioned");
+        }
+        final long[] range = tablePartitionRange(lastSeen);
+        partitionsModify.lock();
+        try {
+            final Partition partition = findPartition(lastSeen);
+            if (partition == null) {
+                return range;
+            }
+            dropPartition(partition);
+            return new long[] { partition.rangeMinimum, partition.rangeLessThan };
+        } finally {
+            partitionsModify.unlock();
+        }
+    }
+
+    /**
+     * Deletes every document, dropping every partition of a partitioned index.
+     *
+     * @throws IOException If the documents can't be deleted.
+     */
+    public void deleteAll() throws IOException {
+        if (isPartitioned()) {
+            partitionsModify.lock();
+            try {
+                for (Partition partition : new ArrayList<Partition>(this.partitions.values())) {
+                    dropPartition(partition);
+                }
+            } finally {
+                partitionsModify.unlock();
+            }
+        } else {
+            partitionsUse.lock();
+            try {
+                for (Partition partition : this.partitions.values()) {
+                    partition.writer.deleteAll();
+                }
+            } finally {
+                partitionsUse.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops a partition and deletes its directory. Only call this with the partitionsModify lock held. Searchers
+     * already acquired on the partition can still be used until they are released.
+     */
+    private void dropPartition(Partition partition) throws IOException {
+        this.partitions.remove(partition.rangeMinimum);
+        logger.info("Dropping index partition {}", partition.name);
+        partition.searcherManager.close();
+        partition.writer.rollback();
+        for (String file : partition.directory.listAll()) {
+            partition.directory.deleteFile(file);
+        }
+        partition.directory.close();
+        final File dir = new File(this.directory, partition.name);
+        if (!dir.delete()) {
+            logger.warn("Failed to delete index partition directory: {}", dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Commits the changes to every partition.
+     *
+     * @throws IOException If the changes can't be committed.
+     */
+    public void commit() throws IOException {
+        partitionsUse.lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.writer.commit();
+            }
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    /**
+     * @return The number of documents in every partition.
+     */
+    public int numDocs() {
+        partitionsUse.lock();
+        try {
+            int numDocs = 0;
+            for (Partition partition : this.partitions.values()) {
+                numDocs += partition.writer.numDocs();
+            }
+            return numDocs;
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    /**
+     * @return The size of the files of every partition.
+     * @throws IOException If the files can't be read.
+     */
+    public long sizeInBytes() throws IOException {
+        partitionsUse.lock();
+        try {
+            long size = 0L;
+            for (Partition partition : this.partitions.values()) {
+                final Directory dir = partition.writer.getDirectory();
+                for (String name : dir.listAll()) {
+                    size += dir.fileLength(name);
+                }
+            }
+            return size;
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    /**
+     * Acquires a searcher over the partitions which overlap a range of last seen times. The searcher must be
+     * released with {@link #release(IndexSearcher)}.
+     *
+     * @param lastSeenFrom The minimum last seen time (inclusive), or null for no minimum.
+     * @param lastSeenTo The maximum last seen time (inclusive), or null for no maximum.
+     * @return The searcher.
+     * @throws IOException If the partitions can't be read.
+     */
+    public IndexSearcher acquire(Long lastSeenFrom, Long lastSeenTo) throws IOException {
+        partitionsUse.lock();
+        try {
+            final List<Partition> selected = overlapping(lastSeenFrom, lastSeenTo);
+            final List<IndexSearcher> searchers = new ArrayList<IndexSearcher>(selected.size());
+            try {
+                for (Partition partition : selected) {
+                    if (this.readerReopenInterval == 0) {
+                        partition.searcherManager.maybeRefresh();
+                    }
+                    searchers.add(partition.searcherManager.acquire());
+                }
+                final IndexReader reader;
+                if (searchers.size() == 1) {
+                    reader = searchers.get(0).getIndexReader();
+                } else {
+                    final IndexReader[] readers = new IndexReader[searchers.size()];
+                    for (int i = 0; i < readers.length; i++) {
+                        readers[i] = searchers.get(i).getIndexReader();
+                    }
+                    // References the readers of the partitions until it's closed
+                    reader = new MultiReader(readers, false);
+                }
+                return new PartitionsSearcher(reader, selected, searchers);
+            } catch (IOException e) {
+                for (int i = 0; i < searchers.size(); i++) {
+                    selected.get(i).searcherManager.release(searchers.get(i));
+                }
+                throw e;
+            }
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    /**
+     * Returns the version of the documents seen by a searcher acquired with {@link #acquire(Long, Long)}: the
+     * partitions it searches and the version of the reader of each one. Searchers with equal versions see the same
+     * documents, so the results of the same search with them are the same.
+     *
+     * @param searcher The searcher.
+     * @return The version of the searcher.
+     */
+    public List<Long> getVersion(IndexSearcher searcher) {
+        final PartitionsSearcher partitionsSearcher = (PartitionsSearcher) searcher;
+        final List<Long> version = new ArrayList<Long>(partitionsSearcher.searchers.size() * 2);
+        for (int i = 0; i < partitionsSearcher.searchers.size(); i++) {
+            version.add(partitionsSearcher.partitions.get(i).id);
+            version.add(((DirectoryReader) partitionsSearcher.searchers.get(i).getIndexReader()).getVersion());
+        }
+        return Collections.unmodifiableList(version);
+    }
+
+    /**
+     * Releases a searcher acquired with {@link #acquire(Long, Long)}.
+     *
+     * @param searcher The searcher.
+     * @throws IOException If the searcher can't be released.
+     */
+    public void release(IndexSearcher searcher) throws IOException {
+        final PartitionsSearcher partitionsSearcher = (PartitionsSearcher) searcher;
+        if (partitionsSearcher.searchers.size() != 1) {
+            partitionsSearcher.getIndexReader().close();
+        }
+        for (int i = 0; i < partitionsSearcher.searchers.size(); i++) {
+            partitionsSearcher.partitions.get(i).searcherManager.release(partitionsSearcher.searchers.get(i));
+        }
+    }
+
+    /**
+     * Opens a new near real-time reader over the partitions which overlap a range of last seen times. The reader
+     * must be closed (or have its reference count decremented) by the caller.
+     *
+     * @param lastSeenFrom The minimum last seen time (inclusive), or null for no minimum.
+     * @param lastSeenTo The maximum last seen time (inclusive), or null for no maximum.
+     * @return The reader.
+     * @throws IOException If the partitions can't be read.
+     */
+    public IndexReader openReader(Long lastSeenFrom, Long lastSeenTo) throws IOException {
+        partitionsUse.lock();
+        try {
+            final List<Partition> selected = overlapping(lastSeenFrom, lastSeenTo);
+            final List<IndexReader> readers = new ArrayList<IndexReader>(selected.size());
+            try {
+                for (Partition partition : selected) {
+                    readers.add(DirectoryReader.open(partition.writer, false));
+                }
+            } catch (IOException e) {
+                for (IndexReader reader : readers) {
+                    reader.close();
+                }
+                throw e;
+            }
+            if (readers.size() == 1) {
+                return readers.get(0);
+            }
+            // Closes the readers of the partitions when it's closed
+            return new MultiReader(readers.toArray(new IndexReader[readers.size()]), true);
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    private void refresh() {
+        partitionsUse.lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                try {
+                    partition.searcherManager.maybeRefresh();
+                } catch (IOException e) {
+                    logger.warn("Failed to refresh index partition", e);
+                }
+            }
+        } finally {
+            partitionsUse.unlock();
+        }
+    }
+
+    /**
+     * Sets how often the searchers of the partitions are reopened to see changes to the index.
+     *
+     * @param interval The interval in seconds, or 0 to reopen the searchers when they are acquired.
+     */
+    public synchronized void setReaderReopenInterval(int interval) {
+        if (this.readerReopenInterval == interval) {
+            return;
+        }
+        this.readerReopenInterval = interval;
+        stopReopenThread();
+        if (interval != 0) {
+            logger.debug("Starting reader reopen thread");
+            this.reopenThread = new ReopenThread(interval * 1000L);
+            this.reopenThread.start();
+        }
+    }
+
+    private synchronized void stopReopenThread() {
+        if (this.reopenThread != null) {
+            logger.debug("Stopping reader reopen thread");
+            this.reopenThread.shutdown();
+            this.reopenThread = null;
+        }
+    }
+
+    /**
+     * Closes the searchers of the index, and the partitions of a partitioned index.
+     */
+    @Override
+    public synchronized void close() {
+        stopReopenThread();
+        partitionsModify.lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                try {
+                    partition.searcherManager.close();
+                } catch (IOException e) {
+                    logger.error("Unable to close SearcherManager: {}", e);
+                }
+                if (partition.directory != null) {
+                    try {
+                        partition.writer.close();
+                    } catch (IOException e) {
+                        logger.error("Unable to close index partition " + partition.name, e);
+                    } finally {
+                        try {
+                            partition.directory.close();
+                        } catch (IOException e) {
+                            logger.warn("Unable to close directory of index partition " + partition.name, e);
+                        }
+                    }
+                }
+            }
+            if (isPartitioned()) {
+                this.partitions.clear();
+            }
+        } finally {
+            partitionsModify.unlock();
+        }
+    }
+
+    private final class ReopenThread extends Thread {
+        private final long intervalMillis;
+        private volatile boolean shutdown = false;
+
+        ReopenThread(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+            setName("Lucene reader reopen thread");
+            setPriority(Math.min(Thread.currentThread().getPriority() + 2, Thread.MAX_PRIORITY));
+            setDaemon(true);
+        }
+
+        void shutdown() {
+            this.shutdown = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                refresh();
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@ package org.zenoss.zep.index.impl.lucene;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.index.impl.SavedSearch;
@@ -21,6 +22,9 @@ public final class LuceneSavedSearch extends SavedSearch {
     private IndexReader reader;
     private final Query query;
     private final Sort sort;
+    // The last document of the most recently returned page, and the offset of the page which follows it
+    private ScoreDoc cursor;
+    private int cursorOffset = -1;
 
     public LuceneSavedSearch(String uuid, IndexReader reader, Query query, Sort sort, int timeout) {
         super(uuid, timeout);
@@ -41,6 +45,27 @@ public final class LuceneSavedSearch extends SavedSearch {
         return sort;
     }
 
+    /**
+     * Returns the document to continue the search after when returning results from the specified offset.
+     *
+     * @param offset The offset of the requested results.
+     * @return The last document before the offset, or null if the offset doesn't follow the previous page.
+     */
+    public synchronized ScoreDoc getCursor(int offset) {
+        return (offset == cursorOffset) ? cursor : null;
+    }
+
+    /**
+     * Remembers the last document of a page of results, so the next page can continue from it.
+     *
+     * @param nextOffset The offset of the next page.
+     * @param lastDoc The last document of the page.
+     */
+    public synchronized void setCursor(int nextOffset, ScoreDoc lastDoc) {
+        this.cursorOffset = nextOffset;
+        this.cursor = lastDoc;
+    }
+
     public synchronized void close() throws IOException {
         if (this.reader != null) {
             this.reader.decRef();
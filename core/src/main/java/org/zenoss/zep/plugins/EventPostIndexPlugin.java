@@ -10,6 +10,8 @@
 
 package org.zenoss.zep.plugins;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.zep.ZepException;
 
@@ -20,6 +22,9 @@ import java.util.*;
  * been persisted and indexed.
  */
 public abstract class EventPostIndexPlugin extends EventPlugin {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventPostIndexPlugin.class);
+
     /**
      * Prepare to process the eventSummaries. This method gives the plugin a chance to do some batch-oriented
      * optimizations before processEvent is called for each individual event.
@@ -41,6 +46,27 @@ public abstract class EventPostIndexPlugin extends EventPlugin {
      */
     public abstract void processEvent(EventSummary eventSummary, EventPostIndexContext context) throws ZepException;
 
+    /**
+     * Processes all of the eventSummaries staged in the current batch, in index order. This is called once per
+     * batch before the index is committed. The default implementation calls
+     * {@link #processEvent(EventSummary, EventPostIndexContext)} for each event; plug-ins can override it to
+     * process the batch as a whole. A failure processing one event shouldn't prevent processing the rest.
+     *
+     * @param eventSummaries The eventSummaries to process.
+     * @param context Context passed to EventPostIndexPlugin.
+     * @throws ZepException If an exception occurs processing the batch.
+     */
+    public void processEvents(List<EventSummary> eventSummaries, EventPostIndexContext context) throws ZepException {
+        for (EventSummary eventSummary : eventSummaries) {
+            try {
+                processEvent(eventSummary, context);
+            } catch (Exception e) {
+                // Post-processing plug-in failures are not fatal errors.
+                logger.warn("Failed to run post-processing plug-in on event: " + eventSummary, e);
+            }
+        }
+    }
+
     /**
      * Called when the post index batch operation is about to begin. This
      * method should be used to initialize any short term state for the
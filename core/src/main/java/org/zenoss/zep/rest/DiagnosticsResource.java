@@ -9,13 +9,18 @@
 package org.zenoss.zep.rest;
 
 import com.codahale.metrics.jvm.ThreadDump;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.impl.IngestFlowController;
+import org.zenoss.zep.index.impl.lucene.LuceneEventIndexBackend;
 
 import java.lang.management.ThreadMXBean;
 import java.lang.management.ManagementFactory;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.MediaType;
@@ -38,6 +43,18 @@ public class DiagnosticsResource {
         NO_CACHE.setMustRevalidate(true);
     }
 
+    private IngestFlowController flowController;
+
+    private LuceneEventIndexBackend archiveIndexBackend;
+
+    public void setFlowController(IngestFlowController flowController) {
+        this.flowController = flowController;
+    }
+
+    public void setArchiveIndexBackend(LuceneEventIndexBackend archiveIndexBackend) {
+        this.archiveIndexBackend = archiveIndexBackend;
+    }
+
     @GET
     @Produces(MediaType.TEXT_PLAIN)
     @Path("threads")
@@ -52,4 +69,35 @@ public class DiagnosticsResource {
         response.cacheControl(NO_CACHE);
         return response.build();
     }
+
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    @Path("flowcontrol")
+    public Response getFlowControl() {
+        final String state;
+        if (flowController == null || !flowController.isEnabled()) {
+            state = "Raw event flow control is disabled";
+        } else {
+            state = flowController.toString();
+        }
+        ResponseBuilder response = Response.ok(state + "\n");
+        response.cacheControl(NO_CACHE);
+        return response.build();
+    }
+
+    /**
+     * Rebuilds the partition of the event archive index holding a last seen time from the database.
+     *
+     * @param lastSeen A last seen time (in milliseconds since the epoch) in the partition.
+     */
+    @POST
+    @Produces(MediaType.TEXT_PLAIN)
+    @Path("archive_index/rebuild_partition")
+    public Response rebuildArchiveIndexPartition(@QueryParam("last_seen") long lastSeen) throws ZepException {
+        final int indexed = archiveIndexBackend.rebuildPartition(lastSeen);
+        ResponseBuilder response = Response.ok("Rebuilt the archive index partition holding " + lastSeen + " with " +
+                indexed + " events\n");
+        response.cacheControl(NO_CACHE);
+        return response.build();
+    }
 }
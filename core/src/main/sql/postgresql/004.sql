@@ -0,0 +1,17 @@
+-- Copyright (C) 2015, Zenoss Inc.  All Rights Reserved.
+
+--
+-- Trigger change version, incremented whenever triggers or subscriptions change so that cached trigger
+-- snapshots can be reloaded.
+--
+
+CREATE TABLE event_trigger_version
+(
+    id SMALLINT NOT NULL,
+    version BIGINT NOT NULL,
+    PRIMARY KEY (id)
+);
+
+INSERT INTO event_trigger_version (id, version) VALUES(1, 0);
+
+INSERT INTO schema_version (version, installed_time) VALUES(4, NOW());
@@ -0,0 +1,70 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventDetail;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DedupSummaryCacheTest {
+
+    private static EventSummary.Builder createSummary(String uuid) {
+        EventSummary.Builder summary = EventSummary.newBuilder();
+        summary.setUuid(uuid);
+        summary.setCount(3);
+        summary.setFirstSeenTime(1000L);
+        summary.setLastSeenTime(2000L);
+        summary.setStatus(EventStatus.STATUS_NEW);
+        summary.setStatusChangeTime(1000L);
+        summary.setUpdateTime(2500L);
+        summary.addOccurrenceBuilder().setSummary("summary").setMessage("message")
+                .addDetails(EventDetail.newBuilder().setName("name").addValue("value"));
+        return summary;
+    }
+
+    @Test
+    public void testToDedupSummary() {
+        EventSummary dedupSummary = DedupSummaryCache.toDedupSummary(createSummary("uuid"));
+        assertEquals("uuid", dedupSummary.getUuid());
+        assertEquals(3, dedupSummary.getCount());
+        assertEquals(2500L, dedupSummary.getUpdateTime());
+        assertEquals(1, dedupSummary.getOccurrenceCount());
+        assertFalse(dedupSummary.getOccurrence(0).hasSummary());
+        assertFalse(dedupSummary.getOccurrence(0).hasMessage());
+        assertEquals(1, dedupSummary.getOccurrence(0).getDetailsCount());
+    }
+
+    @Test
+    public void testInvalidateByUuid() {
+        DedupSummaryCache cache = new DedupSummaryCache(10);
+        byte[] hash1 = DaoUtils.sha1("fingerprint1");
+        byte[] hash2 = DaoUtils.sha1("fingerprint2");
+        cache.put(hash1, DedupSummaryCache.toDedupSummary(createSummary("uuid1")));
+        cache.put(hash2, DedupSummaryCache.toDedupSummary(createSummary("uuid2")));
+        // Replacing an entry keeps it reachable by UUID
+        cache.put(hash1, DedupSummaryCache.toDedupSummary(createSummary("uuid1")));
+        assertNotNull(cache.get(DaoUtils.sha1("fingerprint1")));
+
+        cache.invalidateUuids(Collections.singletonList("uuid1"));
+        assertNull(cache.get(hash1));
+        assertNotNull(cache.get(hash2));
+        assertEquals(1, cache.stats().missCount());
+
+        cache.invalidate(hash2);
+        assertNull(cache.get(hash2));
+        assertEquals(0, cache.size());
+    }
+}
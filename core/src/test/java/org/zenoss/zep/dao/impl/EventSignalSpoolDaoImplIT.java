@@ -23,12 +23,14 @@ import org.zenoss.protobufs.zep.Zep.RuleType;
 import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.dao.EventSignalSpool;
+import org.zenoss.zep.dao.EventSignalSpoolContext;
 import org.zenoss.zep.dao.EventSignalSpoolDao;
 import org.zenoss.zep.dao.EventSummaryDao;
 import org.zenoss.zep.dao.EventTriggerDao;
 import org.zenoss.zep.dao.EventTriggerSubscriptionDao;
 import org.zenoss.zep.impl.EventPreCreateContextImpl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -256,4 +258,48 @@ public class EventSignalSpoolDaoImplIT extends
         assertEquals(1, dao.update(spool));
         compareSpool(spool, dao.findByUuid(spool.getUuid()));
     }
+
+    @Test
+    public void testCreateAllAndUpdateAll() throws ZepException {
+        List<EventSignalSpool> spools = new ArrayList<EventSignalSpool>();
+        for (int i = 0; i < 3; i++) {
+            spools.add(EventSignalSpool.buildSpool(createSubscription(), createSampleSummary(), uuidGenerator));
+        }
+        dao.createAll(spools);
+        for (EventSignalSpool spool : spools) {
+            compareSpool(spool, dao.findByUuid(spool.getUuid()));
+        }
+
+        for (EventSignalSpool spool : spools) {
+            spool.setFlushTime(System.currentTimeMillis());
+            spool.setSentSignal(true);
+        }
+        assertEquals(spools.size(), dao.updateAll(spools));
+        for (EventSignalSpool spool : spools) {
+            compareSpool(spool, dao.findByUuid(spool.getUuid()));
+        }
+    }
+
+    @Test
+    public void testFindAllDueWithContext() throws ZepException {
+        EventTriggerSubscription subscription = createSubscription();
+        EventSummary eventSummary = createSampleSummary();
+        EventSignalSpool spool = EventSignalSpool.buildSpool(subscription, eventSummary, uuidGenerator);
+        spool.setFlushTime(System.currentTimeMillis() - 5000L);
+        dao.create(spool);
+
+        EventSignalSpool futureSpool = EventSignalSpool.buildSpool(createSubscription(), createSampleSummary(),
+                uuidGenerator);
+        futureSpool.setFlushTime(System.currentTimeMillis() + 5000L);
+        dao.create(futureSpool);
+
+        List<EventSignalSpoolContext> due = dao.findAllDueWithContext();
+        assertEquals(1, due.size());
+        EventSignalSpoolContext dueSpool = due.get(0);
+        compareSpool(spool, dueSpool.getSpool());
+        assertEquals(eventSummary, dueSpool.getEventSummary());
+        assertEquals(subscription.getUuid(), dueSpool.getSubscription().getUuid());
+        assertEquals(subscription.getTriggerUuid(), dueSpool.getTrigger().getUuid());
+        assertEquals("my content", dueSpool.getTrigger().getRule().getSource());
+    }
 }
@@ -10,12 +10,17 @@
 
 package org.zenoss.zep.dao.impl;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import org.junit.Test;
+import org.springframework.aop.framework.Advised;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.AbstractTransactionalJUnit4SpringContextTests;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zenoss.protobufs.model.Model.ModelElementType;
 import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.Event.Builder;
@@ -35,6 +40,8 @@ import org.zenoss.zep.ZepConstants;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.dao.ConfigDao;
 import org.zenoss.zep.dao.EventArchiveDao;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
 import org.zenoss.zep.dao.EventSummaryDao;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
 import org.zenoss.zep.impl.EventPreCreateContextImpl;
@@ -49,6 +56,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -82,6 +90,9 @@ public class EventSummaryDaoImplIT extends AbstractTransactionalJUnit4SpringCont
     @Autowired
     public ConfigDao configDao;
 
+    @Autowired
+    public MetricRegistry metricRegistry;
+
     private EventSummary createSummaryNew(Event event) throws ZepException {
         return createSummary(event, EventStatus.STATUS_NEW);
     }
@@ -1615,4 +1626,347 @@ public class EventSummaryDaoImplIT extends AbstractTransactionalJUnit4SpringCont
         assertEquals(twoHoursAgo, eventSummary.getFirstSeenTime());
     }
 
+    @Test
+    public void testScanRangeWithUncachedNames() throws ZepException {
+        // Names created in the test transaction are only cached by the DaoCache after it commits, so the names of
+        // the event are looked up for the first time while its row is streamed
+        final String suffix = UUID.randomUUID().toString();
+        Event event = Event.newBuilder(EventTestUtils.createSampleEvent()).setEventClass("/Scan/" + suffix)
+                .setEventClassKey("key-" + suffix).setEventKey("eventKey-" + suffix).setEventGroup("group-" + suffix)
+                .setMonitor("monitor-" + suffix).setAgent("agent-" + suffix).build();
+        final EventSummary summary = createSummaryNew(event);
+
+        final List<EventSummary> scanned = new ArrayList<EventSummary>();
+        for (EventScanRange range : eventSummaryDao.listScanRanges(4)) {
+            eventSummaryDao.scanRange(range, null, summary.getUpdateTime(), 10, new EventScanCallback() {
+                @Override
+                public boolean event(EventSummary event) {
+                    if (event.getUuid().equals(summary.getUuid())) {
+                        scanned.add(event);
+                    }
+                    return true;
+                }
+            });
+        }
+        assertEquals(1, scanned.size());
+        Event occurrence = scanned.get(0).getOccurrence(0);
+        assertEquals("/Scan/" + suffix, occurrence.getEventClass());
+        assertEquals("key-" + suffix, occurrence.getEventClassKey());
+        assertEquals("eventKey-" + suffix, occurrence.getEventKey());
+        assertEquals("group-" + suffix, occurrence.getEventGroup());
+        assertEquals("monitor-" + suffix, occurrence.getMonitor());
+        assertEquals("agent-" + suffix, occurrence.getAgent());
+        assertEquals(summary, scanned.get(0));
+    }
+
+    @Test
+    public void testScanRangesSplitGeneratedUuids() throws ZepException {
+        // Events are created with the UUIDs of UUIDGeneratorImpl, which share their leading bytes (the MAC address)
+        final Map<String,Integer> created = new HashMap<String,Integer>();
+        String prefix = null;
+        long maxUpdateTime = 0L;
+        for (int i = 0; i < 40; i++) {
+            Event event = Event.newBuilder(EventTestUtils.createSampleEvent()).setFingerprint("scan-" + i).build();
+            EventSummary summary = createSummaryNew(event);
+            created.put(summary.getUuid(), 0);
+            maxUpdateTime = Math.max(maxUpdateTime, summary.getUpdateTime());
+            if (prefix == null) {
+                prefix = summary.getUuid().substring(0, 8);
+            }
+            assertEquals(prefix, summary.getUuid().substring(0, 8));
+        }
+
+        final List<EventScanRange> ranges = eventSummaryDao.listScanRanges(4);
+        assertTrue(ranges.size() > 1);
+        int rangesWithEvents = 0;
+        for (EventScanRange range : ranges) {
+            final int[] inRange = new int[1];
+            eventSummaryDao.scanRange(range, null, maxUpdateTime, 10, new EventScanCallback() {
+                @Override
+                public boolean event(EventSummary event) {
+                    Integer count = created.get(event.getUuid());
+                    if (count != null) {
+                        created.put(event.getUuid(), count + 1);
+                        inRange[0]++;
+                    }
+                    return true;
+                }
+            });
+            if (inRange[0] > 0) {
+                rangesWithEvents++;
+            }
+        }
+        // Every event is in exactly one range, and the events are spread over the ranges
+        for (Integer count : created.values()) {
+            assertEquals(1, count.intValue());
+        }
+        assertTrue(rangesWithEvents > 1);
+    }
+
+    @Test
+    public void testIndexCacheHitAfterDedupCommit() throws Exception {
+        final EventSummaryDaoImpl dao = (EventSummaryDaoImpl) ((Advised) eventSummaryDao).getTargetSource().getTarget();
+        dao.setIndexCacheSize(10);
+        try {
+            Event event = EventTestUtils.createSampleEvent();
+            String uuid = eventSummaryDao.create(event, new EventPreCreateContextImpl());
+            Event newer = Event.newBuilder(event).setCreatedTime(event.getCreatedTime() + 1000L).build();
+            assertEquals(uuid, eventSummaryDao.create(newer, new EventPreCreateContextImpl()));
+
+            // Commit the index signal of the test transaction, which is rolled back
+            for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+                if (sync instanceof EventSummaryDaoImpl.IndexQueueSynchronizer) {
+                    sync.afterCommit();
+                }
+            }
+
+            // The index backends look the summary up by the last seen time it was found with
+            EventSummary summary = eventSummaryDao.findByUuid(uuid);
+            assertEquals(newer.getCreatedTime(), summary.getLastSeenTime());
+            Meter hits = metricRegistry.meter(EventSummaryDaoImpl.class.getName() + ".indexCacheHit");
+            long hitCount = hits.getCount();
+            List<EventSummary> found = eventSummaryDao.findByKey(Collections.singleton(EventSummary.newBuilder()
+                    .setUuid(uuid).setLastSeenTime(summary.getLastSeenTime()).build()));
+            assertEquals(hitCount + 1, hits.getCount());
+            assertEquals(1, found.size());
+            assertEquals(2, found.get(0).getCount());
+            assertEquals(summary.getLastSeenTime(), found.get(0).getLastSeenTime());
+            assertEquals(summary.getUpdateTime(), found.get(0).getUpdateTime());
+            // The cached summary is the summary read from the row
+            assertEquals(summary, found.get(0));
+        } finally {
+            dao.setIndexCacheSize(0);
+        }
+    }
+
+    @Test
+    public void testIndexCacheMatchesRowAfterOlderDedup() throws Exception {
+        final EventSummaryDaoImpl dao = (EventSummaryDaoImpl) ((Advised) eventSummaryDao).getTargetSource().getTarget();
+        dao.setIndexCacheSize(10);
+        try {
+            Event event = Event.newBuilder(EventTestUtils.createSampleEvent())
+                    .addDetails(EventDetail.newBuilder().setName("first").addValue("1"))
+                    .addTags(EventTag.newBuilder().setType("zenoss.device.group").addUuid(UUID.randomUUID().toString()))
+                    .build();
+            String uuid = eventSummaryDao.create(event, new EventPreCreateContextImpl());
+            // An older occurrence only merges its details into the summary
+            Event older = Event.newBuilder(event).setCreatedTime(event.getCreatedTime() - 1000L).clearDetails()
+                    .addDetails(EventDetail.newBuilder().setName("second").addValue("2")).build();
+            assertEquals(uuid, eventSummaryDao.create(older, new EventPreCreateContextImpl()));
+
+            for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+                if (sync instanceof EventSummaryDaoImpl.IndexQueueSynchronizer) {
+                    sync.afterCommit();
+                }
+            }
+
+            EventSummary summary = eventSummaryDao.findByUuid(uuid);
+            assertEquals(event.getCreatedTime(), summary.getLastSeenTime());
+            Meter hits = metricRegistry.meter(EventSummaryDaoImpl.class.getName() + ".indexCacheHit");
+            long hitCount = hits.getCount();
+            List<EventSummary> found = eventSummaryDao.findByKey(Collections.singleton(EventSummary.newBuilder()
+                    .setUuid(uuid).setLastSeenTime(summary.getLastSeenTime()).build()));
+            assertEquals(hitCount + 1, hits.getCount());
+            assertEquals(Collections.singletonList(summary), found);
+        } finally {
+            dao.setIndexCacheSize(0);
+        }
+    }
+
+    /**
+     * An occurrence of a sample event, identified by a key used as the suffix of its fingerprint and event key.
+     */
+    private static Event occurrence(Event base, String key, long createdTime, EventSeverity severity,
+                                    String summary) {
+        return Event.newBuilder(base).setUuid(UUID.randomUUID().toString()).setFingerprint(key)
+                .setEventKey(key).setCreatedTime(createdTime).setSeverity(severity).setSummary(summary).build();
+    }
+
+    private static Event withPrefix(Event event, String prefix) {
+        return Event.newBuilder(event).setFingerprint(prefix + event.getFingerprint())
+                .setEventKey(prefix + event.getEventKey()).build();
+    }
+
+    private static EventSummary withoutGeneratedFields(EventSummary summary) {
+        EventSummary.Builder builder = EventSummary.newBuilder(summary).clearUuid().clearUpdateTime()
+                .clearStatusChangeTime();
+        if (builder.hasClearedByEventUuid()) {
+            builder.setClearedByEventUuid("cleared");
+        }
+        builder.getOccurrenceBuilder(0).clearFingerprint().clearEventKey();
+        return builder.build();
+    }
+
+    private List<String> createEach(List<Event> events, Set<String> clearClasses, String prefix)
+            throws ZepException {
+        List<String> uuids = new ArrayList<String>(events.size());
+        for (Event event : events) {
+            EventPreCreateContextImpl context = new EventPreCreateContextImpl();
+            context.setClearClasses(clearClasses);
+            uuids.add(eventSummaryDao.create(withPrefix(event, prefix), context));
+        }
+        return uuids;
+    }
+
+    /**
+     * Creates the existing events and then the batch one event at a time, and the same events (under another
+     * fingerprint and event key) with the batch created by createAll, and checks both leave the same summaries.
+     *
+     * @return The summaries left by createAll, in the order of the batch.
+     */
+    private List<EventSummary> assertCreateAllMatchesCreate(List<Event> existing, List<Event> batch,
+                                                            Set<String> clearClasses) throws ZepException {
+        createEach(existing, clearClasses, "single-");
+        List<String> singleUuids = createEach(batch, clearClasses, "single-");
+
+        createEach(existing, clearClasses, "batch-");
+        List<Event> batchEvents = new ArrayList<Event>(batch.size());
+        List<EventPreCreateContext> contexts = new ArrayList<EventPreCreateContext>(batch.size());
+        for (Event event : batch) {
+            batchEvents.add(withPrefix(event, "batch-"));
+            EventPreCreateContextImpl context = new EventPreCreateContextImpl();
+            context.setClearClasses(clearClasses);
+            contexts.add(context);
+        }
+        List<String> batchUuids = eventSummaryDao.createAll(batchEvents, contexts);
+        assertEquals(batch.size(), batchUuids.size());
+
+        List<EventSummary> summaries = new ArrayList<EventSummary>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            // The same events are de-duplicated into the same summaries
+            for (int j = 0; j < batch.size(); j++) {
+                assertEquals(singleUuids.get(i).equals(singleUuids.get(j)),
+                        batchUuids.get(i).equals(batchUuids.get(j)));
+            }
+            EventSummary single = eventSummaryDao.findByUuid(singleUuids.get(i));
+            EventSummary batched = eventSummaryDao.findByUuid(batchUuids.get(i));
+            assertEquals(withoutGeneratedFields(single), withoutGeneratedFields(batched));
+            summaries.add(batched);
+        }
+        return summaries;
+    }
+
+    @Test
+    public void testCreateAllMixedInsertAndDedup() throws ZepException {
+        Event base = EventTestUtils.createSampleEvent();
+        long now = base.getCreatedTime();
+        Event existing = occurrence(base, "a", now, EventSeverity.SEVERITY_WARNING, "existing");
+        List<EventSummary> summaries = assertCreateAllMatchesCreate(Collections.singletonList(existing),
+                Arrays.asList(occurrence(base, "a", now + 1000L, EventSeverity.SEVERITY_ERROR, "dedup"),
+                        occurrence(base, "b", now, EventSeverity.SEVERITY_WARNING, "insert")),
+                Collections.<String>emptySet());
+        assertEquals(2, summaries.get(0).getCount());
+        assertEquals("dedup", summaries.get(0).getOccurrence(0).getSummary());
+        assertEquals(1, summaries.get(1).getCount());
+    }
+
+    @Test
+    public void testCreateAllSameFingerprint() throws ZepException {
+        Event base = EventTestUtils.createSampleEvent();
+        long now = base.getCreatedTime();
+        List<EventSummary> summaries = assertCreateAllMatchesCreate(Collections.<Event>emptyList(),
+                Arrays.asList(occurrence(base, "a", now, EventSeverity.SEVERITY_WARNING, "first"),
+                        occurrence(base, "a", now + 1000L, EventSeverity.SEVERITY_ERROR, "second"),
+                        occurrence(base, "a", now + 2000L, EventSeverity.SEVERITY_INFO, "third")),
+                Collections.<String>emptySet());
+        EventSummary summary = summaries.get(2);
+        assertEquals(3, summary.getCount());
+        assertEquals(now, summary.getFirstSeenTime());
+        assertEquals(now + 2000L, summary.getLastSeenTime());
+        assertEquals("third", summary.getOccurrence(0).getSummary());
+    }
+
+    @Test
+    public void testCreateAllNewerAndOlderMerges() throws ZepException {
+        Event base = EventTestUtils.createSampleEvent();
+        long now = base.getCreatedTime();
+        List<Event> existing = Arrays.asList(occurrence(base, "a", now, EventSeverity.SEVERITY_WARNING, "a"),
+                occurrence(base, "b", now, EventSeverity.SEVERITY_WARNING, "b"));
+        List<EventSummary> summaries = assertCreateAllMatchesCreate(existing,
+                Arrays.asList(occurrence(base, "a", now + 1000L, EventSeverity.SEVERITY_ERROR, "newer a"),
+                        occurrence(base, "b", now - 1000L, EventSeverity.SEVERITY_ERROR, "older b"),
+                        occurrence(base, "a", now - 2000L, EventSeverity.SEVERITY_INFO, "older a")),
+                Collections.<String>emptySet());
+        // The newer occurrence replaces the summary, the older ones only move the first seen time
+        EventSummary a = summaries.get(0);
+        assertEquals(3, a.getCount());
+        assertEquals("newer a", a.getOccurrence(0).getSummary());
+        assertEquals(now - 2000L, a.getFirstSeenTime());
+        assertEquals(now + 1000L, a.getLastSeenTime());
+        EventSummary b = summaries.get(1);
+        assertEquals(2, b.getCount());
+        assertEquals("b", b.getOccurrence(0).getSummary());
+        assertEquals(now - 1000L, b.getFirstSeenTime());
+        assertEquals(now, b.getLastSeenTime());
+    }
+
+    @Test
+    public void testCreateAllClearEvents() throws ZepException {
+        Event base = EventTestUtils.createSampleEvent();
+        long now = base.getCreatedTime();
+        Set<String> clearClasses = Collections.singleton(base.getEventClass());
+        List<EventSummary> summaries = assertCreateAllMatchesCreate(
+                Collections.singletonList(occurrence(base, "a", now, EventSeverity.SEVERITY_WARNING, "existing")),
+                Arrays.asList(occurrence(base, "a", now + 1000L, EventSeverity.SEVERITY_WARNING, "before clear"),
+                        Event.newBuilder(occurrence(base, "a", now + 2000L, EventSeverity.SEVERITY_CLEAR, "clear"))
+                                .setFingerprint("a-clear").build(),
+                        occurrence(base, "c", now + 3000L, EventSeverity.SEVERITY_WARNING, "after clear")),
+                clearClasses);
+        // The clear event sees the open event de-duplicated before it in the batch
+        assertEquals(EventStatus.STATUS_CLEARED, summaries.get(0).getStatus());
+        assertEquals(2, summaries.get(0).getCount());
+        assertEquals(summaries.get(1).getUuid(), summaries.get(0).getClearedByEventUuid());
+        assertEquals(EventStatus.STATUS_CLOSED, summaries.get(1).getStatus());
+        assertEquals(EventStatus.STATUS_NEW, summaries.get(2).getStatus());
+    }
+
+    /**
+     * Runs the afterCommit callbacks the DAO registered in the test transaction (which is rolled back), once each.
+     */
+    private void commitDaoSynchronizations(Set<TransactionSynchronization> committed) {
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            if (sync.getClass().getName().startsWith(EventSummaryDaoImpl.class.getName()) && committed.add(sync)) {
+                sync.afterCommit();
+            }
+        }
+    }
+
+    @Test
+    public void testDedupCacheDetectsChangedRow() throws Exception {
+        final EventSummaryDaoImpl dao = (EventSummaryDaoImpl) ((Advised) eventSummaryDao).getTargetSource().getTarget();
+        dao.setDedupCacheSize(10);
+        try {
+            Set<TransactionSynchronization> committed =
+                    Collections.newSetFromMap(new IdentityHashMap<TransactionSynchronization, Boolean>());
+            Meter hits = metricRegistry.meter(EventSummaryDaoImpl.class.getName() + ".dedupCacheHit");
+            Meter stale = metricRegistry.meter(EventSummaryDaoImpl.class.getName() + ".dedupCacheStale");
+
+            Event event = EventTestUtils.createSampleEvent();
+            String uuid = eventSummaryDao.create(event, new EventPreCreateContextImpl());
+            commitDaoSynchronizations(committed);
+
+            // Another writer (e.g. another instance) changes the row behind the cached entry
+            assertEquals(1, simpleJdbcTemplate.update("UPDATE event_summary SET event_count=event_count+5 WHERE uuid=?",
+                    databaseCompatibility.getUUIDConverter().toDatabaseType(uuid)));
+
+            // The conditional UPDATE misses, so the row is selected again and the occurrence is still counted
+            long staleCount = stale.getCount(), hitCount = hits.getCount();
+            Event second = Event.newBuilder(event).setCreatedTime(event.getCreatedTime() + 1000L).build();
+            assertEquals(uuid, eventSummaryDao.create(second, new EventPreCreateContextImpl()));
+            assertEquals(staleCount + 1, stale.getCount());
+            assertEquals(hitCount, hits.getCount());
+            EventSummary summary = eventSummaryDao.findByUuid(uuid);
+            assertEquals(7, summary.getCount());
+            assertEquals(second.getCreatedTime(), summary.getLastSeenTime());
+
+            // The entry cached from the row read again is used by the next occurrence
+            commitDaoSynchronizations(committed);
+            Event third = Event.newBuilder(event).setCreatedTime(event.getCreatedTime() + 2000L).build();
+            assertEquals(uuid, eventSummaryDao.create(third, new EventPreCreateContextImpl()));
+            assertEquals(hitCount + 1, hits.getCount());
+            assertEquals(8, eventSummaryDao.findByUuid(uuid).getCount());
+        } finally {
+            dao.setDedupCacheSize(0);
+        }
+    }
 }
@@ -178,4 +178,33 @@ public class EventTriggerDaoImplIT extends AbstractTransactionalJUnit4SpringCont
         compareSubscriptions(dao.findAllEnabled().get(0), subscriptionMap);
         compareSubscriptions(dao.findAll().get(0), subscriptionMap);
     }
+
+    @Test
+    public void testChangesIncrementVersion() throws ZepException {
+        final String versionSql = "SELECT version FROM event_trigger_version";
+        final long initialVersion = simpleJdbcTemplate.queryForLong(versionSql);
+
+        EventTrigger.Builder triggerBuilder = EventTrigger.newBuilder();
+        triggerBuilder.setUuid(UUID.randomUUID().toString());
+        Rule.Builder ruleBuilder = Rule.newBuilder();
+        ruleBuilder.setApiVersion(5);
+        ruleBuilder.setSource("my content");
+        ruleBuilder.setType(RuleType.RULE_TYPE_JYTHON);
+        triggerBuilder.setRule(ruleBuilder.build());
+        triggerBuilder.setEnabled(true);
+        EventTrigger trigger = triggerBuilder.build();
+
+        dao.create(trigger);
+        assertEquals(initialVersion + 1, simpleJdbcTemplate.queryForLong(versionSql));
+
+        dao.modify(EventTrigger.newBuilder(trigger).setEnabled(false).build());
+        assertEquals(initialVersion + 2, simpleJdbcTemplate.queryForLong(versionSql));
+
+        // Deleting a trigger which doesn't exist doesn't change the version
+        dao.delete(UUID.randomUUID().toString());
+        assertEquals(initialVersion + 2, simpleJdbcTemplate.queryForLong(versionSql));
+
+        dao.delete(trigger.getUuid());
+        assertEquals(initialVersion + 3, simpleJdbcTemplate.queryForLong(versionSql));
+    }
 }
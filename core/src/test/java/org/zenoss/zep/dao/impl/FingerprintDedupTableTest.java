@@ -0,0 +1,112 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FingerprintDedupTableTest {
+
+    @Test
+    public void testStripesRoundedToPowerOfTwo() {
+        assertEquals(1, new FingerprintDedupTable<String>(1).getNumStripes());
+        assertEquals(8, new FingerprintDedupTable<String>(5).getNumStripes());
+        assertEquals(FingerprintDedupTable.DEFAULT_STRIPES, new FingerprintDedupTable<String>().getNumStripes());
+    }
+
+    @Test
+    public void testDrainCoalescesBufferedItems() throws Exception {
+        final FingerprintDedupTable<String> table = new FingerprintDedupTable<String>(4);
+        final MetricRegistry registry = new MetricRegistry();
+        table.setMetrics(registry.meter("contention"), registry.histogram("batchSize"));
+        final byte[] hash = DaoUtils.sha1("fingerprint");
+        table.append(hash, "a");
+        table.append(DaoUtils.sha1("fingerprint"), "b");
+        table.append(DaoUtils.sha1("other"), "c");
+
+        List<String> drained = table.drain(hash, new FingerprintDedupTable.Drainer<String, List<String>>() {
+            @Override
+            public List<String> drain(List<String> items) {
+                return new ArrayList<String>(items);
+            }
+        });
+        assertEquals(2, drained.size());
+        assertTrue(drained.contains("a"));
+        assertTrue(drained.contains("b"));
+
+        // Already drained by the previous caller
+        drained = table.drain(hash, new FingerprintDedupTable.Drainer<String, List<String>>() {
+            @Override
+            public List<String> drain(List<String> items) {
+                return items;
+            }
+        });
+        assertEquals(Collections.<String>emptyList(), drained);
+        assertEquals(1, registry.histogram("batchSize").getCount());
+        assertEquals(2, registry.histogram("batchSize").getSnapshot().getMax());
+    }
+
+    @Test
+    public void testDrainSerializesSameFingerprint() throws Exception {
+        final FingerprintDedupTable<Integer> table = new FingerprintDedupTable<Integer>(16);
+        final byte[] hash = DaoUtils.sha1("flapping device");
+        final int numThreads = 8;
+        final int numItems = 1000;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int t = 0; t < numThreads; t++) {
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < numItems; i++) {
+                            table.append(hash, i);
+                            table.drain(hash, new FingerprintDedupTable.Drainer<Integer, Object>() {
+                                @Override
+                                public Object drain(List<Integer> items) {
+                                    assertEquals(1, active.incrementAndGet());
+                                    processed.addAndGet(items.size());
+                                    active.decrementAndGet();
+                                    return null;
+                                }
+                            });
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Object> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        assertEquals(numThreads * numItems, processed.get());
+    }
+}
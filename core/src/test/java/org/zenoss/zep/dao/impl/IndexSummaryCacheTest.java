@@ -0,0 +1,74 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+
+import static org.junit.Assert.*;
+
+public class IndexSummaryCacheTest {
+
+    private static EventSummary summary(long updateTime) {
+        return EventSummary.newBuilder().setUuid("a").setUpdateTime(updateTime).setCount(3)
+                .addOccurrence(EventTestUtils.createSampleEvent()).build();
+    }
+
+    @Test
+    public void testPromoteAfterCommit() {
+        IndexSummaryCache cache = new IndexSummaryCache(10);
+        IndexSummaryCache.Entry pending = cache.reserve("a", summary(100L));
+        assertNull(cache.get("a", 200L));
+        assertNull(cache.getSummary("a", 100L));
+
+        assertTrue(cache.promote("a", pending, 200L));
+        assertEquals(summary(100L), cache.get("a", 200L));
+        assertNull(cache.get("a", 201L));
+        assertEquals(summary(100L), cache.getSummary("a", 100L));
+        assertNull(cache.getSummary("a", 99L));
+    }
+
+    @Test
+    public void testLastSeenVersion() {
+        IndexSummaryCache cache = new IndexSummaryCache(10);
+        EventSummary summary = EventSummary.newBuilder(summary(100L)).setLastSeenTime(50L).build();
+        assertTrue(cache.promote("a", cache.reserve("a", summary), 200L));
+        // Tasks queued for the index backends are versioned by the last seen time of the summary
+        assertSame(summary, cache.get("a", 50L));
+        assertSame(summary, cache.get("a", 200L));
+        assertNull(cache.get("a", 100L));
+
+        // Without a last seen time only the commit time matches
+        assertTrue(cache.promote("b", cache.reserve("b", summary(100L)), 200L));
+        assertNotNull(cache.get("b", 200L));
+        assertNull(cache.get("b", 0L));
+    }
+
+    @Test
+    public void testInvalidateBeforeCommit() {
+        IndexSummaryCache cache = new IndexSummaryCache(10);
+        IndexSummaryCache.Entry pending = cache.reserve("a", summary(100L));
+        cache.invalidate("a");
+        assertFalse(cache.promote("a", pending, 200L));
+        assertNull(cache.get("a", 200L));
+    }
+
+    @Test
+    public void testOnlyLatestReservationIsPromoted() {
+        IndexSummaryCache cache = new IndexSummaryCache(10);
+        IndexSummaryCache.Entry first = cache.reserve("a", summary(100L));
+        IndexSummaryCache.Entry second = cache.reserve("a", summary(101L));
+        assertFalse(cache.promote("a", first, 200L));
+        cache.discard("a", first);
+        assertTrue(cache.promote("a", second, 201L));
+        assertEquals(101L, cache.get("a", 201L).getUpdateTime());
+    }
+}
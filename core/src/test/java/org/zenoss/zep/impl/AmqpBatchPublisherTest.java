@@ -0,0 +1,103 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.amqp.AmqpConnectionManager;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.ExchangeConfiguration;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishFailure;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishRequest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class AmqpBatchPublisherTest {
+
+    private static final ExchangeConfiguration EXCHANGE = null;
+
+    private AmqpConnectionManager connectionManager;
+    private AmqpBatchPublisher publisher;
+
+    @Before
+    public void setUp() {
+        connectionManager = createStrictMock(AmqpConnectionManager.class);
+        publisher = new AmqpBatchPublisher(connectionManager);
+        publisher.setRetryDelayMillis(0L);
+    }
+
+    private static PublishRequest request() {
+        return new PublishRequest(EXCHANGE, "zenoss.test",
+                EventSummary.newBuilder().setUuid(UUID.randomUUID().toString()).build());
+    }
+
+    private void expectPublish(PublishRequest request) throws AmqpException {
+        connectionManager.publish(EXCHANGE, request.getRoutingKey(), request.getMessage());
+    }
+
+    @Test
+    public void testRetryFailedMessages() throws AmqpException {
+        PublishRequest first = request(), second = request(), third = request();
+        expectPublish(first);
+        expectPublish(second);
+        expectLastCall().andThrow(new AmqpException("failed"));
+        expectPublish(third);
+        // Failed messages are retried after the rest of the batch
+        expectPublish(second);
+        replay(connectionManager);
+
+        List<PublishFailure> failures = publisher.publish(Arrays.asList(first, second, third));
+        assertTrue(failures.isEmpty());
+        verify(connectionManager);
+    }
+
+    @Test
+    public void testFailuresReportedPerMessage() throws AmqpException {
+        publisher.setMaxRetries(1);
+        PublishRequest first = request(), second = request();
+        AmqpException failure = new AmqpException("failed");
+        expectPublish(first);
+        expectPublish(second);
+        expectLastCall().andThrow(failure).times(2);
+        replay(connectionManager);
+
+        List<PublishFailure> failures = publisher.publish(Arrays.asList(first, second));
+        assertEquals(1, failures.size());
+        assertSame(second, failures.get(0).getRequest());
+        assertSame(failure, failures.get(0).getCause());
+        verify(connectionManager);
+    }
+
+    @Test
+    public void testEveryMessageAttempted() throws AmqpException {
+        publisher.setMaxRetries(0);
+        PublishRequest first = request(), second = request(), third = request();
+        expectPublish(first);
+        expectLastCall().andThrow(new AmqpException("failed"));
+        expectPublish(second);
+        expectLastCall().andThrow(new AmqpException("failed"));
+        expectPublish(third);
+        replay(connectionManager);
+
+        // Without publisher confirms a failure says nothing about the next message, so it is still published
+        List<PublishFailure> failures = publisher.publish(Arrays.asList(first, second, third));
+        assertEquals(2, failures.size());
+        assertSame(first, failures.get(0).getRequest());
+        assertSame(second, failures.get(1).getRequest());
+        verify(connectionManager);
+    }
+}
@@ -26,8 +26,10 @@ import org.zenoss.zep.plugins.EventPreCreateContext;
 import org.zenoss.zep.plugins.EventPreCreatePlugin;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import static org.easymock.EasyMock.*;
@@ -153,4 +155,54 @@ public class EventProcessorImplTest {
         Event transformed = transformedEvent.getValue();
         assertEquals("/Unknown", transformed.getEventClass());
     }
+
+    @Test
+    public void testEventProcessorBatch() throws ZepException {
+        PluginService pluginService = createMock(PluginService.class);
+        EventSummaryDao eventSummaryDao = createMock(EventSummaryDao.class);
+        Counters counters = createMock(Counters.class);
+        SamplePostPlugin postPlugin = new SamplePostPlugin();
+
+        Capture<List<Event>> createdEvents = new Capture<List<Event>>();
+        Capture<List<EventPreCreateContext>> createdContexts = new Capture<List<EventPreCreateContext>>();
+
+        String uuid = UUID.randomUUID().toString();
+        EventSummary summary = EventSummary.newBuilder().setUuid(uuid).build();
+        expect(eventSummaryDao.createAll(capture(createdEvents), capture(createdContexts)))
+                .andReturn(Arrays.asList(uuid, uuid));
+        expect(pluginService.getPluginsByType(EventPreCreatePlugin.class))
+                .andReturn(Arrays.<EventPreCreatePlugin>asList(new SampleIdentifyPlugin())).times(2);
+        expect(pluginService.getPluginsByType(EventPostCreatePlugin.class))
+                .andReturn(Arrays.<EventPostCreatePlugin>asList(postPlugin)).times(2);
+        expect(eventSummaryDao.findByUuid(uuid)).andReturn(summary).times(2);
+        replay(pluginService, eventSummaryDao);
+
+        EventProcessorImpl eventProcessor = new EventProcessorImpl();
+        eventProcessor.setPluginService(pluginService);
+        eventProcessor.setEventSummaryDao(eventSummaryDao);
+        eventProcessor.setCounters(counters);
+
+        List<ZepRawEvent> rawEvents = new ArrayList<ZepRawEvent>();
+        for (int i = 0; i < 3; i++) {
+            Event.Builder eventBuilder = Event.newBuilder();
+            eventBuilder.setUuid(UUID.randomUUID().toString());
+            eventBuilder.setCreatedTime(System.currentTimeMillis());
+            eventBuilder.setSummary("My Event Summary " + i);
+            // The last event has no created time and should be dropped before persisting the batch
+            if (i == 2) {
+                eventBuilder.clearCreatedTime();
+            }
+            rawEvents.add(ZepRawEvent.newBuilder().setEvent(eventBuilder.build()).build());
+        }
+        eventProcessor.processEvents(rawEvents);
+        verify(pluginService, eventSummaryDao);
+
+        assertEquals(2, createdEvents.getValue().size());
+        assertEquals(2, createdContexts.getValue().size());
+        for (Event event : createdEvents.getValue()) {
+            assertEquals("/TestEvent", event.getEventClass());
+        }
+        assertEquals(createdEvents.getValue().get(1), postPlugin.eventOccurrence);
+        assertEquals(summary, postPlugin.eventSummary);
+    }
 }
@@ -0,0 +1,109 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.zep.events.EventIndexQueueSizeEvent;
+import org.zenoss.zep.impl.IngestFlowController.Decision;
+
+import static org.junit.Assert.*;
+
+public class IngestFlowControllerTest {
+
+    private IngestFlowController controller;
+
+    @Before
+    public void setUp() {
+        controller = new IngestFlowController(null, null);
+        controller.setMaxPrefetch(100);
+        controller.setPrefetchIncrement(10);
+        controller.setMaxConcurrency(8);
+        controller.setHighWatermark(1000);
+        controller.setLatencyTargetMillis(500);
+    }
+
+    @Test
+    public void testDecreaseWhenQueueGrows() {
+        assertEquals(Decision.DECREASE, controller.adjust(600, 50, 100, 10.0));
+        assertEquals(50, controller.getPrefetch());
+        assertEquals(4, controller.getConcurrency());
+
+        // Additive increase once the queue drains
+        assertEquals(Decision.INCREASE, controller.adjust(100, -500, 100, 10.0));
+        assertEquals(60, controller.getPrefetch());
+        assertEquals(5, controller.getConcurrency());
+    }
+
+    @Test
+    public void testDecreaseOnLatency() {
+        assertEquals(Decision.DECREASE, controller.adjust(0, 0, 0, 750.0));
+        assertEquals(50, controller.getPrefetch());
+        assertEquals(4, controller.getConcurrency());
+    }
+
+    @Test
+    public void testHoldWhenDrainingAboveLowWatermark() {
+        assertEquals(Decision.HOLD, controller.adjust(600, -10, 100, 10.0));
+        assertEquals(100, controller.getPrefetch());
+        assertEquals(8, controller.getConcurrency());
+    }
+
+    @Test
+    public void testPauseUntilBelowLowWatermark() throws InterruptedException {
+        assertEquals(Decision.PAUSE, controller.adjust(1500, 500, 100, 10.0));
+        assertEquals(1, controller.getPrefetch());
+        assertEquals(0, controller.getConcurrency());
+
+        assertEquals(Decision.HOLD, controller.adjust(900, -600, 100, 10.0));
+        assertEquals(0, controller.getConcurrency());
+
+        assertEquals(Decision.INCREASE, controller.adjust(400, -500, 100, 10.0));
+        assertEquals(11, controller.getPrefetch());
+        assertEquals(1, controller.getConcurrency());
+
+        controller.acquire();
+        controller.release(1, 1000L);
+    }
+
+    @Test
+    public void testLimitsAreBounded() {
+        for (int i = 0; i < 20; i++) {
+            controller.adjust(0, 0, 0, 0.0);
+        }
+        assertEquals(100, controller.getPrefetch());
+        assertEquals(8, controller.getConcurrency());
+        for (int i = 0; i < 20; i++) {
+            controller.adjust(0, 0, 0, 1000.0);
+        }
+        assertEquals(1, controller.getPrefetch());
+        assertEquals(1, controller.getConcurrency());
+    }
+
+    @Test
+    public void testDecreaseWhenGrowingFasterThanDrain() {
+        // Below the low watermark, but the queue grows faster than the indexer drains it
+        assertEquals(Decision.DECREASE, controller.adjust(100, 200, 50, 10.0));
+        assertEquals(50, controller.getPrefetch());
+        assertEquals(Decision.INCREASE, controller.adjust(100, 20, 50, 10.0));
+        assertEquals(60, controller.getPrefetch());
+    }
+
+    @Test
+    public void testHighWatermarkFromIndexLimit() {
+        // Zero sets the threshold to twice the index batch size, as zep.index.throttle_threshold always has
+        controller.setHighWatermark(0);
+        assertEquals(Decision.PAUSE, controller.adjust(201, 0, 0, 10.0));
+        controller.onApplicationEvent(new EventIndexQueueSizeEvent(this, "event_summary_index_queue", 0L, 1000));
+        assertEquals(Decision.HOLD, controller.adjust(1500, 0, 0, 10.0));
+        assertEquals(Decision.PAUSE, controller.adjust(2001, 0, 0, 10.0));
+    }
+}
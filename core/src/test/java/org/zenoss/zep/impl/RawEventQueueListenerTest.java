@@ -0,0 +1,228 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Message;
+import org.zenoss.amqp.MessageEnvelope;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
+import org.zenoss.zep.EventProcessor;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class RawEventQueueListenerTest {
+
+    private static final int LANES = 4;
+
+    private RawEventQueueListener listener;
+    private RecordingProcessor processor;
+    private Consumer<com.google.protobuf.Message> consumer;
+    private CountDownLatch handled;
+
+    /**
+     * Records the lane each event was processed on, and fails the events whose message is "bad".
+     */
+    private static final class RecordingProcessor implements EventProcessor {
+        private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        private volatile RuntimeException failure = null;
+
+        private void process(ZepRawEvent event) {
+            if (failure != null) {
+                throw failure;
+            }
+            if ("bad".equals(event.getEvent().getMessage())) {
+                throw new IllegalArgumentException("bad event");
+            }
+            processed.add(event.getEvent().getFingerprint() + " " + event.getEvent().getMessage() + " " +
+                    Thread.currentThread().getName());
+        }
+
+        @Override
+        public void processEvent(ZepRawEvent event) throws ZepException {
+            process(event);
+        }
+
+        @Override
+        public void processEvents(List<ZepRawEvent> events) throws ZepException {
+            // The batch is persisted in a single transaction, so nothing is recorded if any event fails
+            for (ZepRawEvent event : events) {
+                if ("bad".equals(event.getEvent().getMessage())) {
+                    throw new IllegalArgumentException("bad event in batch");
+                }
+            }
+            for (ZepRawEvent event : events) {
+                process(event);
+            }
+        }
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        processor = new RecordingProcessor();
+        consumer = createMock(Consumer.class);
+        listener = new RawEventQueueListener();
+        listener.metricRegistry = new MetricRegistry();
+        listener.setEventProcessor(processor);
+        listener.setThrottleConsumer(false);
+        listener.setLanes(LANES);
+        listener.setBatchSize(5);
+    }
+
+    @After
+    public void tearDown() {
+        listener.destroy();
+    }
+
+    private IAnswer<Object> countDown() {
+        return new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                handled.countDown();
+                return null;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message<com.google.protobuf.Message> createMessage(String fingerprint, String message,
+                                                               boolean redeliver) {
+        Event event = Event.newBuilder(EventTestUtils.createSampleEvent()).setFingerprint(fingerprint)
+                .setMessage(message).build();
+        MessageEnvelope envelope = createNiceMock(MessageEnvelope.class);
+        expect(envelope.isRedeliver()).andReturn(redeliver).anyTimes();
+        Message<com.google.protobuf.Message> amqpMessage = createNiceMock(Message.class);
+        expect(amqpMessage.getBody()).andReturn(ZepRawEvent.newBuilder().setEvent(event).build()).anyTimes();
+        expect(amqpMessage.getEnvelope()).andReturn(envelope).anyTimes();
+        replay(envelope, amqpMessage);
+        return amqpMessage;
+    }
+
+    private void expectAck(Message<com.google.protobuf.Message> message) throws Exception {
+        consumer.ackMessage(message);
+        expectLastCall().andAnswer(countDown());
+    }
+
+    private void expectReject(Message<com.google.protobuf.Message> message, boolean requeue) throws Exception {
+        consumer.rejectMessage(message, requeue);
+        expectLastCall().andAnswer(countDown());
+    }
+
+    private void receiveAll(List<Message<com.google.protobuf.Message>> messages) throws Exception {
+        handled = new CountDownLatch(messages.size());
+        replay(consumer);
+        for (Message<com.google.protobuf.Message> message : messages) {
+            listener.receive(message, consumer);
+        }
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+        verify(consumer);
+    }
+
+    private static String expectedLane(String partitionKey) {
+        return "$ZepZenEvents lane " + (partitionKey.hashCode() & Integer.MAX_VALUE) % LANES;
+    }
+
+    @Test
+    public void testLaneAssignmentAndOrdering() throws Exception {
+        List<Message<com.google.protobuf.Message>> messages = new ArrayList<Message<com.google.protobuf.Message>>();
+        // Interleave the occurrences of the events
+        for (int seq = 0; seq < 20; seq++) {
+            for (int fp = 0; fp < 10; fp++) {
+                Message<com.google.protobuf.Message> message = createMessage("fingerprint" + fp,
+                        String.valueOf(seq), false);
+                expectAck(message);
+                messages.add(message);
+            }
+        }
+        receiveAll(messages);
+
+        // Every occurrence of an event is processed in order on the lane of its fingerprint
+        Map<String,Integer> lastSeq = new HashMap<String,Integer>();
+        for (String processed : new ArrayList<String>(processor.processed)) {
+            String[] fields = processed.split(" ", 3);
+            assertEquals(expectedLane(fields[0]), fields[2]);
+            Integer previous = lastSeq.put(fields[0], Integer.valueOf(fields[1]));
+            assertEquals((previous == null) ? 0 : previous + 1, Integer.parseInt(fields[1]));
+        }
+        assertEquals(10, lastSeq.size());
+        for (Integer seq : lastSeq.values()) {
+            assertEquals(19, seq.intValue());
+        }
+    }
+
+    @Test
+    public void testLaneWithoutFingerprint() throws Exception {
+        Event event = Event.newBuilder(EventTestUtils.createSampleEvent()).clearFingerprint()
+                .setActor(EventActor.newBuilder(EventTestUtils.createSampleActor()).setElementIdentifier("device"))
+                .build();
+        Message<com.google.protobuf.Message> message = createNiceMock(Message.class);
+        expect(message.getBody()).andReturn(ZepRawEvent.newBuilder().setEvent(event).build()).anyTimes();
+        replay(message);
+        expectAck(message);
+        receiveAll(Collections.singletonList(message));
+
+        // Events without a fingerprint are partitioned by their element
+        assertEquals(1, processor.processed.size());
+        assertTrue(processor.processed.get(0).endsWith(expectedLane("device")));
+    }
+
+    @Test
+    public void testFailedMessagesRejected() throws Exception {
+        Message<com.google.protobuf.Message> first = createMessage("fingerprint", "first", false);
+        Message<com.google.protobuf.Message> bad = createMessage("fingerprint", "bad", false);
+        Message<com.google.protobuf.Message> redelivered = createMessage("fingerprint", "bad", true);
+        Message<com.google.protobuf.Message> last = createMessage("fingerprint", "last", false);
+        // A failed batch is retried one message at a time, so only the bad messages are rejected. They are
+        // redelivered once before being dropped.
+        expectAck(first);
+        expectReject(bad, true);
+        expectReject(redelivered, false);
+        expectAck(last);
+        receiveAll(Arrays.asList(first, bad, redelivered, last));
+
+        List<String> processed = new ArrayList<String>();
+        for (String event : processor.processed) {
+            processed.add(event.split(" ")[1]);
+        }
+        assertEquals(Arrays.asList("first", "last"), processed);
+    }
+
+    @Test
+    public void testTransientFailureRequeued() throws Exception {
+        processor.failure = new TransientDataAccessResourceException("database unavailable");
+        List<Message<com.google.protobuf.Message>> messages = new ArrayList<Message<com.google.protobuf.Message>>();
+        for (int i = 0; i < 10; i++) {
+            Message<com.google.protobuf.Message> message = createMessage("fingerprint" + i, String.valueOf(i), true);
+            expectReject(message, true);
+            messages.add(message);
+        }
+        receiveAll(messages);
+        assertTrue(processor.processed.isEmpty());
+    }
+}
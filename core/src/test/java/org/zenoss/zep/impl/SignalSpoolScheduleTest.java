@@ -0,0 +1,88 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SignalSpoolScheduleTest {
+
+    private SignalSpoolSchedule schedule;
+
+    @Before
+    public void setUp() {
+        schedule = new SignalSpoolSchedule();
+    }
+
+    @Test
+    public void testPollDue() {
+        assertEquals(Long.MAX_VALUE, schedule.getNextFlushTime());
+        schedule.schedule("c", 3000L);
+        schedule.schedule("a", 1000L);
+        schedule.schedule("b", 2000L);
+        assertEquals(3, schedule.size());
+        assertEquals(1000L, schedule.getNextFlushTime());
+
+        assertEquals(Collections.<String>emptyList(), schedule.pollDue(999L));
+        assertEquals(Arrays.asList("a", "b"), schedule.pollDue(2000L));
+        assertEquals(1, schedule.size());
+        assertEquals(3000L, schedule.getNextFlushTime());
+        assertEquals(Collections.<String>emptyList(), schedule.pollDue(2000L));
+    }
+
+    @Test
+    public void testReschedule() {
+        schedule.schedule("a", 1000L);
+        schedule.schedule("b", 2000L);
+        schedule.schedule("a", 5000L);
+        assertEquals(2, schedule.size());
+        assertEquals(2000L, schedule.getNextFlushTime());
+        assertEquals(Arrays.asList("b"), schedule.pollDue(4000L));
+        assertEquals(Arrays.asList("a"), schedule.pollDue(5000L));
+
+        // Moving a spool earlier
+        schedule.schedule("c", 5000L);
+        schedule.schedule("c", 500L);
+        assertEquals(Arrays.asList("c"), schedule.pollDue(1000L));
+        assertEquals(0, schedule.size());
+        assertEquals(Long.MAX_VALUE, schedule.getNextFlushTime());
+    }
+
+    @Test
+    public void testRemove() {
+        schedule.schedule("a", 1000L);
+        schedule.schedule("b", 2000L);
+        schedule.schedule("c", 3000L);
+        schedule.remove("a");
+        // Spools which won't be signaled again are removed
+        schedule.schedule("b", Long.MAX_VALUE);
+        assertEquals(1, schedule.size());
+        assertEquals(3000L, schedule.getNextFlushTime());
+        schedule.removeAll(Arrays.asList("c", "d"));
+        assertEquals(0, schedule.size());
+        assertEquals(Collections.<String>emptyList(), schedule.pollDue(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testCompact() {
+        for (int i = 0; i < 5000; i++) {
+            schedule.schedule("a", i);
+        }
+        assertEquals(1, schedule.size());
+        assertEquals(4999L, schedule.getNextFlushTime());
+        assertEquals(Arrays.asList("a"), schedule.pollDue(5000L));
+    }
+}
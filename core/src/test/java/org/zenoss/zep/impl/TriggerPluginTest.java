@@ -10,6 +10,7 @@
 
 package org.zenoss.zep.impl;
 
+import org.easymock.Capture;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -21,20 +22,43 @@ import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventActor;
 import org.zenoss.protobufs.zep.Zep.EventDetail;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.EventTriggerSubscription;
+import org.zenoss.protobufs.zep.Zep.Rule;
+import org.zenoss.protobufs.zep.Zep.RuleType;
+import org.zenoss.protobufs.zep.Zep.Signal;
 import org.zenoss.protobufs.zep.Zep.SyslogPriority;
+import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepConstants;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.dao.EventSignalSpool;
 import org.zenoss.zep.dao.EventSignalSpoolDao;
+import org.zenoss.zep.dao.EventTriggerCache;
+import org.zenoss.zep.dao.EventTriggerSnapshot;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishFailure;
+import org.zenoss.zep.impl.AmqpBatchPublisher.PublishRequest;
 import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
 import org.zenoss.zep.impl.TriggerPlugin.TriggerRuleCache;
+import org.zenoss.zep.plugins.EventPostIndexContext;
+import org.zenoss.zep.plugins.EventPostIndexPlugin;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -53,7 +77,7 @@ public class TriggerPluginTest {
         this.triggerPlugin = new TriggerPlugin();
         triggerPlugin.setTriggerRuleCacheSize(10);
         this.spoolDaoMock = createMock(EventSignalSpoolDao.class);
-        expect(spoolDaoMock.findAllDue()).andReturn(Collections.<EventSignalSpool> emptyList()).anyTimes();
+        expect(spoolDaoMock.findAllScheduled()).andReturn(Collections.<EventSignalSpool> emptyList()).anyTimes();
         this.schedulerMock = createMock(TaskScheduler.class);
         this.futureMock = createNiceMock(ScheduledFuture.class);
         expect(schedulerMock.schedule(isA(Runnable.class), isA(Trigger.class))).andReturn(futureMock);
@@ -237,6 +261,234 @@ public class TriggerPluginTest {
         ruleCache = this.triggerPlugin.triggerRuleCache.get(triggerUuid);
         assertNotNull(ruleCache);
         assertEquals(rule, ruleCache.getRuleSource());
+        assertNotNull(ruleCache.getCompiledRule());
+        assertNull(ruleCache.getPyFunction());
+
+        // Rules outside of the compiled subset fall back to Jython
+        rule = "evt.message.find('TEST') == 0";
+        assertTrue(this.triggerPlugin.eventSatisfiesRule(ctx, triggerUuid, rule));
+        ruleCache = this.triggerPlugin.triggerRuleCache.get(triggerUuid);
+        assertNull(ruleCache.getCompiledRule());
         assertNotNull(ruleCache.getPyFunction());
     }
+
+    /**
+     * Records the signals instead of publishing them.
+     */
+    private static final class RecordingPublisher extends AmqpBatchPublisher {
+        private final List<PublishRequest> published = new ArrayList<PublishRequest>();
+
+        private RecordingPublisher() {
+            super(null);
+        }
+
+        @Override
+        public List<PublishFailure> publish(List<PublishRequest> requests) {
+            published.addAll(requests);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Executor which counts the evaluation tasks submitted to it and the ones which were run on the calling thread
+     * because it was saturated.
+     */
+    private static final class CountingExecutor extends ThreadPoolExecutor {
+        private final AtomicInteger submitted = new AtomicInteger();
+        private final AtomicInteger callerRuns = new AtomicInteger();
+
+        private CountingExecutor(int threads, int queueCapacity) {
+            super(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity));
+            // Same rejection policy as the triggerEvaluationExecutor
+            final RejectedExecutionHandler callerRunsPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
+            setRejectedExecutionHandler(new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    callerRuns.incrementAndGet();
+                    callerRunsPolicy.rejectedExecution(r, executor);
+                }
+            });
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            submitted.incrementAndGet();
+            super.execute(command);
+        }
+    }
+
+    private static EventTrigger createTrigger(String name, String rule) {
+        String triggerUuid = UUID.randomUUID().toString();
+        EventTriggerSubscription subscription = EventTriggerSubscription.newBuilder()
+                .setUuid(UUID.randomUUID().toString()).setTriggerUuid(triggerUuid)
+                .setSubscriberUuid(UUID.randomUUID().toString()).setDelaySeconds(0).setRepeatSeconds(0)
+                .setSendInitialOccurrence(false).build();
+        return EventTrigger.newBuilder().setUuid(triggerUuid).setName(name).setEnabled(true)
+                .setRule(Rule.newBuilder().setApiVersion(1).setSource(rule).setType(RuleType.RULE_TYPE_JYTHON))
+                .addSubscriptions(subscription).build();
+    }
+
+    private List<EventSummary> createEvents(int count) {
+        List<EventSummary> events = new ArrayList<EventSummary>(count);
+        for (int i = 0; i < count; i++) {
+            Event.Builder occurrence = createEventOccurrence(createActor().build());
+            occurrence.setMessage(((i % 2 == 0) ? "TEST " : "OTHER ") + i);
+            occurrence.setSeverity((i % 3 == 0) ? Zep.EventSeverity.SEVERITY_ERROR : Zep.EventSeverity.SEVERITY_WARNING);
+            events.add(createEvent(occurrence.build()).setUuid("event-" + i).setCount(i).build());
+        }
+        return events;
+    }
+
+    private static EventPostIndexContext createContext() {
+        return new EventPostIndexContext() {
+            private final Map<EventPostIndexPlugin, Object> pluginState = new HashMap<EventPostIndexPlugin, Object>();
+
+            @Override
+            public boolean isArchive() {
+                return false;
+            }
+
+            @Override
+            public int getIndexLimit() {
+                return 1000;
+            }
+
+            @Override
+            public Object getPluginState(EventPostIndexPlugin plugin) {
+                return pluginState.get(plugin);
+            }
+
+            @Override
+            public void setPluginState(EventPostIndexPlugin plugin, Object state) {
+                pluginState.put(plugin, state);
+            }
+        };
+    }
+
+    /**
+     * Runs the events through a new plug-in as one batch. Returns the spools created and the signals published for
+     * the batch, in order.
+     */
+    private List<String> processBatch(List<EventTrigger> triggers, List<EventSummary> events, int evaluationThreads,
+                                      ExecutorService evaluationExecutor) throws Exception {
+        EventTriggerCache triggerCache = createNiceMock(EventTriggerCache.class);
+        expect(triggerCache.getSnapshot()).andReturn(new EventTriggerSnapshot(1L, System.currentTimeMillis(), triggers))
+                .anyTimes();
+        EventSignalSpoolDao spoolDao = createNiceMock(EventSignalSpoolDao.class);
+        expect(spoolDao.findAllScheduled()).andReturn(Collections.<EventSignalSpool>emptyList()).anyTimes();
+        Capture<Collection<EventSignalSpool>> created = new Capture<Collection<EventSignalSpool>>();
+        spoolDao.createAll(capture(created));
+        TaskScheduler scheduler = createNiceMock(TaskScheduler.class);
+        expect(scheduler.schedule(isA(Runnable.class), isA(Trigger.class)))
+                .andReturn(createNiceMock(ScheduledFuture.class)).anyTimes();
+        replay(triggerCache, spoolDao, scheduler);
+        RecordingPublisher publisher = new RecordingPublisher();
+
+        TriggerPlugin plugin = new TriggerPlugin();
+        plugin.setTriggerRuleCacheSize(10);
+        plugin.setEvaluationThreads(evaluationThreads);
+        plugin.setEvaluationExecutor(evaluationExecutor);
+        plugin.setTriggerCache(triggerCache);
+        plugin.setSignalSpoolDao(spoolDao);
+        plugin.setTaskScheduler(scheduler);
+        plugin.setUuidGenerator(new UUIDGenerator() {
+            @Override
+            public UUID generate() {
+                return UUID.randomUUID();
+            }
+        });
+        plugin.setBatchPublisher(publisher);
+        plugin.start(new HashMap<String,String>());
+        try {
+            EventPostIndexContext context = createContext();
+            plugin.startBatch(context);
+            plugin.processEvents(events, context);
+            plugin.endBatch(context);
+        } finally {
+            plugin.stop();
+        }
+        verify(spoolDao);
+
+        List<String> results = new ArrayList<String>();
+        for (EventSignalSpool spool : created.getValue()) {
+            results.add("spool " + spool.getEventSummaryUuid() + " " + spool.getSubscriptionUuid() + " " +
+                    spool.isSentSignal());
+        }
+        for (PublishRequest request : publisher.published) {
+            Signal signal = (Signal) request.getMessage();
+            results.add("signal " + signal.getEvent().getUuid() + " " + signal.getTriggerUuid() + " " +
+                    signal.getSubscriberUuid());
+        }
+        return results;
+    }
+
+    @Test
+    public void testParallelEvaluationMatchesSerial() throws Exception {
+        // Both compiled rules and rules which fall back to Jython
+        List<EventTrigger> triggers = Arrays.asList(
+                createTrigger("severity", "evt.severity == 3"),
+                createTrigger("jython", "evt.message.find('TEST') == 0"),
+                createTrigger("count", "evt.count > 80"));
+        List<EventSummary> events = createEvents(100);
+
+        List<String> serial = processBatch(triggers, events, 1, null);
+        assertFalse(serial.isEmpty());
+
+        CountingExecutor executor = new CountingExecutor(4, 4);
+        try {
+            assertEquals(serial, processBatch(triggers, events, 4, executor));
+            // The indexing thread evaluates the first of the four ranges itself
+            assertEquals(3, executor.submitted.get());
+            assertEquals(0, executor.callerRuns.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSmallBatchEvaluatedOnCallingThread() throws Exception {
+        List<EventTrigger> triggers = Arrays.asList(createTrigger("jython", "evt.message.find('TEST') == 0"));
+        List<EventSummary> events = createEvents(16);
+
+        CountingExecutor executor = new CountingExecutor(4, 4);
+        try {
+            assertEquals(processBatch(triggers, events, 1, null), processBatch(triggers, events, 4, executor));
+            assertEquals(0, executor.submitted.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutorRunsOnCallingThread() throws Exception {
+        List<EventTrigger> triggers = Arrays.asList(
+                createTrigger("severity", "evt.severity == 3"),
+                createTrigger("jython", "evt.message.find('TEST') == 0"));
+        List<EventSummary> events = createEvents(100);
+        List<String> serial = processBatch(triggers, events, 1, null);
+
+        // Occupy the only thread and fill the queue, so every evaluation task is rejected
+        CountingExecutor executor = new CountingExecutor(1, 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        executor.execute(blocker);
+        executor.execute(blocker);
+        try {
+            assertEquals(serial, processBatch(triggers, events, 4, executor));
+            assertEquals(5, executor.submitted.get());
+            assertEquals(3, executor.callerRuns.get());
+        } finally {
+            blocked.countDown();
+            executor.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,158 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.python.core.PyFunction;
+import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.SyslogPriority;
+import org.zenoss.zep.ZepConstants;
+import org.zenoss.zep.impl.TriggerPlugin.PythonHelper;
+import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
+import org.zenoss.zep.impl.TriggerRuleCompiler.CompiledRule;
+
+import static org.junit.Assert.*;
+
+public class TriggerRuleCompilerTest {
+
+    private static PythonHelper pythonHelper;
+
+    @BeforeClass
+    public static void initPython() {
+        pythonHelper = new PythonHelper();
+    }
+
+    @AfterClass
+    public static void cleanupPython() {
+        pythonHelper.cleanup();
+    }
+
+    private static EventSummary createEvent(EventActor actor) {
+        Event.Builder event = Event.newBuilder();
+        event.setActor(actor);
+        event.setSummary("Fan 3 failed");
+        event.setMessage("TEST - 1-2-check");
+        event.setEventClass("/Defcon/1");
+        event.setSeverity(EventSeverity.SEVERITY_WARNING);
+        event.setSyslogPriority(SyslogPriority.SYSLOG_PRIORITY_DEBUG);
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_GROUPS).addValue("/US/Texas/Austin");
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_SYSTEMS).addValue("/Production/Infrastructure");
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_PRODUCTION_STATE).addValue("1000");
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_CLASS).addValue("/Server/Linux");
+        event.addDetailsBuilder().setName("zenpack.rack").addValue("R12");
+        return EventSummary.newBuilder().setCount(10).setStatus(EventStatus.STATUS_NEW).addOccurrence(event).build();
+    }
+
+    private static EventActor deviceActor() {
+        return EventActor.newBuilder().setElementTypeId(ModelElementType.DEVICE).setElementIdentifier("BHM1000")
+                .setElementTitle("BHM TITLE").setElementSubTypeId(ModelElementType.COMPONENT)
+                .setElementSubIdentifier("Fuse-10A").build();
+    }
+
+    private static EventActor componentActor() {
+        return EventActor.newBuilder().setElementTypeId(ModelElementType.COMPONENT)
+                .setElementIdentifier("eth0").build();
+    }
+
+    private static final String[] RULES = {
+            "1 == 1",
+            "(evt.severity >= 3) and (evt.status < 2)",
+            "(evt.severity == 4) or (evt.count > 5)",
+            "not (evt.severity in (4, 5))",
+            "evt.severity in [1, 2, 3]",
+            "evt.message.startswith('TEST')",
+            "not evt.summary.endswith(\"failed\")",
+            "('fan' in evt.summary.lower())",
+            "(\"Fan\" not in evt.summary)",
+            "evt.event_class < '/E'",
+            "evt.syslog_priority == 7",
+            "evt.nt_event_code == 7",
+            "not evt.nt_event_code",
+            "(evt.count > 100) or (evt.nt_event_code == 1)",
+            "(evt.count > 1) or (evt.nt_event_code == 1)",
+            "evt.agent",
+            "evt.current_user_name == ''",
+            "dev.name == 'BHM TITLE'",
+            "dev.production_state >= 1000",
+            "dev.priority == 3",
+            "dev.device_class.startswith('/Server')",
+            "'/US/Texas' in dev.groups",
+            "'/Production/Infra' in dev.systems",
+            "elem.name == 'BHM TITLE'",
+            "elem.type == 'DEVICE'",
+            "elem.device_class == '/Server/Linux'",
+            "sub_elem.name.upper() == 'FUSE-10A'",
+            "sub_elem.type == 'COMPONENT'",
+            "sub_elem.production_state == 1000",
+            "sub_elem.uuid == ''",
+            "zp_det.zenpack_rack == 'R12'",
+            "zp_det.missing == 'R12'",
+            "(zp_det.zenpack_rack != 'R1') and not (dev.ip_address)",
+    };
+
+    private static void assertSameResult(EventSummary eventSummary) {
+        RuleContext ctx = RuleContext.createContext(pythonHelper.getToObject(), eventSummary);
+        for (String rule : RULES) {
+            CompiledRule compiled = TriggerRuleCompiler.compile(rule);
+            assertNotNull(rule, compiled);
+            PyFunction fn = (PyFunction) pythonHelper.getPythonInterpreter().eval(
+                    "lambda evt, dev, elem, sub_elem, zp_det : " + rule);
+            boolean expected;
+            try {
+                expected = fn.__call__(ctx.getPythonArguments()).__nonzero__();
+            } catch (org.python.core.PyException e) {
+                expected = false;
+            }
+            assertEquals(rule, expected, compiled.matches(ctx.getFields()));
+        }
+    }
+
+    @Test
+    public void testDeviceElement() {
+        assertSameResult(createEvent(deviceActor()));
+    }
+
+    @Test
+    public void testComponentElement() {
+        assertSameResult(createEvent(componentActor()));
+    }
+
+    @Test
+    public void testUnsupportedRules() {
+        String[] rules = {
+                "",
+                "1 = 0",
+                "THIS IS INVALID PYTHON",
+                "evt.msg == 'fail!'",
+                "evt.severity == '3'",
+                "1 < evt.severity < 5",
+                "evt.summary.find('x') >= 0",
+                "010 == 8",
+                "evt.count > 1.5",
+                "evt.severity in ('4', '5')",
+                "'\\x41' == 'A'",
+                "(evt.severity == 1) == True",
+                "evt.severity is 3",
+                "len(dev.groups) > 0",
+                "evt.summary # comment",
+        };
+        for (String rule : rules) {
+            assertNull(rule, TriggerRuleCompiler.compile(rule));
+        }
+    }
+}
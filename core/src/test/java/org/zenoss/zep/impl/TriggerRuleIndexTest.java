@@ -0,0 +1,156 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.Rule;
+import org.zenoss.protobufs.zep.Zep.RuleType;
+import org.zenoss.zep.ZepConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TriggerRuleIndexTest {
+
+    private static final String[] RULES = {
+            "(evt.severity >= 4) and (dev.production_state == 1000)",
+            "(evt.severity >= 4) and (dev.production_state == 1000) and ('/US' in dev.groups)",
+            "(evt.severity >= 4) and not (dev.production_state == 1000)",
+            "(dev.production_state == 1000) and ((evt.count > 1) or (evt.nt_event_code == 1))",
+            "(evt.count > 100) or (evt.nt_event_code == 1)",
+            "not (evt.nt_event_code == 1)",
+            "(evt.severity >= 4) and not ((evt.count > 100) or (evt.status == 1))",
+            "evt.summary.startswith('Fan') and (sub_elem.name == '')",
+    };
+
+    private TriggerRuleIndex index;
+
+    @Before
+    public void setUp() {
+        index = new TriggerRuleIndex();
+    }
+
+    private static EventTrigger createTrigger(String uuid, String source) {
+        return EventTrigger.newBuilder().setUuid(uuid).setEnabled(true)
+                .setRule(Rule.newBuilder().setApiVersion(1).setType(RuleType.RULE_TYPE_JYTHON).setSource(source))
+                .build();
+    }
+
+    private static List<EventTrigger> createTriggers(String... rules) {
+        List<EventTrigger> triggers = new ArrayList<EventTrigger>(rules.length);
+        for (String rule : rules) {
+            triggers.add(createTrigger(UUID.randomUUID().toString(), rule));
+        }
+        return triggers;
+    }
+
+    private static EventSummary createEvent(EventSeverity severity, String productionState) {
+        Event.Builder event = Event.newBuilder();
+        event.setActor(EventActor.newBuilder().setElementTypeId(ModelElementType.DEVICE)
+                .setElementIdentifier("BHM1000"));
+        event.setSummary("Fan 3 failed");
+        event.setSeverity(severity);
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_GROUPS).addValue("/US/Texas");
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_PRODUCTION_STATE).addValue(productionState);
+        return EventSummary.newBuilder().setCount(10).setStatus(EventStatus.STATUS_NEW).addOccurrence(event).build();
+    }
+
+    private void assertSameAsCompiled(List<EventTrigger> triggers, EventSummary event) {
+        TriggerRuleFields fields = new TriggerRuleFields(event);
+        TriggerRuleIndex.Match match = index.match(fields);
+        for (EventTrigger trigger : triggers) {
+            String source = trigger.getRule().getSource();
+            boolean expected = TriggerRuleCompiler.compile(source).matches(new TriggerRuleFields(event));
+            assertEquals(source, expected, match.matches(trigger.getUuid(), source));
+        }
+    }
+
+    @Test
+    public void testMatchesCompiledRules() {
+        List<EventTrigger> triggers = createTriggers(RULES);
+        index.update(triggers);
+        assertEquals(RULES.length, index.getCompiledTriggerCount());
+        assertEquals(0, index.getFallbackTriggerCount());
+
+        assertSameAsCompiled(triggers, createEvent(EventSeverity.SEVERITY_CRITICAL, "1000"));
+        assertSameAsCompiled(triggers, createEvent(EventSeverity.SEVERITY_CRITICAL, "500"));
+        assertSameAsCompiled(triggers, createEvent(EventSeverity.SEVERITY_INFO, "1000"));
+    }
+
+    @Test
+    public void testSharedPredicates() {
+        List<EventTrigger> triggers = createTriggers(
+                "(evt.severity >= 4) and (dev.production_state == 1000)",
+                "(evt.severity >= 4) and (dev.production_state == 1000)",
+                "(dev.production_state == 1000) and (evt.severity >= 4)",
+                "not (evt.severity >= 4)");
+        index.update(triggers);
+        assertEquals(4, index.getCompiledTriggerCount());
+        assertEquals(2, index.getNodeCount());
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        List<EventTrigger> triggers = createTriggers(
+                "(evt.severity >= 4) and (dev.production_state == 1000)",
+                "evt.severity >= 4");
+        index.update(triggers);
+        assertEquals(2, index.getNodeCount());
+
+        // Changing a rule replaces its predicates
+        EventTrigger modified = createTrigger(triggers.get(0).getUuid(), "evt.count > 5");
+        List<EventTrigger> updated = Arrays.asList(modified, triggers.get(1));
+        index.update(updated);
+        assertEquals(2, index.getCompiledTriggerCount());
+        assertEquals(2, index.getNodeCount());
+
+        EventSummary event = createEvent(EventSeverity.SEVERITY_INFO, "1000");
+        TriggerRuleIndex.Match match = index.match(new TriggerRuleFields(event));
+        assertTrue(match.matches(modified.getUuid(), "evt.count > 5"));
+        assertFalse(match.matches(triggers.get(1).getUuid(), "evt.severity >= 4"));
+        // A stale rule source isn't answered from the index
+        assertNull(match.matches(modified.getUuid(), triggers.get(0).getRule().getSource()));
+
+        // Removing triggers releases their predicates
+        index.update(Collections.singletonList(modified));
+        assertEquals(1, index.getCompiledTriggerCount());
+        assertEquals(1, index.getNodeCount());
+        index.update(Collections.<EventTrigger>emptyList());
+        assertEquals(0, index.getCompiledTriggerCount());
+        assertEquals(0, index.getNodeCount());
+    }
+
+    @Test
+    public void testFallbackRules() {
+        List<EventTrigger> triggers = createTriggers("evt.summary.find('Fan') == 0", "evt.severity >= 4");
+        index.update(triggers);
+        assertEquals(1, index.getCompiledTriggerCount());
+        assertEquals(1, index.getFallbackTriggerCount());
+
+        TriggerRuleIndex.Match match = index.match(
+                new TriggerRuleFields(createEvent(EventSeverity.SEVERITY_CRITICAL, "1000")));
+        assertNull(match.matches(triggers.get(0).getUuid(), triggers.get(0).getRule().getSource()));
+        assertTrue(match.matches(triggers.get(1).getUuid(), triggers.get(1).getRule().getSource()));
+    }
+}
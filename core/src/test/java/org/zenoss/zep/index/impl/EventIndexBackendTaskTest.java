@@ -0,0 +1,105 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class EventIndexBackendTaskTest {
+
+    private static void assertTaskEquals(EventIndexBackendTask expected, EventIndexBackendTask actual) {
+        assertEquals(expected.op, actual.op);
+        assertEquals(expected.uuid, actual.uuid);
+        assertEquals(expected.lastSeen, actual.lastSeen);
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        String uuid = UUID.randomUUID().toString();
+        EventIndexBackendTask task = EventIndexBackendTask.Index(uuid, 1400000000000L);
+        byte[] bytes = task.toBytes();
+        assertEquals(1 + 1 + 16 + 6, bytes.length);
+        assertFalse(EventIndexBackendTask.isLegacyEncoding(bytes));
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(bytes));
+
+        task = EventIndexBackendTask.Index(uuid, null);
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(task.toBytes()));
+
+        task = EventIndexBackendTask.Flush();
+        assertEquals(2, task.toBytes().length);
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(task.toBytes()));
+    }
+
+    @Test
+    public void testNullUuidRoundTrip() {
+        EventIndexBackendTask task = EventIndexBackendTask.Index(null, 1400000000000L);
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(task.toBytes()));
+
+        task = EventIndexBackendTask.Index(null, null);
+        assertEquals(2, task.toBytes().length);
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(task.toBytes()));
+    }
+
+    @Test
+    public void testFlushRoundTrip() {
+        EventIndexBackendTask task = EventIndexBackendTask.Flush();
+        EventIndexBackendTask parsed = EventIndexBackendTask.parseBytes(task.toBytes());
+        assertTaskEquals(task, parsed);
+        assertNull(parsed.uuid);
+        assertNull(parsed.lastSeen);
+    }
+
+    @Test
+    public void testVersion1Encoding() {
+        // Version 1 wrote the uuid of every INDEX_EVENT task without a flag
+        UUID uuid = UUID.randomUUID();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 1 + 16 + 1);
+        buf.put((byte) 1);
+        buf.put((byte) (EventIndexBackendTask.Op.INDEX_EVENT.ordinal() | 0x80));
+        buf.putLong(uuid.getMostSignificantBits());
+        buf.putLong(uuid.getLeastSignificantBits());
+        buf.put((byte) 5);
+        assertFalse(EventIndexBackendTask.isLegacyEncoding(buf.array()));
+        assertTaskEquals(EventIndexBackendTask.Index(uuid.toString(), 5L),
+                EventIndexBackendTask.parseBytes(buf.array()));
+
+        byte[] flush = new byte[] { 1, (byte) EventIndexBackendTask.Op.FLUSH.ordinal() };
+        assertTaskEquals(EventIndexBackendTask.Flush(), EventIndexBackendTask.parseBytes(flush));
+    }
+
+    @Test
+    public void testNonCanonicalUuid() {
+        EventIndexBackendTask task = EventIndexBackendTask.Index("not-a-uuid", 5L);
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(task.toBytes()));
+
+        task = EventIndexBackendTask.Index(UUID.randomUUID().toString().toUpperCase(), 5L);
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(task.toBytes()));
+    }
+
+    @Test
+    public void testLegacyEncoding() {
+        EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1234L);
+        byte[] legacy = task.toString().getBytes(Charset.forName("UTF-8"));
+        assertTrue(EventIndexBackendTask.isLegacyEncoding(legacy));
+        assertTaskEquals(task, EventIndexBackendTask.parseBytes(legacy));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        byte[] bytes = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1234L).toBytes();
+        byte[] truncated = new byte[10];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        EventIndexBackendTask.parseBytes(truncated);
+    }
+}
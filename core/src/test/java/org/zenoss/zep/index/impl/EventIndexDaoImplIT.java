@@ -15,7 +15,6 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanQuery;
@@ -60,6 +59,8 @@ import org.zenoss.zep.ZepUtils;
 import org.zenoss.zep.dao.EventArchiveDao;
 import org.zenoss.zep.dao.EventBatch;
 import org.zenoss.zep.dao.EventBatchParams;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
 import org.zenoss.zep.dao.EventSummaryDao;
 import org.zenoss.zep.dao.impl.EventTestUtils;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
@@ -67,6 +68,7 @@ import org.zenoss.zep.dao.impl.compat.TypeConverter;
 import org.zenoss.zep.impl.EventPreCreateContextImpl;
 import org.zenoss.zep.index.EventIndexDao;
 import org.zenoss.zep.index.impl.lucene.LuceneEventIndexBackend;
+import org.zenoss.zep.index.impl.lucene.LuceneIndexPartitions;
 import org.zenoss.zep.plugins.EventPreCreateContext;
 
 import java.io.IOException;
@@ -1214,10 +1216,10 @@ public class EventIndexDaoImplIT extends AbstractTransactionalJUnit4SpringContex
     }
 
     private Set<String> getFieldNames(LuceneEventIndexBackend backend, String eventUuid) throws IOException {
-        IndexWriter indexWriter = (IndexWriter) ReflectionTestUtils.getField(backend, "writer");
+        LuceneIndexPartitions index = (LuceneIndexPartitions) ReflectionTestUtils.getField(backend, "index");
         IndexReader reader = null;
         try {
-            reader = IndexReader.open(indexWriter, true);
+            reader = index.openReader(null, null);
             IndexSearcher searcher = new IndexSearcher(reader);
             TopDocs docs = searcher.search(new TermQuery(new Term(IndexConstants.FIELD_UUID,
                     eventUuid)), null, 1);
@@ -1441,6 +1443,17 @@ public class EventIndexDaoImplIT extends AbstractTransactionalJUnit4SpringContex
                 return archiveDao.listBatch(batchParams, maxUpdateTime, limit);
             }
 
+            @Override
+            public List<EventScanRange> listScanRanges(int uuidRanges) throws ZepException {
+                return archiveDao.listScanRanges(uuidRanges);
+            }
+
+            @Override
+            public String scanRange(EventScanRange range, String startingUuid, long maxUpdateTime, int fetchSize,
+                                    EventScanCallback callback) throws ZepException {
+                return archiveDao.scanRange(range, startingUuid, maxUpdateTime, fetchSize, callback);
+            }
+
             @Override
             public void importEvent(EventSummary eventSummary) throws ZepException {
                 archiveDao.importEvent(eventSummary);
@@ -1494,6 +1507,51 @@ public class EventIndexDaoImplIT extends AbstractTransactionalJUnit4SpringContex
         eventIndexDao.getEventTagSeverities(getEventFilterInst(2000));
     }
 
+    @Test
+    public void testSavedSearchPaging() throws ZepException {
+        for (int i = 0; i < 7; i++) {
+            eventIndexDao.index(createSummaryNew(EventTestUtils.createSampleEvent()));
+        }
+        eventIndexDao.commit();
+
+        EventQuery.Builder queryBuilder = EventQuery.newBuilder();
+        queryBuilder.setTimeout(60);
+        queryBuilder.addSort(EventSort.newBuilder().setField(Field.UUID).setDirection(Direction.ASCENDING).build());
+        String searchUuid = this.eventIndexDao.createSavedSearch(queryBuilder.build());
+        try {
+            List<String> expected = new ArrayList<String>();
+            for (EventSummary event : this.eventIndexDao.savedSearch(searchUuid, 0, 100).getEventsList()) {
+                expected.add(event.getUuid());
+            }
+            assertEquals(7, expected.size());
+
+            // Following the next offset continues after the previous page
+            List<String> paged = new ArrayList<String>();
+            int offset = 0;
+            while (true) {
+                EventSummaryResult result = this.eventIndexDao.savedSearch(searchUuid, offset, 3);
+                assertEquals(7, result.getTotal());
+                for (EventSummary event : result.getEventsList()) {
+                    paged.add(event.getUuid());
+                }
+                if (!result.hasNextOffset()) {
+                    break;
+                }
+                offset = result.getNextOffset();
+            }
+            assertEquals(expected, paged);
+
+            // Offsets which don't follow the previous page still work
+            List<String> page = new ArrayList<String>();
+            for (EventSummary event : this.eventIndexDao.savedSearch(searchUuid, 1, 2).getEventsList()) {
+                page.add(event.getUuid());
+            }
+            assertEquals(expected.subList(1, 3), page);
+        } finally {
+            this.eventIndexDao.deleteSavedSearch(searchUuid);
+        }
+    }
+
     private EventFilter getEventFilterInst(int numOfEventClasses) {
 
         EventFilter.Builder myEventFilterBuilder = EventFilter.newBuilder();
@@ -0,0 +1,161 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.protobufs.zep.Zep.EventDetailItem;
+import org.zenoss.protobufs.zep.Zep.EventDetailItem.EventDetailType;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.ZepConfig;
+import org.zenoss.zep.dao.ConfigDao;
+import org.zenoss.zep.dao.EventBatch;
+import org.zenoss.zep.dao.EventBatchParams;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.IndexMetadata;
+import org.zenoss.zep.dao.IndexMetadataDao;
+import org.zenoss.zep.index.EventIndexDao;
+import org.zenoss.zep.index.EventIndexer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class EventIndexRebuilderImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EventIndexRebuilderImpl rebuilder;
+    private IndexMetadataDao indexMetadataDao;
+    private EventSummaryBaseDao summaryBaseDao;
+
+    @Before
+    public void setUp() throws Exception {
+        EventIndexDao indexDao = createNiceMock(EventIndexDao.class);
+        expect(indexDao.getName()).andReturn("event_summary").anyTimes();
+        expect(indexDao.getNumDocs()).andReturn(10).anyTimes();
+        ConfigDao configDao = createNiceMock(ConfigDao.class);
+        expect(configDao.getConfig()).andReturn(ZepConfig.getDefaultInstance()).anyTimes();
+        replay(indexDao, configDao);
+        indexMetadataDao = createMock(IndexMetadataDao.class);
+        summaryBaseDao = createMock(EventSummaryBaseDao.class);
+
+        rebuilder = new EventIndexRebuilderImpl(true);
+        rebuilder.setIndexDao(indexDao);
+        rebuilder.setIndexDir(folder.getRoot());
+        rebuilder.setConfigDao(configDao);
+        rebuilder.setEventIndexer(createNiceMock(EventIndexer.class));
+        rebuilder.setIndexMetadataDao(indexMetadataDao);
+        rebuilder.setSummaryBaseDao(summaryBaseDao);
+    }
+
+    private static Map<String,EventDetailItem> details(Object... keysAndTypes) {
+        Map<String,EventDetailItem> details = new LinkedHashMap<String,EventDetailItem>();
+        for (int i = 0; i < keysAndTypes.length; i += 2) {
+            String key = (String) keysAndTypes[i];
+            details.put(key, EventDetailItem.newBuilder().setKey(key).setName(key)
+                    .setType((EventDetailType) keysAndTypes[i + 1]).build());
+        }
+        return details;
+    }
+
+    /**
+     * Records the details as the ones the index was built with and returns the metadata of the index.
+     */
+    private IndexMetadata indexedWith(Map<String,EventDetailItem> details) throws Exception {
+        rebuilder.setIndexedDetails(details);
+        rebuilder.saveIndexedDetails();
+        IndexMetadata metadata = new IndexMetadata();
+        metadata.setIndexName("event_summary");
+        metadata.setIndexVersion(IndexConstants.INDEX_VERSION);
+        metadata.setIndexVersionHash(rebuilder.getIndexVersionHash());
+        return metadata;
+    }
+
+    @Test
+    public void testDetailsToMigrate() throws Exception {
+        IndexMetadata metadata = indexedWith(details("a", EventDetailType.STRING, "b", EventDetailType.STRING,
+                "c", EventDetailType.INTEGER));
+
+        // Added and changed details are migrated, removed details aren't
+        rebuilder.setIndexedDetails(details("a", EventDetailType.STRING, "b", EventDetailType.INTEGER,
+                "d", EventDetailType.STRING));
+        assertEquals(new HashSet<String>(Arrays.asList("b", "d")), rebuilder.detailsToMigrate(metadata));
+
+        rebuilder.setIndexedDetails(details("a", EventDetailType.STRING, "b", EventDetailType.STRING));
+        assertTrue(rebuilder.detailsToMigrate(metadata).isEmpty());
+    }
+
+    @Test
+    public void testDisplayNameChangeNotMigrated() throws Exception {
+        IndexMetadata metadata = indexedWith(details("a", EventDetailType.STRING));
+        Map<String,EventDetailItem> renamed = details("a", EventDetailType.STRING);
+        renamed.put("a", EventDetailItem.newBuilder(renamed.get("a")).setName("Renamed").build());
+        rebuilder.setIndexedDetails(renamed);
+        assertTrue(rebuilder.detailsToMigrate(metadata).isEmpty());
+    }
+
+    @Test
+    public void testRebuildWhenIndexVersionChanged() throws Exception {
+        IndexMetadata metadata = indexedWith(details("a", EventDetailType.STRING));
+        metadata.setIndexVersion(IndexConstants.INDEX_VERSION - 1);
+        rebuilder.setIndexedDetails(details("a", EventDetailType.STRING, "b", EventDetailType.STRING));
+        assertNull(rebuilder.detailsToMigrate(metadata));
+    }
+
+    @Test
+    public void testRebuildWhenIndexedDetailsUnknown() throws Exception {
+        IndexMetadata metadata = indexedWith(details("a", EventDetailType.STRING));
+        // The details recorded with the index don't match the index metadata
+        metadata.setIndexVersionHash(new byte[20]);
+        rebuilder.setIndexedDetails(details("a", EventDetailType.STRING, "b", EventDetailType.STRING));
+        assertNull(rebuilder.detailsToMigrate(metadata));
+
+        // No details were recorded with the index
+        metadata = indexedWith(details("a", EventDetailType.STRING));
+        for (File file : folder.getRoot().listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertNull(rebuilder.detailsToMigrate(metadata));
+    }
+
+    @Test
+    public void testIndexVersionChangeRebuildsIndex() throws Exception {
+        IndexMetadata metadata = indexedWith(details("a", EventDetailType.STRING));
+        metadata.setIndexVersion(IndexConstants.INDEX_VERSION - 1);
+        expect(indexMetadataDao.findIndexMetadata("event_summary")).andReturn(metadata);
+        // Rebuilds without any interrupted rebuild state to resume
+        indexMetadataDao.updateIndexVersion(eq("event_summary"), eq(0), aryEq(new byte[20]));
+        expect(summaryBaseDao.listBatch((EventBatchParams) isNull(), anyLong(), anyInt()))
+                .andReturn(new EventBatch(Collections.<EventSummary>emptyList(), 0L, null));
+        replay(indexMetadataDao, summaryBaseDao);
+
+        rebuilder.recreateIndexIfNeeded();
+        verify(indexMetadataDao, summaryBaseDao);
+    }
+
+    @Test
+    public void testUnchangedIndexNotRebuilt() throws Exception {
+        IndexMetadata metadata = indexedWith(details("a", EventDetailType.STRING));
+        expect(indexMetadataDao.findIndexMetadata("event_summary")).andReturn(metadata);
+        replay(indexMetadataDao, summaryBaseDao);
+
+        rebuilder.recreateIndexIfNeeded();
+        verify(indexMetadataDao, summaryBaseDao);
+    }
+}
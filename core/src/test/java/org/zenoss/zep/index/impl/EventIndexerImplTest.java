@@ -0,0 +1,207 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.PluginService;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventIndexHandler;
+import org.zenoss.zep.dao.EventIndexQueueDao;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.IndexQueueID;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+import org.zenoss.zep.index.EventIndexDao;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.plugins.EventPostIndexContext;
+import org.zenoss.zep.plugins.EventPostIndexPlugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class EventIndexerImplTest {
+
+    private List<String> calls;
+    private EventIndexDao indexDao;
+    private EventIndexQueueDao queueDao;
+    private EventIndexerImpl indexer;
+
+    /**
+     * Records the calls made to it, along with the calls made to the index.
+     */
+    private final class RecordingPlugin extends EventPostIndexPlugin {
+        @Override
+        public void startBatch(EventPostIndexContext context) throws Exception {
+            calls.add("startBatch");
+        }
+
+        @Override
+        public void preProcessEvents(Collection<EventSummary> eventSummaries, EventPostIndexContext context)
+                throws ZepException {
+            calls.add("preProcessEvents " + eventSummaries.size());
+        }
+
+        @Override
+        public void processEvent(EventSummary eventSummary, EventPostIndexContext context) throws ZepException {
+            calls.add("processEvent");
+        }
+
+        @Override
+        public void processEvents(List<EventSummary> eventSummaries, EventPostIndexContext context)
+                throws ZepException {
+            calls.add("processEvents " + eventSummaries.size());
+        }
+
+        @Override
+        public void endBatch(EventPostIndexContext context) throws Exception {
+            calls.add("endBatch");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        calls = new ArrayList<String>();
+        indexDao = createMock(EventIndexDao.class);
+        expect(indexDao.getName()).andReturn("event_summary").anyTimes();
+        queueDao = createMock(EventIndexQueueDao.class);
+        PluginService pluginService = createMock(PluginService.class);
+        expect(pluginService.getPluginsByType(EventPostIndexPlugin.class))
+                .andReturn(Collections.<EventPostIndexPlugin>singletonList(new RecordingPlugin())).anyTimes();
+        replay(pluginService);
+
+        indexer = new EventIndexerImpl(indexDao);
+        indexer.setQueueDao(queueDao);
+        indexer.setPluginService(pluginService);
+        indexer.setBean(new MetricRegistry());
+    }
+
+    private static EventSummary summary() {
+        return EventSummary.newBuilder().setUuid(UUID.randomUUID().toString())
+                .addOccurrence(EventTestUtils.createSampleEvent()).build();
+    }
+
+    private IAnswer<Object> record(final String call) {
+        return new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                calls.add(call);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testProcessEventsOncePerBatchBeforeCommit() throws Exception {
+        final List<EventSummary> events = Arrays.asList(summary(), summary(), summary());
+        final List<IndexQueueID> queueIds = Arrays.asList(new IndexQueueID(1L), new IndexQueueID(2L),
+                new IndexQueueID(3L));
+        expect(queueDao.indexEvents(isA(EventIndexHandler.class), anyInt(), anyLong()))
+                .andAnswer(new IAnswer<List<IndexQueueID>>() {
+                    @Override
+                    public List<IndexQueueID> answer() throws Throwable {
+                        EventIndexHandler handler = (EventIndexHandler) getCurrentArguments()[0];
+                        // The queue is read in two pages
+                        handler.prepareToHandle(events.subList(0, 2));
+                        handler.handle(events.get(0));
+                        handler.handle(events.get(1));
+                        handler.prepareToHandle(events.subList(2, 3));
+                        handler.handle(events.get(2));
+                        handler.handleComplete();
+                        return queueIds;
+                    }
+                });
+        queueDao.deleteIndexQueueIds(queueIds);
+        indexDao.stage(isA(EventSummary.class));
+        expectLastCall().andAnswer(record("stage")).times(3);
+        indexDao.commit();
+        expectLastCall().andAnswer(record("commit"));
+        replay(indexDao, queueDao);
+
+        assertEquals(3, indexer.index());
+        verify(indexDao, queueDao);
+
+        // The whole batch is post-processed at once, before it is committed
+        assertEquals(Arrays.asList("startBatch", "preProcessEvents 2", "stage", "stage", "preProcessEvents 1",
+                "stage", "processEvents 3", "commit", "endBatch"), calls);
+    }
+
+    @Test
+    public void testNoPostProcessingWithoutEvents() throws Exception {
+        final List<IndexQueueID> queueIds = Collections.singletonList(new IndexQueueID(1L));
+        expect(queueDao.indexEvents(isA(EventIndexHandler.class), anyInt(), anyLong()))
+                .andAnswer(new IAnswer<List<IndexQueueID>>() {
+                    @Override
+                    public List<IndexQueueID> answer() throws Throwable {
+                        EventIndexHandler handler = (EventIndexHandler) getCurrentArguments()[0];
+                        handler.handleDeleted("deleted");
+                        handler.handleComplete();
+                        return queueIds;
+                    }
+                });
+        queueDao.deleteIndexQueueIds(queueIds);
+        indexDao.stageDelete("deleted");
+        indexDao.commit();
+        expectLastCall().andAnswer(record("commit"));
+        replay(indexDao, queueDao);
+
+        assertEquals(1, indexer.index());
+        verify(indexDao, queueDao);
+        assertEquals(Arrays.asList("commit"), calls);
+    }
+
+    @Test
+    public void testFailedHandOffRetriesBatch() throws Exception {
+        WorkQueue postIndexQueue = createMock(WorkQueue.class);
+        postIndexQueue.addAll(anyObject(Collection.class));
+        expectLastCall().andThrow(new RuntimeException("work queue unavailable"));
+        EventPostIndexStage stage = new EventPostIndexStage("summary", false, postIndexQueue,
+                createMock(EventSummaryBaseDao.class), createMock(PluginService.class));
+        stage.setEnabled(true);
+        indexer.setPostIndexStage(stage);
+
+        expect(queueDao.indexEvents(isA(EventIndexHandler.class), anyInt(), anyLong()))
+                .andAnswer(new IAnswer<List<IndexQueueID>>() {
+                    @Override
+                    public List<IndexQueueID> answer() throws Throwable {
+                        EventIndexHandler handler = (EventIndexHandler) getCurrentArguments()[0];
+                        handler.prepareToHandle(Collections.singletonList(summary()));
+                        handler.handle(summary());
+                        try {
+                            handler.handleComplete();
+                        } catch (Exception e) {
+                            // As the index queue DAO does, rolling back its transaction
+                            throw new ZepException(e.getLocalizedMessage(), e);
+                        }
+                        return Collections.singletonList(new IndexQueueID(1L));
+                    }
+                });
+        indexDao.stage(isA(EventSummary.class));
+        replay(indexDao, queueDao, postIndexQueue);
+
+        try {
+            indexer.index();
+            fail("Expected the hand-off to fail");
+        } catch (ZepException e) {
+            // Expected
+        }
+        // Neither committed nor removed from the index queue, so the batch is indexed again
+        verify(indexDao, queueDao, postIndexQueue);
+        assertTrue(calls.isEmpty());
+    }
+}
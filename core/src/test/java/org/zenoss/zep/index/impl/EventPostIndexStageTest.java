@@ -0,0 +1,192 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.PluginService;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.plugins.EventPostIndexContext;
+import org.zenoss.zep.plugins.EventPostIndexPlugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class EventPostIndexStageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JournaledWorkQueue queue;
+    private EventSummaryBaseDao eventDao;
+    private PluginService pluginService;
+    private RecordingPlugin plugin;
+    private EventPostIndexStage stage;
+
+    private static final class RecordingPlugin extends EventPostIndexPlugin {
+        private final List<EventSummary> processed = new ArrayList<EventSummary>();
+        private boolean archive;
+        private int batches = 0;
+        private int failures = 0;
+
+        @Override
+        public void processEvents(List<EventSummary> eventSummaries, EventPostIndexContext context)
+                throws ZepException {
+            if (failures > 0) {
+                --failures;
+                throw new ZepException("failed to publish");
+            }
+            super.processEvents(eventSummaries, context);
+        }
+
+        @Override
+        public void processEvent(EventSummary eventSummary, EventPostIndexContext context) throws ZepException {
+            processed.add(eventSummary);
+            archive = context.isArchive();
+        }
+
+        @Override
+        public void endBatch(EventPostIndexContext context) throws Exception {
+            ++batches;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new JournaledWorkQueue(new File(folder.getRoot(), "test.journal"), "test", 1024);
+        queue.setInProgressDuration(0L, TimeUnit.MILLISECONDS);
+        eventDao = createMock(EventSummaryBaseDao.class);
+        pluginService = createMock(PluginService.class);
+        plugin = new RecordingPlugin();
+        expect(pluginService.getPluginsByType(EventPostIndexPlugin.class))
+                .andReturn(Collections.<EventPostIndexPlugin>singletonList(plugin)).anyTimes();
+        stage = new EventPostIndexStage("summary", false, queue, eventDao, pluginService);
+        stage.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    private static EventSummary event(long updateTime) {
+        return EventSummary.newBuilder().setUuid(UUID.randomUUID().toString()).setLastSeenTime(updateTime)
+                .setUpdateTime(updateTime).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testProcess() throws Exception {
+        EventSummary first = event(1000L);
+        EventSummary second = event(2000L);
+        expect(eventDao.findByKey(isA(Collection.class))).andReturn(Arrays.asList(first, second));
+        replay(eventDao, pluginService);
+
+        stage.enqueue(Arrays.asList(first, second));
+        assertEquals(2L, queue.size());
+        List<EventIndexBackendTask> tasks = queue.poll(10, 0, TimeUnit.MILLISECONDS);
+        assertEquals(2, tasks.size());
+        stage.process(tasks);
+
+        assertEquals(Arrays.asList(first, second), plugin.processed);
+        assertFalse(plugin.archive);
+        assertEquals(1, plugin.batches);
+        // Completed tasks aren't retried
+        assertEquals(0L, queue.requeueOldTasks());
+        assertEquals(0L, queue.size());
+        verify(eventDao, pluginService);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRetryFailedBatch() throws Exception {
+        EventSummary first = event(1000L);
+        expect(eventDao.findByKey(isA(Collection.class))).andThrow(new ZepException("failed"));
+        replay(eventDao, pluginService);
+
+        stage.enqueue(Collections.singletonList(first));
+        List<EventIndexBackendTask> tasks = queue.poll(10, 0, TimeUnit.MILLISECONDS);
+        try {
+            stage.process(tasks);
+            fail("Expected failure reading events");
+        } catch (ZepException e) {
+            // Expected
+        }
+        assertTrue(plugin.processed.isEmpty());
+        assertEquals(1L, queue.requeueOldTasks());
+        assertEquals(1L, queue.size());
+        verify(eventDao, pluginService);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRetryPluginFailure() throws Exception {
+        EventSummary first = event(1000L);
+        expect(eventDao.findByKey(isA(Collection.class))).andReturn(Collections.singletonList(first)).times(2);
+        replay(eventDao, pluginService);
+        plugin.failures = 1;
+
+        stage.enqueue(Collections.singletonList(first));
+        try {
+            stage.process(queue.poll(10, 0, TimeUnit.MILLISECONDS));
+            fail("Expected plug-in failure");
+        } catch (ZepException e) {
+            // Expected
+        }
+        // The batch still finishes, but isn't completed
+        assertEquals(1, plugin.batches);
+        assertEquals(1L, queue.requeueOldTasks());
+
+        stage.process(queue.poll(10, 0, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(first), plugin.processed);
+        assertEquals(0L, queue.requeueOldTasks());
+        assertEquals(0L, queue.size());
+        verify(eventDao, pluginService);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDropAfterMaxAttempts() throws Exception {
+        EventSummary first = event(1000L);
+        expect(eventDao.findByKey(isA(Collection.class))).andReturn(Collections.singletonList(first)).times(2);
+        replay(eventDao, pluginService);
+        stage.setMaxAttempts(2);
+        plugin.failures = 2;
+
+        stage.enqueue(Collections.singletonList(first));
+        for (int i = 0; i < 2; i++) {
+            try {
+                stage.process(queue.poll(10, 0, TimeUnit.MILLISECONDS));
+                fail("Expected plug-in failure");
+            } catch (ZepException e) {
+                // Expected
+            }
+            queue.requeueOldTasks();
+        }
+        // Dropped after the second failed attempt
+        assertTrue(plugin.processed.isEmpty());
+        assertEquals(0L, queue.size());
+        assertTrue(queue.poll(10, 0, TimeUnit.MILLISECONDS).isEmpty());
+        verify(eventDao, pluginService);
+    }
+}
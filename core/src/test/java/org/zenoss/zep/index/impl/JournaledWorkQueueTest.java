@@ -0,0 +1,129 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JournaledWorkQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private JournaledWorkQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "test.journal");
+        queue = new JournaledWorkQueue(file, "test", 1024);
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    private static EventIndexBackendTask task() {
+        return EventIndexBackendTask.Index(UUID.randomUUID().toString(), System.currentTimeMillis());
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        EventIndexBackendTask a = task();
+        EventIndexBackendTask b = task();
+        queue.addAll(Arrays.asList(a, b, a));
+        queue.add(b);
+        assertEquals(2L, queue.size());
+
+        List<EventIndexBackendTask> polled = queue.poll(10, 0, TimeUnit.MILLISECONDS);
+        assertEquals(2, polled.size());
+        assertEquals(a.uuid, polled.get(0).uuid);
+        assertEquals(b.uuid, polled.get(1).uuid);
+        assertEquals(0L, queue.size());
+
+        // In-progress tasks may be queued again
+        queue.add(a);
+        assertEquals(1L, queue.size());
+        queue.completeAll(polled);
+        assertEquals(0L, queue.requeueOldTasks());
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        long start = System.nanoTime();
+        assertTrue(queue.poll(10, 50, TimeUnit.MILLISECONDS).isEmpty());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testRequeueOldTasks() throws Exception {
+        EventIndexBackendTask a = task();
+        queue.add(a);
+        assertEquals(1, queue.poll(10, 0, TimeUnit.MILLISECONDS).size());
+        assertEquals(0L, queue.requeueOldTasks());
+        queue.setInProgressDuration(0, TimeUnit.MILLISECONDS);
+        assertEquals(1L, queue.requeueOldTasks());
+        assertEquals(1L, queue.size());
+        queue.complete(queue.poll(10, 0, TimeUnit.MILLISECONDS).get(0));
+        assertEquals(0L, queue.requeueOldTasks());
+    }
+
+    @Test
+    public void testBuilderInProgressDuration() throws Exception {
+        JournaledWorkQueueBuilder builder = new JournaledWorkQueueBuilder(folder.newFolder("builder"), 1024);
+        try {
+            JournaledWorkQueue built = (JournaledWorkQueue) builder.build("built");
+            built.add(task());
+            assertEquals(1, built.poll(10, 0, TimeUnit.MILLISECONDS).size());
+            assertEquals(0L, built.requeueOldTasks());
+            // Applies to queues that were already built
+            builder.setInProgressSeconds(0L);
+            assertEquals(1L, built.requeueOldTasks());
+        } finally {
+            builder.close();
+        }
+    }
+
+    @Test
+    public void testReplayAndCompaction() throws Exception {
+        EventIndexBackendTask inProgress = task();
+        EventIndexBackendTask completed = task();
+        queue.addAll(Arrays.asList(inProgress, completed));
+        queue.poll(2, 0, TimeUnit.MILLISECONDS);
+        queue.complete(completed);
+        // Enough records to compact the 1k journal several times
+        for (int i = 0; i < 200; i++) {
+            EventIndexBackendTask t = task();
+            queue.add(t);
+            queue.complete(queue.poll(1, 0, TimeUnit.MILLISECONDS).get(0));
+        }
+        EventIndexBackendTask queued = task();
+        queue.add(queued);
+        queue.close();
+
+        queue = new JournaledWorkQueue(file, "test", 1024);
+        assertEquals(2L, queue.size());
+        List<EventIndexBackendTask> polled = queue.poll(10, 0, TimeUnit.MILLISECONDS);
+        // Tasks in-progress when the queue was closed are requeued behind the queued tasks
+        assertEquals(queued.uuid, polled.get(0).uuid);
+        assertEquals(inProgress.uuid, polled.get(1).uuid);
+    }
+}
@@ -0,0 +1,150 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.easymock.Capture;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventDetail;
+import org.zenoss.protobufs.zep.Zep.EventQuery;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+import org.zenoss.zep.index.EventIndexBackend;
+import org.zenoss.zep.index.impl.MultiBackendEventIndexDao.BackendStatus;
+import org.zenoss.zep.index.impl.MultiBackendEventIndexDao.RebuilderProgress;
+import org.zenoss.zep.utils.KeyValueStore;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class MultiBackendEventIndexDaoTest {
+
+    private static final long THROUGH_TIME = 1000L;
+    private static final Set<String> DETAIL_KEYS = new TreeSet<String>(Arrays.asList("zenoss.device.location"));
+
+    private EventIndexBackend backend;
+    private EventSummaryBaseDao eventDao;
+    private MultiBackendEventIndexDao dao;
+    private EventIndexBackendConfiguration configuration;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = createMock(EventIndexBackend.class);
+        eventDao = createMock(EventSummaryBaseDao.class);
+        dao = new MultiBackendEventIndexDao("event_summary", eventDao, null, createNiceMock(KeyValueStore.class),
+                null, null, null);
+        dao.disableAsyncProcessing();
+        configuration = EventIndexBackendConfiguration.createInstance(true, "backend", backend, BackendStatus.WRITER,
+                false, true, 3);
+    }
+
+    private static EventSummary summary(String uuid, long lastSeen, String detail, String value) {
+        return EventSummary.newBuilder().setUuid(uuid).setCount(1).setLastSeenTime(lastSeen)
+                .addOccurrence(EventTestUtils.createSampleEvent().toBuilder()
+                        .addDetails(EventDetail.newBuilder().setName(detail).addValue(value)))
+                .build();
+    }
+
+    private static EventSummary key(EventSummary event) {
+        return EventSummary.newBuilder().setUuid(event.getUuid()).setLastSeenTime(event.getLastSeenTime()).build();
+    }
+
+    private RebuilderProgress migrateDetails(RebuilderProgress progress) throws Exception {
+        return dao.new RebuilderThread(dao, "backend").migrateDetails(configuration, backend, progress);
+    }
+
+    @Test
+    public void testProgressRoundTrip() {
+        Set<String> keys = new TreeSet<String>(Arrays.asList("zenoss.device.location", "key with space", "a,b:c"));
+        RebuilderProgress progress = RebuilderProgress.migrate(RebuilderProgress.migrate(THROUGH_TIME, keys), 500);
+
+        RebuilderProgress parsed = RebuilderProgress.parse(progress.toString());
+        assertEquals(THROUGH_TIME, parsed.throughTime);
+        assertEquals(keys, parsed.migrateDetails);
+        assertEquals(500, parsed.offset);
+        assertNull(parsed.nextBatch);
+        assertFalse(parsed.done);
+
+        RebuilderProgress done = RebuilderProgress.parse(RebuilderProgress.done(parsed).toString());
+        assertTrue(done.done);
+        assertNull(done.migrateDetails);
+        assertEquals(THROUGH_TIME, done.throughTime);
+    }
+
+    @Test
+    public void testMigrateIndexesCurrentEvents() throws Exception {
+        EventSummary indexed = summary("uuid1", 10L, "zenoss.device.location", "old");
+        EventSummary unchanged = summary("uuid2", 20L, "other", "value");
+        EventSummary deleted = summary("uuid3", 30L, "zenoss.device.location", "gone");
+        EventSummary current = summary("uuid1", 40L, "zenoss.device.location", "new");
+
+        expect(backend.createSavedSearch(anyObject(EventQuery.class))).andReturn("search");
+        expect(backend.savedSearch("search", 0, 3)).andReturn(EventSummaryResult.newBuilder()
+                .addAllEvents(Arrays.asList(indexed, unchanged, deleted)).setNextOffset(3).setTotal(5).build());
+        Capture<Collection<EventSummary>> keys = new Capture<Collection<EventSummary>>();
+        expect(eventDao.findByKey(capture(keys))).andReturn(Collections.singletonList(current));
+        // Only the events which still exist are indexed, as they are in the database
+        backend.index(Collections.singletonList(current));
+        replay(backend, eventDao);
+
+        RebuilderProgress progress = migrateDetails(RebuilderProgress.migrate(THROUGH_TIME, DETAIL_KEYS));
+        verify(backend, eventDao);
+
+        assertEquals(new HashSet<EventSummary>(Arrays.asList(key(indexed), key(deleted))),
+                new HashSet<EventSummary>(keys.getValue()));
+        assertFalse(progress.done);
+        assertEquals(3, progress.offset);
+        assertEquals(DETAIL_KEYS, progress.migrateDetails);
+    }
+
+    @Test
+    public void testMigrateResumesFromOffset() throws Exception {
+        EventSummary deleted = summary("uuid1", 10L, "zenoss.device.location", "gone");
+
+        expect(backend.createSavedSearch(anyObject(EventQuery.class))).andReturn("search");
+        expect(backend.savedSearch("search", 500, 3)).andReturn(EventSummaryResult.newBuilder()
+                .addEvents(deleted).setTotal(501).build());
+        expect(eventDao.findByKey(Collections.singleton(key(deleted)))).andReturn(Collections.<EventSummary>emptyList());
+        backend.index(Collections.<EventSummary>emptyList());
+        backend.flush();
+        backend.closeSavedSearch("search");
+        replay(backend, eventDao);
+
+        RebuilderProgress resumed = RebuilderProgress.migrate(
+                RebuilderProgress.migrate(THROUGH_TIME, DETAIL_KEYS), 500);
+        RebuilderProgress progress = migrateDetails(RebuilderProgress.parse(resumed.toString()));
+        verify(backend, eventDao);
+
+        assertTrue(progress.done);
+        assertEquals(THROUGH_TIME, progress.throughTime);
+    }
+
+    @Test
+    public void testMigrateSkipsPageWithoutDetails() throws Exception {
+        List<EventSummary> events = Arrays.asList(summary("uuid1", 10L, "other", "value"));
+        expect(backend.createSavedSearch(anyObject(EventQuery.class))).andReturn("search");
+        expect(backend.savedSearch("search", 0, 3)).andReturn(EventSummaryResult.newBuilder()
+                .addAllEvents(events).setNextOffset(1).setTotal(2).build());
+        replay(backend, eventDao);
+
+        RebuilderProgress progress = migrateDetails(RebuilderProgress.migrate(THROUGH_TIME, DETAIL_KEYS));
+        verify(backend, eventDao);
+        assertEquals(1, progress.offset);
+    }
+}
@@ -0,0 +1,217 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.google.common.base.Function;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventScanCallback;
+import org.zenoss.zep.dao.EventScanRange;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.utils.KeyValueStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class ParallelEventIndexRebuilderTest {
+
+    private static final String CHECKPOINT_KEY = "test";
+    private static final long THROUGH_TIME = 1000L;
+
+    private static final class MemoryKeyValueStore implements KeyValueStore {
+        private final Map<String,byte[]> values = new ConcurrentHashMap<String,byte[]>();
+
+        @Override
+        public void store(byte[] key, byte[] value) {
+            values.put(new String(key), value);
+        }
+
+        @Override
+        public byte[] load(byte[] key) {
+            return values.get(new String(key));
+        }
+
+        @Override
+        public void checkAndSetAll(Function<Map<byte[],byte[]>,Map<byte[],byte[]>> mapper) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<byte[],byte[]> loadAll() {
+            throw new UnsupportedOperationException();
+        }
+
+        String get(String key) {
+            byte[] value = values.get(key);
+            return (value == null) ? null : new String(value);
+        }
+    }
+
+    private static final class RecordingTarget implements ParallelEventIndexRebuilder.Target {
+        private final List<String> indexed = Collections.synchronizedList(new ArrayList<String>());
+        private final int maxBatches;
+        private int batches = 0;
+
+        RecordingTarget(int maxBatches) {
+            this.maxBatches = maxBatches;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+
+        @Override
+        public synchronized boolean index(List<EventSummary> events) {
+            if (++batches > maxBatches) {
+                return false;
+            }
+            for (EventSummary event : events) {
+                indexed.add(event.getUuid());
+            }
+            return true;
+        }
+    }
+
+    private EventSummaryBaseDao eventDao;
+    private MemoryKeyValueStore store;
+    private ParallelEventIndexRebuilder rebuilder;
+    private final EventScanRange first = EventScanRange.forUuids("uuid:1/2", null, "80000000-0000-0000-0000-000000000000");
+    private final EventScanRange second = EventScanRange.forUuids("uuid:2/2", "80000000-0000-0000-0000-000000000000", null);
+
+    @Before
+    public void setUp() {
+        eventDao = createMock(EventSummaryBaseDao.class);
+        store = new MemoryKeyValueStore();
+        rebuilder = new ParallelEventIndexRebuilder("test", eventDao, store);
+        rebuilder.setReaderThreads(2);
+        rebuilder.setIndexThreads(2);
+    }
+
+    private static List<EventSummary> events(int count) {
+        List<EventSummary> events = new ArrayList<EventSummary>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(EventSummary.newBuilder().setUuid(UUID.randomUUID().toString()).build());
+        }
+        return events;
+    }
+
+    private static Set<String> uuids(List<EventSummary> events) {
+        Set<String> uuids = new HashSet<String>();
+        for (EventSummary event : events) {
+            uuids.add(event.getUuid());
+        }
+        return uuids;
+    }
+
+    private static String checkpointKey(EventScanRange range) {
+        return CHECKPOINT_KEY + ":range:" + range.getId();
+    }
+
+    private void expectScan(EventScanRange range, String startingUuid, final List<EventSummary> events)
+            throws ZepException {
+        expect(eventDao.scanRange(eq(range), startingUuid == null ? (String) isNull() : eq(startingUuid),
+                eq(THROUGH_TIME), anyInt(), isA(EventScanCallback.class))).andAnswer(new IAnswer<String>() {
+            @Override
+            public String answer() throws Throwable {
+                EventScanCallback callback = (EventScanCallback) getCurrentArguments()[4];
+                String last = null;
+                for (EventSummary event : events) {
+                    last = event.getUuid();
+                    if (!callback.event(event)) {
+                        break;
+                    }
+                }
+                return last;
+            }
+        });
+    }
+
+    @Test
+    public void testRebuildAllRanges() throws Exception {
+        List<EventSummary> firstEvents = events(5), secondEvents = events(4);
+        expect(eventDao.listScanRanges(anyInt())).andReturn(Arrays.asList(first, second));
+        expectScan(first, null, firstEvents);
+        expectScan(second, null, secondEvents);
+        replay(eventDao);
+
+        RecordingTarget target = new RecordingTarget(Integer.MAX_VALUE);
+        assertTrue(rebuilder.rebuild(CHECKPOINT_KEY, THROUGH_TIME, 2, target));
+        Set<String> expected = uuids(firstEvents);
+        expected.addAll(uuids(secondEvents));
+        assertEquals(9, target.indexed.size());
+        assertEquals(expected, new HashSet<String>(target.indexed));
+        // Checkpoints are cleared once the rebuild finishes
+        assertEquals("", store.get(checkpointKey(first)));
+        assertEquals("", store.get(checkpointKey(second)));
+        verify(eventDao);
+    }
+
+    @Test
+    public void testResumeFromCheckpoints() throws Exception {
+        List<EventSummary> remaining = events(3);
+        store.store(checkpointKey(first).getBytes(), ("throughTime:" + THROUGH_TIME + " lastUuid:" +
+                "40000000-0000-0000-0000-000000000000").getBytes());
+        store.store(checkpointKey(second).getBytes(), ("throughTime:" + THROUGH_TIME + " done:true").getBytes());
+        expect(eventDao.listScanRanges(anyInt())).andReturn(Arrays.asList(first, second));
+        // The finished range isn't scanned again
+        expectScan(first, "40000000-0000-0000-0000-000000000000", remaining);
+        replay(eventDao);
+
+        RecordingTarget target = new RecordingTarget(Integer.MAX_VALUE);
+        assertTrue(rebuilder.rebuild(CHECKPOINT_KEY, THROUGH_TIME, 10, target));
+        assertEquals(uuids(remaining), new HashSet<String>(target.indexed));
+        verify(eventDao);
+    }
+
+    @Test
+    public void testIgnoreCheckpointsOfEarlierRebuild() throws Exception {
+        List<EventSummary> firstEvents = events(2);
+        store.store(checkpointKey(first).getBytes(), ("throughTime:" + (THROUGH_TIME - 1) + " done:true").getBytes());
+        expect(eventDao.listScanRanges(anyInt())).andReturn(Collections.singletonList(first));
+        expectScan(first, null, firstEvents);
+        replay(eventDao);
+
+        RecordingTarget target = new RecordingTarget(Integer.MAX_VALUE);
+        assertTrue(rebuilder.rebuild(CHECKPOINT_KEY, THROUGH_TIME, 10, target));
+        assertEquals(uuids(firstEvents), new HashSet<String>(target.indexed));
+        verify(eventDao);
+    }
+
+    @Test
+    public void testStoppedRebuildCheckpointsIndexedBatches() throws Exception {
+        rebuilder.setIndexThreads(1);
+        rebuilder.setMaxPendingBatches(1);
+        List<EventSummary> firstEvents = events(6);
+        expect(eventDao.listScanRanges(anyInt())).andReturn(Collections.singletonList(first));
+        expectScan(first, null, firstEvents);
+        replay(eventDao);
+
+        // The backend stops accepting events after the first batch
+        RecordingTarget target = new RecordingTarget(1);
+        assertFalse(rebuilder.rebuild(CHECKPOINT_KEY, THROUGH_TIME, 2, target));
+        assertEquals(2, target.indexed.size());
+        assertEquals("throughTime:" + THROUGH_TIME + " lastUuid:" + firstEvents.get(1).getUuid(),
+                store.get(checkpointKey(first)));
+        verify(eventDao);
+    }
+}
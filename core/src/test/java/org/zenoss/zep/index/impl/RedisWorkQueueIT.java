@@ -0,0 +1,256 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.zenoss.zep.utils.JedisPoolUtil;
+import org.zenoss.zep.utils.JedisUser;
+import org.zenoss.zep.utils.RedisTransactionCollision;
+import redis.clients.jedis.Jedis;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the blocking poll of RedisWorkQueue.
+ */
+@ContextConfiguration({"classpath:zep-config.xml"})
+public class RedisWorkQueueIT extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    public JedisPoolUtil jedisPoolUtil;
+
+    private String name;
+    private MetricRegistry metrics;
+    private RedisWorkQueue queue;
+
+    @Before
+    public void setUp() {
+        name = "test-" + UUID.randomUUID();
+        metrics = new MetricRegistry();
+        queue = new RedisWorkQueue(jedisPoolUtil, name);
+        queue.setMetrics(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        queue.clearAll();
+    }
+
+    private long meterCount(String meter) {
+        return metrics.meter(MetricRegistry.name(RedisWorkQueue.class.getCanonicalName(), name, meter)).getCount();
+    }
+
+    private long notifyTokens() {
+        return jedisPoolUtil.useJedis(new JedisUser<Long>() {
+            @Override
+            public Long use(Jedis jedis) throws RedisTransactionCollision {
+                return jedis.llen("zep.work.queue.notify:" + name);
+            }
+        });
+    }
+
+    private void setWaiters(final int count) {
+        jedisPoolUtil.useJedis(new JedisUser<Object>() {
+            @Override
+            public Object use(Jedis jedis) throws RedisTransactionCollision {
+                jedis.set("zep.work.queue.waiters:" + name, Integer.toString(count));
+                return null;
+            }
+        });
+    }
+
+    private void setNotifyTokens(final int count) {
+        jedisPoolUtil.useJedis(new JedisUser<Object>() {
+            @Override
+            public Object use(Jedis jedis) throws RedisTransactionCollision {
+                final String key = "zep.work.queue.notify:" + name;
+                jedis.del(key);
+                for (int i = 0; i < count; i++) {
+                    jedis.lpush(key, "1");
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testPollWakesOnAdd() throws Exception {
+        final EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.add(task);
+            }
+        };
+        producer.start();
+        try {
+            long start = System.nanoTime();
+            List<EventIndexBackendTask> tasks = queue.poll(10, 10, TimeUnit.SECONDS);
+            assertEquals(1, tasks.size());
+            assertEquals(task.uuid, tasks.get(0).uuid);
+            // Woken by the push rather than waiting out the timeout
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1L, meterCount("productivePolls"));
+            queue.completeAll(tasks);
+        } finally {
+            producer.join();
+        }
+        assertEquals(0L, queue.size());
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        long start = System.nanoTime();
+        assertTrue(queue.poll(10, 500, TimeUnit.MILLISECONDS).isEmpty());
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(500));
+        // Timeouts under a second aren't rounded up to a whole second of blocking
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(1L, meterCount("emptyPolls"));
+        assertEquals(0L, meterCount("productivePolls"));
+    }
+
+    @Test
+    public void testShortPollFindsTask() throws Exception {
+        final EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.add(task);
+            }
+        };
+        producer.start();
+        try {
+            List<EventIndexBackendTask> tasks = queue.poll(10, 500, TimeUnit.MILLISECONDS);
+            assertEquals(1, tasks.size());
+            assertEquals(task.uuid, tasks.get(0).uuid);
+        } finally {
+            producer.join();
+        }
+    }
+
+    @Test
+    public void testTokenPerWaiter() throws Exception {
+        // A push adds a token for each blocked poller, and at least one
+        queue.add(EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L));
+        assertEquals(1L, notifyTokens());
+
+        setNotifyTokens(0);
+        setWaiters(3);
+        queue.add(EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L));
+        assertEquals(3L, notifyTokens());
+
+        setNotifyTokens(0);
+        setWaiters(100);
+        queue.add(EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L));
+        assertEquals(16L, notifyTokens());
+    }
+
+    @Test
+    public void testPollWithoutBlockingPermit() throws Exception {
+        // Pollers beyond the limit of blocked connections sleep and re-poll instead
+        queue.setBlockingPolls(new Semaphore(0));
+        final EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.add(task);
+            }
+        };
+        producer.start();
+        try {
+            List<EventIndexBackendTask> tasks = queue.poll(10, 10, TimeUnit.SECONDS);
+            assertEquals(1, tasks.size());
+            assertEquals(task.uuid, tasks.get(0).uuid);
+            assertEquals(0L, meterCount("wakeups"));
+        } finally {
+            producer.join();
+        }
+    }
+
+    @Test
+    public void testStaleNotifyTokens() throws Exception {
+        // Tokens left behind with nothing queued wake the poll, which goes back to waiting until its timeout
+        setNotifyTokens(3);
+        long start = System.nanoTime();
+        assertTrue(queue.poll(10, 1500, TimeUnit.MILLISECONDS).isEmpty());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1500));
+        assertEquals(1L, meterCount("emptyPolls"));
+
+        EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+        queue.add(task);
+        List<EventIndexBackendTask> tasks = queue.poll(10, 0, TimeUnit.MILLISECONDS);
+        assertEquals(1, tasks.size());
+        assertEquals(task.uuid, tasks.get(0).uuid);
+    }
+
+    @Test
+    public void testTasksWithoutNotifyTokens() throws Exception {
+        EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+        queue.add(task);
+        // Tasks queued without a token (e.g. by an older version) are still returned
+        setNotifyTokens(0);
+        long start = System.nanoTime();
+        List<EventIndexBackendTask> tasks = queue.poll(10, 10, TimeUnit.SECONDS);
+        assertEquals(1, tasks.size());
+        assertEquals(task.uuid, tasks.get(0).uuid);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testNoTasksLostWhenTokensCapped() throws Exception {
+        Set<String> added = new HashSet<String>();
+        for (int i = 0; i < 50; i++) {
+            EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+            queue.add(task);
+            added.add(task.uuid);
+        }
+        // There are fewer tokens than tasks
+        assertTrue(notifyTokens() < added.size());
+
+        Set<String> polled = new HashSet<String>();
+        for (int i = 0; i < 20 && polled.size() < added.size(); i++) {
+            List<EventIndexBackendTask> tasks = queue.poll(7, 1, TimeUnit.SECONDS);
+            for (EventIndexBackendTask task : tasks) {
+                polled.add(task.uuid);
+            }
+            queue.completeAll(tasks);
+        }
+        assertEquals(added, polled);
+        assertEquals(0L, queue.size());
+    }
+}
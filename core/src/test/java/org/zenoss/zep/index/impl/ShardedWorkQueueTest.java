@@ -0,0 +1,138 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.zep.index.WorkQueue;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedWorkQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JournaledWorkQueueBuilder builder;
+    private ShardedWorkQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        builder = new JournaledWorkQueueBuilder(folder.getRoot(), 4096);
+        queue = new ShardedWorkQueue(builder, "test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        builder.close();
+    }
+
+    @Test
+    public void testShardZeroIsUnshardedQueue() {
+        assertSame(builder.build("test"), queue.getShard(0));
+        assertSame(builder.build("test:3"), queue.getShard(3));
+    }
+
+    @Test
+    public void testPartitionByUuid() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String uuid = UUID.randomUUID().toString();
+            queue.add(EventIndexBackendTask.Index(uuid, 1L));
+            queue.add(EventIndexBackendTask.Index(uuid, 1L));
+        }
+        assertEquals(100L, queue.size());
+        for (int i = 0; i < queue.getNumShards(); i++) {
+            WorkQueue shard = queue.getShard(i);
+            List<EventIndexBackendTask> tasks = shard.poll(1000, 0, TimeUnit.MILLISECONDS);
+            for (EventIndexBackendTask task : tasks) {
+                assertEquals(i, queue.shardOf(task));
+            }
+            shard.completeAll(tasks);
+        }
+        assertEquals(0L, queue.size());
+        assertEquals(0L, queue.requeueOldTasks());
+    }
+
+    @Test
+    public void testFlushGoesToEveryShard() throws Exception {
+        queue.add(EventIndexBackendTask.Flush());
+        assertEquals(4L, queue.size());
+        for (int i = 0; i < queue.getNumShards(); i++) {
+            List<EventIndexBackendTask> tasks = queue.getShard(i).poll(10, 0, TimeUnit.MILLISECONDS);
+            assertEquals(1, tasks.size());
+            assertEquals(EventIndexBackendTask.Op.FLUSH, tasks.get(0).op);
+        }
+    }
+
+    private EventIndexBackendTask taskInShard(int shard) {
+        while (true) {
+            EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L);
+            if (queue.shardOf(task) == shard) {
+                return task;
+            }
+        }
+    }
+
+    @Test
+    public void testPollRoundRobin() throws Exception {
+        for (int i = 0; i < queue.getNumShards(); i++) {
+            queue.add(taskInShard(i));
+            queue.add(taskInShard(i));
+        }
+        // Every shard is polled in turn, none is starved
+        for (int i = 0; i < 2 * queue.getNumShards(); i++) {
+            List<EventIndexBackendTask> tasks = queue.poll(1, 0, TimeUnit.MILLISECONDS);
+            assertEquals(1, tasks.size());
+            assertEquals(i % queue.getNumShards(), queue.shardOf(tasks.get(0)));
+            queue.completeAll(tasks);
+        }
+        assertTrue(queue.poll(1, 0, TimeUnit.MILLISECONDS).isEmpty());
+        assertEquals(0L, queue.size());
+    }
+
+    @Test
+    public void testPollWakesOnAnyShard() throws Exception {
+        final EventIndexBackendTask task = taskInShard(3);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.add(task);
+            }
+        };
+        producer.start();
+        try {
+            long start = System.nanoTime();
+            List<EventIndexBackendTask> tasks = queue.poll(10, 10, TimeUnit.SECONDS);
+            assertEquals(1, tasks.size());
+            assertEquals(task.uuid, tasks.get(0).uuid);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            producer.join();
+        }
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        long start = System.nanoTime();
+        assertTrue(queue.poll(10, 250, TimeUnit.MILLISECONDS).isEmpty());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+}
@@ -0,0 +1,254 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl.lucene;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventDetailItem;
+import org.zenoss.protobufs.zep.Zep.EventFilter;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventSummaryRequest;
+import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
+import org.zenoss.protobufs.zep.Zep.EventTag;
+import org.zenoss.zep.ZepInstance;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+import org.zenoss.zep.index.IndexedDetailsConfiguration;
+import org.zenoss.zep.index.impl.BaseEventIndexBackend.EventTagSeverityCounter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class LuceneEventIndexBackendTest {
+
+    private IndexWriter writer;
+    private LuceneEventIndexBackend backend;
+
+    @Before
+    public void setUp() throws Exception {
+        ZepInstance zepInstance = createNiceMock(ZepInstance.class);
+        expect(zepInstance.getConfig()).andReturn(Collections.<String,String>emptyMap()).anyTimes();
+        IndexedDetailsConfiguration detailsConfiguration = createNiceMock(IndexedDetailsConfiguration.class);
+        expect(detailsConfiguration.getEventDetailItemsByName())
+                .andReturn(Collections.<String,EventDetailItem>emptyMap()).anyTimes();
+        replay(zepInstance, detailsConfiguration);
+
+        writer = new IndexWriter(new RAMDirectory(),
+                LuceneEventIndexMapper.createIndexWriterConfig(LuceneEventIndexMapper.createAnalyzer(), zepInstance));
+        backend = new LuceneEventIndexBackend("event_summary", writer, createNiceMock(EventSummaryBaseDao.class),
+                1024, new LuceneFilterCacheManager(), 0, null, null, null, 0, 3600);
+        backend.setIndexDetailsConfiguration(detailsConfiguration);
+        backend.setResultCacheSize(10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        backend.close();
+        writer.close();
+    }
+
+    private static EventSummary summary(String uuid, EventStatus status) {
+        long now = System.currentTimeMillis();
+        return EventSummary.newBuilder().setUuid(uuid).setStatus(status).setCount(1)
+                .addOccurrence(EventTestUtils.createSampleEvent())
+                .setFirstSeenTime(now).setLastSeenTime(now).setStatusChangeTime(now).setUpdateTime(now).build();
+    }
+
+    private static EventSummaryRequest request(EventStatus... statuses) {
+        EventFilter.Builder filter = EventFilter.newBuilder();
+        for (EventStatus status : statuses) {
+            filter.addStatus(status);
+        }
+        return EventSummaryRequest.newBuilder().setEventFilter(filter).setLimit(10).build();
+    }
+
+    @Test
+    public void testResultCachedUntilIndexChanges() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        backend.index(summary(uuid, EventStatus.STATUS_NEW));
+
+        EventSummaryResult result = backend.list(request(EventStatus.STATUS_NEW));
+        assertEquals(1, result.getEventsCount());
+        // The same request returns the cached result while the index hasn't changed
+        assertSame(result, backend.list(request(EventStatus.STATUS_NEW)));
+
+        // The first request after a change sees it
+        backend.index(summary(uuid, EventStatus.STATUS_ACKNOWLEDGED));
+        assertEquals(0, backend.list(request(EventStatus.STATUS_NEW)).getEventsCount());
+        EventSummaryResult acknowledged = backend.list(request(EventStatus.STATUS_ACKNOWLEDGED));
+        assertEquals(1, acknowledged.getEventsCount());
+        assertEquals(EventStatus.STATUS_ACKNOWLEDGED, acknowledged.getEvents(0).getStatus());
+    }
+
+    @Test
+    public void testResultCacheKeyedByRequest() throws Exception {
+        backend.index(summary(UUID.randomUUID().toString(), EventStatus.STATUS_NEW));
+        backend.index(summary(UUID.randomUUID().toString(), EventStatus.STATUS_NEW));
+
+        EventSummaryResult all = backend.list(request(EventStatus.STATUS_NEW));
+        assertEquals(2, all.getEventsCount());
+        EventSummaryResult first = backend.list(EventSummaryRequest.newBuilder(request(EventStatus.STATUS_NEW))
+                .setLimit(1).build());
+        assertEquals(1, first.getEventsCount());
+        assertEquals(2, first.getTotal());
+        // The UUIDs of the same request are cached separately from the events
+        EventSummaryResult uuids = backend.listUuids(request(EventStatus.STATUS_NEW));
+        assertNotSame(all, uuids);
+        assertEquals(2, uuids.getEventsCount());
+    }
+
+    @Test
+    public void testResultCountUpdatedOnCacheHit() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        backend.setBean(metrics);
+        Gauge<?> resultsCount = metrics.getGauges().get(
+                MetricRegistry.name(LuceneEventIndexBackend.class.getCanonicalName(), "summaryIndexResultsCount"));
+        backend.index(summary(UUID.randomUUID().toString(), EventStatus.STATUS_NEW));
+        backend.index(summary(UUID.randomUUID().toString(), EventStatus.STATUS_ACKNOWLEDGED));
+        backend.index(summary(UUID.randomUUID().toString(), EventStatus.STATUS_ACKNOWLEDGED));
+
+        EventSummaryResult result = backend.list(request(EventStatus.STATUS_NEW));
+        assertEquals(1, resultsCount.getValue());
+        backend.list(request(EventStatus.STATUS_ACKNOWLEDGED));
+        assertEquals(2, resultsCount.getValue());
+        // A cached result reports its count as well
+        assertSame(result, backend.list(request(EventStatus.STATUS_NEW)));
+        assertEquals(1, resultsCount.getValue());
+    }
+
+    @Test
+    public void testResultCacheDisabled() throws Exception {
+        backend.setResultCacheSize(0);
+        backend.index(summary(UUID.randomUUID().toString(), EventStatus.STATUS_NEW));
+        EventSummaryResult result = backend.list(request(EventStatus.STATUS_NEW));
+        assertEquals(1, result.getEventsCount());
+        assertNotSame(result, backend.list(request(EventStatus.STATUS_NEW)));
+    }
+
+    private static EventSummary taggedSummary(String uuid, EventSeverity severity, EventStatus status, int count) {
+        Event sample = EventTestUtils.createSampleEvent();
+        // The device is both the element and one of the tags
+        Event occurrence = Event.newBuilder(sample).setSeverity(severity).setCount(count).clearTags()
+                .setActor(EventActor.newBuilder(sample.getActor()).setElementUuid("device")
+                        .setElementSubUuid("component"))
+                .addTags(EventTag.newBuilder().setType("zenoss.device.group").addUuid("group").addUuid("device"))
+                .build();
+        long now = System.currentTimeMillis();
+        return EventSummary.newBuilder().setUuid(uuid).setStatus(status).setCount(count).addOccurrence(occurrence)
+                .setFirstSeenTime(now).setLastSeenTime(now).setStatusChangeTime(now).setUpdateTime(now).build();
+    }
+
+    /**
+     * Indexes the summary without the DocValues fields, as it was indexed before they were added.
+     */
+    private void indexWithoutDocValues(EventSummary summary) throws Exception {
+        Document doc = LuceneEventIndexMapper.fromEventSummary(summary, Collections.<String,EventDetailItem>emptyMap(),
+                false);
+        for (String field : Arrays.asList(FIELD_SEVERITY_DOC_VALUES, FIELD_STATUS_DOC_VALUES, FIELD_COUNT_DOC_VALUES,
+                FIELD_TAGS_DOC_VALUES, FIELD_TAG_REPEATS_DOC_VALUES)) {
+            doc.removeFields(field);
+        }
+        writer.updateDocument(new Term(FIELD_UUID, summary.getUuid()), doc);
+    }
+
+    /**
+     * Returns the tag severity updates as "tag severity count acknowledged", sorted.
+     */
+    private List<String> tagSeverities() throws Exception {
+        final List<String> updates = new ArrayList<String>();
+        backend.searchEventTagSeverities(EventFilter.getDefaultInstance(), new EventTagSeverityCounter() {
+            @Override
+            public void update(String uuid, EventSeverity severity, int count, boolean acknowledged) {
+                updates.add(uuid + " " + severity + " " + count + " " + acknowledged);
+            }
+        });
+        Collections.sort(updates);
+        return updates;
+    }
+
+    @Test
+    public void testTagSeveritiesFromDocValues() throws Exception {
+        backend.index(taggedSummary(UUID.randomUUID().toString(), EventSeverity.SEVERITY_ERROR,
+                EventStatus.STATUS_NEW, 3));
+        backend.index(taggedSummary(UUID.randomUUID().toString(), EventSeverity.SEVERITY_WARNING,
+                EventStatus.STATUS_ACKNOWLEDGED, 1));
+
+        // A tag repeated in an event is counted for each time it's repeated
+        assertEquals(Arrays.asList(
+                "component SEVERITY_ERROR 3 false",
+                "component SEVERITY_WARNING 1 true",
+                "device SEVERITY_ERROR 3 false",
+                "device SEVERITY_ERROR 3 false",
+                "device SEVERITY_WARNING 1 true",
+                "device SEVERITY_WARNING 1 true",
+                "group SEVERITY_ERROR 3 false",
+                "group SEVERITY_WARNING 1 true"), tagSeverities());
+    }
+
+    @Test
+    public void testTagRepeatsFromDocValues() throws Exception {
+        Event sample = EventTestUtils.createSampleEvent();
+        // Tags repeated a different number of times, in a different order than they sort in
+        Event occurrence = Event.newBuilder(sample).setSeverity(EventSeverity.SEVERITY_INFO).setCount(1).clearTags()
+                .setActor(EventActor.newBuilder(sample.getActor()).setElementUuid("c").setElementSubUuid("a"))
+                .addTags(EventTag.newBuilder().setType("zenoss.device.group").addUuid("c").addUuid("b")
+                        .addUuid("c").addUuid("d"))
+                .build();
+        long now = System.currentTimeMillis();
+        backend.index(EventSummary.newBuilder().setUuid(UUID.randomUUID().toString())
+                .setStatus(EventStatus.STATUS_NEW).setCount(1).addOccurrence(occurrence).setFirstSeenTime(now)
+                .setLastSeenTime(now).setStatusChangeTime(now).setUpdateTime(now).build());
+
+        assertEquals(Arrays.asList(
+                "a SEVERITY_INFO 1 false",
+                "b SEVERITY_INFO 1 false",
+                "c SEVERITY_INFO 1 false",
+                "c SEVERITY_INFO 1 false",
+                "c SEVERITY_INFO 1 false",
+                "d SEVERITY_INFO 1 false"), tagSeverities());
+    }
+
+    @Test
+    public void testTagSeveritiesWithoutDocValues() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        backend.index(taggedSummary(uuid, EventSeverity.SEVERITY_ERROR, EventStatus.STATUS_NEW, 3));
+        List<String> expected = tagSeverities();
+
+        // Documents indexed before the DocValues fields were added are counted the same way from stored fields
+        indexWithoutDocValues(taggedSummary(uuid, EventSeverity.SEVERITY_ERROR, EventStatus.STATUS_NEW, 3));
+        assertEquals(expected, tagSeverities());
+
+        // Both are counted when the index has documents with and without the DocValues fields
+        writer.commit();
+        backend.index(taggedSummary(UUID.randomUUID().toString(), EventSeverity.SEVERITY_ERROR,
+                EventStatus.STATUS_NEW, 3));
+        List<String> both = new ArrayList<String>(expected);
+        both.addAll(expected);
+        Collections.sort(both);
+        assertEquals(both, tagSeverities());
+    }
+}
@@ -0,0 +1,227 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.zep.ZepInstance;
+import org.zenoss.zep.dao.EventScanRange;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.impl.PartitionTableConfig;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class LuceneIndexPartitionsTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    // Midnight (UTC) of an arbitrary day
+    private static final long START = 16000L * DAY;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public TemporaryFolder obsoleteFolder = new TemporaryFolder();
+
+    private Analyzer analyzer;
+    private ZepInstance zepInstance;
+    private LuceneIndexPartitions index;
+
+    @Before
+    public void setUp() throws Exception {
+        analyzer = LuceneEventIndexMapper.createAnalyzer();
+        zepInstance = createNiceMock(ZepInstance.class);
+        expect(zepInstance.getConfig()).andReturn(Collections.<String,String>emptyMap()).anyTimes();
+        replay(zepInstance);
+        index = open();
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+        analyzer.close();
+    }
+
+    private LuceneIndexPartitions open() throws Exception {
+        return new LuceneIndexPartitions(folder.getRoot(), analyzer, zepInstance,
+                new PartitionTableConfig("event_archive", 1, TimeUnit.DAYS, 1, 0));
+    }
+
+    private void add(String uuid, long lastSeen) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField(FIELD_UUID, uuid, Field.Store.YES));
+        doc.add(new LongField(FIELD_LAST_SEEN_TIME, lastSeen, Field.Store.NO));
+        index.updateDocument(lastSeen, new Term(FIELD_UUID, uuid), doc);
+    }
+
+    private int search(Long from, Long to) throws Exception {
+        IndexSearcher searcher = index.acquire(from, to);
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            index.release(searcher);
+        }
+    }
+
+    private int partitionDirectories() {
+        File[] files = folder.getRoot().listFiles();
+        return (files == null) ? 0 : files.length;
+    }
+
+    @Test
+    public void testDocumentsAddedToPartitionOfLastSeen() throws Exception {
+        add("a", START + 1000L);
+        add("b", START + DAY - 1L);
+        add("c", START + DAY);
+        add("d", START + 2 * DAY + 5000L);
+        // Updating a document replaces it
+        add("a", START + 2000L);
+        index.commit();
+
+        assertEquals(3, partitionDirectories());
+        assertEquals(4, index.numDocs());
+        assertEquals(4, search(null, null));
+        // Only the partitions overlapping the range are searched
+        assertEquals(2, search(START, START + 1L));
+        assertEquals(3, search(START + DAY - 1L, START + DAY));
+        assertEquals(1, search(START + 2 * DAY, null));
+        assertEquals(0, search(START + 3 * DAY, null));
+    }
+
+    @Test
+    public void testPurgeDropsOlderPartitions() throws Exception {
+        add("a", START + 1000L);
+        add("b", START + DAY + 1000L);
+        add("c", START + DAY + 5000L);
+        add("d", START + 2 * DAY);
+        index.commit();
+
+        long threshold = START + DAY + 2000L;
+        int dropped = index.purge(threshold,
+                NumericRangeQuery.newLongRange(FIELD_LAST_SEEN_TIME, null, threshold, true, true));
+        index.commit();
+
+        assertEquals(1, dropped);
+        assertEquals(2, partitionDirectories());
+        assertEquals(2, index.numDocs());
+        assertEquals(2, search(null, null));
+    }
+
+    private List<Long> version() throws Exception {
+        IndexSearcher searcher = index.acquire(null, null);
+        try {
+            return index.getVersion(searcher);
+        } finally {
+            index.release(searcher);
+        }
+    }
+
+    @Test
+    public void testVersionChangesWithIndex() throws Exception {
+        add("a", START);
+        List<Long> version = version();
+        // Searchers see the same documents until the index changes
+        assertEquals(version, version());
+
+        // The first searcher acquired after a change sees it
+        add("b", START + 1000L);
+        List<Long> updated = version();
+        assertFalse(updated.equals(version));
+        assertEquals(updated, version());
+
+        index.deleteDocuments(new Term(FIELD_UUID, "a"));
+        List<Long> deleted = version();
+        assertFalse(deleted.equals(updated));
+
+        // Adding a partition changes the version
+        add("c", START + DAY);
+        assertFalse(version().equals(deleted));
+    }
+
+    @Test
+    public void testPartitionsReopened() throws Exception {
+        add("a", START);
+        add("b", START + DAY);
+        index.commit();
+        index.close();
+
+        index = open();
+        assertEquals(2, index.numDocs());
+        assertEquals(1, search(START + DAY, START + DAY));
+
+        index.deleteAll();
+        assertEquals(0, partitionDirectories());
+        assertEquals(0, search(null, null));
+    }
+
+    @Test
+    public void testPartitionsFollowTablePartitions() throws Exception {
+        // Table partitions which don't start at midnight (UTC)
+        final long offset = TimeUnit.HOURS.toMillis(6);
+        EventSummaryBaseDao eventDao = createMock(EventSummaryBaseDao.class);
+        expect(eventDao.listScanRanges(1)).andReturn(Arrays.asList(
+                EventScanRange.forLastSeen("last_seen:2", START + DAY + offset, START + 2 * DAY + offset),
+                EventScanRange.forLastSeen("last_seen:1", START + offset, START + DAY + offset))).anyTimes();
+        replay(eventDao);
+        index.setEventDao(eventDao);
+
+        add("a", START + offset);
+        add("b", START + DAY + offset - 1L);
+        add("c", START + DAY + offset);
+        index.commit();
+
+        assertEquals(2, partitionDirectories());
+        assertEquals(2, search(START + offset, START + offset));
+        assertEquals(1, search(START + DAY + offset, null));
+    }
+
+    @Test
+    public void testDropPartitionAt() throws Exception {
+        add("a", START + 1000L);
+        add("b", START + DAY + 1000L);
+        index.commit();
+
+        long[] range = index.dropPartitionAt(START + 5000L);
+        assertArrayEquals(new long[] { START, START + DAY }, range);
+        assertEquals(1, partitionDirectories());
+        assertEquals(1, search(null, null));
+
+        // The range a partition would have if there's none
+        assertArrayEquals(new long[] { START + 3 * DAY, START + 4 * DAY }, index.dropPartitionAt(START + 3 * DAY));
+        assertEquals(1, partitionDirectories());
+    }
+
+    @Test
+    public void testObsoleteDirectoryDeleted() throws Exception {
+        File obsolete = obsoleteFolder.newFolder("archive");
+        assertTrue(new File(obsolete, "segments.gen").createNewFile());
+        index.setObsoleteDirectory(obsolete);
+        index.init();
+        assertFalse(obsolete.exists());
+    }
+}